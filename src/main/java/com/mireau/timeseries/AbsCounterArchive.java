@@ -3,6 +3,7 @@ package com.mireau.timeseries;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Date;
 
 /**
@@ -58,7 +59,7 @@ public class AbsCounterArchive extends Archive {
 	 * @throws IOException 
 	 * @throws ArchiveInitException 
 	 */
-	protected synchronized void writeCurrentStepData(RandomAccessFile raf) throws IOException, ArchiveInitException{
+	protected void writeCurrentStepData(RandomAccessFile raf) throws IOException, ArchiveInitException{
 		if(stepTimestamp==null) throw new ArchiveInitException("stepTimestamp non initialisé");
 		logger.fine("write current step vars : "+sdf.format(new Date((long)stepTimestamp*1000))+" nb="+stepNb+" max="+stepMax);
 		raf.seek(CUR_STEP_RECORD_POS);
@@ -67,6 +68,11 @@ public class AbsCounterArchive extends Archive {
 		raf.writeFloat(stepMax==null ? 0 : stepMax);
 	}
 	
+	@Override
+	protected boolean hasCurrentStepData() {
+		return stepTimestamp!=null && stepTimestamp>0;
+	}
+	
 	/**
 	 * reinitialisation des variables sur le step en cours
 	 */
@@ -75,7 +81,31 @@ public class AbsCounterArchive extends Archive {
 		stepTimestamp = null;
 		stepNb = 0;
 		stepMax = null;
+		stepCounter = null;
+		previousPoint = null;
+		previousNonNullPoint = null;
 	} 
+	
+	/**
+	 * La reprise se fait après le dernier enregistrement défini : 
+	 * le diff des steps sans valeur qui le suivent est lissé lors de l'écriture du step suivant.
+	 * La dernière valeur du compteur est celle de cet enregistrement.
+	 */
+	@Override
+	protected void restoreStepState(RandomAccessFile adf) throws IOException{
+		readPreviousPoints(adf);
+		stepNb = 0;
+		stepMax = null;
+		stepCounter = null;
+		if(previousNonNullPoint!=null){
+			lastTimestamp = previousNonNullPoint.timestamp;
+			previousPoint = previousNonNullPoint;
+			stepCounter = previousNonNullPoint.value;
+		}
+		stepTimestamp = lastTimestamp;
+		logger.fine("reprise: previous="+previousPoint+" timestamp="+stepTimestamp);
+	}
+	
 	/**
 	 * Lecture des données sur le step en cours
 	 */
@@ -88,6 +118,15 @@ public class AbsCounterArchive extends Archive {
 		
 		if(stepNb==0) stepMax = null;
 		
+		readPreviousPoints(adf);
+		
+		logger.fine("step en cours: nb="+stepNb+" previous="+previousPoint+"/"+previousNonNullPoint+" timestamp="+stepTimestamp);
+	}
+	
+	/**
+	 * Lecture du dernier point (previousPoint) et du dernier point défini (previousNonNullPoint) du fichier
+	 */
+	private void readPreviousPoints(RandomAccessFile adf) throws IOException{
 		//Lecture du dernier point
 		long pos = adf.length() - this.enregLen();
 		adf.seek(pos);
@@ -108,9 +147,6 @@ public class AbsCounterArchive extends Archive {
 		}
 		if(point!=null && point.value!=null) previousNonNullPoint = point;
 		if(previousPoint!=null && previousPoint.value==null) previousPoint = null;
-		
-		
-		logger.fine("step en cours: nb="+stepNb+" previous="+previousPoint+"/"+previousNonNullPoint+" timestamp="+stepTimestamp);
 	}
 	
 	/**
@@ -143,7 +179,7 @@ public class AbsCounterArchive extends Archive {
 		
 		if(this.previousNonNullPoint==null || previousNonNullPoint.value==null){
 			//Aucun point précédent : c'est le premier point de l'archive
-			logger.warning("no previous point");
+			logger.fine("no previous point");
 			point.diff = (float) 0;
 			point.overflow = true;
 		}
@@ -182,8 +218,23 @@ public class AbsCounterArchive extends Archive {
 	 */
 	@Override
 	protected void post(long timestamp, float value, RandomAccessFile adf) throws IOException, ArchiveInitException{
+		postStep(timestamp, value, value, 1, adf);
+	}
+	
+	/**
+	 * Ajoute des valeurs au step correspondant au timestamp : une valeur brute (nb=1)
+	 * ou un step terminé d'une archive plus fine (consolidation en cascade)
+	 * @param timestamp
+	 * @param last dernière valeur du compteur
+	 * @param max valeur maxi du compteur (détection des overflows)
+	 * @param nb nombre de valeurs
+	 * @param adf
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	protected void postStep(long timestamp, float last, float max, int nb, RandomAccessFile adf) throws IOException, ArchiveInitException{
 		boolean keepFileOpened = adf!=null;
-		lock.writeLock().lock();
+		lockPost();
 		
 		try{
 			if(stepTimestamp!=null && stepTimestamp>0 && timestamp < stepTimestamp){
@@ -205,7 +256,8 @@ public class AbsCounterArchive extends Archive {
 				 * Changement de step -> écriture
 				 */	
 				if(adf==null) adf = openFileForWriting(true);
-				this.writePoint(adf);
+				AbsCounterArchivePoint point = this.writePoint(adf);
+				if(point!=null) this.forward(point);
 				
 				stepNb = 0;
 				stepMax = this.stepCounter;	//Le nouveau max (pour le step suivant) est la valeur courante
@@ -215,11 +267,11 @@ public class AbsCounterArchive extends Archive {
 				logger.fine("nouveau step : "+sdf.format(new Date(stepTimestamp*1000)));
 			}
 			
-			this.stepCounter = value;
-			this.stepNb++;
-			if(this.stepMax==null || value > this.stepMax) this.stepMax = value;
+			this.stepCounter = last;
+			this.stepNb += nb;
+			if(this.stepMax==null || max > this.stepMax) this.stepMax = max;
 			
-			logger.fine("add to current step : "+value+" nb="+stepNb+" max="+stepMax);
+			logger.fine("add to current step : "+last+" nb="+stepNb+" max="+stepMax);
 			
 			if(this.writeStartegy == WriteStrategy.ALL_POINTS){
 				//On écrit systématiquement le données du step en cours
@@ -232,22 +284,23 @@ public class AbsCounterArchive extends Archive {
 			//On ferme le fichier
 			releaseFile();
 			if(adf != null && !keepFileOpened) adf.close();
-			lock.writeLock().unlock();
+			unlockPost();
 		}
 	}
 	
 	
 	/**
 	 * Enregistre les valeurs du step en cours dans le fichier
+	 * @return point enregistré (null si aucun)
 	 * @throws IOException 
 	 */
-	private void writePoint(RandomAccessFile adf) throws IOException{
+	private AbsCounterArchivePoint writePoint(RandomAccessFile adf) throws IOException{
 		if(stepNb == 0) 
-			return;
+			return null;
 		
 		AbsCounterArchivePoint point = (AbsCounterArchivePoint)currentStepPoint();
 		if(point==null){
-			return;
+			return null;
 		}
 		
 		long len = adf.length();
@@ -311,6 +364,7 @@ public class AbsCounterArchive extends Archive {
 		//Conservation du dernier point
 		this.previousPoint = point;
 		if(point!=null && point.value!= null) this.previousNonNullPoint = point;
+		return point;
 	}
 	
 	/**
@@ -331,6 +385,119 @@ public class AbsCounterArchive extends Archive {
 		return p;
 	}
 	
+	/**
+	 * Lit le point dans la projection mémoire du fichier, à la position indiquée
+	 */
+	@Override
+	protected ArchivePoint readPoint(ByteBuffer buf, int pos){
+		AbsCounterArchivePoint p = new AbsCounterArchivePoint();
+		byte flags = buf.get(pos);
+		boolean definedFlag = (flags & 0x01) > 0;
+		p.overflow = (flags & 0x02) > 1;
+		p.smoothEstimation = (flags & 0x04) > 2;
+		p.value = buf.getFloat(pos+1);
+		p.diff = buf.getFloat(pos+5);
+		
+		if(!definedFlag) p.value = null;
+		if(!definedFlag && !p.smoothEstimation) p.diff = null;
+		return p;
+	}
+	
+	/**
+	 * Transmet le step terminé aux archives consolidées, tel qu'il vient d'être enregistré (cf postRecord)
+	 */
+	private void forward(AbsCounterArchivePoint point) throws IOException, ArchiveInitException{
+		for(Archive target : targets){
+			((AbsCounterArchive)target).postRecord(stepTimestamp, point.value, point.diff, point.overflow, null);
+		}
+	}
+	
+	@Override
+	protected void postColumn(ArchiveColumns columns, int i, RandomAccessFile adf) throws IOException, ArchiveInitException{
+		if(!columns.isDefined(i)) return;
+		postRecord(columns.getTimestamp(i), columns.values[i], columns.diff[i], (columns.flags[i] & ArchiveColumns.OVERFLOW) != 0, adf);
+	}
+	
+	/**
+	 * Ajoute un step terminé d'une archive plus fine, à partir de son enregistrement.
+	 * Le maxi du compteur sur le step n'est pas enregistré : en cas d'overflow, il est reconstitué à partir 
+	 * du diff et de la valeur précédente (diff = max - précédente + valeur).
+	 * Même calcul en alimentation en cascade (cf forward) et en reconstruction (cf build(Archive)).
+	 */
+	private void postRecord(long timestamp, float value, float diff, boolean overflow, RandomAccessFile adf) throws IOException, ArchiveInitException{
+		lockPost();
+		try{
+			float max = value;
+			if(overflow && stepCounter!=null) max = Math.max(value, diff + stepCounter - value);
+			postStep(timestamp, value, max, 1, adf);
+		}
+		finally{
+			unlockPost();
+		}
+	}
+	
+	@Override
+	protected ArchiveColumns newColumns(long start, int capacity){
+		ArchiveColumns columns = new ArchiveColumns(start, step, capacity);
+		columns.diff = new float[capacity];
+		columns.flags = new byte[capacity];
+		return columns;
+	}
+	
+	@Override
+	protected void readColumns(ByteBuffer buf, int pos, ArchiveColumns columns, int from, int count){
+		for(int i=from;i<from+count;i++){
+			byte flags = buf.get(pos);
+			columns.flags[i] = flags;
+			if((flags & ArchiveColumns.DEFINED) != 0) columns.defined.set(i);
+			columns.values[i] = buf.getFloat(pos+1);
+			columns.diff[i] = buf.getFloat(pos+5);
+			pos += ENREG_LEN;
+		}
+	}
+	
+	@Override
+	protected void setColumns(ArchivePoint point, ArchiveColumns columns, int i){
+		AbsCounterArchivePoint p = (AbsCounterArchivePoint)point;
+		byte flags = 0;
+		if(p.value!=null){
+			flags |= ArchiveColumns.DEFINED;
+			columns.defined.set(i);
+			columns.values[i] = p.value;
+		}
+		if(p.overflow) flags |= ArchiveColumns.OVERFLOW;
+		if(p.smoothEstimation) flags |= ArchiveColumns.SMOOTH_ESTIMATION;
+		if(p.diff!=null) columns.diff[i] = p.diff;
+		columns.flags[i] = flags;
+	}
+	
+	@Override
+	protected ArchivePoint columnPoint(ArchiveColumns columns, int i){
+		AbsCounterArchivePoint p = new AbsCounterArchivePoint();
+		p.timestamp = columns.getTimestamp(i);
+		if(columns.isDefined(i)) p.value = columns.values[i];
+		if(columns.isDiffDefined(i)) p.diff = columns.diff[i];
+		p.overflow = (columns.flags[i] & ArchiveColumns.OVERFLOW) != 0;
+		p.smoothEstimation = (columns.flags[i] & ArchiveColumns.SMOOTH_ESTIMATION) != 0;
+		return p;
+	}
+	
+	/**
+	 * Dernière valeur définie et somme des diff du paquet
+	 */
+	@Override
+	protected ArchivePoint aggregate(ArchiveColumns columns, int from, int to){
+		AbsCounterArchivePoint p = new AbsCounterArchivePoint();
+		p.timestamp = columns.getTimestamp(from);
+		for(int i=from;i<to;i++){
+			if(columns.isDefined(i)) p.value = columns.values[i];
+			if(columns.isDiffDefined(i)) p.diff = (p.diff==null ? 0 : p.diff) + columns.diff[i];
+			if((columns.flags[i] & ArchiveColumns.OVERFLOW) != 0) p.overflow = true;
+			if((columns.flags[i] & ArchiveColumns.SMOOTH_ESTIMATION) != 0) p.smoothEstimation = true;
+		}
+		return p;
+	}
+	
 	@Override
 	protected ArchivePoint newEmptyPoint(Long timestamp){
 		AbsCounterArchivePoint p = new AbsCounterArchivePoint();
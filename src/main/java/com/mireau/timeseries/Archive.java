@@ -3,17 +3,25 @@ package com.mireau.timeseries;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
-import java.util.GregorianCalendar;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.mireau.timeseries.RawData.Entry;
@@ -26,10 +34,11 @@ import com.mireau.timeseries.RawData.Entry;
  * 
  *   En tête commun: (16 bytes)
  *     step      int   / 4 bytes
- *     type      int   / 4 bytes (1:AVERAGE, 2:ABS_COUNTER, 3:REL_COUNTER)
+ *     type      int   / 4 bytes (1:AVERAGE, 2:ABS_COUNTER, 3:REL_COUNTER, 4:QUANTILE)
+ *                             16 bits de poids fort : version du format des enregistrements (cf formatVersion)
  *     timestamp long  / 8 bytes
  *     
- *   Type AVERAGE: (+13 bytes = 44bytes)
+ *   Type AVERAGE: (version 1)
  *      Description:
  *        Pour enregistrer des valeurs telles que des température
  *        Similaire au type GAUGE de RRDTool
@@ -39,11 +48,13 @@ import com.mireau.timeseries.RawData.Entry;
  *   	  stepNb    int   / 4 bytes : Nb de valeurs brutes constituant le step en cours
  *   	  stepMin   float / 4 bytes
  *   	  stepMax   float / 4 bytes
- *   	Enregistrements: (13 bytes)
+ *   	Enregistrements: (17 bytes)
  *		  Defined  bool  / 1 byte (0:NULL 1:valeur)
  *        Value    float / 4 bytes
  *        Min	   float / 4 bytes
  *        Max	   float / 4 bytes
+ *        Nb       int   / 4 bytes : Nb de valeurs brutes constituant le step
+ *      Version 0 : enregistrements de 13 bytes sans Nb, convertis à l'ouverture (cf AverageArchive.upgradeFormat)
  *     
  *   Type ABS_COUNTER: 
  *        Enregistrement de compteurs en valeur absolue (ex: compteur électrique)
@@ -53,10 +64,24 @@ import com.mireau.timeseries.RawData.Entry;
  *   Type REL_COUNTER:
  *      Description:
  *        Enregistrement de compteurs en valeur relative (impulsions depuis le dernier enregistrement)
- *      En-tête spécifique : Aucun
- *      Enregistrements: (5 bytes)
+ *      En-tête spécifique : Données sur le step en cours (20 bytes)
+ *        stepTimestamp  / 8 bytes : timestamp du step en cours
+ *        stepSum double / 8 bytes : somme des valeurs en cours
+ *        stepNb   int   / 4 bytes : Nb de valeurs brutes constituant le step en cours
+ *      Enregistrements: (9 bytes)
  *        Defined  bool  / 1 byte (0:NULL 1:valeur)
- *        Value    float / 4 bytes
+ *        Sum      float / 4 bytes
+ *        Nb       int   / 4 bytes
+ *     
+ *   Type QUANTILE:
+ *      Description:
+ *        Distribution des valeurs de chaque step (ex: temps de réponse), pour l'estimation des quantiles (p50, p95, p99)
+ *      En-tête spécifique : Données sur le step en cours (284 bytes)
+ *        stepTimestamp  / 8 bytes : timestamp du step en cours
+ *        sketch         / 276 bytes : résumé des valeurs (cf QuantileSketch)
+ *      Enregistrements: (277 bytes)
+ *        Defined  bool  / 1 byte (0:NULL 1:valeur)
+ *        Sketch         / 276 bytes
  */
 public abstract class Archive {
 
@@ -69,8 +94,20 @@ public abstract class Archive {
 	static SimpleDateFormat sdf = new SimpleDateFormat("YYYY/MM/dd HH:mm:ss");
 
 	public enum Type {
-		AVERAGE, ABS_COUNTER, REL_COUNTER
+		AVERAGE, ABS_COUNTER, REL_COUNTER, QUANTILE
 	}
+	
+	/**
+	 * Réduction du nombre de points d'une lecture (cf getRange(start, end, maxPoints))
+	 * BUCKET : un point agrégé par paquet de steps (moyenne/min/max, ou dernière valeur et somme des diff pour un compteur)
+	 * LTTB : Largest-Triangle-Three-Buckets, un point réel par paquet, choisi pour conserver la forme de la courbe
+	 */
+	public enum Downsampling {
+		BUCKET, LTTB
+	}
+	
+	/** Nombre de steps lus par lecture lors d'une réduction du nombre de points */
+	static int DOWNSAMPLING_CHUNK = 64*1024;
 
 	/**
 	 * 60 //1min 
@@ -113,8 +150,17 @@ public abstract class Archive {
 	/** Fichier archive */
 	protected File archiveFile;
 
-	/** Lock sur l'archive */
+	/**
+	 * Lock sur l'archive : partagé par les lectures et les écritures de points,
+	 * exclusif pour les modifications de structure (initialisation, reconstruction, compactage)
+	 */
 	ReadWriteLock lock;
+	
+	/** Verrou des écritures de points (un seul écrivain), jamais pris par les lectures */
+	final ReentrantLock postLock = new ReentrantLock();
+	
+	/** Etat publié par l'écrivain en fin d'écriture, lu sans verrou d'écriture par getPoints */
+	volatile ReadState readState;
 
 	/**
 	 * timestamp de debut de l'archive
@@ -125,6 +171,62 @@ public abstract class Archive {
 	 * timestamp du dernier step enregistré (terminé)
 	 */
 	Long lastTimestamp = null;
+	
+	/** Nombre de reconstructions (troncature du fichier) : permet de détecter une reconstruction pendant un compactage */
+	int buildCount = 0;
+	
+	/** Sérialisation des compactages de rétention (fichier temporaire unique) */
+	final ReentrantLock retentionLock = new ReentrantLock();
+	
+	/** Lecture des points (getPoints) par projection mémoire du fichier */
+	boolean mappedRead = false;
+	
+	/** Projection mémoire du fichier en lecture seule (refaite si la taille du fichier change) */
+	MappedByteBuffer readMap;
+	
+	/** Verrou de (re)projection : plusieurs lectures concurrentes sous readLock */
+	final ReentrantLock readMapLock = new ReentrantLock();
+
+	/** 
+	 * Origine du calage des steps (cf StepAlignment), fixée à l'ouverture de l'archive.
+	 * Une archive existante dont le timestamp de début (en-tête) n'est pas calé conserve ses steps : 
+	 * l'origine est alors son timestamp de début (cf checkAlignment)
+	 */
+	long stepOrigin = StepAlignment.getDefault().origin;
+	
+	/** Archive plus fine dont les steps terminés alimentent cette archive (consolidation en cascade), null si alimentée par les valeurs brutes */
+	Archive source;
+	
+	/** Archives alimentées par les steps terminés de cette archive (liste remplacée, jamais modifiée) */
+	volatile List<Archive> targets = Collections.emptyList();
+	
+	/** Reconstruction en cours (cf beginBuild) : fichier ouvert, archives consolidées détachées et stratégie d'écriture à rétablir */
+	RandomAccessFile buildFile;
+	/** Reconstruction en cours : timestamp à partir duquel les valeurs sont repostées (cf truncate) */
+	long buildFrom;
+	private List<Archive> buildTargets;
+	private WriteStrategy buildWriteStrategy;
+
+	/**
+	 * Etat de l'archive publié après chaque écriture (immuable).
+	 * Les enregistrements situés avant 'length' ne sont plus modifiés par les écritures de points 
+	 * (hors réécriture du dernier step) : une lecture peut les parcourir sans attendre l'écrivain.
+	 */
+	static class ReadState {
+		/** timestamp de début (0 si non défini) */
+		final long startTimestamp;
+		final Long lastTimestamp;
+		final ArchivePoint currentStepPoint;
+		/** fin des enregistrements écrits */
+		final long length;
+		
+		ReadState(long startTimestamp, Long lastTimestamp, ArchivePoint currentStepPoint, long length){
+			this.startTimestamp = startTimestamp;
+			this.lastTimestamp = lastTimestamp;
+			this.currentStepPoint = currentStepPoint;
+			this.length = length;
+		}
+	}
 
 	/**
 	 * Constructeur d'une nouvelle archive
@@ -171,10 +273,12 @@ public abstract class Archive {
 					"Le fichier archive " + file.getAbsolutePath() + " n'existe pas ou est vide");
 		RandomAccessFile f = new RandomAccessFile(file, "r");
 		int step = f.readInt();
-		Type type = decodeType(f.readInt());
+		Type type = decodeType(f.readInt() & 0xffff);
 		f.close();
 		if(type == Type.AVERAGE) archive = new AverageArchive(file, id,step);
 		else if(type == Type.ABS_COUNTER) archive = new AbsCounterArchive(file, id,step);
+		else if(type == Type.REL_COUNTER) archive = new RelCounterArchive(file, id,step);
+		else if(type == Type.QUANTILE) archive = new QuantileArchive(file, id,step);
 		return archive;
 	}
 	
@@ -204,7 +308,7 @@ public abstract class Archive {
 
 		// Type
 		Integer t = Archive.encodeType(type);
-		adf.writeInt(t);
+		adf.writeInt(t | (formatVersion(type) << 16));
 
 		// Timestamp a 0
 		adf.writeLong(0);
@@ -223,6 +327,8 @@ public abstract class Archive {
 		Archive archive = null;
 		if(type == Type.AVERAGE) archive = new AverageArchive(file, id, step);
 		else if(type == Type.ABS_COUNTER) archive = new AbsCounterArchive(file, id, step);
+		else if(type == Type.REL_COUNTER) archive = new RelCounterArchive(file, id, step);
+		else if(type == Type.QUANTILE) archive = new QuantileArchive(file, id, step);
 		return archive;
 	}
 	
@@ -233,7 +339,7 @@ public abstract class Archive {
 	 * @throws IOException
 	 * @throws ArchiveInitException
 	 */
-	protected synchronized void initArchive() throws IOException, ArchiveInitException{
+	protected void initArchive() throws IOException, ArchiveInitException{
 		logger.info("Init archive : "+archiveFile.getName());
 		
 		if(!archiveFile.exists() || archiveFile.length()==0) throw new ArchiveInitException("archive does not exists");
@@ -266,7 +372,15 @@ public abstract class Archive {
 			 * Type
 			 */
 			int t = adf.readInt();
-			if(decodeType(t) != this.getType()) throw new ArchiveInitException("incoherence de type d'archive");
+			if(decodeType(t & 0xffff) != this.getType()) throw new ArchiveInitException("incoherence de type d'archive");
+			int version = t >>> 16;
+			if(version != formatVersion(getType())){
+				//fichier écrit dans une autre version du format : conversion puis relecture
+				adf.close();
+				upgradeFormat(version);
+				initArchive();
+				return;
+			}
 			
 			/*
 			 * Timestamp de debut
@@ -274,6 +388,7 @@ public abstract class Archive {
 			this.startTimestamp = adf.readLong();
 			
 			logger.fine("start: "+(this.startTimestamp==0 ? "no start date" : sdf.format(new Date(this.startTimestamp*1000)))+" step:"+step);
+			checkAlignment();
 			
 			/*
 			 * Valeurs initialisees : timestamp + valeurs sur le step en cours
@@ -314,6 +429,7 @@ public abstract class Archive {
 	
 				logger.fine(" nb steps: " + nbEnreg);
 			}
+			publishState();
 		}
 		finally{
 			// On relache le fichier
@@ -323,6 +439,38 @@ public abstract class Archive {
 		}
 	}
 	
+	/**
+	 * Début d'écriture de points : exclut les autres écrivains et les modifications de structure, pas les lectures
+	 */
+	protected void lockPost(){
+		lock.readLock().lock();
+		postLock.lock();
+	}
+	
+	/**
+	 * Fin d'écriture de points : publication de l'état pour les lectures (en fin d'écriture la plus externe)
+	 */
+	protected void unlockPost(){
+		try{
+			if(postLock.getHoldCount()==1) publishState();
+		}
+		finally{
+			postLock.unlock();
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Publie l'état courant de l'archive pour les lectures. 
+	 * A appeler par l'écrivain (postLock ou writeLock)
+	 */
+	protected void publishState(){
+		long start = (startTimestamp==null ? 0 : startTimestamp);
+		long length = HEADER1_LEN + currentStepDataLength();
+		if(start > 0 && lastTimestamp!=null) length += ((lastTimestamp - start)/step + 1) * getRecordLen();
+		readState = new ReadState(start, lastTimestamp, currentStepPoint(), length);
+	}
+	
 	protected void releaseFile() throws IOException{
 		//if(lock!=null) lock.release();
 	}
@@ -349,38 +497,49 @@ public abstract class Archive {
 	}
 	
 	
+	/**
+	 * Archive créée avec un autre calage (version antérieure, autre fuseau ou début de semaine) : 
+	 * les steps restent calés sur le timestamp de début enregistré dans l'en-tête,
+	 * y compris après reconstruction ou rétention (le début reste sur la même grille de steps)
+	 */
+	private void checkAlignment(){
+		if(startTimestamp==null || startTimestamp<=0) return;
+		if(getTimestampOrigine(startTimestamp) == startTimestamp) return;
+		logger.warning("archive "+archiveFile.getName()+" : steps non calés sur l'heure locale (debut="+sdf.format(new Date(startTimestamp*1000))+"), calage d'origine conservé");
+		stepOrigin = startTimestamp;
+	}
+	
 	/**
 	 * Détermine un timestamp d'origine, calé sur le step immédiatement inférieur au timestamp
 	 * @param timestamp
 	 * @return
 	 */
 	protected long getTimestampOrigine(long t){
-		Calendar cal = GregorianCalendar.getInstance();
-		cal.setTimeInMillis(t*1000);
-		//On positionne au début de l'heure en cours
-		cal.set(Calendar.SECOND, 0);
-		cal.set(Calendar.MINUTE, 0);
-		if(step>3600){
-			//On positionne au début du jour en cours
-			cal.set(Calendar.HOUR_OF_DAY, 0);
-		}
-		if(step>86400){
-			//On positionne au début de la semaine
-			cal.set(Calendar.DAY_OF_WEEK, 0);
-		}
-		long result = cal.getTimeInMillis() / 1000;
-		
-		while(result + step <= t){
-			result += step;
-		}
-		
-		return result;
+		return StepAlignment.align(stepOrigin, t, step);
+	}
+	
+	/**
+	 * Version courante du format des enregistrements d'un type d'archive
+	 */
+	static int formatVersion(Type type){
+		if(type == Type.AVERAGE) return AverageArchive.VERSION;
+		return 0;
+	}
+	
+	/**
+	 * Conversion d'un fichier écrit dans une version antérieure du format des enregistrements, 
+	 * sous writeLock à l'ouverture de l'archive
+	 * @param version version du fichier
+	 */
+	protected void upgradeFormat(int version) throws IOException, ArchiveInitException{
+		throw new ArchiveInitException("version de format d'archive non supportée : "+version+" ("+archiveFile.getName()+")");
 	}
 	
 	protected static Integer encodeType(Type type){
 		if(type == Type.AVERAGE) return 1;
 		if(type == Type.ABS_COUNTER) return 2;
 		if(type == Type.REL_COUNTER) return 3;
+		if(type == Type.QUANTILE) return 4;
 		else return null;
 	}
 	
@@ -389,6 +548,7 @@ public abstract class Archive {
 			case 1: return Type.AVERAGE;
 			case 2: return Type.ABS_COUNTER;
 			case 3: return Type.REL_COUNTER;
+			case 4: return Type.QUANTILE;
 			default: return null;
 		}
 	}
@@ -397,12 +557,15 @@ public abstract class Archive {
 		if("AVERAGE".equalsIgnoreCase(type)) return Type.AVERAGE;
 		if("ABS_COUNTER".equalsIgnoreCase(type)) return Type.ABS_COUNTER;
 		if("REL_COUNTER".equalsIgnoreCase(type)) return Type.REL_COUNTER;
+		if("QUANTILE".equalsIgnoreCase(type)) return Type.QUANTILE;
 		return null;
 	}
 	
 	public Type getType() {
 		if (this instanceof AverageArchive) return Type.AVERAGE;
 		else if (this instanceof AbsCounterArchive) return Type.ABS_COUNTER;
+		else if (this instanceof RelCounterArchive) return Type.REL_COUNTER;
+		else if (this instanceof QuantileArchive) return Type.QUANTILE;
 		else return null;
 	}
 
@@ -413,23 +576,50 @@ public abstract class Archive {
 	 * @throws ArchiveInitException 
 	 */
 	public void close() throws IOException, ArchiveInitException {
-		if (writeStartegy == WriteStrategy.CHANGE_STEP) {
+		if (writeStartegy == WriteStrategy.CHANGE_STEP && hasCurrentStepData()) {
 			RandomAccessFile raf = null;
+			lockPost();
 			try{
-				this.lock.writeLock().lock();
 				raf = openFileForWriting(true);
 				writeCurrentStepData(raf);
 			}
 			finally{
 				releaseFile();
 				if(raf!=null) raf.close();
-				lock.writeLock().unlock();
+				unlockPost();
 			}
 		}
 	}
 	
 	/**
-	 * Ecriture des données sur le step en cours
+	 * Enregistre les valeurs reçues sur le step en cours et force l'écriture du fichier sur disque
+	 * 
+	 * @throws IOException
+	 * @throws ArchiveInitException 
+	 */
+	public void sync() throws IOException, ArchiveInitException {
+		RandomAccessFile raf = null;
+		lockPost();
+		try{
+			raf = openFileForWriting(true);
+			if(hasCurrentStepData()) writeCurrentStepData(raf);
+			raf.getChannel().force(false);
+		}
+		finally{
+			releaseFile();
+			if(raf!=null) raf.close();
+			unlockPost();
+		}
+	}
+	
+	/**
+	 * Indique si un step en cours est initialisé (des données sont à écrire)
+	 */
+	protected abstract boolean hasCurrentStepData();
+	
+	/**
+	 * Ecriture des données sur le step en cours.
+	 * Toujours appelé sous lockPost (post, sync, close, reconstruction) : pas de verrouillage propre
 	 * @throws ArchiveInitException 
 	 */
 	protected abstract void writeCurrentStepData(RandomAccessFile raf) throws IOException, ArchiveInitException;
@@ -444,6 +634,13 @@ public abstract class Archive {
 	 */
 	protected abstract void readCurrentStepData(RandomAccessFile adf) throws IOException;
 	
+	/**
+	 * Restaure l'état du step en cours après troncature du fichier (reconstruction partielle) : 
+	 * step en cours vide positionné sur le dernier enregistrement conservé (lastTimestamp).
+	 * lastTimestamp peut être ramené à un enregistrement antérieur, le fichier est alors tronqué après celui-ci.
+	 */
+	protected abstract void restoreStepState(RandomAccessFile adf) throws IOException;
+	
 	/**
 	 * Longueur des données du step en cours écrites dans le fichier archive
 	 */
@@ -461,6 +658,42 @@ public abstract class Archive {
 	 */
 	protected abstract ArchivePoint readPoint(RandomAccessFile raf) throws IOException;
 	
+	/**
+	 * Lit le point à la position indiquée d'une projection mémoire du fichier (lecture absolue, sans appel système)
+	 */
+	protected abstract ArchivePoint readPoint(ByteBuffer buf, int pos);
+	
+	/**
+	 * Crée les colonnes de résultat correspondant au type d'archive
+	 */
+	protected abstract ArchiveColumns newColumns(long start, int capacity);
+	
+	/**
+	 * Lit 'count' enregistrements consécutifs à partir de la position pos du tampon 
+	 * dans les colonnes, à partir de l'indice 'from'
+	 */
+	protected abstract void readColumns(ByteBuffer buf, int pos, ArchiveColumns columns, int from, int count);
+	
+	/**
+	 * Recopie le point (step en cours) dans les colonnes à l'indice i
+	 */
+	protected abstract void setColumns(ArchivePoint point, ArchiveColumns columns, int i);
+	
+	/**
+	 * Construit le point d'indice i des colonnes
+	 */
+	protected abstract ArchivePoint columnPoint(ArchiveColumns columns, int i);
+	
+	/**
+	 * Construit le point agrégé des steps [from, to[ des colonnes, au timestamp du premier step
+	 */
+	protected abstract ArchivePoint aggregate(ArchiveColumns columns, int from, int to);
+	
+	/**
+	 * Ajoute au step correspondant le step d'indice i des colonnes d'une archive plus fine (s'il est défini)
+	 */
+	protected abstract void postColumn(ArchiveColumns columns, int i, RandomAccessFile adf) throws IOException, ArchiveInitException;
+	
 	/**
 	 * Retourne la taille d'un enregistrement dans le fichier
 	 */
@@ -478,6 +711,45 @@ public abstract class Archive {
 	}
 	protected abstract void post(long timestamp, float value, RandomAccessFile adf) throws IOException, ArchiveInitException;
 	
+	/**
+	 * Enregistrement d'une série de points
+	 * Le verrou et le fichier ne sont obtenus qu'une fois pour tout le lot. 
+	 * Les données du step en cours ne sont écrites qu'en fin de lot (si WriteStrategy.ALL_POINTS)
+	 * @param timestamps
+	 * @param values
+	 * @param off indice du premier point
+	 * @param len nombre de points
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	public void post(long[] timestamps, float[] values, int off, int len) throws IOException, ArchiveInitException{
+		RawData.checkBounds(timestamps, values, off, len);
+		if(len==0) return;
+		RandomAccessFile raf = null;
+		lockPost();
+		WriteStrategy writeStrategy = this.writeStartegy;
+		try{
+			raf = openFileForWriting(true);
+			
+			//on désactive l'écriture systématique (du current step) à chaque point
+			this.setWriteStartegy(WriteStrategy.CHANGE_STEP);
+			for(int i=off;i<off+len;i++){
+				this.post(timestamps[i], values[i], raf);
+			}
+			
+			if(writeStrategy == WriteStrategy.ALL_POINTS){
+				writeCurrentStepData(raf);
+			}
+		}
+		finally{
+			//On rétabli la valeur de WriteStrategy
+			this.setWriteStartegy(writeStrategy);
+			if(raf!=null) raf.close();
+			releaseFile();
+			unlockPost();
+		}
+	}
+	
 	
 	/**
 	 * Construit l'objet ArchivePoint correspondant aux valeurs enregistrées sur le step en cours
@@ -489,62 +761,392 @@ public abstract class Archive {
 	 * @throws IOException 
 	 * 
 	 */
-	public void build(Iterator<Entry> iter) throws IOException, ArchiveInitException{
-		//On tronque le fichier au timestamp correspondant a la premiere valeur.
-		if(!iter.hasNext()) return;
-		RandomAccessFile raf = null;
+	public void build(final Iterator<Entry> iter) throws IOException, ArchiveInitException{
+		build(new RawCursor() {
+			Entry e;
+			@Override
+			public boolean next() {
+				if(!iter.hasNext()) return false;
+				e = iter.next();
+				return true;
+			}
+			@Override
+			public long timestamp() {
+				return e.timestamp;
+			}
+			@Override
+			public long timestampMillis() {
+				return e.timestampMillis;
+			}
+			@Override
+			public float value() {
+				return e.value;
+			}
+			@Override
+			public void close() {
+			}
+		});
+	}
+	
+	/**
+	 * Construit l'archive à partir des données brutes parcourues par le curseur (sans allocation par point)
+	 * Le curseur n'est pas fermé
+	 * @throws ArchiveInitException 
+	 * @throws IOException 
+	 */
+	public void build(RawCursor cursor) throws IOException, ArchiveInitException{
+		build(Collections.singletonList(this), cursor);
+	}
+	
+	/**
+	 * Construit plusieurs archives d'une même série en un seul parcours des données brutes : 
+	 * chaque valeur lue est postée dans toutes les archives.
+	 * Les archives sont verrouillées (dans l'ordre de la liste) pendant toute la construction.
+	 * Le curseur n'est pas fermé
+	 * @param archives archives alimentées par les valeurs brutes
+	 * @param cursor
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	static void build(List<Archive> archives, RawCursor cursor) throws IOException, ArchiveInitException{
+		//On tronque les fichiers au timestamp correspondant a la premiere valeur.
+		if(archives.isEmpty() || !cursor.next()) return;
+		build(archives, cursor.timestamp(), cursor, true);
+	}
+	
+	/**
+	 * Reconstruit plusieurs archives d'une même série à partir du step du timestamp (cf getRebuildStart) :
+	 * les steps antérieurs sont conservés, les valeurs brutes suivantes sont repostées en un seul parcours.
+	 * Le curseur doit débuter au plus tard au plus ancien des steps de reprise. Il n'est pas fermé
+	 * @param archives archives alimentées par les valeurs brutes
+	 * @param timestamp
+	 * @param cursor
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	static void rebuildFrom(List<Archive> archives, long timestamp, RawCursor cursor) throws IOException, ArchiveInitException{
+		if(archives.isEmpty()) return;
+		build(archives, timestamp, cursor, cursor.next());
+	}
+	
+	/**
+	 * @param timestamp timestamp de troncature
+	 * @param hasValue le curseur est positionné sur une valeur
+	 */
+	private static void build(List<Archive> archives, long timestamp, RawCursor cursor, boolean hasValue) throws IOException, ArchiveInitException{
 		long _t0 = System.currentTimeMillis();
-		lock.writeLock().lock();
-		try {
-			Entry e = iter.next();
-			raf = openFileForWriting(false);
-			if(this.startTimestamp!=null){
-				//l'archive existe déjà avec un timestamp de début défini
-				if(lastTimestamp==null || e.timestamp < lastTimestamp + getRecordLen()){
-					//timestamp dans l'archive ou anterieur : 
-					//on tronque l'archive à la position de la première valeur de la série à insérer 
-					Long pos = getTimestampPosition(e.timestamp);
-					logger.info("troncature du fichier archive "+archiveFile.getName()+" à pos="+pos);
-					raf.setLength(pos);
-					resetCurrentStepData();
-					
-					if(pos > HEADER1_LEN + currentStepDataLength()){
-						//On conserve des points dans l'archive. on va lire la dernière valeur
-						raf.seek(pos-getRecordLen());
-						ArchivePoint p = readPoint(raf);
-						lastTimestamp = p.timestamp;
-					}
+		int begun = 0;
+		try{
+			for (Archive archive : archives) {
+				archive.beginBuild(timestamp);
+				begun++;
+			}
+			
+			//Ajout des valeurs, à partir du step de reprise de chaque archive
+			while(hasValue){
+				long t = cursor.timestamp();
+				float value = cursor.value();
+				for (Archive archive : archives) {
+					if(t >= archive.buildFrom) archive.post(t, value, archive.buildFile);
 				}
+				hasValue = cursor.next();
 			}
 			
+			//ecriture du current step
+			for (Archive archive : archives) {
+				if(archive.hasCurrentStepData()) archive.writeCurrentStepData(archive.buildFile);
+			}
+		}
+		finally{
+			for(int i=begun-1;i>=0;i--){
+				archives.get(i).endBuild();
+			}
+			Archive first = archives.get(0);
+			logger.info("build archive "+first.id+(archives.size()>1 ? " ("+archives.size()+" archives)" : "_"+first.step)
+					+" :"+(System.currentTimeMillis()-_t0)+"ms");
+		}
+	}
+	
+	/**
+	 * Début de reconstruction : verrouillage de l'archive (les points sont publiés en fin de construction), 
+	 * troncature au step du timestamp (cf truncate) et ouverture du fichier (buildFile).
+	 * Les archives consolidées sont détachées : elles sont reconstruites ensuite (cf TimeSerie.buildArchive)
+	 * @param timestamp timestamp de la première valeur modifiée
+	 * @throws IOException
+	 */
+	void beginBuild(long timestamp) throws IOException{
+		lock.writeLock().lock();
+		lockPost();
+		buildTargets = this.targets;
+		this.targets = Collections.emptyList();
+		buildWriteStrategy = this.writeStartegy;
+		try{
+			buildCount++;
+			invalidateReadMap();
+			buildFile = openFileForWriting(false);
+			truncate(timestamp, buildFile);
+			
 			//on désactive l'écriture systématique (du current step) à chaque point
-			WriteStrategy writeStrategy = this.writeStartegy;
 			this.setWriteStartegy(WriteStrategy.CHANGE_STEP);
+		}
+		catch(IOException | RuntimeException e){
+			endBuild();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Fin de reconstruction (cf beginBuild) : fermeture du fichier, rattachement des archives consolidées et déverrouillage
+	 */
+	void endBuild(){
+		try{
+			if(buildFile!=null) buildFile.close();
+			releaseFile();
+		}
+		catch(IOException e){
+			logger.log(Level.WARNING, "fermeture archive "+archiveFile.getName()+" : "+e.getMessage(), e);
+		}
+		finally{
+			buildFile = null;
+			//On rétabli la valeur de WriteStrategy
+			this.setWriteStartegy(buildWriteStrategy);
+			this.targets = buildTargets;
+			buildTargets = null;
+			unlockPost();
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Step à partir duquel l'archive doit être reconstruite pour intégrer des valeurs à partir du timestamp :
+	 * step du timestamp, au plus tard le step suivant le dernier enregistrement (le step en cours n'est pas enregistré)
+	 * @param timestamp
+	 * @return timestamp du step de reprise, null si l'archive doit être entièrement reconstruite
+	 */
+	Long getRebuildStart(long timestamp){
+		if(startTimestamp==null || startTimestamp<=0 || lastTimestamp==null || timestamp < startTimestamp) return null;
+		long restart = Math.min(startTimestamp + (timestamp - startTimestamp)/step*step, lastTimestamp + step);
+		return (restart > startTimestamp ? restart : null);
+	}
+	
+	/**
+	 * Tronque l'archive avant reconstruction à partir du timestamp (cf getRebuildStart).
+	 * Les enregistrements antérieurs au step de reprise sont conservés et l'état du step en cours est restauré
+	 * depuis le dernier d'entre eux ; à défaut l'archive est vidée.
+	 * buildFrom reçoit le timestamp à partir duquel les valeurs doivent être repostées.
+	 */
+	private void truncate(long timestamp, RandomAccessFile raf) throws IOException{
+		buildFrom = Long.MIN_VALUE;
+		if(this.startTimestamp==null) return;
+		
+		Long restart = getRebuildStart(timestamp);
+		if(restart==null){
+			//plus aucun enregistrement
+			long pos = HEADER1_LEN + currentStepDataLength();
+			logger.info("troncature du fichier archive "+archiveFile.getName()+" à pos="+pos);
+			raf.setLength(pos);
+			resetCurrentStepData();
+			lastTimestamp = null;
+		}
+		else{
+			//On conserve les enregistrements antérieurs au step de reprise
+			raf.setLength(getTimestampPosition(restart));
+			lastTimestamp = restart - step;
+			restoreStepState(raf);
 			
-			//On poste la premiere valeur deja recuperee
-			this.post(e.timestamp, e.value, raf);
+			long pos = getTimestampPosition(lastTimestamp + step);
+			logger.info("troncature du fichier archive "+archiveFile.getName()+" à pos="+pos);
+			raf.setLength(pos);
+			buildFrom = lastTimestamp + step;
+		}
+	}
+	
+	/**
+	 * Construit l'archive à partir des steps terminés d'une archive plus fine (consolidation en cascade).
+	 * Chaque step enregistré de la source est reposté avec le nombre de valeurs brutes qui le constituent
+	 * (moyenne, somme) : même résultat que l'alimentation en cascade.
+	 * @param source archive dont le step divise celui de l'archive
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	public void build(Archive source) throws IOException, ArchiveInitException{
+		rebuildFrom(source, Long.MIN_VALUE);
+	}
+	
+	/**
+	 * Reconstruit l'archive à partir du step du timestamp (cf getRebuildStart) depuis les steps terminés de sa source
+	 * @param source archive dont le step divise celui de l'archive
+	 * @param timestamp
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	void rebuildFrom(Archive source, long timestamp) throws IOException, ArchiveInitException{
+		ReadState state = source.readState;
+		if(state.startTimestamp <= 0 || state.lastTimestamp == null) return;
+		
+		long _t0 = System.currentTimeMillis();
+		beginBuild(timestamp);
+		try {
+			//premier step de la source à reposter
+			long start = state.startTimestamp;
+			if(buildFrom > start) start += (buildFrom - start + source.step - 1) / source.step * source.step;
+			long nb = (state.lastTimestamp - start) / source.step + 1;
 			
-			//Ajout des valeurs
-			while(iter.hasNext()){
-				e = iter.next();
-				this.post(e.timestamp, e.value, raf);
+			for(long off=0; off<nb; off+=DOWNSAMPLING_CHUNK){
+				int len = (int)Math.min(DOWNSAMPLING_CHUNK, nb - off);
+				ArchiveColumns columns = source.getColumns(start + off*source.step, len);
+				for(int i=0;i<Math.min(len, columns.size());i++){
+					postColumn(columns, i, buildFile);
+				}
 			}
 			
 			//ecriture du current step
-			this.writeCurrentStepData(raf);
-			
-			//On rétabli la valeur de WriteStrategy
-			this.setWriteStartegy(writeStrategy);
+			if(hasCurrentStepData()) this.writeCurrentStepData(buildFile);
 		} finally {
-			long _t1 = System.currentTimeMillis();
-			logger.info("build archive "+this.id+" :"+(_t1-_t0)+"ms");
-			if (raf != null)
-				raf.close();
-			releaseFile();
-			lock.writeLock().unlock();
+			endBuild();
+			logger.info("build archive "+this.id+"_"+step+" depuis "+source.step+" :"+(System.currentTimeMillis()-_t0)+"ms");
 		}
 	}
+	
+	/**
+	 * Indique si les steps terminés de l'archive peuvent alimenter une archive plus grossière : 
+	 * même type, step multiple, steps standards (alignés sur l'heure, le jour ou la semaine),
+	 * chaque step de l'archive grossière débutant au début d'un step de l'archive (même calage, cf checkAlignment)
+	 */
+	boolean canConsolidate(Archive coarse){
+		return coarse.getType() == getType() && coarse.step > step && coarse.step % step == 0
+				&& isAllowedStep(step) && isAllowedStep(coarse.step)
+				&& (coarse.stepOrigin - stepOrigin) % step == 0;
+	}
+	
+	static boolean isAllowedStep(int step){
+		for(int allowed : ALLOWED_STEPS){
+			if(allowed == step) return true;
+		}
+		return false;
+	}
 
+	/**
+	 * Supprime les enregistrements de l'archive antérieurs au timestamp (rétention).
+	 * Le dernier enregistrement est toujours conservé.
+	 * Les enregistrements sont recopiés dans un nouveau fichier sans verrou ; seule la fin du fichier 
+	 * (enregistrements ajoutés pendant la copie) et l'en-tête sont recopiés sous verrou avant remplacement du fichier.
+	 * @param timestamp
+	 * @return nombre d'enregistrements supprimés
+	 * @throws IOException
+	 */
+	public long expireBefore(long timestamp) throws IOException{
+		retentionLock.lock();
+		try{
+			return compactBefore(timestamp);
+		}
+		finally{
+			retentionLock.unlock();
+		}
+	}
+	
+	/**
+	 * Compactage de l'archive (cf expireBefore), appelé sous retentionLock
+	 */
+	private long compactBefore(long timestamp) throws IOException{
+		long start;
+		long nbRecords;
+		int builds;
+		//état publié (cohérent) : les écrivains de points modifient les champs sous postLock seulement
+		lock.readLock().lock();
+		try{
+			ReadState state = this.readState;
+			if(state.startTimestamp<=0 || state.lastTimestamp==null) return 0;
+			start = state.startTimestamp;
+			nbRecords = (state.lastTimestamp - state.startTimestamp)/step + 1;
+			builds = buildCount;
+		}
+		finally{
+			lock.readLock().unlock();
+		}
+		
+		//Nombre d'enregistrements entièrement antérieurs au timestamp
+		long nb = Math.min((timestamp - start)/step, nbRecords-1);
+		if(nb<=0) return 0;
+		
+		int headerLen = HEADER1_LEN + currentStepDataLength();
+		int recordLen = getRecordLen();
+		File tmpFile = new File(archiveFile.getAbsoluteFile().getParentFile(), archiveFile.getName()+".tmp");
+		
+		/*
+		 * Copie sans verrou des enregistrements conservés, sauf le dernier (il peut être réécrit)
+		 */
+		long copyEnd = headerLen + (nbRecords-1)*recordLen;
+		FileChannel out = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		boolean moved = false;
+		try{
+			FileChannel in = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ);
+			try{
+				out.position(headerLen);
+				transfer(in, headerLen + nb*recordLen, copyEnd, out);
+			}
+			finally{
+				in.close();
+			}
+			
+			/*
+			 * Fin de la copie sous verrou puis remplacement du fichier
+			 */
+			lock.writeLock().lock();
+			try{
+				if(builds != buildCount || startTimestamp != start){
+					//l'archive a été reconstruite pendant la copie : on abandonne
+					logger.warning("archive "+archiveFile.getName()+" modifiée pendant le compactage");
+					return 0;
+				}
+				in = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ);
+				try{
+					long len = in.size();
+					transfer(in, copyEnd, len - (len-headerLen) % recordLen, out);
+					transfer(in, 0, headerLen, out.position(0));
+				}
+				finally{
+					in.close();
+				}
+				
+				//Nouveau timestamp de début
+				long newStart = start + nb*step;
+				ByteBuffer buf = ByteBuffer.allocate(8);
+				buf.putLong(newStart).flip();
+				out.write(buf, 8);
+				out.force(false);
+				out.close();
+				
+				Files.move(tmpFile.toPath(), archiveFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				moved = true;
+				invalidateReadMap();
+				this.startTimestamp = newStart;
+				publishState();
+				logger.info("archive "+archiveFile.getName()+" : "+nb+" enregistrements supprimés, debut="+sdf.format(new Date(newStart*1000)));
+				return nb;
+			}
+			finally{
+				lock.writeLock().unlock();
+			}
+		}
+		finally{
+			if(out.isOpen()) out.close();
+			//copie abandonnée ou en erreur : pas de fichier temporaire résiduel
+			if(!moved) tmpFile.delete();
+		}
+	}
+	
+	/**
+	 * Copie la portion [from, to[ du canal in à la position courante du canal out
+	 */
+	static void transfer(FileChannel in, long from, long to, FileChannel out) throws IOException{
+		while(from < to){
+			long n = in.transferTo(from, to-from, out);
+			if(n<=0) throw new IOException("copie interrompue");
+			from += n;
+		}
+	}
+	
 	/**
 	 * Positionne le curseur sur la valeur correspondante au timestamp (exact ou suivant)
 	 * @param timestamp
@@ -596,43 +1198,48 @@ public abstract class Archive {
 	 * @throws LockTimeoutException 
 	 */
 	public List<ArchivePoint> getPoints(Long start, int nb, int timeoutMillis) throws IOException, InterruptedException, LockTimeoutException {
-		// currrentStep
-		ArchivePoint curStepPoint = this.currentStepPoint();
-		
-		if(start == null){
-			long end = new Date().getTime()/1000;
-			start = end-(nb*this.step);
-			
-			//Si on a quelque chose dans le step courant on décale de 1 pour pouvoir l'inclure dans le résultat
-			if(curStepPoint!= null) start += this.step;
+		//Read Lock (avant lecture de l'état : l'archive peut être compactée)
+		//partagé avec les écritures de points : n'attend que les modifications de structure
+		if(timeoutMillis < 0){
+			lock.readLock().lock();
 		}
-		
-		List<ArchivePoint> result = new ArrayList<ArchivePoint>();
-
-		logger.fine("getPoints("+new Date(start*1000)+","+nb+")");
-
-		// Positionnement sur la premiere valeur
-		if(this.startTimestamp <= 0 || start==null){	//si t0==0, il n'est en fait pas défini		//  || start <= this.startTimestamp
-			return null;
-		}
-		long nbToStart = (start - this.startTimestamp) / step;
-		long startIdx = nbToStart*getRecordLen() + HEADER1_LEN + currentStepDataLength();
-		
-		// On cale start sur les valeurs de l'archive
-		start = this.startTimestamp + (nbToStart * step);
-
-		long len = this.archiveFile.length();
-
-		
-
-		RandomAccessFile raf = null;
-		
-		//Read Lock
-		if(!lock.readLock().tryLock(timeoutMillis,TimeUnit.MILLISECONDS)){
+		else if(!lock.readLock().tryLock(timeoutMillis,TimeUnit.MILLISECONDS)){
 			throw new LockTimeoutException(timeoutMillis+" timeout expired");
 		}
 		
+		RandomAccessFile raf = null;
+		List<ArchivePoint> result = new ArrayList<ArchivePoint>();
 		try{
+			//Etat publié par la dernière écriture : les valeurs suivantes sont lues de façon cohérente
+			ReadState state = this.readState;
+			
+			// currrentStep
+			ArchivePoint curStepPoint = state.currentStepPoint;
+			
+			if(start == null){
+				long end = new Date().getTime()/1000;
+				start = end-(nb*this.step);
+				
+				//Si on a quelque chose dans le step courant on décale de 1 pour pouvoir l'inclure dans le résultat
+				if(curStepPoint!= null) start += this.step;
+			}
+			
+			logger.fine("getPoints("+new Date(start*1000)+","+nb+")");
+	
+			// Positionnement sur la premiere valeur
+			if(state.startTimestamp <= 0 || start==null){	//si t0==0, il n'est en fait pas défini		//  || start <= this.startTimestamp
+				return null;
+			}
+			long nbToStart = (start - state.startTimestamp) / step;
+			long startIdx = nbToStart*getRecordLen() + HEADER1_LEN + currentStepDataLength();
+			
+			// On cale start sur les valeurs de l'archive
+			start = state.startTimestamp + (nbToStart * step);
+	
+			//on ne lit pas les enregistrements ajoutés depuis la publication de l'état
+			long len = Math.min(state.length, this.archiveFile.length());
+			ByteBuffer map = getReadBuffer(len);
+			
 			long cursorTimestamp = start;
 			long cursorIdx = startIdx;
 			for(int i=0;i<nb;i++){
@@ -644,7 +1251,7 @@ public abstract class Archive {
 						break;
 					}
 					else if (cursorTimestamp == curStepPoint.timestamp)
-						point = curStepPoint;
+						point = curStepPoint.copy();
 					else if (cursorTimestamp > curStepPoint.timestamp) {
 						// On est au dela de curStep : on arrête sans mettre de
 						// point vides
@@ -655,6 +1262,10 @@ public abstract class Archive {
 				else if(cursorIdx<0 || cursorIdx < Archive.HEADER1_LEN + this.currentStepDataLength()){
 					point = this.newEmptyPoint(cursorTimestamp);
 				}
+				else if(map != null){
+					// Lecture dans la projection mémoire
+					point = readPoint(map, (int)cursorIdx);
+				}
 				else {
 					// Ouverture du fichier si besoin
 					if (raf == null)
@@ -681,20 +1292,228 @@ public abstract class Archive {
 		return result;
 	}
 	
+	/**
+	 * Recherche d'une serie de point, sous forme de colonnes (cf getPoints)
+	 * Les enregistrements sont lus en une seule lecture de la zone contiguë du fichier, 
+	 * sans création d'objet par point.
+	 * 
+	 * @param start
+	 * @param nb steps
+	 * @return colonnes (null si l'archive n'a pas de timestamp de début)
+	 * @throws IOException
+	 */
+	public ArchiveColumns getColumns(Long start, int nb) throws IOException {
+		lock.readLock().lock();
+		try{
+			ReadState state = this.readState;
+			ArchivePoint curStepPoint = state.currentStepPoint;
+			
+			if(start == null){
+				long end = new Date().getTime()/1000;
+				start = end-(nb*this.step);
+				if(curStepPoint!= null) start += this.step;
+			}
+			if(state.startTimestamp <= 0){
+				return null;
+			}
+			
+			long nbToStart = (start - state.startTimestamp) / step;
+			start = state.startTimestamp + (nbToStart * step);
+			ArchiveColumns columns = newColumns(start, nb);
+			
+			int firstPos = HEADER1_LEN + currentStepDataLength();
+			int recordLen = getRecordLen();
+			long len = Math.min(state.length, this.archiveFile.length());
+			long nbRecords = Math.max(0, (len - firstPos) / recordLen);
+			
+			//Points présents dans le fichier : indices [from, to[
+			int from = (int)Math.max(0, Math.min(nb, -nbToStart));
+			int to = (int)Math.max(from, Math.min(nb, nbRecords - nbToStart));
+			if(to > from){
+				long pos = firstPos + (nbToStart + from)*recordLen;
+				int count = to - from;
+				ByteBuffer map = getReadBuffer(len);
+				if(map != null){
+					readColumns(map, (int)pos, columns, from, count);
+				}
+				else{
+					ByteBuffer buf = ByteBuffer.allocate(count*recordLen);
+					FileChannel channel = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ);
+					try{
+						while(buf.hasRemaining()){
+							if(channel.read(buf, pos + buf.position()) < 0) throw new IOException("fin de fichier inattendue : "+archiveFile.getName());
+						}
+					}
+					finally{
+						channel.close();
+					}
+					readColumns(buf, 0, columns, from, count);
+				}
+			}
+			
+			//Après le fichier : points vides jusqu'au step en cours
+			int size = to;
+			for(int i=Math.max(to, from);i<nb;i++){
+				long timestamp = start + (long)i*step;
+				if(curStepPoint==null || timestamp > curStepPoint.timestamp) break;
+				if(timestamp == curStepPoint.timestamp) setColumns(curStepPoint, columns, i);
+				size = i+1;
+			}
+			columns.size = size;
+			return columns;
+		}
+		finally{
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Recherche des points d'une période, avec réduction par paquets (BUCKET) au delà de maxPoints points
+	 * @see #getRange(long, long, int, Downsampling)
+	 */
+	public List<ArchivePoint> getRange(long start, long end, int maxPoints) throws IOException, InterruptedException {
+		return getRange(start, end, maxPoints, Downsampling.BUCKET);
+	}
+	
+	/**
+	 * Recherche des points d'une période (début et fin inclus).
+	 * Si la période compte plus de maxPoints steps, les steps sont regroupés en paquets consécutifs 
+	 * (un point au plus par paquet) : la taille du résultat ne dépend pas de la largeur de la période.
+	 * 
+	 * @param start (secondes)
+	 * @param end (secondes)
+	 * @param maxPoints nombre maximum de points retournés
+	 * @param downsampling méthode de réduction
+	 * @return points (null si l'archive n'a pas de timestamp de début)
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public List<ArchivePoint> getRange(long start, long end, int maxPoints, Downsampling downsampling) throws IOException, InterruptedException {
+		if(maxPoints <= 0) throw new IllegalArgumentException("maxPoints doit être positif : "+maxPoints);
+		
+		long t0 = this.readState.startTimestamp;
+		if(t0 <= 0) return null;
+		
+		// On cale start sur les valeurs de l'archive
+		start = t0 + ((start - t0) / step) * step;
+		if(end < start) return new ArrayList<ArchivePoint>();
+		long nb = (end - start) / step + 1;
+		if(nb <= maxPoints) return getPoints(start, (int)nb);
+		
+		return getBuckets(start, nb, (int)((nb + maxPoints - 1) / maxPoints), downsampling);
+	}
+	
+	/**
+	 * Regroupement des steps d'une période en paquets de bucketSize steps consécutifs (un point au plus par paquet)
+	 * Les steps sont lus en colonnes, par blocs de DOWNSAMPLING_CHUNK steps.
+	 * @param start début (calé sur les steps de l'archive)
+	 * @param nb nombre de steps
+	 * @param bucketSize nombre de steps par paquet
+	 * @param downsampling méthode de réduction
+	 * @return points (null si l'archive n'a pas de timestamp de début)
+	 * @throws IOException
+	 */
+	List<ArchivePoint> getBuckets(long start, long nb, int bucketSize, Downsampling downsampling) throws IOException {
+		long chunk = bucketSize * Math.max(1, DOWNSAMPLING_CHUNK / bucketSize);
+		Downsampler sampler = new Downsampler(this, downsampling);
+		for(long off=0; off<nb; off+=chunk){
+			int len = (int)Math.min(chunk, nb - off);
+			ArchiveColumns columns = getColumns(start + off*step, len);
+			if(columns == null) return null;
+			for(int from=0; from<columns.size(); from+=bucketSize){
+				sampler.add(columns, from, Math.min(from + bucketSize, columns.size()));
+			}
+			//fin des données (step en cours)
+			if(columns.size() < len) break;
+		}
+		return sampler.finish();
+	}
+	
+	/**
+	 * Timestamp du premier step postérieur aux données de l'archive (step en cours compris)
+	 * @return null si l'archive est vide
+	 */
+	Long getCoverageEnd(){
+		ReadState state = this.readState;
+		if(state.currentStepPoint != null) return state.currentStepPoint.timestamp + step;
+		if(state.lastTimestamp != null) return state.lastTimestamp + step;
+		return null;
+	}
+	
+	/**
+	 * Active la lecture des points par projection mémoire (MappedByteBuffer) du fichier.
+	 * Ne s'applique pas aux fichiers de plus de 2Go (lecture fichier classique)
+	 * @param mappedRead
+	 */
+	public void setMappedRead(boolean mappedRead) {
+		this.mappedRead = mappedRead;
+		if(!mappedRead) invalidateReadMap();
+	}
+	
+	public boolean isMappedRead() {
+		return mappedRead;
+	}
+	
+	/**
+	 * Fourni une vue sur la projection mémoire du fichier, refaite si le fichier a grandi.
+	 * A appeler sous readLock (le fichier n'est pas tronqué ni remplacé pendant la lecture)
+	 * @param len taille du fichier à lire
+	 * @return null si le mode projection n'est pas actif ou pas applicable
+	 * @throws IOException
+	 */
+	protected ByteBuffer getReadBuffer(long len) throws IOException{
+		if(!mappedRead) return null;
+		if(len > Integer.MAX_VALUE){
+			logger.warning("fichier trop volumineux pour la projection mémoire : "+archiveFile.getName());
+			return null;
+		}
+		readMapLock.lock();
+		try{
+			if(readMap==null || readMap.capacity() < len){
+				FileChannel channel = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ);
+				try{
+					readMap = channel.map(MapMode.READ_ONLY, 0, len);
+				}
+				finally{
+					channel.close();
+				}
+				logger.fine("projection mémoire de "+archiveFile.getName()+" : "+len+" bytes");
+			}
+			return readMap.duplicate();
+		}
+		finally{
+			readMapLock.unlock();
+		}
+	}
+	
+	/**
+	 * Abandonne la projection mémoire (fichier tronqué ou remplacé)
+	 */
+	protected void invalidateReadMap(){
+		readMapLock.lock();
+		try{
+			readMap = null;
+		}
+		finally{
+			readMapLock.unlock();
+		}
+	}
+	
 	public List<ArchivePoint> getLastPoints(int nb) throws IOException, InterruptedException{
 		Long start = null;
 		if(nb==0) return new ArrayList<ArchivePoint>();
 		
-		ArchivePoint curStepPoint = currentStepPoint();
+		ReadState state = this.readState;
+		ArchivePoint curStepPoint = state.currentStepPoint;
 		
 		if(curStepPoint!=null){
 			nb--;
 			start = curStepPoint.timestamp - nb*this.step;
 		}
-		else if(this.lastTimestamp != null){
-			start = this.lastTimestamp - nb*this.step;
+		else if(state.lastTimestamp != null){
+			start = state.lastTimestamp - nb*this.step;
 		}
-		if(start<this.startTimestamp) start = this.startTimestamp;
+		if(start<state.startTimestamp) start = state.startTimestamp;
 		
 		return getPoints(start,nb);
 	}
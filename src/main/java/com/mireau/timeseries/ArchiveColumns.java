@@ -0,0 +1,110 @@
+package com.mireau.timeseries;
+
+import java.util.BitSet;
+
+/**
+ * Points d'une archive sous forme de colonnes de types primitifs (cf Archive.getColumns)
+ * Le point d'indice i correspond au timestamp start + i*step (secondes).
+ * Seuls les 'size' premiers éléments des tableaux sont significatifs ;
+ * les valeurs d'un point non défini (cf isDefined) ne sont pas significatives.
+ *
+ * Colonnes selon le type d'archive :
+ *   AVERAGE     : values (moyenne), min, max, counts
+ *   ABS_COUNTER : values, diff, flags
+ *   REL_COUNTER : values (somme des valeurs du step), counts
+ *   QUANTILE    : values (médiane), sketches
+ */
+public class ArchiveColumns {
+
+	/** Flags des compteurs (identiques aux flags des enregistrements) */
+	public static final byte DEFINED = 0x01;
+	public static final byte OVERFLOW = 0x02;
+	public static final byte SMOOTH_ESTIMATION = 0x04;
+
+	/** timestamp du premier point (secondes) */
+	long start;
+	/** espacement des points (secondes) */
+	int step;
+	int size = 0;
+
+	float[] values;
+	/** points dont la valeur est définie */
+	BitSet defined;
+
+	float[] min;
+	float[] max;
+
+	float[] diff;
+	byte[] flags;
+	
+	/** nombre de valeurs brutes de chaque step */
+	int[] counts;
+	
+	/** résumé de la distribution des valeurs de chaque step (null si non défini) */
+	QuantileSketch[] sketches;
+
+	ArchiveColumns(long start, int step, int capacity) {
+		this.start = start;
+		this.step = step;
+		this.values = new float[capacity];
+		this.defined = new BitSet(capacity);
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	public int getStep() {
+		return step;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Timestamp (secondes) du point d'indice i
+	 */
+	public long getTimestamp(int i) {
+		return start + (long)i*step;
+	}
+
+	public boolean isDefined(int i) {
+		return defined.get(i);
+	}
+
+	/**
+	 * Indique si le diff du point est défini (valeur définie ou diff estimé sur une période sans valeur)
+	 */
+	public boolean isDiffDefined(int i) {
+		return diff != null && (flags[i] & (DEFINED | SMOOTH_ESTIMATION)) != 0;
+	}
+
+	public float[] getValues() {
+		return values;
+	}
+
+	public float[] getMin() {
+		return min;
+	}
+
+	public float[] getMax() {
+		return max;
+	}
+
+	public float[] getDiff() {
+		return diff;
+	}
+
+	public byte[] getFlags() {
+		return flags;
+	}
+	
+	public int[] getCounts() {
+		return counts;
+	}
+	
+	public QuantileSketch[] getSketches() {
+		return sketches;
+	}
+}
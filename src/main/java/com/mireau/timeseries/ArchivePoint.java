@@ -13,12 +13,23 @@ import javax.json.JsonObject;
 /**
  * Classe qui represente un point de l'archive
  */
-public abstract class ArchivePoint{
+public abstract class ArchivePoint implements Cloneable{
 	Float value = null;
 	long timestamp;
 	
 	
 	
+	/**
+	 * Copie du point (le point du step courant publié par l'archive est partagé par les lectures)
+	 */
+	ArchivePoint copy(){
+		try {
+			return (ArchivePoint)clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
 	public Date getDate(){ 
 		return new Date(this.timestamp*1000);
 	}
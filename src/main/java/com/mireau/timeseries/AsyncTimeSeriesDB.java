@@ -0,0 +1,298 @@
+package com.mireau.timeseries;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Façade asynchrone de la base : chaque opération (bloquante : I/O fichier) est exécutée sur un exécuteur
+ * et son résultat fourni par un CompletableFuture (en cas d'échec, l'exception d'origine : IOException, TimeSerieException...).
+ *
+ * L'exécuteur par défaut utilise un thread virtuel par tâche si la JVM le permet (JDK 21+),
+ * à défaut un pool borné de threads. Les verrous pris pendant les I/O sont des ReentrantLock
+ * (pas de moniteur synchronized) : un thread virtuel bloqué libère son thread porteur.
+ *
+ * Les écritures d'une même série sont exécutées l'une après l'autre, dans l'ordre des appels (cf submitPost) :
+ * les données brutes restent triées. Les écritures de séries distinctes et les lectures s'exécutent en parallèle.
+ */
+public class AsyncTimeSeriesDB {
+
+	static Logger logger = Logger.getLogger(AsyncTimeSeriesDB.class.getName());
+
+	/** Nombre de tâches en attente par thread du pool par défaut */
+	static final int QUEUE_PER_THREAD = 256;
+
+	/** Attente (secondes) de la fin des opérations en cours par close() */
+	static final int CLOSE_TIMEOUT = 60;
+
+	final TimeSeriesDB db;
+	final ExecutorService executor;
+	/** exécuteur créé par la façade : arrêté par close() */
+	private final boolean ownExecutor;
+
+	/** Dernière écriture soumise par série (retirée une fois terminée s'il n'en a pas été soumis d'autre) */
+	final ConcurrentHashMap<String, CompletableFuture<Void>> lastPosts = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+
+	/**
+	 * Façade sur l'exécuteur par défaut (cf newDefaultExecutor)
+	 */
+	public AsyncTimeSeriesDB(TimeSeriesDB db) {
+		this(db, newDefaultExecutor(), true);
+	}
+
+	/**
+	 * Façade sur un exécuteur fourni (non arrêté par close)
+	 */
+	public AsyncTimeSeriesDB(TimeSeriesDB db, ExecutorService executor) {
+		this(db, executor, false);
+	}
+
+	private AsyncTimeSeriesDB(TimeSeriesDB db, ExecutorService executor, boolean ownExecutor) {
+		this.db = db;
+		this.executor = executor;
+		this.ownExecutor = ownExecutor;
+	}
+
+	/**
+	 * Exécuteur par défaut : un thread virtuel par tâche (JDK 21+),
+	 * sinon un pool de 4 threads par processeur, dont la file est bornée (QUEUE_PER_THREAD tâches par thread) :
+	 * file pleine, la tâche est exécutée par le thread appelant, ce qui ralentit les producteurs
+	 */
+	public static ExecutorService newDefaultExecutor(){
+		try {
+			Method m = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)m.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			logger.fine("threads virtuels non disponibles : pool de threads");
+		}
+		int nbThreads = 4*Runtime.getRuntime().availableProcessors();
+		final AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(nbThreads, nbThreads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_PER_THREAD*nbThreads), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "async-"+count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		}, new RejectedExecutionHandler() {
+			@Override
+			public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+				//pool arrêté : rejet (CallerRunsPolicy abandonnerait la tâche sans compléter son CompletableFuture)
+				if(executor.isShutdown()) throw new RejectedExecutionException("executeur arrete");
+				r.run();
+			}
+		});
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * @param timestamp (secondes)
+	 */
+	public CompletableFuture<Void> post(final TimeSerie ts, final long timestamp, final float value){
+		return postMillis(ts, timestamp*1000, value);
+	}
+
+	/**
+	 * @param timestamp (millisecondes)
+	 */
+	public CompletableFuture<Void> postMillis(final TimeSerie ts, final long timestamp, final float value){
+		return submitPost(ts.getId(), new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				ts.postMillis(timestamp, value);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @param timestamp (secondes)
+	 */
+	public CompletableFuture<Void> post(final String name, final long timestamp, final float value){
+		return submitPost(name, new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				getTimeSerie(name).postMillis(timestamp*1000, value);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Série de valeurs (cf TimeSerie.post(long[], float[], int, int))
+	 * @param timestamps (secondes)
+	 */
+	public CompletableFuture<Void> post(final String name, final long[] timestamps, final float[] values){
+		return submitPost(name, new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				getTimeSerie(name).post(timestamps, values, 0, timestamps.length);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * cf TimeSerie.selectNb
+	 */
+	public CompletableFuture<List<ArchivePoint>> selectNb(final String name, final int step, final Long start, final int nb){
+		return submit(new Callable<List<ArchivePoint>>() {
+			@Override
+			public List<ArchivePoint> call() throws Exception {
+				return getTimeSerie(name).selectNb(step, start, nb);
+			}
+		});
+	}
+
+	/**
+	 * cf TimeSerie.selectRange
+	 */
+	public CompletableFuture<List<ArchivePoint>> selectRange(final String name, final long start, final long end, final int maxPoints){
+		return submit(new Callable<List<ArchivePoint>>() {
+			@Override
+			public List<ArchivePoint> call() throws Exception {
+				return getTimeSerie(name).selectRange(start, end, maxPoints);
+			}
+		});
+	}
+
+	/**
+	 * cf Archive.getPoints
+	 */
+	public CompletableFuture<List<ArchivePoint>> getPoints(final Archive archive, final Long start, final int nb){
+		return submit(new Callable<List<ArchivePoint>>() {
+			@Override
+			public List<ArchivePoint> call() throws Exception {
+				return archive.getPoints(start, nb);
+			}
+		});
+	}
+
+	/**
+	 * cf TimeSeriesDB.checkpoint
+	 */
+	public CompletableFuture<Void> checkpoint(){
+		return submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				db.checkpoint();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Exécution d'une opération bloquante
+	 */
+	public <T> CompletableFuture<T> submit(final Callable<T> task){
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		executor.execute(completion(task, future));
+		return future;
+	}
+
+	/**
+	 * Exécution d'une écriture d'une série, après la fin (succès ou échec) de l'écriture précédente de la série.
+	 * Une écriture rejetée par l'exécuteur (arrêté) échoue par son CompletableFuture
+	 */
+	CompletableFuture<Void> submitPost(final String name, Callable<Void> task){
+		final CompletableFuture<Void> future = new CompletableFuture<Void>();
+		final Runnable run = completion(task, future);
+		//enchaînement : l'écriture précédente est celle remplacée par celle-ci
+		CompletableFuture<Void> previous = lastPosts.put(name, future);
+		if(previous==null){
+			execute(run, future);
+		}
+		else{
+			previous.whenComplete(new BiConsumer<Void, Throwable>() {
+				@Override
+				public void accept(Void result, Throwable error) {
+					execute(run, future);
+				}
+			});
+		}
+		future.whenComplete(new BiConsumer<Void, Throwable>() {
+			@Override
+			public void accept(Void result, Throwable error) {
+				lastPosts.remove(name, future);
+			}
+		});
+		return future;
+	}
+
+	private void execute(Runnable run, CompletableFuture<?> future){
+		try{
+			executor.execute(run);
+		}
+		catch(RejectedExecutionException e){
+			future.completeExceptionally(e);
+		}
+	}
+
+	private static <T> Runnable completion(Callable<T> task, CompletableFuture<T> future){
+		return new Completion<T>(task, future);
+	}
+
+	/**
+	 * Tâche complétant le CompletableFuture par le résultat ou l'exception de l'opération
+	 */
+	static class Completion<T> implements Runnable {
+		final Callable<T> task;
+		final CompletableFuture<T> future;
+
+		Completion(Callable<T> task, CompletableFuture<T> future) {
+			this.task = task;
+			this.future = future;
+		}
+
+		@Override
+		public void run() {
+			try {
+				future.complete(task.call());
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		}
+	}
+
+	private TimeSerie getTimeSerie(String name) throws TimeSerieException{
+		TimeSerie ts = db.getTimeSerie(name);
+		if(ts==null) throw new TimeSerieException("serie inconnue : "+name);
+		return ts;
+	}
+
+	/**
+	 * Attend la fin des opérations en cours et arrête l'exécuteur par défaut
+	 * @throws IOException opérations non terminées après CLOSE_TIMEOUT secondes (interrompues) : 
+	 * la base ne doit pas être fermée sous elles
+	 */
+	public void close() throws InterruptedException, IOException{
+		if(!ownExecutor) return;
+		executor.shutdown();
+		if(!executor.awaitTermination(CLOSE_TIMEOUT, TimeUnit.SECONDS)){
+			List<Runnable> pending = executor.shutdownNow();
+			for (Runnable r : pending) {
+				if(r instanceof Completion) ((Completion<?>)r).future.completeExceptionally(new RejectedExecutionException("executeur arrete"));
+			}
+			logger.warning("fermeture : operations asynchrones non terminees apres "+CLOSE_TIMEOUT+" s ("+pending.size()+" en attente abandonnees)");
+			throw new IOException("fermeture : operations asynchrones non terminees apres "+CLOSE_TIMEOUT+" s");
+		}
+	}
+
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+}
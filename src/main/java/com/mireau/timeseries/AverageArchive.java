@@ -3,11 +3,20 @@ package com.mireau.timeseries;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Date;
 
 public class AverageArchive extends Archive {
 
-	static int ENREG_LEN = 13;
+	/** Version du format : nombre de valeurs brutes de chaque step enregistré (cf Archive) */
+	static int VERSION = 1;
+	static int ENREG_LEN = 17;
+	/** Enregistrements de la version 0 (sans nombre de valeurs) */
+	static int V0_ENREG_LEN = 13;
 	static int CURRENT_STEP_DATA_LENGTH = 28;
 
 	/**
@@ -46,21 +55,20 @@ public class AverageArchive extends Archive {
 	 */
 	protected void writeCurrentStepData(RandomAccessFile raf) throws IOException, ArchiveInitException{
 		if(stepTimestamp==null) throw new ArchiveInitException("stepTimestamp non initialisé");
-		lock.writeLock().lock();
-		try{
-			logger.fine("write current step vars : "+sdf.format(new Date((long)stepTimestamp*1000))+" nb="+stepNb+" sum="+stepSum);
-			raf.seek(CUR_STEP_RECORD_POS);
-			raf.writeLong(stepTimestamp);
-			raf.writeDouble(stepSum);
-			raf.writeInt(stepNb);
-			raf.writeFloat(stepMin==null ? 0 : stepMin);
-			raf.writeFloat(stepMax==null ? 0 : stepMax);
-		}
-		finally{
-			lock.writeLock().unlock();
-		}
+		logger.fine("write current step vars : "+sdf.format(new Date((long)stepTimestamp*1000))+" nb="+stepNb+" sum="+stepSum);
+		raf.seek(CUR_STEP_RECORD_POS);
+		raf.writeLong(stepTimestamp);
+		raf.writeDouble(stepSum);
+		raf.writeInt(stepNb);
+		raf.writeFloat(stepMin==null ? 0 : stepMin);
+		raf.writeFloat(stepMax==null ? 0 : stepMax);
 	}
 
+	@Override
+	protected boolean hasCurrentStepData() {
+		return stepTimestamp!=null && stepTimestamp>0;
+	}
+	
 	/**
 	 * reinitialisation des variables sur le step en cours
 	 */
@@ -73,6 +81,16 @@ public class AverageArchive extends Archive {
 		stepMax = null;
 	}
 
+	/**
+	 * Le prochain step est démarré sans écriture d'enregistrement (stepNb=0)
+	 */
+	@Override
+	protected void restoreStepState(RandomAccessFile adf) {
+		resetCurrentStepData();
+		stepTimestamp = lastTimestamp;
+		stepLast = null;
+	}
+
 	/**
 	 * Lecture des données sur le step en cours
 	 */
@@ -122,6 +140,7 @@ public class AverageArchive extends Archive {
 		point.value = (float) (this.stepSum / this.stepNb);
 		point.min = this.stepMin;
 		point.max = this.stepMax;
+		point.nb = this.stepNb;
 		point.timestamp = this.stepTimestamp;
 		return point;
 	}
@@ -151,8 +170,26 @@ public class AverageArchive extends Archive {
 	 */
 	@Override
 	protected void post(long timestamp, float value, RandomAccessFile adf) throws IOException, ArchiveInitException{
+		postStep(timestamp, value, 1, value, value, value, adf);
+	}
+
+	/**
+	 * Ajoute des valeurs agrégées au step correspondant au timestamp : une valeur brute (nb=1)
+	 * ou un step terminé d'une archive plus fine (consolidation en cascade)
+	 * 
+	 * @param timestamp
+	 * @param sum somme des valeurs
+	 * @param nb nombre de valeurs
+	 * @param min
+	 * @param max
+	 * @param last dernière valeur
+	 * @param adf
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	protected void postStep(long timestamp, double sum, int nb, float min, float max, float last, RandomAccessFile adf) throws IOException, ArchiveInitException{
 		boolean keepFileOpened = adf!=null;
-		lock.writeLock().lock();
+		lockPost();
 		
 		try{
 			if(stepTimestamp!=null && stepTimestamp>0 && timestamp < stepTimestamp){
@@ -175,6 +212,7 @@ public class AverageArchive extends Archive {
 				 */	
 				if(adf==null) adf = openFileForWriting(true);
 				this.writePoint(adf);
+				this.forward();
 			
 				this.stepSum = 0;
 				this.stepNb = 0;
@@ -186,12 +224,12 @@ public class AverageArchive extends Archive {
 				logger.fine("nouveau step : "+sdf.format(new Date(stepTimestamp*1000)));
 			}
 			
-			this.stepLast = value;
+			this.stepLast = last;
 		
-			this.stepSum += value;
-			this.stepNb++;
-			if(this.stepMin==null || value < this.stepMin) this.stepMin = value;
-			if(this.stepMax==null || value > this.stepMax) this.stepMax = value;
+			this.stepSum += sum;
+			this.stepNb += nb;
+			if(this.stepMin==null || min < this.stepMin) this.stepMin = min;
+			if(this.stepMax==null || max > this.stepMax) this.stepMax = max;
 			
 			logger.fine("add to current step : "+stepLast+" nb="+stepNb+" sum="+stepSum);
 			
@@ -206,10 +244,35 @@ public class AverageArchive extends Archive {
 			//On ferme le fichier
 			releaseFile();
 			if(adf != null && !keepFileOpened) adf.close();
-			lock.writeLock().unlock();
+			unlockPost();
 		}
 	}
 
+	/**
+	 * Transmet le step terminé (somme, nombre, min, max) aux archives consolidées
+	 */
+	private void forward() throws IOException, ArchiveInitException{
+		if (stepNb == 0)
+			return;
+		// dernière valeur non conservée à la réouverture de l'archive
+		float last = (stepLast != null ? stepLast : (float) (stepSum / stepNb));
+		for (Archive target : targets) {
+			((AverageArchive) target).postStep(stepTimestamp, stepSum, stepNb, stepMin, stepMax, last, null);
+		}
+	}
+
+	/**
+	 * Step enregistré d'une archive plus fine : moyenne pondérée par son nombre de valeurs brutes
+	 */
+	@Override
+	protected void postColumn(ArchiveColumns columns, int i, RandomAccessFile adf) throws IOException, ArchiveInitException {
+		if (!columns.isDefined(i))
+			return;
+		float value = columns.values[i];
+		int nb = columns.counts[i];
+		postStep(columns.getTimestamp(i), (double) value * nb, nb, columns.min[i], columns.max[i], value, adf);
+	}
+
 	/**
 	 * Enregistre les valeurs du step en cours dans le fichier
 	 * 
@@ -267,6 +330,7 @@ public class AverageArchive extends Archive {
 		adf.writeFloat(point.value);
 		adf.writeFloat(point.min);
 		adf.writeFloat(point.max);
+		adf.writeInt(point.nb);
 
 		// Mise a jour du timestamp de dernier enregistrement
 		this.lastTimestamp = stepTimestamp;
@@ -283,10 +347,159 @@ public class AverageArchive extends Archive {
 			p.value = raf.readFloat();
 			p.min = raf.readFloat();
 			p.max = raf.readFloat();
+			p.nb = raf.readInt();
+		}
+		else {
+			raf.skipBytes(ENREG_LEN - 1);
+		}
+		return p;
+	}
+
+	@Override
+	protected ArchivePoint readPoint(ByteBuffer buf, int pos) {
+		AverageArchivePoint p = new AverageArchivePoint();
+		if (buf.get(pos) != 0) {
+			p.value = buf.getFloat(pos+1);
+			p.min = buf.getFloat(pos+5);
+			p.max = buf.getFloat(pos+9);
+			p.nb = buf.getInt(pos+13);
 		}
 		return p;
 	}
 
+	@Override
+	protected ArchiveColumns newColumns(long start, int capacity) {
+		ArchiveColumns columns = new ArchiveColumns(start, step, capacity);
+		columns.min = new float[capacity];
+		columns.max = new float[capacity];
+		columns.counts = new int[capacity];
+		return columns;
+	}
+
+	@Override
+	protected void readColumns(ByteBuffer buf, int pos, ArchiveColumns columns, int from, int count) {
+		for (int i = from; i < from + count; i++) {
+			if (buf.get(pos) != 0) {
+				columns.defined.set(i);
+				columns.values[i] = buf.getFloat(pos+1);
+				columns.min[i] = buf.getFloat(pos+5);
+				columns.max[i] = buf.getFloat(pos+9);
+				columns.counts[i] = buf.getInt(pos+13);
+			}
+			pos += ENREG_LEN;
+		}
+	}
+
+	@Override
+	protected void setColumns(ArchivePoint point, ArchiveColumns columns, int i) {
+		AverageArchivePoint p = (AverageArchivePoint) point;
+		if (p.value != null) {
+			columns.defined.set(i);
+			columns.values[i] = p.value;
+			columns.min[i] = (p.min == null ? p.value : p.min);
+			columns.max[i] = (p.max == null ? p.value : p.max);
+			columns.counts[i] = p.nb;
+		}
+	}
+
+	@Override
+	protected ArchivePoint columnPoint(ArchiveColumns columns, int i) {
+		AverageArchivePoint p = new AverageArchivePoint();
+		p.timestamp = columns.getTimestamp(i);
+		if (columns.isDefined(i)) {
+			p.value = columns.values[i];
+			p.min = columns.min[i];
+			p.max = columns.max[i];
+			p.nb = columns.counts[i];
+		}
+		return p;
+	}
+
+	/**
+	 * Moyenne des steps définis pondérée par leur nombre de valeurs brutes, minimum des min et maximum des max
+	 */
+	@Override
+	protected ArchivePoint aggregate(ArchiveColumns columns, int from, int to) {
+		AverageArchivePoint p = new AverageArchivePoint();
+		p.timestamp = columns.getTimestamp(from);
+		double sum = 0;
+		int nb = 0;
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		for (int i = columns.defined.nextSetBit(from); i >= 0 && i < to; i = columns.defined.nextSetBit(i + 1)) {
+			sum += (double) columns.values[i] * columns.counts[i];
+			nb += columns.counts[i];
+			min = Math.min(min, columns.min[i]);
+			max = Math.max(max, columns.max[i]);
+		}
+		if (nb > 0) {
+			p.value = (float) (sum / nb);
+			p.min = min;
+			p.max = max;
+			p.nb = nb;
+		}
+		return p;
+	}
+
+	/**
+	 * Conversion de la version 0 (enregistrements sans nombre de valeurs) : 
+	 * chaque step déjà enregistré compte pour une valeur.
+	 * La conversion est écrite dans un fichier temporaire puis substituée au fichier d'origine.
+	 */
+	@Override
+	protected void upgradeFormat(int version) throws IOException, ArchiveInitException {
+		if (version != 0) {
+			super.upgradeFormat(version);
+			return;
+		}
+		File tmpFile = new File(archiveFile.getAbsoluteFile().getParentFile(), archiveFile.getName() + ".tmp");
+		long nb = 0;
+		boolean moved = false;
+		FileChannel in = FileChannel.open(archiveFile.toPath(), StandardOpenOption.READ);
+		try {
+			FileChannel out = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				// en-tête (version du format) et step en cours inchangés
+				ByteBuffer header = ByteBuffer.allocate(HEADER1_LEN + CURRENT_STEP_DATA_LENGTH);
+				while (header.hasRemaining() && in.read(header) >= 0);
+				header.putInt(4, encodeType(Type.AVERAGE) | (VERSION << 16));
+				header.flip();
+				while (header.hasRemaining()) out.write(header);
+
+				ByteBuffer inBuf = ByteBuffer.allocate(4096 * V0_ENREG_LEN);
+				ByteBuffer outBuf = ByteBuffer.allocate(4096 * ENREG_LEN);
+				int n = 0;
+				while (n >= 0) {
+					n = in.read(inBuf);
+					inBuf.flip();
+					while (inBuf.remaining() >= V0_ENREG_LEN) {
+						byte defined = inBuf.get();
+						outBuf.put(defined);
+						outBuf.putFloat(inBuf.getFloat());
+						outBuf.putFloat(inBuf.getFloat());
+						outBuf.putFloat(inBuf.getFloat());
+						outBuf.putInt(defined != 0 ? 1 : 0);
+						nb++;
+					}
+					inBuf.compact();	// enregistrement incomplet éventuel en fin de fichier ignoré
+					outBuf.flip();
+					while (outBuf.hasRemaining()) out.write(outBuf);
+					outBuf.clear();
+				}
+				out.force(false);
+			} finally {
+				out.close();
+			}
+			in.close();
+			Files.move(tmpFile.toPath(), archiveFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+		} finally {
+			in.close();
+			if (!moved) tmpFile.delete();
+		}
+		logger.info("archive " + archiveFile.getName() + " : conversion au format version " + VERSION + " (" + nb + " enregistrements)");
+	}
+
 	@Override
 	protected ArchivePoint newEmptyPoint(Long timestamp) {
 		AverageArchivePoint p = new AverageArchivePoint();
@@ -17,6 +17,8 @@ public class AverageArchivePoint extends ArchivePoint {
 	
 	Float min = null;
 	Float max = null;
+	/** nombre de valeurs brutes du step */
+	int nb = 0;
 	
 
 	/**
@@ -44,4 +46,5 @@ public class AverageArchivePoint extends ArchivePoint {
 	
 	public Float getMin(){ return min; }
 	public Float getMax(){ return max; }
+	public int getNb(){ return nb; }
 }
@@ -0,0 +1,469 @@
+package com.mireau.timeseries;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Fichier de données brutes compressé (segments fermés)
+ * Encodage de type Gorilla : delta de delta sur les timestamps, XOR sur les valeurs.
+ * Les données sont découpées en blocs de taille fixe, ce qui permet la recherche dichotomique
+ * sur le timestamp de début de chaque bloc.
+ *
+ * Format:
+ *   En tête: (8 bytes)
+ *     magic      int / 4 bytes : RZ02 (timestamps en millisecondes), RZ01 (version 1, timestamps en secondes, lecture seule)
+ *     blockSize  int / 4 bytes
+ *   Blocs: (blockSize bytes, complétés par des 0)
+ *     En tête de bloc: (16 bytes)
+ *       timestamp  long  / 8 bytes : timestamp du premier enregistrement (millisecondes)
+ *       valeur     float / 4 bytes : valeur du premier enregistrement
+ *       nb         int   / 4 bytes : nombre d'enregistrements du bloc
+ *     Enregistrements suivants (flux de bits, Most Significant Bit first):
+ *       timestamp : delta de delta (dod)
+ *         '0'                 dod = 0
+ *         '10'   +  7 bits    dod dans [-64,63]
+ *         '110'  +  9 bits    dod dans [-256,255]
+ *         '1110' + 12 bits    dod dans [-2048,2047]
+ *         '1111' + 64 bits    autre
+ *       valeur : XOR avec la valeur précédente
+ *         '0'                 valeur identique
+ *         '10'  + bits significatifs (même fenêtre que la valeur précédente)
+ *         '11'  + 5 bits (zeros de tête) + 5 bits (nb de bits significatifs - 1) + bits significatifs
+ */
+class CompressedRawFile {
+
+	static int MAGIC = 0x525A3032;	//RZ02
+	static int MAGIC_V1 = 0x525A3031;	//RZ01
+	static int HEADER_LEN = 8;
+	static int BLOCK_HEADER_LEN = 16;
+	static int DEFAULT_BLOCK_SIZE = 4096;
+
+	/** taille maximum d'un enregistrement encodé (bits) */
+	static int MAX_RECORD_BITS = 4 + 64 + 2 + 5 + 5 + 32;
+
+	/**
+	 * Ecrit le fichier compressé à partir des enregistrements du curseur
+	 * @param file
+	 * @param cursor
+	 * @param blockSize
+	 * @return nombre d'enregistrements
+	 * @throws IOException
+	 */
+	static long write(File file, RawCursor cursor, int blockSize) throws IOException{
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		long nb = 0;
+		try{
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+			header.putInt(MAGIC).putInt(blockSize).flip();
+			write(channel, header);
+
+			BlockEncoder encoder = new BlockEncoder(blockSize);
+			while(cursor.next()){
+				if(!encoder.add(cursor.timestampMillis(), cursor.value())){
+					write(channel, encoder.finish());
+					encoder.reset();
+					encoder.add(cursor.timestampMillis(), cursor.value());
+				}
+				nb++;
+			}
+			if(encoder.count > 0) write(channel, encoder.finish());
+			channel.force(false);
+		}
+		finally{
+			channel.close();
+		}
+		return nb;
+	}
+
+	private static void write(FileChannel channel, ByteBuffer buf) throws IOException{
+		while(buf.hasRemaining()) channel.write(buf);
+	}
+
+	/**
+	 * Lecture de l'ensemble des enregistrements sur une période (millisecondes)
+	 */
+	static RawColumns read(File file, Long begin, Long end) throws IOException{
+		RawColumns result = new RawColumns();
+		Cursor cursor = new Cursor(file, begin, end);
+		try{
+			while(cursor.next()) result.add(cursor.timestampMillis(), cursor.value());
+		}
+		finally{
+			cursor.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Lecture des nb derniers enregistrements (ordre chronologique)
+	 */
+	static RawColumns readLast(File file, int nb) throws IOException{
+		Cursor cursor = new Cursor(file, null, null);
+		try{
+			//On recule de bloc en bloc jusqu'à avoir assez d'enregistrements
+			long block = cursor.nbBlocks;
+			long count = 0;
+			while(block > 0 && count < nb){
+				block--;
+				count += cursor.readBlockCount(block);
+			}
+			cursor.seekBlock(block);
+			RawColumns result = new RawColumns((int)Math.min(count, nb));
+			long skip = Math.max(0, count - nb);
+			while(cursor.next()){
+				if(skip > 0){
+					skip--;
+					continue;
+				}
+				result.add(cursor.timestampMillis(), cursor.value());
+			}
+			return result;
+		}
+		finally{
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Timestamps (millisecondes) du premier et du dernier enregistrement
+	 * @return null si le fichier est vide
+	 */
+	static long[] bounds(File file) throws IOException{
+		Cursor cursor = new Cursor(file, null, null);
+		try{
+			if(cursor.nbBlocks==0) return null;
+			long first = cursor.readBlockTimestamp(0);
+			cursor.seekBlock(cursor.nbBlocks-1);
+			long last = first;
+			while(cursor.next()) last = cursor.timestampMillis();
+			return new long[]{first, last};
+		}
+		finally{
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Encodage d'un bloc
+	 */
+	static class BlockEncoder{
+		byte[] block;
+		int bitPos;
+		int count;
+		long firstTimestamp;
+		long prevTimestamp;
+		long prevDelta;
+		int prevBits;
+		int prevLeading;
+		int prevTrailing;
+
+		BlockEncoder(int blockSize){
+			block = new byte[blockSize];
+			reset();
+		}
+
+		void reset(){
+			Arrays.fill(block, (byte)0);
+			bitPos = BLOCK_HEADER_LEN*8;
+			count = 0;
+		}
+
+		/**
+		 * @return false si le bloc est plein
+		 */
+		boolean add(long timestamp, float value){
+			int bits = Float.floatToRawIntBits(value);
+			if(count==0){
+				firstTimestamp = timestamp;
+				prevTimestamp = timestamp;
+				prevDelta = 0;
+				prevBits = bits;
+				prevLeading = -1;
+				prevTrailing = 0;
+				ByteBuffer.wrap(block).putLong(timestamp).putInt(bits);
+				count++;
+				return true;
+			}
+			if(block.length*8 - bitPos < MAX_RECORD_BITS) return false;
+
+			//timestamp
+			long delta = timestamp - prevTimestamp;
+			long dod = delta - prevDelta;
+			if(dod==0){
+				writeBits(0, 1);
+			}
+			else if(dod >= -64 && dod <= 63){
+				writeBits(0x2, 2);
+				writeBits(dod, 7);
+			}
+			else if(dod >= -256 && dod <= 255){
+				writeBits(0x6, 3);
+				writeBits(dod, 9);
+			}
+			else if(dod >= -2048 && dod <= 2047){
+				writeBits(0xE, 4);
+				writeBits(dod, 12);
+			}
+			else{
+				writeBits(0xF, 4);
+				writeBits(dod, 64);
+			}
+			prevDelta = delta;
+			prevTimestamp = timestamp;
+
+			//valeur
+			int xor = bits ^ prevBits;
+			if(xor==0){
+				writeBits(0, 1);
+			}
+			else{
+				int leading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+				int trailing = Integer.numberOfTrailingZeros(xor);
+				if(prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing){
+					writeBits(0x2, 2);
+					writeBits(xor >>> prevTrailing, 32 - prevLeading - prevTrailing);
+				}
+				else{
+					int meaningful = 32 - leading - trailing;
+					writeBits(0x3, 2);
+					writeBits(leading, 5);
+					writeBits(meaningful - 1, 5);
+					writeBits(xor >>> trailing, meaningful);
+					prevLeading = leading;
+					prevTrailing = trailing;
+				}
+			}
+			prevBits = bits;
+			count++;
+			return true;
+		}
+
+		private void writeBits(long value, int nbBits){
+			for(int i=nbBits-1;i>=0;i--){
+				if(((value >>> i) & 1) != 0){
+					block[bitPos >>> 3] |= (byte)(0x80 >>> (bitPos & 7));
+				}
+				bitPos++;
+			}
+		}
+
+		ByteBuffer finish(){
+			ByteBuffer buf = ByteBuffer.wrap(block);
+			buf.putInt(12, count);
+			return buf;
+		}
+	}
+
+	/**
+	 * Curseur sur un fichier compressé
+	 */
+	static class Cursor implements RawCursor{
+		FileChannel channel;
+		int blockSize;
+		long nbBlocks;
+		long nextBlock = 0;
+
+		ByteBuffer block;
+		ByteBuffer small = ByteBuffer.allocate(BLOCK_HEADER_LEN);
+		/** multiplicateur des timestamps enregistrés vers les millisecondes (1000 pour la version 1) */
+		long scale = 1;
+		int bitPos;
+		int remaining = 0;
+		/** premier enregistrement du bloc courant déjà lu */
+		boolean firstRead = false;
+
+		Long begin;
+		Long end;
+		boolean closed = false;
+
+		long timestamp;
+		float value;
+		long delta;
+		int bits;
+		int prevLeading;
+		int prevTrailing;
+
+		Cursor(File file, Long beginTimestamp, Long endTimestamp) throws IOException{
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			this.begin = beginTimestamp;
+			this.end = endTimestamp;
+			try{
+				small.clear().limit(HEADER_LEN);
+				read(small, 0);
+				int magic = small.getInt(0);
+				if(magic == MAGIC_V1) scale = 1000;
+				else if(magic != MAGIC) throw new IOException("fichier compressé invalide : "+file.getName());
+				blockSize = small.getInt(4);
+				nbBlocks = (channel.size() - HEADER_LEN) / blockSize;
+				block = ByteBuffer.allocate(blockSize);
+				if(begin!=null) seekBlock(searchBlock(begin));
+			}
+			catch(IOException e){
+				channel.close();
+				throw e;
+			}
+		}
+
+		private void read(ByteBuffer buf, long pos) throws IOException{
+			while(buf.hasRemaining()){
+				if(channel.read(buf, pos + buf.position()) < 0) throw new EOFException();
+			}
+		}
+
+		private long blockPosition(long index){
+			return HEADER_LEN + index*blockSize;
+		}
+
+		long readBlockTimestamp(long index) throws IOException{
+			small.clear();
+			read(small, blockPosition(index));
+			return small.getLong(0)*scale;
+		}
+
+		int readBlockCount(long index) throws IOException{
+			small.clear();
+			read(small, blockPosition(index));
+			return small.getInt(12);
+		}
+
+		/**
+		 * Recherche le bloc pouvant contenir le timestamp :
+		 * bloc précédant le premier bloc dont le timestamp de début est supérieur ou égal
+		 */
+		long searchBlock(long t) throws IOException{
+			long p1 = 0;
+			long p2 = nbBlocks;
+			while(p1 < p2){
+				long middle = (p1 + p2) >>> 1;
+				if(readBlockTimestamp(middle) < t) p1 = middle + 1;
+				else p2 = middle;
+			}
+			return Math.max(0, p1-1);
+		}
+
+		void seekBlock(long index){
+			nextBlock = index;
+			remaining = 0;
+		}
+
+		private boolean loadBlock() throws IOException{
+			if(nextBlock >= nbBlocks) return false;
+			block.clear();
+			read(block, blockPosition(nextBlock));
+			nextBlock++;
+			remaining = block.getInt(12);
+			bitPos = BLOCK_HEADER_LEN*8;
+			return remaining > 0;
+		}
+
+		private long readBits(int nbBits){
+			long result = 0;
+			byte[] b = block.array();
+			for(int i=0;i<nbBits;i++){
+				result = (result << 1) | ((b[bitPos >>> 3] >>> (7 - (bitPos & 7))) & 1);
+				bitPos++;
+			}
+			return result;
+		}
+
+		private long readSigned(int nbBits){
+			long v = readBits(nbBits);
+			return (v << (64 - nbBits)) >> (64 - nbBits);
+		}
+
+		/**
+		 * Premier enregistrement du bloc (en tête de bloc)
+		 */
+		private void decodeFirst(){
+			timestamp = block.getLong(0);
+			bits = block.getInt(8);
+			delta = 0;
+			prevLeading = -1;
+			prevTrailing = 0;
+			remaining--;
+			firstRead = true;
+		}
+
+		/**
+		 * Enregistrement suivant du flux de bits
+		 */
+		private void decode(){
+			long dod;
+			if(readBits(1)==0) dod = 0;
+			else if(readBits(1)==0) dod = readSigned(7);
+			else if(readBits(1)==0) dod = readSigned(9);
+			else if(readBits(1)==0) dod = readSigned(12);
+			else dod = readBits(64);
+			delta += dod;
+			timestamp += delta;
+
+			if(readBits(1)!=0){
+				if(readBits(1)==0){
+					int meaningful = 32 - prevLeading - prevTrailing;
+					bits ^= (int)(readBits(meaningful) << prevTrailing);
+				}
+				else{
+					int leading = (int)readBits(5);
+					int meaningful = (int)readBits(5) + 1;
+					int trailing = 32 - leading - meaningful;
+					bits ^= (int)(readBits(meaningful) << trailing);
+					prevLeading = leading;
+					prevTrailing = trailing;
+				}
+			}
+			remaining--;
+		}
+
+		@Override
+		public boolean next() throws IOException{
+			while(!closed){
+				if(remaining == 0){
+					firstRead = false;
+					if(!loadBlock()){
+						if(nextBlock >= nbBlocks){
+							close();
+							return false;
+						}
+						continue;
+					}
+				}
+				if(!firstRead) decodeFirst();
+				else decode();
+				value = Float.intBitsToFloat(bits);
+				if(begin!=null && timestamp*scale < begin) continue;
+				if(end!=null && timestamp*scale > end){
+					close();
+					return false;
+				}
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public long timestamp(){
+			return timestamp*scale/1000;
+		}
+		
+		@Override
+		public long timestampMillis(){
+			return timestamp*scale;
+		}
+
+		@Override
+		public float value(){
+			return value;
+		}
+
+		@Override
+		public void close() throws IOException{
+			closed = true;
+			if(channel.isOpen()) channel.close();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package com.mireau.timeseries;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mireau.timeseries.Archive.Downsampling;
+
+/**
+ * Réduction du nombre de points d'une archive (cf Archive.getRange(start, end, maxPoints)).
+ * Les paquets de steps consécutifs sont fournis dans l'ordre chronologique, au fil de la lecture des colonnes ;
+ * un point au plus est produit par paquet.
+ *
+ * BUCKET : point agrégé du paquet (cf Archive.aggregate)
+ * LTTB : Largest-Triangle-Three-Buckets. Dans chaque paquet, on retient le point formant le plus grand triangle
+ *        avec le point retenu dans le paquet précédent et la moyenne du paquet suivant.
+ *        Le choix est donc fait à l'arrivée du paquet suivant. Les paquets sans valeur sont ignorés.
+ */
+class Downsampler {
+
+	Archive archive;
+	Downsampling mode;
+	List<ArchivePoint> result = new ArrayList<ArchivePoint>();
+
+	/** LTTB : paquet en attente de sélection */
+	ArchiveColumns pending;
+	int pendingFrom;
+	int pendingTo;
+
+	/** LTTB : dernier point retenu */
+	boolean selected = false;
+	long selectedTimestamp;
+	float selectedValue;
+
+	Downsampler(Archive archive, Downsampling mode){
+		this.archive = archive;
+		this.mode = mode;
+	}
+
+	/**
+	 * Ajoute le paquet des steps [from, to[ des colonnes
+	 */
+	void add(ArchiveColumns columns, int from, int to){
+		if(mode == Downsampling.BUCKET){
+			result.add(archive.aggregate(columns, from, to));
+			return;
+		}
+
+		//moyenne du paquet
+		double sumTimestamp = 0;
+		double sumValue = 0;
+		int n = 0;
+		for(int i=columns.defined.nextSetBit(from); i>=0 && i<to; i=columns.defined.nextSetBit(i+1)){
+			sumTimestamp += columns.getTimestamp(i);
+			sumValue += columns.values[i];
+			n++;
+		}
+		if(n==0) return;
+
+		if(pending != null) select(sumTimestamp/n, sumValue/n);
+		pending = columns;
+		pendingFrom = from;
+		pendingTo = to;
+	}
+
+	/**
+	 * Sélection dans le paquet en attente
+	 * @param nextTimestamp timestamp moyen du paquet suivant
+	 * @param nextValue valeur moyenne du paquet suivant
+	 */
+	private void select(double nextTimestamp, double nextValue){
+		int index = -1;
+		if(!selected){
+			//premier point de la série
+			index = pending.defined.nextSetBit(pendingFrom);
+		}
+		else{
+			double maxArea = -1;
+			for(int i=pending.defined.nextSetBit(pendingFrom); i>=0 && i<pendingTo; i=pending.defined.nextSetBit(i+1)){
+				double area = Math.abs((selectedTimestamp - nextTimestamp) * (pending.values[i] - selectedValue)
+						- (selectedTimestamp - pending.getTimestamp(i)) * (nextValue - selectedValue));
+				if(area > maxArea){
+					maxArea = area;
+					index = i;
+				}
+			}
+		}
+		retain(index);
+	}
+
+	private void retain(int index){
+		result.add(archive.columnPoint(pending, index));
+		selected = true;
+		selectedTimestamp = pending.getTimestamp(index);
+		selectedValue = pending.values[index];
+	}
+
+	/**
+	 * Fin des paquets
+	 * @return points retenus
+	 */
+	List<ArchivePoint> finish(){
+		if(pending != null){
+			//dernier point de la série
+			retain(pending.defined.previousSetBit(pendingTo-1));
+			pending = null;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,277 @@
+package com.mireau.timeseries;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Diffusion parallèle des valeurs d'une série (cf TimeSerie.setFanOut) : l'ajout aux données brutes et la mise à jour
+ * de chaque archive alimentée par les valeurs brutes sont des étapes indépendantes, exécutées en parallèle.
+ * Chaque étape traite ses valeurs dans l'ordre de dépôt, à partir d'un tampon circulaire borné de couples
+ * (timestamp, valeur) : un dépôt n'alloue rien, et attend lorsque le tampon d'une étape est plein.
+ * Les archives consolidées restent alimentées par leur source, dans son étape.
+ *
+ * Les étapes s'exécutent sur un pool commun (un thread par processeur). Accès sous TimeSerie.postLock :
+ * un seul déposant à la fois, chaque tampon n'a qu'un producteur et un consommateur.
+ * Une erreur d'écriture d'une étape est conservée avec la période des valeurs en erreur (cf hasFailed) ; drain la transmet
+ * sous forme de PostException, après traitement de toutes les valeurs déposées (cf TimeSerie.drainFanOut : reconstruction des archives).
+ */
+class FanOut {
+
+	static Logger logger = Logger.getLogger(FanOut.class.getName());
+
+	/** Pool commun des étapes */
+	private static ExecutorService executor;
+
+	static synchronized ExecutorService getExecutor(){
+		if(executor==null){
+			final AtomicInteger count = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "fanout-"+count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return executor;
+	}
+
+	/** Nombre de valeurs en attente par étape */
+	final int capacity;
+
+	final Stage rawStage;
+	/** Etapes des archives alimentées par les valeurs brutes (modifié sous TimeSerie.postLock uniquement : post et drain) */
+	final Map<Archive, Stage> archiveStages = new HashMap<Archive, Stage>();
+
+	final String serieId;
+
+	/** Valeurs en erreur non encore transmises : première erreur, période (millisecondes) et nombre (accès sous failureLock) */
+	final ReentrantLock failureLock = new ReentrantLock();
+	Exception failure;
+	long firstFailed;
+	long lastFailed;
+	int failedCount;
+	/** failure non null */
+	volatile boolean failed = false;
+
+	FanOut(String serieId, final RawData rawDS, int capacity) {
+		if(capacity<1) throw new IllegalArgumentException("capacity="+capacity);
+		this.serieId = serieId;
+		this.capacity = capacity;
+		this.rawStage = new Stage() {
+			@Override
+			void write(long timestamp, float value) throws IOException {
+				rawDS.postMillis(timestamp, value);
+			}
+		};
+	}
+
+	/**
+	 * Dépose une valeur dans l'étape des données brutes et dans celles des archives
+	 * @param timestamp (millisecondes)
+	 */
+	void post(List<Archive> archives, long timestamp, float value) throws IOException{
+		rawStage.submit(timestamp, value);
+		for (final Archive archive : archives) {
+			if(archive.source!=null) continue;
+			Stage stage = archiveStages.get(archive);
+			if(stage==null){
+				stage = new Stage() {
+					@Override
+					void write(long timestamp, float value) throws IOException, ArchiveInitException {
+						archive.post(timestamp/1000, value);
+					}
+				};
+				archiveStages.put(archive, stage);
+			}
+			stage.submit(timestamp, value);
+		}
+	}
+
+	/**
+	 * Attend le traitement des valeurs déposées, puis abandonne les étapes des archives qui ne sont plus alimentées
+	 * par les valeurs brutes
+	 * @param archives archives de la série
+	 * @throws PostException erreur d'écriture d'une étape (première erreur, période des valeurs en erreur)
+	 */
+	void drain(List<Archive> archives) throws IOException{
+		boolean interrupted = false;
+		for (Stage stage : archiveStages.values()) {
+			interrupted |= stage.awaitDrained();
+		}
+		interrupted |= rawStage.awaitDrained();
+		if(interrupted) Thread.currentThread().interrupt();
+
+		List<Archive> roots = new ArrayList<Archive>();
+		for (Archive archive : archives) {
+			if(archive.source==null) roots.add(archive);
+		}
+		archiveStages.keySet().retainAll(roots);
+		checkError();
+	}
+
+	/**
+	 * Erreur d'écriture d'une étape non encore transmise par drain
+	 */
+	boolean hasFailed(){
+		return failed;
+	}
+
+	/**
+	 * Conserve l'erreur d'écriture d'une valeur (appelé par les étapes)
+	 * @param timestamp (millisecondes)
+	 */
+	private void failed(long timestamp, Exception e){
+		failureLock.lock();
+		try{
+			if(failure==null){
+				failure = e;
+				firstFailed = timestamp;
+				lastFailed = timestamp;
+				failedCount = 0;
+			}
+			firstFailed = Math.min(firstFailed, timestamp);
+			lastFailed = Math.max(lastFailed, timestamp);
+			failedCount++;
+			failed = true;
+		}
+		finally{
+			failureLock.unlock();
+		}
+	}
+
+	/**
+	 * Transmet (une fois) les erreurs d'écriture des étapes (étapes vidées)
+	 */
+	private void checkError() throws PostException{
+		failureLock.lock();
+		try{
+			if(failure==null) return;
+			PostException e = new PostException(serieId, firstFailed, lastFailed, failedCount, failure);
+			failure = null;
+			failed = false;
+			throw e;
+		}
+		finally{
+			failureLock.unlock();
+		}
+	}
+
+	/**
+	 * Etape : tampon circulaire borné (un producteur, un consommateur), vidé dans l'ordre 
+	 * par une seule tâche à la fois du pool commun.
+	 * Les positions 'head' (prochaine valeur à traiter) et 'tail' (prochaine place libre) ne font que croître ;
+	 * leur écriture (volatile) publie les valeurs du tampon pour l'autre partie.
+	 */
+	abstract class Stage implements Runnable {
+		final long[] timestamps = new long[capacity];
+		final float[] values = new float[capacity];
+		/** position de la prochaine valeur à traiter (écrite par le consommateur) */
+		volatile long head = 0;
+		/** position de la prochaine valeur déposée (écrite par le producteur) */
+		volatile long tail = 0;
+		final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		/** Attente du producteur (tampon plein ou drain) : réveillé par le consommateur */
+		final ReentrantLock waitLock = new ReentrantLock();
+		final Condition progress = waitLock.newCondition();
+		volatile boolean waiting = false;
+
+		/**
+		 * Opération de l'étape pour une valeur
+		 */
+		abstract void write(long timestamp, float value) throws IOException, ArchiveInitException;
+
+		void submit(long timestamp, float value) throws InterruptedIOException{
+			long t = tail;
+			if(t - head >= capacity && awaitHead(t - capacity + 1, true)){
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("depot interrompu");
+			}
+			int i = (int)(t % capacity);
+			timestamps[i] = timestamp;
+			values[i] = value;
+			tail = t + 1;
+			if(scheduled.compareAndSet(false, true)){
+				getExecutor().execute(this);
+			}
+		}
+
+		/**
+		 * Attend le traitement des valeurs déposées (sans interruption)
+		 * @return true si le thread a été interrompu pendant l'attente
+		 */
+		boolean awaitDrained(){
+			return awaitHead(tail, false);
+		}
+
+		/**
+		 * Attend que le consommateur atteigne la position
+		 * @param interruptible abandon de l'attente en cas d'interruption
+		 * @return true si le thread a été interrompu (interruption consommée)
+		 */
+		private boolean awaitHead(long position, boolean interruptible){
+			boolean interrupted = false;
+			waitLock.lock();
+			try{
+				waiting = true;
+				while(head < position){
+					try {
+						progress.await();
+					} catch (InterruptedException e) {
+						interrupted = true;
+						if(interruptible) break;
+					}
+				}
+			}
+			finally{
+				waiting = false;
+				waitLock.unlock();
+			}
+			return interrupted;
+		}
+
+		@Override
+		public void run() {
+			do{
+				long h = head;
+				while(h < tail){
+					int i = (int)(h % capacity);
+					try {
+						write(timestamps[i], values[i]);
+					} catch (IOException | ArchiveInitException | RuntimeException e) {
+						failed(timestamps[i], e);
+						logger.log(Level.WARNING, "ecriture asynchrone "+serieId+" ("+timestamps[i]+" ms) : "+e.getMessage(), e);
+					}
+					head = ++h;
+					//place libérée : réveil du producteur en attente (waiting est relu après l'écriture de head)
+					if(waiting){
+						waitLock.lock();
+						try{
+							progress.signalAll();
+						}
+						finally{
+							waitLock.unlock();
+						}
+					}
+				}
+				scheduled.set(false);
+				//valeur déposée entre la dernière lecture de tail et la fin de planification
+			} while(head < tail && scheduled.compareAndSet(false, true));
+		}
+	}
+}
@@ -0,0 +1,303 @@
+package com.mireau.timeseries;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pipeline d'écriture : chaque série est attribuée (hachage de son id) à un écrivain unique parmi 'shards' threads.
+ * Les producteurs déposent les valeurs dans la file (multi-producteurs, un seul consommateur) de l'écrivain,
+ * qui les regroupe par série et les écrit par lots (cf TimeSerie.postMillis(long[],float[],int,int)).
+ * Une série n'étant écrite que par son écrivain, les verrous d'écriture (série, données brutes, archives)
+ * ne sont jamais disputés et ne sont pris qu'une fois par lot : le débit croît avec le nombre d'écrivains
+ * tant que les séries sont nombreuses.
+ *
+ * L'ordre des valeurs déposées par un même producteur pour une série est conservé.
+ * L'écriture est asynchrone (y compris l'ajout au journal) : flush() attend l'écriture des valeurs déposées.
+ * Les erreurs d'écriture sont journalisées et comptées (cf getErrorCount) ; la première est transmise 
+ * par l'appel suivant de flush() ou close(), sous forme de PostException (série et période du lot en erreur).
+ * Les valeurs d'un lot en erreur sont perdues, mais les archives de la série sont reconstruites depuis 
+ * la plus ancienne d'entre elles : elles restent cohérentes avec les données brutes effectivement écrites.
+ */
+public class IngestPipeline {
+
+	static Logger logger = Logger.getLogger(IngestPipeline.class.getName());
+
+	/** Nombre de valeurs en attente par écrivain au delà duquel les producteurs sont bloqués */
+	public static final int DEFAULT_CAPACITY = 64*1024;
+
+	/** Nombre maximum de valeurs regroupées en un lot */
+	static final int MAX_BATCH = 4096;
+
+	final Shard[] shards;
+
+	/** Nombre de lots en erreur (cf PostException) */
+	final AtomicLong errors = new AtomicLong();
+	
+	/** Première erreur d'écriture non encore transmise (cf checkError) */
+	final AtomicReference<Exception> error = new AtomicReference<Exception>();
+
+	/** Fermeture : dépôts sous verrou partagé, fermeture sous verrou exclusif (pas de dépôt après l'arrêt des écrivains) */
+	final ReadWriteLock gate = new ReentrantReadWriteLock();
+	
+	/** accès sous gate */
+	boolean closed = false;
+
+	/**
+	 * @param nbShards nombre d'écrivains (threads)
+	 * @param capacity nombre maximum de valeurs en attente par écrivain
+	 */
+	public IngestPipeline(int nbShards, int capacity) {
+		if(nbShards<1) throw new IllegalArgumentException("nbShards="+nbShards);
+		if(capacity<1) throw new IllegalArgumentException("capacity="+capacity);
+		shards = new Shard[nbShards];
+		for(int i=0;i<nbShards;i++){
+			shards[i] = new Shard(i, capacity);
+		}
+	}
+
+	public IngestPipeline(int nbShards) {
+		this(nbShards, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Dépose une valeur (bloque si la file de l'écrivain de la série est pleine)
+	 * @param timestamp (secondes)
+	 */
+	public void post(TimeSerie ts, long timestamp, float value) throws InterruptedException{
+		postMillis(ts, timestamp*1000, value);
+	}
+
+	/**
+	 * Dépose une valeur horodatée à la milliseconde (bloque si la file de l'écrivain de la série est pleine)
+	 * @param timestamp (millisecondes)
+	 */
+	public void postMillis(TimeSerie ts, long timestamp, float value) throws InterruptedException{
+		gate.readLock().lock();
+		try{
+			if(closed) throw new IllegalStateException("pipeline ferme");
+			Shard shard = shardOf(ts);
+			shard.permits.acquire();
+			shard.offer(new Sample(ts, timestamp, value, null));
+		}
+		finally{
+			gate.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Attend l'écriture de toutes les valeurs déposées avant l'appel
+	 * @throws IOException
+	 * @throws ArchiveInitException première erreur d'écriture survenue depuis le dernier appel
+	 */
+	public void flush() throws InterruptedException, IOException, ArchiveInitException{
+		gate.readLock().lock();
+		try{
+			//pipeline fermé : toutes les valeurs ont été écrites
+			if(!closed) awaitWriters();
+		}
+		finally{
+			gate.readLock().unlock();
+		}
+		checkError();
+	}
+
+	/**
+	 * Ecrit les valeurs en attente puis arrête les écrivains
+	 * @throws IOException
+	 * @throws ArchiveInitException première erreur d'écriture non encore transmise
+	 */
+	public void close() throws InterruptedException, IOException, ArchiveInitException{
+		gate.writeLock().lock();
+		try{
+			if(closed) return;
+			closed = true;
+		}
+		finally{
+			gate.writeLock().unlock();
+		}
+		awaitWriters();
+		for (Shard shard : shards) {
+			shard.writer.shutdown();
+		}
+		for (Shard shard : shards) {
+			shard.writer.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		checkError();
+	}
+	
+	/**
+	 * Attend l'écriture des valeurs déposées (barrière dans la file de chaque écrivain)
+	 */
+	private void awaitWriters() throws InterruptedException{
+		CountDownLatch barrier = new CountDownLatch(shards.length);
+		for (Shard shard : shards) {
+			shard.offer(new Sample(null, 0, 0, barrier));
+		}
+		barrier.await();
+	}
+	
+	/**
+	 * Transmet (une fois) la première erreur d'écriture
+	 */
+	private void checkError() throws IOException, ArchiveInitException{
+		Exception e = error.getAndSet(null);
+		if(e==null) return;
+		if(e instanceof IOException) throw (IOException)e;
+		if(e instanceof ArchiveInitException) throw (ArchiveInitException)e;
+		if(e instanceof RuntimeException) throw (RuntimeException)e;
+		throw new IOException(e);
+	}
+
+	Shard shardOf(TimeSerie ts){
+		return shards[(ts.getId().hashCode() & 0x7fffffff) % shards.length];
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	public long getErrorCount() {
+		return errors.get();
+	}
+
+	/**
+	 * Valeur déposée, ou barrière de flush (ts null)
+	 */
+	static class Sample {
+		final TimeSerie ts;
+		final long timestamp;
+		final float value;
+		final CountDownLatch barrier;
+
+		Sample(TimeSerie ts, long timestamp, float value, CountDownLatch barrier) {
+			this.ts = ts;
+			this.timestamp = timestamp;
+			this.value = value;
+			this.barrier = barrier;
+		}
+	}
+
+	/**
+	 * Ecrivain : file des valeurs déposées, vidée par un thread dédié (une seule tâche de vidage planifiée à la fois)
+	 */
+	class Shard implements Runnable {
+		final ConcurrentLinkedQueue<Sample> queue = new ConcurrentLinkedQueue<Sample>();
+		final Semaphore permits;
+		final AtomicBoolean scheduled = new AtomicBoolean(false);
+		final ExecutorService writer;
+
+		/** Lot en cours de constitution, par série (accédé par le seul thread de l'écrivain) */
+		final Map<TimeSerie, RawColumns> batch = new LinkedHashMap<TimeSerie, RawColumns>();
+
+		Shard(final int index, int capacity) {
+			this.permits = new Semaphore(capacity);
+			this.writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ingest-"+index);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		void offer(Sample sample){
+			queue.offer(sample);
+			if(scheduled.compareAndSet(false, true)){
+				writer.execute(this);
+			}
+		}
+
+		@Override
+		public void run() {
+			do{
+				while(!queue.isEmpty()){
+					drain();
+				}
+				scheduled.set(false);
+				//valeur déposée entre le dernier vidage et la fin de planification
+			} while(!queue.isEmpty() && scheduled.compareAndSet(false, true));
+		}
+
+		/**
+		 * Vide (au plus MAX_BATCH valeurs de) la file et écrit les lots
+		 */
+		private void drain(){
+			//nombre de valeurs retirées de la file par ce vidage (les barrières ne comptent pas)
+			int n = 0;
+			Sample sample;
+			while(n<MAX_BATCH && (sample = queue.poll())!=null){
+				if(sample.barrier!=null){
+					//barrière de flush : les valeurs retirées avant elle sont écrites avant de la libérer
+					write();
+					sample.barrier.countDown();
+					continue;
+				}
+				RawColumns columns = batch.get(sample.ts);
+				if(columns==null){
+					columns = new RawColumns();
+					batch.put(sample.ts, columns);
+				}
+				columns.add(sample.timestamp, sample.value);
+				n++;
+			}
+			write();
+		}
+
+		/**
+		 * Ecrit les lots en cours, puis rend aux producteurs une place dans la file 
+		 * par valeur retirée (écrite ou en erreur)
+		 */
+		private void write(){
+			int written = 0;
+			for (Map.Entry<TimeSerie, RawColumns> e : batch.entrySet()) {
+				RawColumns columns = e.getValue();
+				try {
+					e.getKey().postMillis(columns.timestamps, columns.values, 0, columns.size);
+				} catch (IOException | ArchiveInitException | RuntimeException ex) {
+					failed(e.getKey(), columns, ex);
+				}
+				written += columns.size;
+			}
+			batch.clear();
+			permits.release(written);
+		}
+		
+		/**
+		 * Lot en erreur : l'erreur a pu survenir après l'écriture des données brutes et avant celle des archives.
+		 * Les archives sont reconstruites depuis la plus ancienne valeur du lot, l'erreur (série, période) est conservée
+		 */
+		private void failed(TimeSerie ts, RawColumns columns, Exception ex){
+			long first = Long.MAX_VALUE;
+			long last = Long.MIN_VALUE;
+			for(int i=0;i<columns.size;i++){
+				first = Math.min(first, columns.timestamps[i]);
+				last = Math.max(last, columns.timestamps[i]);
+			}
+			PostException pe = new PostException(ts.getId(), first, last, columns.size, ex);
+			try {
+				ts.rebuildFrom(first/1000);
+			} catch (IOException | ArchiveInitException | RuntimeException rebuildError) {
+				pe.addSuppressed(rebuildError);
+			}
+			errors.incrementAndGet();
+			error.compareAndSet(null, pe);
+			logger.log(Level.WARNING, pe.getMessage(), pe);
+		}
+	}
+}
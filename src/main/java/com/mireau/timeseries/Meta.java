@@ -6,13 +6,27 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 
 public class Meta {
 
 	String label;
 	Archive.Type type;
 	String unit;
+	/** Découpage des données brutes en segments */
+	RawData.Partition partition;
+	/** Compression des segments fermés */
+	boolean compression = false;
+	/** Consolidation en cascade des archives */
+	boolean consolidation = false;
+	/** Fenêtre de réordonnancement des valeurs (millisecondes, null: pas de réordonnancement) */
+	Long reorderWindow;
+	/** Durée de conservation des données brutes (secondes, null: illimitée) */
+	Long rawRetention;
+	/** Durée de conservation des archives par step (secondes) */
+	Map<Integer, Long> archiveRetention = new TreeMap<Integer, Long>();
 	File metadataFile = null;
 	
 	public Meta(File f) {
@@ -39,6 +53,20 @@ public class Meta {
 			this.label = props.getProperty("label","");
 			String typeStr = props.getProperty("type");
 			if(typeStr!=null) this.type = Archive.decodeType(typeStr);
+			String partitionStr = props.getProperty("partition");
+			if(partitionStr!=null) this.partition = RawData.Partition.valueOf(partitionStr.toUpperCase());
+			this.compression = Boolean.parseBoolean(props.getProperty("compression","false"));
+			this.consolidation = Boolean.parseBoolean(props.getProperty("consolidation","false"));
+			String reorderStr = props.getProperty("reorder");
+			if(reorderStr!=null) this.reorderWindow = Long.valueOf(reorderStr);
+			String retentionStr = props.getProperty("retention");
+			if(retentionStr!=null) this.rawRetention = Long.valueOf(retentionStr);
+			archiveRetention.clear();
+			for (String key : props.stringPropertyNames()) {
+				if(key.startsWith("retention.")){
+					archiveRetention.put(Integer.valueOf(key.substring("retention.".length())), Long.valueOf(props.getProperty(key)));
+				}
+			}
 		}
 	}
 	
@@ -47,6 +75,14 @@ public class Meta {
 		if(label != null) props.put("label", this.label);
 		if(unit != null) props.put("unit", this.unit);
 		if(type != null) props.put("type", this.type.toString());
+		if(partition != null) props.put("partition", this.partition.toString());
+		if(compression) props.put("compression", "true");
+		if(consolidation) props.put("consolidation", "true");
+		if(reorderWindow != null) props.put("reorder", this.reorderWindow.toString());
+		if(rawRetention != null) props.put("retention", this.rawRetention.toString());
+		for (Map.Entry<Integer, Long> e : archiveRetention.entrySet()) {
+			props.put("retention."+e.getKey(), e.getValue().toString());
+		}
 		OutputStream out = null;
 		try{
 			out = new FileOutputStream(metadataFile);
@@ -69,6 +105,68 @@ public class Meta {
 		return unit;
 	}
 
+	public RawData.Partition getPartition() {
+		return partition;
+	}
+
+	public void setPartition(RawData.Partition partition) {
+		this.partition = partition;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	public boolean isConsolidation() {
+		return consolidation;
+	}
+
+	public void setConsolidation(boolean consolidation) {
+		this.consolidation = consolidation;
+	}
+
+	/**
+	 * Fenêtre de réordonnancement des valeurs
+	 * @return millisecondes (null: pas de réordonnancement)
+	 */
+	public Long getReorderWindow() {
+		return reorderWindow;
+	}
+
+	public void setReorderWindow(Long reorderWindow) {
+		this.reorderWindow = reorderWindow;
+	}
+
+	/**
+	 * Durée de conservation des données brutes
+	 * @return secondes (null: illimitée)
+	 */
+	public Long getRawRetention() {
+		return rawRetention;
+	}
+
+	public void setRawRetention(Long rawRetention) {
+		this.rawRetention = rawRetention;
+	}
+
+	/**
+	 * Durée de conservation de l'archive
+	 * @param step
+	 * @return secondes (null: illimitée)
+	 */
+	public Long getArchiveRetention(int step) {
+		return archiveRetention.get(step);
+	}
+
+	public void setArchiveRetention(int step, Long retention) {
+		if(retention==null) archiveRetention.remove(step);
+		else archiveRetention.put(step, retention);
+	}
+
 	public void setLabel(String label) {
 		this.label = label;
 	}
@@ -0,0 +1,44 @@
+package com.mireau.timeseries;
+
+import java.io.IOException;
+
+/**
+ * Erreur d'écriture asynchrone de valeurs d'une série (cf IngestPipeline, FanOut) :
+ * identifie la série et la période des valeurs concernées
+ */
+public class PostException extends IOException {
+
+	private static final long serialVersionUID = -6260134409712275163L;
+
+	final String serieId;
+	/** timestamp (millisecondes) de la plus ancienne valeur concernée */
+	final long firstTimestamp;
+	/** timestamp (millisecondes) de la plus récente valeur concernée */
+	final long lastTimestamp;
+	/** nombre de valeurs concernées */
+	final int count;
+
+	public PostException(String serieId, long firstTimestamp, long lastTimestamp, int count, Throwable cause) {
+		super("ecriture "+serieId+" : "+count+" valeur(s) de "+firstTimestamp+" a "+lastTimestamp+" ms : "+cause.getMessage(), cause);
+		this.serieId = serieId;
+		this.firstTimestamp = firstTimestamp;
+		this.lastTimestamp = lastTimestamp;
+		this.count = count;
+	}
+
+	public String getSerieId() {
+		return serieId;
+	}
+
+	public long getFirstTimestamp() {
+		return firstTimestamp;
+	}
+
+	public long getLastTimestamp() {
+		return lastTimestamp;
+	}
+
+	public int getCount() {
+		return count;
+	}
+}
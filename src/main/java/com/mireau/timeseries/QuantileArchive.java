@@ -0,0 +1,374 @@
+package com.mireau.timeseries;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+/**
+ * Enregistrement de la distribution des valeurs (ex: temps de réponse) : chaque step conserve un résumé
+ * fusionnable de taille fixe (cf QuantileSketch) permettant l'estimation des quantiles (p50, p95, p99...).
+ * Les archives plus grossières et les requêtes sur plusieurs séries fusionnent les résumés, sans relire les valeurs brutes.
+ *
+ *      En-tête spécifique : (284 bytes)
+ *        stepTimestamp  / 8 bytes : timestamp du step en cours
+ *        sketch         / 276 bytes : résumé des valeurs du step en cours
+ *      Enregistrements: (277 bytes)
+ *        Defined  bool  / 1 byte (0:NULL 1:valeur)
+ *        Sketch         / 276 bytes
+ */
+public class QuantileArchive extends Archive {
+
+	static int ENREG_LEN = 1 + QuantileSketch.SERIALIZED_LEN;
+	static int CURRENT_STEP_DATA_LENGTH = 8 + QuantileSketch.SERIALIZED_LEN;
+
+	/** résumé des valeurs du step en cours (le constructeur de Archive lit le step en cours avant l'initialisation des champs) */
+	QuantileSketch stepSketch;
+	/** timestamp du debut de step en cours */
+	Long stepTimestamp;
+
+	/** tampon d'écriture d'un enregistrement (sous postLock) */
+	private final ByteBuffer writeBuffer = ByteBuffer.allocate(CURRENT_STEP_DATA_LENGTH);
+
+	public QuantileArchive(File file, String id, Integer step) throws IOException, ArchiveInitException {
+		super(file, id, step);
+		if(stepSketch==null) stepSketch = new QuantileSketch();
+	}
+
+	/**
+	 * Retourne la taille d'un enregistrement dans le fichier
+	 */
+	protected int getRecordLen() {
+		return ENREG_LEN;
+	}
+
+	/**
+	 * Enregistrement des données sur le step en cours
+	 *
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	protected void writeCurrentStepData(RandomAccessFile raf) throws IOException, ArchiveInitException{
+		if(stepTimestamp==null) throw new ArchiveInitException("stepTimestamp non initialisé");
+		logger.fine("write current step vars : "+sdf.format(new Date((long)stepTimestamp*1000))+" nb="+stepSketch.count);
+		writeBuffer.clear();
+		writeBuffer.putLong(stepTimestamp);
+		stepSketch.write(writeBuffer);
+		raf.seek(CUR_STEP_RECORD_POS);
+		raf.write(writeBuffer.array(), 0, writeBuffer.position());
+	}
+
+	@Override
+	protected boolean hasCurrentStepData() {
+		return stepTimestamp!=null && stepTimestamp>0;
+	}
+
+	/**
+	 * reinitialisation des variables sur le step en cours
+	 */
+	@Override
+	protected void resetCurrentStepData() {
+		stepTimestamp = null;
+		if(stepSketch==null) stepSketch = new QuantileSketch();
+		else stepSketch.reset();
+	}
+
+	/**
+	 * Le prochain step est démarré sans écriture d'enregistrement (résumé vide)
+	 */
+	@Override
+	protected void restoreStepState(RandomAccessFile adf) {
+		resetCurrentStepData();
+		stepTimestamp = lastTimestamp;
+	}
+
+	/**
+	 * Lecture des données sur le step en cours
+	 */
+	@Override
+	protected void readCurrentStepData(RandomAccessFile adf) throws IOException{
+		byte[] data = new byte[CURRENT_STEP_DATA_LENGTH];
+		adf.seek(CUR_STEP_RECORD_POS);
+		adf.readFully(data);
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		stepTimestamp = buf.getLong(0);
+		if(stepSketch==null) stepSketch = new QuantileSketch();
+		stepSketch.read(buf, 8);
+
+		logger.fine("step en cours: nb=" + stepSketch.count + " timestamp=" + stepTimestamp);
+	}
+
+	/**
+	 * Longueur des données du step en cours écrites dans le fichier archive
+	 */
+	protected int currentStepDataLength() {
+		return CURRENT_STEP_DATA_LENGTH;
+	}
+
+	/**
+	 * Longueur d'un enregistrement de l'archive
+	 *
+	 * @return
+	 */
+	@Override
+	protected int enregLen() {
+		return ENREG_LEN;
+	}
+
+	/**
+	 * Construit l'objet ArchivePoint correspondant aux valeurs enregistrées sur
+	 * le step en cours
+	 */
+	public ArchivePoint currentStepPoint() {
+		if (this.stepSketch == null || this.stepSketch.count == 0)
+			return null;
+		return QuantileArchivePoint.of(this.stepTimestamp, new QuantileSketch(this.stepSketch));
+	}
+
+	/**
+	 * Enregistrement d'un point
+	 *
+	 * @param timestamp
+	 * @param value
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	@Override
+	public void post(long timestamp, float value) throws IOException, ArchiveInitException {
+		post(timestamp, value, null);
+	}
+
+	/**
+	 * Enregistrement d'un point Le curseur doit être positionné en fin de
+	 * fichier
+	 *
+	 * @param timestamp
+	 * @param value
+	 * @param ramdomAccessFile
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	@Override
+	protected void post(long timestamp, float value, RandomAccessFile adf) throws IOException, ArchiveInitException{
+		postStep(timestamp, value, null, adf);
+	}
+
+	/**
+	 * Ajoute au step correspondant au timestamp une valeur brute (sketch null)
+	 * ou le résumé d'un step terminé d'une archive plus fine (consolidation en cascade)
+	 *
+	 * @param timestamp
+	 * @param value valeur brute
+	 * @param sketch résumé à fusionner
+	 * @param adf
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	protected void postStep(long timestamp, float value, QuantileSketch sketch, RandomAccessFile adf) throws IOException, ArchiveInitException{
+		boolean keepFileOpened = adf!=null;
+		lockPost();
+
+		try{
+			if(stepTimestamp!=null && stepTimestamp>0 && timestamp < stepTimestamp){
+				logger.warning("Nouvelle valeur anterieure au step en cours (cur step:"+sdf.format(new Date(stepTimestamp*1000))+" new value:"+sdf.format(new Date(timestamp*1000))+")");
+			}
+
+			if(stepTimestamp==null || stepTimestamp==0){
+				//Calcul du timestamp d'origine de l'archive : arrondi au step immédiatement inférieur
+				stepTimestamp = getTimestampOrigine(timestamp);
+				this.startTimestamp = stepTimestamp;
+				logger.fine("write start timestamp");
+				//ecriture du timestamp dans l'en-tête
+				if(adf==null) adf = openFileForWriting(true);
+				adf.seek(8);	//on se positionne sur le champ timestamp de début
+				adf.writeLong(stepTimestamp);
+			}
+			else if(timestamp >= stepTimestamp+step){
+				/*
+				 * Changement de step -> écriture
+				 */
+				if(adf==null) adf = openFileForWriting(true);
+				this.writePoint(adf);
+				this.forward();
+
+				this.stepSketch.reset();
+
+				long nbSteps = (timestamp - lastTimestamp)/step;
+				this.stepTimestamp = this.lastTimestamp + nbSteps*step;
+				logger.fine("nouveau step : "+sdf.format(new Date(stepTimestamp*1000)));
+			}
+
+			if(sketch==null) this.stepSketch.add(value);
+			else this.stepSketch.merge(sketch);
+
+			logger.fine("add to current step : nb="+stepSketch.count);
+
+			if(this.writeStartegy == WriteStrategy.ALL_POINTS){
+				//On écrit systématiquement le données du step en cours
+				//Plus sûr, mais moins performant
+				if(adf==null) adf = openFileForWriting(true);
+				writeCurrentStepData(adf);
+			}
+		}
+		finally{
+			//On ferme le fichier
+			releaseFile();
+			if(adf != null && !keepFileOpened) adf.close();
+			unlockPost();
+		}
+	}
+
+	/**
+	 * Transmet le résumé du step terminé aux archives consolidées
+	 */
+	private void forward() throws IOException, ArchiveInitException{
+		if (stepSketch.count == 0)
+			return;
+		for (Archive target : targets) {
+			((QuantileArchive) target).postStep(stepTimestamp, 0, stepSketch, null);
+		}
+	}
+
+	@Override
+	protected void postColumn(ArchiveColumns columns, int i, RandomAccessFile adf) throws IOException, ArchiveInitException {
+		if (!columns.isDefined(i))
+			return;
+		postStep(columns.getTimestamp(i), 0, columns.sketches[i], adf);
+	}
+
+	/**
+	 * Enregistre le résumé du step en cours dans le fichier
+	 *
+	 * @throws IOException
+	 */
+	private void writePoint(RandomAccessFile adf) throws IOException {
+		if (stepSketch.count == 0)
+			return;
+
+		long len = adf.length();
+
+		if (len < HEADER1_LEN + CURRENT_STEP_DATA_LENGTH) {
+			/*
+			 * Premier enregistrement de l'archive
+			 */
+			adf.seek(8); // Timestamp de début de l'archive
+			adf.writeLong(stepTimestamp);
+			adf.write(new byte[currentStepDataLength()]);
+			len = adf.length();
+		} else {
+			/*
+			 * Enregistrement placé à la fin
+			 */
+			adf.seek(len);
+		}
+
+		if (lastTimestamp != null && stepTimestamp == lastTimestamp) {
+			/*
+			 * On écrase la dernière valeur qui correspond au meme step. (C'est
+			 * autorise)
+			 */
+			logger.fine("override last value");
+			adf.seek(adf.getFilePointer() - ENREG_LEN);
+		} else if (lastTimestamp != null && stepTimestamp > lastTimestamp + step) {
+			// On remplit eventuellement les steps sans valeur
+			int stepsToSkip = (int) (stepTimestamp - lastTimestamp - step) / step;
+			logger.fine("skip " + stepsToSkip + " steps");
+			adf.write(new byte[stepsToSkip * ENREG_LEN]);
+		}
+
+		// On ecrit la nouvelle valeur
+		logger.fine("flush step " + sdf.format(new Date(stepTimestamp * 1000)) + ": nb=" + stepSketch.count);
+		writeBuffer.clear();
+		writeBuffer.put((byte) 1);
+		stepSketch.write(writeBuffer);
+		adf.write(writeBuffer.array(), 0, writeBuffer.position());
+
+		// Mise a jour du timestamp de dernier enregistrement
+		this.lastTimestamp = stepTimestamp;
+	}
+
+	/**
+	 * Lit le point dans le fichier, a la position du curseur
+	 *
+	 * @throws IOException
+	 */
+	protected ArchivePoint readPoint(RandomAccessFile raf) throws IOException {
+		byte[] data = new byte[ENREG_LEN];
+		raf.readFully(data);
+		return readPoint(ByteBuffer.wrap(data), 0);
+	}
+
+	@Override
+	protected ArchivePoint readPoint(ByteBuffer buf, int pos) {
+		QuantileSketch sketch = null;
+		if (buf.get(pos) != 0) {
+			sketch = new QuantileSketch();
+			sketch.read(buf, pos+1);
+		}
+		return QuantileArchivePoint.of(0, sketch);
+	}
+
+	@Override
+	protected ArchiveColumns newColumns(long start, int capacity) {
+		ArchiveColumns columns = new ArchiveColumns(start, step, capacity);
+		columns.sketches = new QuantileSketch[capacity];
+		return columns;
+	}
+
+	@Override
+	protected void readColumns(ByteBuffer buf, int pos, ArchiveColumns columns, int from, int count) {
+		for (int i = from; i < from + count; i++) {
+			if (buf.get(pos) != 0) {
+				QuantileSketch sketch = new QuantileSketch();
+				sketch.read(buf, pos+1);
+				columns.defined.set(i);
+				columns.sketches[i] = sketch;
+				columns.values[i] = sketch.quantile(0.5);
+			}
+			pos += ENREG_LEN;
+		}
+	}
+
+	@Override
+	protected void setColumns(ArchivePoint point, ArchiveColumns columns, int i) {
+		QuantileArchivePoint p = (QuantileArchivePoint) point;
+		if (p.sketch != null) {
+			columns.defined.set(i);
+			columns.sketches[i] = p.sketch;
+			columns.values[i] = p.value;
+		}
+	}
+
+	@Override
+	protected ArchivePoint columnPoint(ArchiveColumns columns, int i) {
+		return QuantileArchivePoint.of(columns.getTimestamp(i), columns.isDefined(i) ? columns.sketches[i] : null);
+	}
+
+	/**
+	 * Fusion des résumés du paquet
+	 */
+	@Override
+	protected ArchivePoint aggregate(ArchiveColumns columns, int from, int to) {
+		QuantileSketch sketch = new QuantileSketch();
+		for (int i = columns.defined.nextSetBit(from); i >= 0 && i < to; i = columns.defined.nextSetBit(i + 1)) {
+			sketch.merge(columns.sketches[i]);
+		}
+		return QuantileArchivePoint.of(columns.getTimestamp(from), sketch);
+	}
+
+	@Override
+	protected ArchivePoint newEmptyPoint(Long timestamp) {
+		QuantileArchivePoint p = new QuantileArchivePoint();
+		p.timestamp = timestamp;
+		return p;
+	}
+
+	public QuantileSketch getStepSketch() {
+		return stepSketch;
+	}
+
+	public Long getStepTimestamp() {
+		return stepTimestamp;
+	}
+}
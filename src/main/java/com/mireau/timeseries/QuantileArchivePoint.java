@@ -0,0 +1,80 @@
+package com.mireau.timeseries;
+
+import java.text.DateFormat;
+import java.text.NumberFormat;
+import java.util.Date;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+/**
+ * Point d'une archive de quantiles : résumé de la distribution des valeurs du step.
+ * La valeur du point est la médiane.
+ */
+public class QuantileArchivePoint extends ArchivePoint {
+
+	public QuantileArchivePoint() {
+		super();
+	}
+
+	QuantileSketch sketch = null;
+
+	/**
+	 * Point défini à partir d'un résumé (conservé tel quel)
+	 */
+	static QuantileArchivePoint of(long timestamp, QuantileSketch sketch){
+		QuantileArchivePoint p = new QuantileArchivePoint();
+		p.timestamp = timestamp;
+		if(sketch!=null && sketch.count>0){
+			p.sketch = sketch;
+			p.value = sketch.quantile(0.5);
+		}
+		return p;
+	}
+
+	/**
+	 * Estimation du quantile des valeurs du step
+	 * @param q entre 0 et 1 (ex: 0.99)
+	 * @return null si le point n'a pas de valeur
+	 */
+	public Float getQuantile(double q){
+		return (sketch==null ? null : sketch.quantile(q));
+	}
+
+	/**
+	 * @return json
+	 */
+	@Override
+	public JsonObject toJson(DateFormat dateFormat, NumberFormat numberFormat){
+		JsonObjectBuilder item = Json.createObjectBuilder();
+		item.add("t", dateFormat.format(new Date(this.timestamp*1000)));
+		if(this.value==null) item.add("v",JsonValue.NULL); else item.add("v",numberFormat.format(this.value));
+		if(this.sketch==null){
+			item.add("p95",JsonValue.NULL);
+			item.add("p99",JsonValue.NULL);
+			item.add("n",0);
+		}
+		else{
+			item.add("p95",numberFormat.format(getQuantile(0.95)));
+			item.add("p99",numberFormat.format(getQuantile(0.99)));
+			item.add("n",this.sketch.count);
+		}
+		return item.build();
+	}
+
+	@Override
+	public String toCsvString(DateFormat dateFormat, NumberFormat numberFormat){
+		return  dateFormat.format(new Date(this.timestamp*1000))
+				+";"+(this.value==null ? "" : numberFormat.format(this.value))
+				+";"+(this.sketch==null ? "" : numberFormat.format(getQuantile(0.95)))
+				+";"+(this.sketch==null ? "" : numberFormat.format(getQuantile(0.99)))
+				+";"+(this.sketch==null ? 0 : this.sketch.count);
+	}
+
+
+
+	public QuantileSketch getSketch(){ return sketch; }
+	public int getCount(){ return (sketch==null ? 0 : sketch.count); }
+}
@@ -0,0 +1,174 @@
+package com.mireau.timeseries;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Résumé de distribution fusionnable, de taille fixe (type DDSketch) : permet l'estimation des quantiles (p50, p95, p99...)
+ * Les valeurs positives sont comptées dans des intervalles de largeur logarithmique ]gamma^(i-1), gamma^i] :
+ * l'estimation d'un quantile a une erreur relative d'au plus RELATIVE_ACCURACY.
+ * Seuls les BUCKETS intervalles les plus élevés sont conservés (dynamique gamma^BUCKETS, environ 600) :
+ * les valeurs inférieures sont regroupées dans le premier intervalle, ce qui préserve les quantiles élevés.
+ * Les valeurs nulles ou négatives sont comptées à part.
+ * La fusion (merge) donne le même résumé que l'ajout direct des valeurs.
+ *
+ *   Enregistrement: (SERIALIZED_LEN = 276 bytes)
+ *     count     int   / 4 bytes : nombre de valeurs
+ *     zeroCount int   / 4 bytes : nombre de valeurs nulles ou négatives
+ *     min       float / 4 bytes
+ *     max       float / 4 bytes
+ *     offset    int   / 4 bytes : indice du premier intervalle
+ *     counts    int   / BUCKETS x 4 bytes
+ */
+public class QuantileSketch {
+
+	public static final int BUCKETS = 64;
+	public static final double RELATIVE_ACCURACY = 0.05;
+	static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+	static final double LOG_GAMMA = Math.log(GAMMA);
+	/** les valeurs inférieures sont comptées comme nulles */
+	static final double MIN_INDEXABLE = 1e-9;
+	static final int SERIALIZED_LEN = 20 + BUCKETS*4;
+
+	int count = 0;
+	int zeroCount = 0;
+	float min;
+	float max;
+	/** indice (logarithmique) du premier intervalle */
+	int offset;
+	final int[] counts = new int[BUCKETS];
+
+	public QuantileSketch() {
+	}
+
+	/**
+	 * Copie
+	 */
+	public QuantileSketch(QuantileSketch sketch) {
+		this.count = sketch.count;
+		this.zeroCount = sketch.zeroCount;
+		this.min = sketch.min;
+		this.max = sketch.max;
+		this.offset = sketch.offset;
+		System.arraycopy(sketch.counts, 0, this.counts, 0, BUCKETS);
+	}
+
+	public void add(float value){
+		if(count==0 || value < min) min = value;
+		if(count==0 || value > max) max = value;
+		if(value <= MIN_INDEXABLE){
+			zeroCount++;
+		}
+		else{
+			int index = (int)Math.ceil(Math.log(value) / LOG_GAMMA);
+			if(count == zeroCount) offset = index - BUCKETS + 1;
+			else if(index >= offset + BUCKETS) shift(index - BUCKETS + 1);
+			counts[Math.max(0, index - offset)]++;
+		}
+		count++;
+	}
+
+	/**
+	 * Ajoute les valeurs d'un autre résumé
+	 */
+	public void merge(QuantileSketch sketch){
+		if(sketch.count==0) return;
+		if(count==0 || sketch.min < min) min = sketch.min;
+		if(count==0 || sketch.max > max) max = sketch.max;
+		if(sketch.count > sketch.zeroCount){
+			if(count == zeroCount){
+				offset = sketch.offset;
+				System.arraycopy(sketch.counts, 0, counts, 0, BUCKETS);
+			}
+			else{
+				if(sketch.offset > offset) shift(sketch.offset);
+				for(int i=0;i<BUCKETS;i++){
+					counts[Math.max(0, sketch.offset + i - offset)] += sketch.counts[i];
+				}
+			}
+		}
+		count += sketch.count;
+		zeroCount += sketch.zeroCount;
+	}
+
+	/**
+	 * Décale les intervalles conservés : les intervalles inférieurs au nouvel offset sont regroupés dans le premier
+	 */
+	private void shift(int newOffset){
+		int delta = newOffset - offset;
+		int first = 0;
+		for(int i=0;i<=delta && i<BUCKETS;i++) first += counts[i];
+		for(int i=1;i<BUCKETS;i++){
+			counts[i] = (i+delta < BUCKETS ? counts[i+delta] : 0);
+		}
+		counts[0] = first;
+		offset = newOffset;
+	}
+
+	/**
+	 * Estimation du quantile
+	 * @param q entre 0 et 1 (ex: 0.99)
+	 * @return null si aucune valeur
+	 */
+	public Float quantile(double q){
+		if(count==0) return null;
+		double rank = q * (count - 1);
+		double value = 0;
+		if(rank >= zeroCount){
+			long cumul = zeroCount;
+			int i = 0;
+			while(i < BUCKETS-1 && cumul + counts[i] <= rank){
+				cumul += counts[i];
+				i++;
+			}
+			value = 2 * Math.pow(GAMMA, offset + i) / (GAMMA + 1);
+		}
+		return (float)Math.max(min, Math.min(max, value));
+	}
+
+	public void reset(){
+		count = 0;
+		zeroCount = 0;
+		min = 0;
+		max = 0;
+		offset = 0;
+		Arrays.fill(counts, 0);
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public float getMin() {
+		return min;
+	}
+
+	public float getMax() {
+		return max;
+	}
+
+	void write(ByteBuffer buf){
+		buf.putInt(count);
+		buf.putInt(zeroCount);
+		buf.putFloat(min);
+		buf.putFloat(max);
+		buf.putInt(offset);
+		for(int i=0;i<BUCKETS;i++) buf.putInt(counts[i]);
+	}
+
+	/**
+	 * Lecture à la position indiquée (la position du buffer n'est pas modifiée)
+	 */
+	void read(ByteBuffer buf, int pos){
+		count = buf.getInt(pos);
+		zeroCount = buf.getInt(pos+4);
+		min = buf.getFloat(pos+8);
+		max = buf.getFloat(pos+12);
+		offset = buf.getInt(pos+16);
+		pos += 20;
+		for(int i=0;i<BUCKETS;i++){
+			counts[i] = buf.getInt(pos);
+			pos += 4;
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.mireau.timeseries;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Données brutes sous forme de colonnes de types primitifs (timestamps en millisecondes)
+ * Seuls les 'size' premiers éléments des tableaux sont significatifs
+ */
+public class RawColumns {
+
+	/** Nombre maximum de points (taille maximum d'un tableau Java) */
+	static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+	long[] timestamps;
+	float[] values;
+	int size = 0;
+
+	public RawColumns() {
+		this(16);
+	}
+
+	public RawColumns(int capacity) {
+		timestamps = new long[Math.max(capacity,1)];
+		values = new float[Math.max(capacity,1)];
+	}
+
+	/**
+	 * Ajoute un point en fin de colonnes (agrandissement si besoin)
+	 */
+	public void add(long timestamp, float value){
+		if(size == timestamps.length){
+			int capacity = (int)Math.min(MAX_SIZE, size*2L);
+			timestamps = Arrays.copyOf(timestamps, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		timestamps[size] = timestamp;
+		values[size] = value;
+		size++;
+	}
+
+	/**
+	 * Ajoute les points d'autres colonnes en fin de colonnes
+	 */
+	public void addAll(RawColumns other){
+		if(size + other.size > timestamps.length){
+			int capacity = (int)Math.min(MAX_SIZE, Math.max(size + other.size, timestamps.length*2L));
+			timestamps = Arrays.copyOf(timestamps, capacity);
+			values = Arrays.copyOf(values, capacity);
+		}
+		System.arraycopy(other.timestamps, 0, timestamps, size, other.size);
+		System.arraycopy(other.values, 0, values, size, other.size);
+		size += other.size;
+	}
+
+	/**
+	 * Tri chronologique des points (stable : l'ordre des points de même timestamp est conservé)
+	 */
+	public void sort(){
+		Integer[] index = new Integer[size];
+		for(int i=0;i<size;i++) index[i] = i;
+		final long[] t = timestamps;
+		Arrays.sort(index, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				return Long.compare(t[i1], t[i2]);
+			}
+		});
+		long[] sortedTimestamps = new long[timestamps.length];
+		float[] sortedValues = new float[values.length];
+		for(int i=0;i<size;i++){
+			sortedTimestamps[i] = timestamps[index[i]];
+			sortedValues[i] = values[index[i]];
+		}
+		timestamps = sortedTimestamps;
+		values = sortedValues;
+	}
+
+	/**
+	 * Recherche d'un point (colonnes triées) : même timestamp et même valeur
+	 */
+	public boolean contains(long timestamp, float value){
+		int i = Arrays.binarySearch(timestamps, 0, size, timestamp);
+		if(i<0) return false;
+		while(i>0 && timestamps[i-1]==timestamp) i--;
+		for(;i<size && timestamps[i]==timestamp;i++){
+			if(Float.compare(values[i], value)==0) return true;
+		}
+		return false;
+	}
+
+	public long[] getTimestamps() {
+		return timestamps;
+	}
+
+	public float[] getValues() {
+		return values;
+	}
+
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,39 @@
+package com.mireau.timeseries;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Curseur de lecture séquentielle des données brutes, sans allocation par enregistrement.
+ *
+ * Utilisation:
+ *   while(cursor.next()){
+ *     long t = cursor.timestamp();
+ *     float v = cursor.value();
+ *   }
+ *   cursor.close();
+ */
+public interface RawCursor extends Closeable {
+
+	/**
+	 * Avance sur l'enregistrement suivant
+	 * @return false en fin de parcours
+	 * @throws IOException
+	 */
+	boolean next() throws IOException;
+
+	/**
+	 * Timestamp (secondes) de l'enregistrement courant
+	 */
+	long timestamp();
+	
+	/**
+	 * Timestamp (millisecondes) de l'enregistrement courant
+	 */
+	long timestampMillis();
+
+	/**
+	 * Valeur de l'enregistrement courant
+	 */
+	float value();
+}
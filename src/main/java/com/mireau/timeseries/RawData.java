@@ -2,33 +2,71 @@ package com.mireau.timeseries;
 
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.GregorianCalendar;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.SimpleTimeZone;
+import java.util.TimeZone;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /** 
  * Enregistrement des données brutes.
- * Peut être scindé en plusieurs fichiers (TODO)
- * Format:
- *   En tête:
- *     aucun
- *   Chaque enregistrement : 8 bytes 
- *     timestamp (secondes) : int  (4 bytes/32bits/unsigned -> 31bits) : 68 ans (2038)
- *     valeur (signed)      : float(4 bytes)
+ * Peut être scindé en plusieurs fichiers (segments) par période (cf Partition) :
+ *   - le fichier actif ts_[id].rts reçoit les nouvelles valeurs
+ *   - au changement de période (jour ou mois dans le fuseau fixe de StepAlignment), il est renommé 
+ *     en segment ts_[id].rts.[timestamp du premier enregistrement]
+ *   - l'index des segments (timestamps de début et de fin) est constitué à l'ouverture
+ *   Les lectures sur une période n'ouvrent que les segments concernés.
+ *   Les segments fermés peuvent être compressés (ts_[id].rts.[timestamp].z, cf CompressedRawFile)
+ * Les valeurs tardives (antérieures aux valeurs déjà écrites) sont ajoutées au fichier ts_[id].rts.late (même format, non trié)
+ * et intégrées aux segments concernés par mergeLate().
+ * Les timestamps sont enregistrés en millisecondes. Les méthodes historiques (post, read, cursor...) 
+ * travaillent en secondes, les méthodes *Millis en millisecondes.
+ * Format (version 2):
+ *   En tête: 8 bytes
+ *     magic   : int (4 bytes) négatif, ne peut pas correspondre au premier timestamp d'un fichier version 1
+ *     version : int (4 bytes)
+ *   Chaque enregistrement : 12 bytes 
+ *     timestamp (millisecondes) : long (8 bytes)
+ *     valeur (signed)           : float(4 bytes)
  *     pas de caractère de séparation
+ * Format version 1:
+ *   pas d'en tête, enregistrements de 8 bytes : timestamp (secondes) int (4 bytes), valeur float (4 bytes)
+ *   converti au format version 2 à la première ouverture (cf migrate)
  */
 public class RawData {
 	
 	static Logger logger = Logger.getLogger(RawData.class.getName());
-	static int DATA_LEN = 8;
+	static int MAGIC = 0x8A525453;
+	static int VERSION = 2;
+	static int HEADER_LEN = 8;
+	static int DATA_LEN = 12;
+	static int V1_DATA_LEN = 8;
+	static String COMPRESSED_EXT = ".z";
+	static String LATE_EXT = ".late";
+	static String MERGING_EXT = ".merging";
+	/** Nombre maximum d'enregistrements d'un lot écrits en une fois (cf write) */
+	static int BATCH_WRITE_RECORDS = 64 * 1024;
+	/** Nombre maximum de valeurs tardives chargées à la fois par mergeLate */
+	static int LATE_MERGE_RECORDS = 1024 * 1024;
 	static SimpleDateFormat sdf = new SimpleDateFormat("YYYY/MM/dd HH:mm:ss");
 	
 	String id;
@@ -37,163 +75,1866 @@ public class RawData {
 	/** dernier enregistrement */
 	protected Entry last;
 	
+	/** Canal d'écriture maintenu ouvert entre deux post (mode ajout) */
+	FileChannel appendChannel;
+	
+	/** Canal d'ajout au fichier des valeurs tardives, maintenu ouvert jusqu'à close ou mergeLate, forcé par sync (accès sous verrou) */
+	FileChannel lateChannel;
+	
+	/** Tampon d'écriture réutilisé pour les enregistrements à ajouter */
+	ByteBuffer appendBuffer;
+	
+	/** Tampon réutilisé pour l'écriture des lots de points */
+	ByteBuffer batchBuffer;
+	
+	/** Nombre d'enregistrements conservés dans le tampon avant écriture (1: écriture à chaque post) */
+	int appendBufferSize = 1;
+	
+	/** Lecture par projection mémoire du fichier (iterator, getLastPoints) */
+	boolean mappedRead = false;
+	
+	/** Projection mémoire du fichier actif en lecture seule (null: à refaire) */
+	volatile MappedView readMap;
+	
+	/** Verrou de (re)projection, distinct du verrou d'écriture */
+	final ReentrantLock readMapLock = new ReentrantLock();
+	
+	/** Longueur (hors en tête) des enregistrements écrits dans le fichier, publiée sous verrou d'écriture. -1: non déterminée */
+	volatile long writtenLength = -1;
+	
+	/** Enregistrements en attente dans le tampon d'écriture (pas encore dans le fichier) */
+	volatile boolean buffered = false;
+	
+	/** 
+	 * Génération du fichier actif : incrémentée (sous verrou d'écriture, cf invalidateReadMap) avant et après 
+	 * chaque réécriture ou remplacement du fichier (cf mergeLate, rollSegment, compactBefore, getReadBuffer)
+	 */
+	volatile int fileGeneration = 0;
+	
+	/** Sérialisation des compactages de rétention (fichier temporaire unique) */
+	final ReentrantLock retentionLock = new ReentrantLock();
+	
+	/**
+	 * Découpage des données brutes en segments
+	 * NONE : un seul fichier
+	 * DAY, MONTH : un segment par jour, par mois
+	 */
+	public enum Partition{
+		NONE, DAY, MONTH
+	}
+	
+	Partition partition = Partition.NONE;
+	
+	/** Index des segments fermés (hors fichier actif), triés chronologiquement. null: non chargé */
+	List<Segment> segments;
+	
+	/** Timestamp de fin (exclus) de la période du fichier actif. -1: non déterminé */
+	long activeSegmentEnd = -1;
+	
+	/** Compression des segments à leur fermeture */
+	boolean compression = false;
+	
+	/** Format du fichier actif contrôlé (cf migrate) */
+	boolean formatChecked = false;
+	
+	/** Verrou d'accès au fichier actif et aux segments (pas de moniteur : pas de blocage du thread porteur d'un thread virtuel pendant les I/O) */
+	final ReentrantLock lock = new ReentrantLock();
+	
 	protected RawData(File f){
 		this.rawFile = f;
 	}
 	
-	public File getFile() throws IOException{
-		rawFile.createNewFile();		//Vérifie si le fichier n'existe pas deja
-		return rawFile;
+	public File getFile() throws IOException{
+		//Création du fichier s'il n'existe pas deja, contrôle du format à la première utilisation
+		if(rawFile.createNewFile() || !formatChecked){
+			migrate(rawFile);
+			formatChecked = true;
+		}
+		return rawFile;
+	}
+	
+	/**
+	 * Contrôle le format d'un fichier de données brutes non compressé :
+	 * écriture de l'en tête d'un fichier vide, conversion d'un fichier version 1 (timestamps en secondes sur 4 bytes).
+	 * La conversion est écrite dans un fichier temporaire puis substituée au fichier d'origine.
+	 * @param file
+	 * @return true si le fichier a été converti
+	 * @throws IOException
+	 */
+	static boolean migrate(File file) throws IOException{
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try{
+			long len = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+			if(len >= HEADER_LEN){
+				channel.read(header, 0);
+				if(header.getInt(0)==MAGIC){
+					int version = header.getInt(4);
+					if(version!=VERSION) throw new IOException("version de fichier non supportée : "+version+" ("+file.getName()+")");
+					return false;
+				}
+			}
+			else if(len < V1_DATA_LEN){
+				//Fichier vide (ou en tête incomplet, aucun enregistrement)
+				channel.truncate(0);
+				writeHeader(channel);
+				return false;
+			}
+		}
+		finally{
+			channel.close();
+		}
+		
+		//Conversion version 1
+		File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName()+".tmp");
+		long nb = 0;
+		boolean moved = false;
+		FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try{
+			FileChannel out = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try{
+				writeHeader(out);
+				ByteBuffer inBuf = ByteBuffer.allocate(8192 * V1_DATA_LEN);
+				ByteBuffer outBuf = ByteBuffer.allocate(8192 * DATA_LEN);
+				int n = 0;
+				while(n >= 0){
+					n = in.read(inBuf);
+					inBuf.flip();
+					while(inBuf.remaining() >= V1_DATA_LEN){
+						outBuf.putLong((long)inBuf.getInt()*1000);
+						outBuf.putFloat(inBuf.getFloat());
+						nb++;
+					}
+					inBuf.compact();	//enregistrement incomplet éventuel en fin de fichier ignoré
+					outBuf.flip();
+					while(outBuf.hasRemaining()) out.write(outBuf);
+					outBuf.clear();
+				}
+				out.force(false);
+			}
+			finally{
+				out.close();
+			}
+			in.close();
+			Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+		}
+		finally{
+			in.close();
+			if(!moved) tmpFile.delete();
+		}
+		logger.info("conversion au format version "+VERSION+" : "+file.getName()+" ("+nb+" enregistrements)");
+		return true;
+	}
+	
+	/**
+	 * Ecrit l'en tête (version courante) à la position courante du canal
+	 */
+	static void writeHeader(FileChannel channel) throws IOException{
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+		header.putInt(MAGIC).putInt(VERSION).flip();
+		while(header.hasRemaining()) channel.write(header);
+	}
+	
+	/**
+	 * Ecrit les enregistrements en attente et libère le canal d'écriture
+	 * @throws IOException
+	 */
+	protected void close() throws IOException{
+		lock.lock();
+		try{
+			closeLateChannel();
+			if(appendChannel==null) return;
+			try{
+				flush();
+			}
+			finally{
+				appendChannel.close();
+				appendChannel = null;
+			}
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Ecrit dans le fichier les enregistrements en attente dans le tampon
+	 * @throws IOException
+	 */
+	public void flush() throws IOException{
+		lock.lock();
+		try{
+			if(appendChannel==null || appendBuffer==null || appendBuffer.position()==0) return;
+			appendBuffer.flip();
+			while(appendBuffer.hasRemaining()){
+				appendChannel.write(appendBuffer);
+			}
+			appendBuffer.clear();
+			writtenLength = appendChannel.position() - HEADER_LEN;
+			buffered = false;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Ecrit les enregistrements en attente et force leur écriture sur disque, ainsi que celle des valeurs tardives
+	 * @throws IOException
+	 */
+	public void sync() throws IOException{
+		lock.lock();
+		try{
+			flush();
+			if(appendChannel!=null) appendChannel.force(false);
+			if(lateChannel!=null) lateChannel.force(false);
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Fixe le nombre d'enregistrements conservés en mémoire avant écriture dans le fichier.
+	 * Avec une valeur supérieure à 1, les données ne sont écrites que sur remplissage du tampon, 
+	 * flush() ou close() : risque de perte sur fin anormale.
+	 * @param nb
+	 * @throws IOException
+	 */
+	public void setAppendBufferSize(int nb) throws IOException{
+		lock.lock();
+		try{
+			if(nb<1) throw new IllegalArgumentException("taille de tampon incorrecte: "+nb);
+			flush();
+			this.appendBufferSize = nb;
+			this.appendBuffer = null;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	public int getAppendBufferSize() {
+		return appendBufferSize;
+	}
+	
+	/**
+	 * Active la lecture par projection mémoire (MappedByteBuffer) du fichier.
+	 * La projection est refaite lorsque le fichier a grossi.
+	 * Ne s'applique pas aux fichiers de plus de 2Go (lecture fichier classique)
+	 * @param mappedRead
+	 */
+	public void setMappedRead(boolean mappedRead) {
+		lock.lock();
+		try{
+			this.mappedRead = mappedRead;
+			if(!mappedRead) readMap = null;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	public boolean isMappedRead() {
+		return mappedRead;
+	}
+	
+	/**
+	 * Fourni une vue (position propre) sur la projection mémoire du fichier, limitée aux enregistrements écrits.
+	 * Sans verrou d'écriture (longueur publiée par l'écrivain) tant que la projection couvre cette longueur : 
+	 * elle n'est refaite que si le fichier a grossi au delà ou a été remplacé (cf fileGeneration).
+	 * Une projection en lecture seule ne pouvant dépasser la fin du fichier, elle couvre le fichier entier.
+	 * Les enregistrements en attente dans le tampon d'écriture sont d'abord écrits (sous verrou d'écriture).
+	 * @return null si le mode projection n'est pas actif ou pas applicable
+	 * @throws IOException
+	 */
+	protected ByteBuffer getReadBuffer() throws IOException{
+		if(!mappedRead) return null;
+		if(buffered) flush();
+		while(true){
+			int generation = fileGeneration;
+			long len = writtenLength;
+			if(len<0){
+				//longueur non déterminée (pas d'écriture depuis l'ouverture ou fichier remplacé)
+				lock.lock();
+				try{
+					if(writtenLength<0){
+						long fileLen = getFile().length() - HEADER_LEN;
+						writtenLength = fileLen - fileLen % DATA_LEN;
+					}
+				}
+				finally{
+					lock.unlock();
+				}
+				continue;
+			}
+			if(len > Integer.MAX_VALUE){
+				logger.warning("fichier trop volumineux pour la projection mémoire : "+rawFile.getName());
+				return null;
+			}
+			MappedView view = readMap;
+			if(view!=null && view.generation==generation && view.map.capacity()>=len){
+				//longueur et projection du même fichier
+				if(fileGeneration!=generation) continue;
+				ByteBuffer buf = view.map.duplicate();
+				buf.limit((int)len);
+				return buf;
+			}
+			remap(generation, len);
+		}
+	}
+	
+	/**
+	 * Projection du fichier actif, abandonnée si le fichier a été réécrit ou remplacé pendant la projection
+	 * @param generation génération du fichier actif à projeter
+	 * @param len longueur minimum de la projection
+	 */
+	private void remap(int generation, long len) throws IOException{
+		readMapLock.lock();
+		try{
+			MappedView view = readMap;
+			if(view!=null && view.generation==generation && view.map.capacity()>=len) return;
+			MappedByteBuffer map;
+			try{
+				FileChannel channel = FileChannel.open(rawFile.toPath(), StandardOpenOption.READ);
+				try{
+					//fichier entier (enregistrements écrits depuis la lecture de len compris)
+					long size = channel.size() - HEADER_LEN;
+					size -= size % DATA_LEN;
+					if(size > Integer.MAX_VALUE) size = len;
+					map = channel.map(MapMode.READ_ONLY, HEADER_LEN, size);
+				}
+				finally{
+					channel.close();
+				}
+			}
+			catch(IOException e){
+				if(fileGeneration!=generation) return;
+				throw e;
+			}
+			if(fileGeneration!=generation) return;
+			if(map.capacity() < len) throw new IOException("fichier tronqué : "+rawFile.getAbsolutePath());
+			readMap = new MappedView(map, generation);
+			logger.fine("projection mémoire de "+rawFile.getName()+" : "+map.capacity()+" bytes");
+		}
+		finally{
+			readMapLock.unlock();
+		}
+	}
+	
+	/**
+	 * Abandonne la projection mémoire et la longueur publiée du fichier actif, 
+	 * avant et après sa réécriture ou son remplacement (sous verrou d'écriture)
+	 */
+	private void invalidateReadMap(){
+		writtenLength = -1;
+		readMap = null;
+		fileGeneration++;
+	}
+	
+	/**
+	 * Ouvre si besoin le canal d'écriture, positionné en fin de fichier
+	 * @return
+	 * @throws IOException
+	 */
+	private FileChannel getAppendChannel() throws IOException{
+		if(appendChannel==null || !appendChannel.isOpen()){
+			File file = getFile();
+			FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+			
+			//On vérifie que la longueur est cohérente
+			long len = channel.size();
+			int mod = (int)((len - HEADER_LEN) % DATA_LEN);
+			if(mod != 0){
+				logger.warning("Taille de fichier incoherence ("+len/DATA_LEN+"x"+DATA_LEN+", reste "+mod+"). retour a "+(len-mod));
+				len  = len - mod;
+			}
+			
+			//Positionnement en fin de fichier
+			channel.position(len);
+			appendChannel = channel;
+			writtenLength = len - HEADER_LEN;
+			
+			//Lecture du dernier enregistrement (contrôle d'ordre)
+			getLast();
+		}
+		if(appendBuffer==null){
+			appendBuffer = ByteBuffer.allocateDirect(appendBufferSize * DATA_LEN);
+		}
+		return appendChannel;
+	}
+	
+	/**
+	 * Fourni la dernière valeur
+	 * @return
+	 * @throws IOException 
+	 */
+	public Entry getLast() throws IOException{
+		lock.lock();
+		try{
+			if(this.last==null){
+				RDSCursor cursor = openCursor(null,null);
+				try{
+					long nb = cursor.recordCount();
+					if(nb>0){
+						RawColumns c = cursor.readRecords(nb-1, 1);
+						last = Entry.fromMillis(c.timestamps[0], c.values[0]);
+					}
+				}
+				finally{
+					cursor.close();
+				}
+				if(last==null){
+					//Fichier actif vide : dernier segment
+					List<Segment> segs = getSegments();
+					if(!segs.isEmpty()){
+						RawColumns r = segs.get(segs.size()-1).readLast(1);
+						if(r.size>0) last = Entry.fromMillis(r.timestamps[0], r.values[0]);
+					}
+				}
+				if(last!=null) logger.fine("dernier enregistrement: "+last);
+			}
+			return this.last;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Fixe le découpage des données brutes en segments.
+	 * Le découpage s'applique aux nouvelles valeurs : le fichier actif devient un segment au premier changement de période
+	 * @param partition
+	 */
+	public void setPartition(Partition partition) {
+		lock.lock();
+		try{
+			this.partition = (partition==null ? Partition.NONE : partition);
+			this.activeSegmentEnd = -1;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	public Partition getPartition() {
+		return partition;
+	}
+	
+	/**
+	 * Active la compression des segments à leur fermeture.
+	 * Les segments déjà fermés ne sont compressés que par compressSegments()
+	 * @param compression
+	 */
+	public void setCompression(boolean compression) {
+		lock.lock();
+		try{
+			this.compression = compression;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	public boolean isCompression() {
+		return compression;
+	}
+	
+	/**
+	 * Index des segments fermés, constitué à la première utilisation par lecture 
+	 * du premier et du dernier enregistrement de chaque segment
+	 * @return
+	 * @throws IOException
+	 */
+	List<Segment> getSegments() throws IOException{
+		lock.lock();
+		try{
+			if(segments==null){
+				List<Segment> list = new ArrayList<Segment>();
+				final Pattern segmentPattern = Pattern.compile(Pattern.quote(rawFile.getName())+"\\.[0-9]+("+Pattern.quote(COMPRESSED_EXT)+")?");
+				File dir = rawFile.getAbsoluteFile().getParentFile();
+				File[] files = (dir==null ? null : dir.listFiles());
+				if(files!=null){
+					for (File file : files) {
+						if(!segmentPattern.matcher(file.getName()).matches()) continue;
+						if(!file.getName().endsWith(COMPRESSED_EXT)){
+							if(new File(dir, file.getName()+COMPRESSED_EXT).exists()){
+								//compression terminée, suppression du segment d'origine interrompue
+								logger.info("suppression du segment déjà compressé "+file.getName());
+								file.delete();
+								continue;
+							}
+							migrate(file);
+						}
+						Segment segment = new Segment(file);
+						if(segment.load()) list.add(segment);
+						else logger.warning("segment vide ignoré : "+file.getName());
+					}
+				}
+				Collections.sort(list);
+				segments = list;
+			}
+			return segments;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Segments fermés dont la période recouvre [begin, end] (millisecondes).
+	 * Copie de l'index prise sous verrou (liste modifiée par rollSegment et dropSegmentsBefore)
+	 */
+	private List<Segment> getSegments(Long begin, Long end) throws IOException{
+		lock.lock();
+		try{
+			List<Segment> result = new ArrayList<Segment>();
+			for (Segment segment : getSegments()) {
+				if((end==null || segment.first <= end) && (begin==null || segment.last >= begin)){
+					result.add(segment);
+				}
+			}
+			return result;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Supprime les segments fermés dont toutes les valeurs sont antérieures au timestamp
+	 * @param timestamp (secondes)
+	 * @return nombre de segments supprimés
+	 * @throws IOException
+	 */
+	public int dropSegmentsBefore(long timestamp) throws IOException{
+		lock.lock();
+		try{
+			timestamp *= 1000;
+			int nb = 0;
+			Iterator<Segment> iter = getSegments().iterator();
+			while(iter.hasNext()){
+				Segment segment = iter.next();
+				if(segment.last < timestamp){
+					logger.info("suppression du segment "+segment.file.getName());
+					segment.map = null;
+					if(!segment.file.delete()) throw new IOException("suppression impossible : "+segment.file.getAbsolutePath());
+					iter.remove();
+					nb++;
+				}
+			}
+			return nb;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Supprime les données brutes antérieures au timestamp (rétention) :
+	 * suppression des segments fermés, compactage du fichier si la série n'est pas découpée en segments
+	 * @param timestamp (secondes)
+	 * @throws IOException
+	 */
+	public void expireBefore(long timestamp) throws IOException{
+		dropSegmentsBefore(timestamp);
+		if(partition==Partition.NONE) compactBefore(timestamp*1000);
+	}
+	
+	/**
+	 * Supprime du fichier actif les enregistrements antérieurs au timestamp.
+	 * Les enregistrements conservés sont recopiés sans verrou dans un nouveau fichier ;
+	 * seuls ceux ajoutés pendant la copie sont recopiés sous verrou avant remplacement du fichier.
+	 * La copie est recommencée si le fichier actif a été réécrit ou remplacé entre temps (mergeLate, rollSegment).
+	 * @param timestamp (millisecondes)
+	 * @throws IOException
+	 */
+	private void compactBefore(long timestamp) throws IOException{
+		retentionLock.lock();
+		try{
+			while(!tryCompactBefore(timestamp)){
+				logger.info(rawFile.getName()+" : fichier actif modifié pendant le compactage, nouvelle copie");
+			}
+		}
+		finally{
+			retentionLock.unlock();
+		}
+	}
+	
+	/**
+	 * Compactage du fichier actif (cf compactBefore)
+	 * @param timestamp (millisecondes)
+	 * @return false si le fichier actif a été réécrit ou remplacé pendant la copie (rien n'est modifié)
+	 * @throws IOException
+	 */
+	private boolean tryCompactBefore(long timestamp) throws IOException{
+		File file;
+		int generation;
+		lock.lock();
+		try{
+			file = getFile();
+			generation = fileGeneration;
+		}
+		finally{
+			lock.unlock();
+		}
+		//nom distinct du fichier temporaire de merge (écrit sous verrou pendant la copie)
+		File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName()+".compact.tmp");
+		long first;
+		long copyEnd;
+		RDSCursor cursor = new RDSCursor(file, null, null);
+		try{
+			first = cursor.searchRecord(timestamp);
+			copyEnd = HEADER_LEN + cursor.recordCount()*DATA_LEN;
+		}
+		catch(IOException | RuntimeException e){
+			cursor.close();
+			throw e;
+		}
+		if(first==0){
+			cursor.close();
+			return true;
+		}
+		
+		FileChannel out = null;
+		boolean moved = false;
+		try{
+			try{
+				out = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				writeHeader(out);
+				Archive.transfer(cursor.channel, HEADER_LEN + first*DATA_LEN, copyEnd, out);
+			}
+			finally{
+				cursor.close();
+			}
+			
+			lock.lock();
+			try{
+				//offsets de la copie invalides
+				if(fileGeneration != generation) return false;
+				flush();
+				FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+				try{
+					long len = in.size();
+					Archive.transfer(in, copyEnd, len - (len - HEADER_LEN) % DATA_LEN, out);
+				}
+				finally{
+					in.close();
+				}
+				out.force(false);
+				out.close();
+				
+				close();
+				invalidateReadMap();
+				Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				moved = true;
+				invalidateReadMap();
+				activeSegmentEnd = -1;
+				logger.info(file.getName()+" : "+first+" enregistrements supprimés");
+			}
+			finally{
+				lock.unlock();
+			}
+		}
+		finally{
+			if(out!=null && out.isOpen()) out.close();
+			//copie en erreur : pas de fichier temporaire résiduel
+			if(!moved) tmpFile.delete();
+		}
+		return true;
+	}
+	
+	/**
+	 * Taille totale des données brutes (fichier actif et segments)
+	 * @throws IOException
+	 */
+	public long getSize() throws IOException{
+		lock.lock();
+		try{
+			flush();
+			long size = getFile().length() + getLateFile().length() + getMergingLateFile().length();
+			for (Segment segment : getSegments()) {
+				size += segment.file.length();
+			}
+			return size;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Estimation du volume lu (octets) par une lecture de la période :
+	 * taille de chaque fichier concerné, au prorata de la part de sa période comprise dans la période lue
+	 * @param beginTimestamp (secondes, inclus)
+	 * @param endTimestamp (secondes, inclus)
+	 * @throws IOException
+	 */
+	public long estimateReadSize(Long beginTimestamp, Long endTimestamp) throws IOException{
+		lock.lock();
+		try{
+			flush();
+			Long begin = beginMillis(beginTimestamp);
+			Long end = endMillis(endTimestamp);
+			long size = 0;
+			for (Segment segment : getSegments(begin, end)) {
+				size += prorata(segment.file.length(), segment.first, segment.last, begin, end);
+			}
+
+			Entry lastEntry = getLast();
+			if(lastEntry!=null){
+				RDSCursor cursor = openCursor(null, null);
+				try{
+					if(cursor.recordCount()>0){
+						long first = cursor.readRecords(0, 1).timestamps[0];
+						size += prorata(getFile().length(), first, lastEntry.timestampMillis, begin, end);
+					}
+				}
+				finally{
+					cursor.close();
+				}
+			}
+			return size;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Part de la taille d'un fichier couvrant [first, last] correspondant à la période [begin, end] (millisecondes)
+	 */
+	private static long prorata(long size, long first, long last, Long begin, Long end){
+		long from = (begin==null ? first : Math.max(first, begin));
+		long to = (end==null ? last : Math.min(last, end));
+		if(to < from) return 0;
+		if(last <= first) return size;
+		return (long)(size * ((double)(to - from) / (last - first)));
+	}
+
+	/**
+	 * Supprime l'ensemble des fichiers de données brutes
+	 * @throws IOException
+	 */
+	protected void delete() throws IOException{
+		lock.lock();
+		try{
+			close();
+			invalidateReadMap();
+			for (Segment segment : getSegments()) {
+				segment.file.delete();
+			}
+			segments = null;
+			rawFile.delete();
+			getLateFile().delete();
+			getMergingLateFile().delete();
+			last = null;
+			invalidateReadMap();
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Fichier des valeurs tardives
+	 */
+	File getLateFile(){
+		return new File(rawFile.getAbsoluteFile().getParentFile(), rawFile.getName()+LATE_EXT);
+	}
+	
+	/**
+	 * Enregistre une valeur tardive (antérieure aux valeurs déjà écrites) dans le fichier des valeurs tardives.
+	 * Elle n'est visible des lectures qu'après intégration par mergeLate()
+	 * @param timestamp (millisecondes)
+	 * @param value
+	 * @throws IOException
+	 */
+	public void postLate(long timestamp, float value) throws IOException{
+		lock.lock();
+		try{
+			if(lateChannel==null){
+				File file = getLateFile();
+				if(file.createNewFile()) migrate(file);		//en tête
+				lateChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			}
+			ByteBuffer buf = ByteBuffer.allocate(DATA_LEN);
+			buf.putLong(timestamp).putFloat(value).flip();
+			while(buf.hasRemaining()) lateChannel.write(buf);
+			logger.fine("valeur tardive: "+value+"("+sdf.format(new Date(timestamp))+")");
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Ecrit sur disque et ferme le canal des valeurs tardives (sous verrou) : avant renommage ou suppression du fichier
+	 */
+	private void closeLateChannel() throws IOException{
+		if(lateChannel==null) return;
+		try{
+			lateChannel.force(false);
+		}
+		finally{
+			lateChannel.close();
+			lateChannel = null;
+		}
+	}
+	
+	/**
+	 * Fichier des valeurs tardives en cours d'intégration (cf mergeLate)
+	 */
+	File getMergingLateFile(){
+		return new File(rawFile.getAbsoluteFile().getParentFile(), rawFile.getName()+LATE_EXT+MERGING_EXT);
+	}
+	
+	/**
+	 * Lecture des valeurs tardives non encore intégrées (fichier en cours d'intégration et fichier courant) sur une période
+	 * @param beginTimestamp (millisecondes, inclus)
+	 * @param endTimestamp (millisecondes, inclus)
+	 * @return valeurs triées
+	 * @throws IOException
+	 */
+	RawColumns readLate(long beginTimestamp, long endTimestamp) throws IOException{
+		lock.lock();
+		try{
+			RawColumns result = new RawColumns();
+			for (File file : new File[]{getMergingLateFile(), getLateFile()}) {
+				if(file.length() <= HEADER_LEN) continue;
+				RDSCursor cursor = new RDSCursor(file, null, null);
+				try{
+					long count = cursor.recordCount();
+					for(long off=0;off<count;off+=LATE_MERGE_RECORDS){
+						RawColumns late = cursor.readRecords(off, (int)Math.min(LATE_MERGE_RECORDS, count-off));
+						for(int i=0;i<late.size;i++){
+							if(late.timestamps[i] >= beginTimestamp && late.timestamps[i] <= endTimestamp) result.add(late.timestamps[i], late.values[i]);
+						}
+					}
+				}
+				finally{
+					cursor.close();
+				}
+			}
+			result.sort();
+			return result;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return true s'il y a des valeurs tardives à intégrer (cf mergeLate)
+	 */
+	public boolean hasLateValues(){
+		return getMergingLateFile().exists() || getLateFile().length() > HEADER_LEN;
+	}
+	
+	/**
+	 * Intègre les valeurs tardives aux données brutes.
+	 * Le fichier des valeurs tardives est renommé sous verrou (les valeurs tardives suivantes vont dans un nouveau fichier),
+	 * puis lu par blocs d'au plus LATE_MERGE_RECORDS valeurs, triés.
+	 * Chaque valeur est affectée au segment dont la période la contient (ou au fichier actif) ;
+	 * chaque fichier concerné est réécrit (fusion triée) sans verrou dans un fichier temporaire, 
+	 * le lock n'est pris que pour le substituer au fichier d'origine (cf mergeInto).
+	 * Un fichier en cours d'intégration laissé par un arrêt est intégré en premier : ses valeurs déjà présentes 
+	 * (même timestamp et même valeur) dans le fichier cible sont alors ignorées, celles intégrées avant l'arrêt 
+	 * ne sont pas dupliquées (cf MergeCursor.skipExisting).
+	 * @return timestamp (millisecondes) de la plus ancienne valeur intégrée, null si aucune
+	 * @throws IOException
+	 */
+	public Long mergeLate() throws IOException{
+		retentionLock.lock();
+		try{
+			Long result = null;
+			File mergingFile = getMergingLateFile();
+			boolean again = true;
+			//fichier laissé par une intégration interrompue : valeurs en partie déjà intégrées
+			boolean recovery;
+			while(again){
+				lock.lock();
+				try{
+					//fichier laissé par une intégration interrompue : intégré puis fichier des valeurs tardives courant
+					again = mergingFile.exists();
+					recovery = again;
+					if(!again){
+						closeLateChannel();
+						File lateFile = getLateFile();
+						if(lateFile.length() <= HEADER_LEN){
+							if(lateFile.exists() && !lateFile.delete()) throw new IOException("suppression impossible : "+lateFile.getAbsolutePath());
+							break;
+						}
+						Files.move(lateFile.toPath(), mergingFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+					}
+				}
+				finally{
+					lock.unlock();
+				}
+				
+				long nb = 0;
+				RDSCursor lateCursor = new RDSCursor(mergingFile, null, null);
+				try{
+					long count = lateCursor.recordCount();
+					for(long off=0;off<count;off+=LATE_MERGE_RECORDS){
+						RawColumns late = lateCursor.readRecords(off, (int)Math.min(LATE_MERGE_RECORDS, count-off));
+						late.sort();
+						mergeLate(late, recovery);
+						if(result==null || late.timestamps[0] < result) result = late.timestamps[0];
+						nb += late.size;
+					}
+				}
+				finally{
+					lateCursor.close();
+				}
+				if(!mergingFile.delete()) throw new IOException("suppression impossible : "+mergingFile.getAbsolutePath());
+				if(nb > 0) logger.info(rawFile.getName()+" : "+nb+" valeurs tardives intégrées");
+			}
+			return result;
+		}
+		finally{
+			retentionLock.unlock();
+		}
+	}
+	
+	/**
+	 * Intègre des valeurs tardives triées aux segments et au fichier actif
+	 * @param skipExisting valeurs déjà présentes dans le fichier cible ignorées
+	 */
+	private void mergeLate(RawColumns late, boolean skipExisting) throws IOException{
+		int i = 0;
+		while(i < late.size){
+			//état des fichiers (sous verrou) : segments, début du fichier actif
+			List<Segment> segs;
+			long activeFirst = Long.MAX_VALUE;
+			lock.lock();
+			try{
+				segs = new ArrayList<Segment>(getSegments());
+				RDSCursor cursor = openCursor(null, null);
+				try{
+					if(cursor.recordCount()>0) activeFirst = cursor.readRecords(0, 1).timestamps[0];
+				}
+				finally{
+					cursor.close();
+				}
+			}
+			finally{
+				lock.unlock();
+			}
+			
+			//fichier de la première valeur restante (les valeurs postérieures au dernier segment vont au fichier actif)
+			int s = 0;
+			while(s < segs.size() && late.timestamps[i] >= (s < segs.size()-1 ? segs.get(s+1).first : activeFirst)) s++;
+			long limit = (s < segs.size()-1 ? segs.get(s+1).first : (s == segs.size()-1 ? activeFirst : Long.MAX_VALUE));
+			int j = i;
+			while(j < late.size && late.timestamps[j] < limit) j++;
+			
+			//fichier modifié entre temps (segment compressé ou supprimé, fichier actif devenu segment) : nouvelle affectation
+			if(mergeInto(s < segs.size() ? segs.get(s) : null, late, i, j-i, skipExisting)) i = j;
+			else logger.info(rawFile.getName()+" : fichier modifié pendant l'intégration des valeurs tardives, nouvelle copie");
+		}
+	}
+	
+	/**
+	 * Réécrit un segment fermé ou le fichier actif en y insérant des valeurs triées.
+	 * La fusion est écrite sans verrou dans un fichier temporaire ; sous verrou, on vérifie que le fichier n'a pas été 
+	 * remplacé entre temps, on recopie les enregistrements ajoutés pendant la fusion (fichier actif) 
+	 * puis le fichier temporaire est substitué au fichier d'origine.
+	 * @param segment segment concerné, null pour le fichier actif
+	 * @param skipExisting valeurs déjà présentes dans le fichier ignorées (cf MergeCursor)
+	 * @return false si le fichier a été remplacé pendant la fusion (rien n'est modifié)
+	 * @throws IOException
+	 */
+	private boolean mergeInto(Segment segment, RawColumns columns, int off, int len, boolean skipExisting) throws IOException{
+		File file;
+		boolean compressed;
+		int generation;
+		long copyEnd = 0;
+		lock.lock();
+		try{
+			if(segment==null){
+				flush();
+				file = getFile();
+				generation = fileGeneration;
+				copyEnd = HEADER_LEN + (Math.max(0, file.length() - HEADER_LEN) / DATA_LEN) * DATA_LEN;
+				compressed = false;
+			}
+			else{
+				file = segment.file;
+				compressed = segment.compressed;
+				generation = 0;
+			}
+		}
+		finally{
+			lock.unlock();
+		}
+		
+		File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName()+".tmp");
+		boolean moved = false;
+		try{
+			RawCursor existing;
+			if(compressed){
+				existing = new CompressedRawFile.Cursor(file, null, null);
+			}
+			else{
+				RDSCursor cursor = new RDSCursor(file, null, null);
+				//fichier actif : enregistrements présents au début de la fusion seulement
+				if(segment==null) cursor.limitRecords((copyEnd - HEADER_LEN) / DATA_LEN);
+				existing = cursor;
+			}
+			MergeCursor cursor = new MergeCursor(existing, columns, off, len, skipExisting);
+			try{
+				if(compressed) CompressedRawFile.write(tmpFile, cursor, CompressedRawFile.DEFAULT_BLOCK_SIZE);
+				else writeRecords(tmpFile, cursor);
+			}
+			finally{
+				cursor.close();
+			}
+			
+			lock.lock();
+			try{
+				if(segment==null){
+					if(fileGeneration != generation) return false;
+					flush();
+					FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE);
+					try{
+						long inLen = in.size();
+						out.position(out.size());
+						Archive.transfer(in, copyEnd, inLen - (inLen - HEADER_LEN) % DATA_LEN, out);
+						out.force(false);
+					}
+					finally{
+						in.close();
+						out.close();
+					}
+					close();
+					invalidateReadMap();
+					Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					moved = true;
+					invalidateReadMap();
+					last = null;
+					activeSegmentEnd = -1;
+				}
+				else{
+					if(!getSegments().contains(segment) || !segment.file.equals(file)) return false;
+					Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					moved = true;
+					segment.map = null;
+					segment.load();
+				}
+			}
+			finally{
+				lock.unlock();
+			}
+			return true;
+		}
+		finally{
+			if(!moved) tmpFile.delete();
+		}
+	}
+	
+	/**
+	 * Ecrit un fichier de données brutes (format courant) à partir des enregistrements du curseur
+	 * @return nombre d'enregistrements
+	 */
+	static long writeRecords(File file, RawCursor cursor) throws IOException{
+		long nb = 0;
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try{
+			writeHeader(channel);
+			ByteBuffer buf = ByteBuffer.allocate(8192 * DATA_LEN);
+			while(cursor.next()){
+				if(!buf.hasRemaining()){
+					buf.flip();
+					while(buf.hasRemaining()) channel.write(buf);
+					buf.clear();
+				}
+				buf.putLong(cursor.timestampMillis());
+				buf.putFloat(cursor.value());
+				nb++;
+			}
+			buf.flip();
+			while(buf.hasRemaining()) channel.write(buf);
+			channel.force(false);
+		}
+		finally{
+			channel.close();
+		}
+		return nb;
+	}
+	
+	/**
+	 * Contrôle la période du fichier actif avant l'ajout d'une valeur. 
+	 * Le fichier actif devient un segment si la valeur appartient à une période ultérieure.
+	 * @param timestamp (millisecondes)
+	 * @throws IOException
+	 */
+	private void checkSegment(long timestamp) throws IOException{
+		if(partition==Partition.NONE) return;
+		if(activeSegmentEnd<0){
+			long start = timestamp;
+			RDSCursor cursor = openCursor(null,null);
+			try{
+				if(cursor.recordCount()>0) start = cursor.readRecords(0, 1).timestamps[0];
+			}
+			finally{
+				cursor.close();
+			}
+			activeSegmentEnd = nextSegmentStart(start);
+		}
+		if(timestamp >= activeSegmentEnd){
+			rollSegment();
+			activeSegmentEnd = nextSegmentStart(timestamp);
+		}
+	}
+	
+	/**
+	 * Début de la période suivant celle du timestamp (millisecondes).
+	 * Les jours et les mois sont comptés dans le fuseau fixe du calage des archives (cf StepAlignment.getDefault) :
+	 * pas d'heure d'été ni de dépendance au fuseau de la machine, un segment journalier correspond à un step d'un jour.
+	 */
+	long nextSegmentStart(long timestamp){
+		TimeZone zone = new SimpleTimeZone(StepAlignment.getDefault().getZoneOffset()*1000, "StepAlignment");
+		Calendar cal = new GregorianCalendar(zone);
+		cal.setTimeInMillis(timestamp);
+		cal.set(Calendar.MILLISECOND, 0);
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MINUTE, 0);
+		cal.set(Calendar.HOUR_OF_DAY, 0);
+		if(partition==Partition.MONTH){
+			cal.set(Calendar.DAY_OF_MONTH, 1);
+			cal.add(Calendar.MONTH, 1);
+		}
+		else{
+			cal.add(Calendar.DAY_OF_MONTH, 1);
+		}
+		return cal.getTimeInMillis();
+	}
+	
+	/**
+	 * Transforme le fichier actif en segment fermé
+	 * @throws IOException
+	 */
+	private void rollSegment() throws IOException{
+		close();
+		invalidateReadMap();
+		File file = getFile();
+		Segment segment = new Segment(file);
+		if(!segment.load()) return;	//fichier actif vide
+		
+		File dest = new File(file.getAbsoluteFile().getParentFile(), file.getName()+"."+segment.first);
+		if(dest.exists()) throw new IOException("le segment "+dest.getAbsolutePath()+" existe deja");
+		if(!file.renameTo(dest)) throw new IOException("renommage impossible : "+file.getAbsolutePath()+" -> "+dest.getName());
+		segment.file = dest;
+		invalidateReadMap();
+		logger.info("nouveau segment "+dest.getName()+" ("+sdf.format(new Date(segment.first))+" - "+sdf.format(new Date(segment.last))+")");
+		
+		getSegments().add(segment);
+		getFile();	//nouveau fichier actif
+		
+		if(compression) compress(segment);
+	}
+	
+	/**
+	 * Compresse les segments fermés non compressés
+	 * @return nombre de segments compressés
+	 * @throws IOException
+	 */
+	public int compressSegments() throws IOException{
+		lock.lock();
+		try{
+			int nb = 0;
+			for (Segment segment : getSegments()) {
+				if(segment.compressed) continue;
+				compress(segment);
+				nb++;
+			}
+			return nb;
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Remplace un segment par sa version compressée.
+	 * Le fichier compressé est écrit sous un nom temporaire puis renommé : 
+	 * en cas d'interruption, le segment d'origine reste utilisable.
+	 */
+	private void compress(Segment segment) throws IOException{
+		File plain = segment.file;
+		File dest = new File(plain.getAbsoluteFile().getParentFile(), plain.getName()+COMPRESSED_EXT);
+		File tmpFile = new File(dest.getAbsoluteFile().getParentFile(), dest.getName()+".tmp");
+		long nb;
+		boolean moved = false;
+		try{
+			RDSCursor cursor = new RDSCursor(plain, null, null);
+			try{
+				nb = CompressedRawFile.write(tmpFile, cursor, CompressedRawFile.DEFAULT_BLOCK_SIZE);
+			}
+			finally{
+				cursor.close();
+			}
+			Files.move(tmpFile.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+		}
+		finally{
+			if(!moved) tmpFile.delete();
+		}
+		
+		long plainLen = plain.length();
+		segment.file = dest;
+		segment.compressed = true;
+		segment.map = null;
+		if(!plain.delete()) logger.warning("suppression impossible : "+plain.getAbsolutePath());
+		logger.info("segment compressé "+dest.getName()+" : "+nb+" enregistrements, "+plainLen+" -> "+dest.length()+" bytes");
+	}
+	
+	/**
+	 * Enregistrement d'une valeur
+	 * @param timestamp (secondes)
+	 * @param value
+	 * @throws IOException
+	 */
+	public void post(long timestamp, float value) throws IOException{
+		postMillis(timestamp*1000, value);
+	}
+	
+	/**
+	 * Enregistrement d'une valeur
+	 * @param timestamp (millisecondes)
+	 * @param value
+	 * @throws IOException
+	 */
+	public void postMillis(long timestamp, float value) throws IOException{
+		lock.lock();
+		try{
+			checkSegment(timestamp);
+			getAppendChannel();
+		
+			if(last!=null && timestamp < last.timestampMillis){
+				logger.warning("la nouvelle valeur anterieure a la derniere (prev:"+sdf.format(new Date(last.timestampMillis))+" new:"+sdf.format(new Date(timestamp))+")");
+			}
+		
+			if(last==null) last = new Entry();
+			last.set(timestamp, value);
+		
+			//On écrit l'enregistrement
+			logger.fine("write: "+value+"("+sdf.format(new Date(timestamp))+")");
+			appendBuffer.putLong(timestamp);
+			appendBuffer.putFloat(value);
+			buffered = true;
+		
+			if(!appendBuffer.hasRemaining()) flush();
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Enregistrement d'une série de points en une seule écriture.
+	 * Les enregistrements en attente dans le tampon et ceux du lot sont écrits ensemble (écriture groupée)
+	 * @param timestamps (secondes)
+	 * @param values
+	 * @param off indice du premier point
+	 * @param len nombre de points
+	 * @throws IOException
+	 */
+	public void post(long[] timestamps, float[] values, int off, int len) throws IOException{
+		post(timestamps, 1000, values, off, len);
+	}
+	
+	/**
+	 * Enregistrement d'une série de points en une seule écriture
+	 * @param timestamps (millisecondes)
+	 * @param values
+	 * @param off indice du premier point
+	 * @param len nombre de points
+	 * @throws IOException
+	 */
+	public void postMillis(long[] timestamps, float[] values, int off, int len) throws IOException{
+		post(timestamps, 1, values, off, len);
+	}
+	
+	/**
+	 * @param scale multiplicateur des timestamps vers les millisecondes
+	 */
+	private void post(long[] timestamps, long scale, float[] values, int off, int len) throws IOException{
+		lock.lock();
+		try{
+			checkBounds(timestamps, values, off, len);
+			if(len==0) return;
+			if(partition==Partition.NONE){
+				write(timestamps, scale, values, off, len);
+				return;
+			}
+			//Découpage du lot sur les changements de période
+			int end = off+len;
+			int i = off;
+			while(i<end){
+				checkSegment(timestamps[i]*scale);
+				int j = i+1;
+				while(j<end && timestamps[j]*scale < activeSegmentEnd) j++;
+				write(timestamps, scale, values, i, j-i);
+				i = j;
+			}
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Ecriture groupée d'un lot dans le fichier actif, par blocs d'au plus BATCH_WRITE_RECORDS enregistrements :
+	 * la taille du tampon ne dépend pas de celle du lot
+	 */
+	private void write(long[] timestamps, long scale, float[] values, int off, int len) throws IOException{
+		FileChannel channel = getAppendChannel();
+		
+		int capacity = Math.min(len, BATCH_WRITE_RECORDS) * DATA_LEN;
+		if(batchBuffer==null || batchBuffer.capacity() < capacity){
+			batchBuffer = ByteBuffer.allocateDirect(capacity);
+		}
+		
+		logger.fine("write batch: "+len+" points");
+		long prev = (last==null ? Long.MIN_VALUE : last.timestampMillis);
+		appendBuffer.flip();
+		ByteBuffer[] buffers = new ByteBuffer[]{appendBuffer, batchBuffer};
+		int end = off+len;
+		for(int start=off;start<end;){
+			int n = Math.min(end-start, BATCH_WRITE_RECORDS);
+			batchBuffer.clear();
+			for(int i=start;i<start+n;i++){
+				long timestamp = timestamps[i]*scale;
+				if(timestamp < prev){
+					logger.warning("la nouvelle valeur anterieure a la derniere (prev:"+sdf.format(new Date(prev))+" new:"+sdf.format(new Date(timestamp))+")");
+				}
+				batchBuffer.putLong(timestamp);
+				batchBuffer.putFloat(values[i]);
+				prev = timestamp;
+			}
+			batchBuffer.flip();
+			//le premier bloc est écrit avec les enregistrements en attente dans appendBuffer
+			while(batchBuffer.hasRemaining()){
+				channel.write(buffers);
+			}
+			start += n;
+		}
+		
+		if(last==null) last = new Entry();
+		last.set(prev, values[end-1]);
+		appendBuffer.clear();
+		writtenLength = channel.position() - HEADER_LEN;
+		buffered = false;
+	}
+	
+	static void checkBounds(long[] timestamps, float[] values, int off, int len){
+		if(off<0 || len<0 || off+len>timestamps.length || off+len>values.length){
+			throw new IndexOutOfBoundsException("off="+off+" len="+len+" timestamps="+timestamps.length+" values="+values.length);
+		}
+	}
+	
+	/**
+	 * Fourni les nb derniers enregistrements, du plus récent au plus ancien
+	 * @param nb
+	 * @return
+	 * @throws IOException
+	 */
+	public List<Entry> getLastPoints(int nb) throws IOException{
+		List<Entry> result = new ArrayList<Entry>(nb);
+		
+		//Segments et fichier actif pris ensemble sous verrou : pas de segment fermé entre les deux
+		List<Segment> segs;
+		RDSCursor cursor;
+		lock.lock();
+		try{
+			segs = getSegments(null,null);
+			cursor = openCursor(null,null);
+		}
+		finally{
+			lock.unlock();
+		}
+		
+		//Fichier actif puis segments, du plus récent au plus ancien
+		try{
+			for(int s=segs.size();s>=0 && result.size()<nb;s--){
+				RawColumns columns;
+				if(s==segs.size()){
+					long nbRecords = cursor.recordCount();
+					int n = (int)Math.min(nb-result.size(), nbRecords);
+					columns = cursor.readRecords(nbRecords-n, n);
+				}
+				else{
+					columns = segs.get(s).readLast(nb-result.size());
+				}
+				for(int i=columns.size-1;i>=0;i--){
+					result.add(Entry.fromMillis(columns.timestamps[i], columns.values[i]));
+				}
+			}
+		}
+		finally{
+			cursor.close();
+		}
+		return result;
+	}
+	
+	/**
+	 * Lecture des enregistrements sur une période, sous forme de colonnes (timestamps en millisecondes).
+	 * 
+	 * @param beginTimestamp (secondes, inclus, null: début de la série)
+	 * @param endTimestamp (secondes, inclus, null: fin de la série)
+	 * @return
+	 * @throws IOException
+	 */
+	public RawColumns read(Long beginTimestamp, Long endTimestamp) throws IOException{
+		return readMillis(beginMillis(beginTimestamp), endMillis(endTimestamp));
+	}
+	
+	/**
+	 * Lecture des enregistrements sur une période, sous forme de colonnes (timestamps en millisecondes).
+	 * Dans chaque segment concerné, les bornes sont recherchées par dichotomie puis le bloc est lu en une fois.
+	 * 
+	 * @param beginTimestamp (millisecondes, inclus, null: début de la série)
+	 * @param endTimestamp (millisecondes, inclus, null: fin de la série)
+	 * @return
+	 * @throws IOException
+	 */
+	public RawColumns readMillis(Long beginTimestamp, Long endTimestamp) throws IOException{
+		//Segments et fichier actif pris ensemble sous verrou : pas de segment fermé entre les deux
+		List<Segment> segs;
+		RDSCursor cursor;
+		lock.lock();
+		try{
+			segs = getSegments(beginTimestamp,endTimestamp);
+			cursor = openCursor(null,null);
+		}
+		finally{
+			lock.unlock();
+		}
+		
+		RawColumns result = null;
+		try{
+			for(int s=0;s<=segs.size();s++){
+				RawColumns columns;
+				if(s==segs.size()) columns = cursor.readRange(beginTimestamp, endTimestamp);
+				else columns = segs.get(s).read(beginTimestamp, endTimestamp);
+				if(result==null) result = columns;
+				else if((long)result.size + columns.size > RawColumns.MAX_SIZE) throw new IOException("trop d'enregistrements sur la période : plus de "+RawColumns.MAX_SIZE);
+				else result.addAll(columns);
+			}
+		}
+		finally{
+			cursor.close();
+		}
+		return result;
+	}
+	
+	/**
+	 * Parcours la liste des enregistrement sur une période
+	 * 
+	 * @param beginTimestamp (secondes)
+	 * @param endTimestamp (secondes)
+	 * @return
+	 * @throws IOException 
+	 */
+	public Iterator<Entry> iterator(Long beginTimestamp, Long endTimestamp) throws IOException{
+		return new RDSIterator(cursor(beginTimestamp,endTimestamp));
+	}
+	
+	/**
+	 * Parcours sans allocation des enregistrements sur une période
+	 * Le curseur doit être fermé après utilisation
+	 * 
+	 * @param beginTimestamp (secondes)
+	 * @param endTimestamp (secondes)
+	 * @return
+	 * @throws IOException
+	 */
+	public RawCursor cursor(Long beginTimestamp, Long endTimestamp) throws IOException{
+		return cursorMillis(beginMillis(beginTimestamp), endMillis(endTimestamp));
+	}
+	
+	/**
+	 * Parcours sans allocation des enregistrements sur une période
+	 * 
+	 * @param beginTimestamp (millisecondes)
+	 * @param endTimestamp (millisecondes)
+	 * @return
+	 * @throws IOException
+	 */
+	public RawCursor cursorMillis(Long beginTimestamp, Long endTimestamp) throws IOException{
+		//Segments et fichier actif pris ensemble sous verrou : pas de segment fermé entre les deux
+		lock.lock();
+		try{
+			List<Segment> segs = getSegments(beginTimestamp,endTimestamp);
+			RDSCursor active = openCursor(beginTimestamp, endTimestamp);
+			if(segs.isEmpty()) return active;
+			return new SegmentsCursor(segs, active, beginTimestamp, endTimestamp);
+		}
+		finally{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Borne de début en millisecondes (null: pas de borne)
+	 */
+	static Long beginMillis(Long timestamp){
+		return (timestamp==null ? null : timestamp*1000);
 	}
 	
-	protected void close(){
-		
+	/**
+	 * Borne de fin (incluse) en millisecondes : fin de la seconde
+	 */
+	static Long endMillis(Long timestamp){
+		return (timestamp==null || timestamp==Long.MAX_VALUE ? null : timestamp*1000+999);
 	}
 	
 	/**
-	 * Fourni la dernière valeur
-	 * @return
-	 * @throws IOException 
+	 * Curseur sur le fichier actif
 	 */
-	public Entry getLast() throws IOException{
-		return getLast(null);
+	private RDSCursor openCursor(Long beginTimestamp, Long endTimestamp) throws IOException{
+		ByteBuffer buf = getReadBuffer();
+		if(buf!=null) return new RDSCursor(buf,beginTimestamp,endTimestamp);
+		flush();
+		return new RDSCursor(getFile(),beginTimestamp,endTimestamp);
 	}
 	
 	/**
-	 * Fourni la dernière valeur
-	 * Le curseur est positionné en fin de dernière valeur (pret à écrire si ouvert en rw)
-	 * @return
-	 * @throws IOException 
+	 * Projection mémoire du fichier actif et génération du fichier projeté
 	 */
-	private Entry getLast(RandomAccessFile rdf) throws IOException{
-		if(this.last==null){
-			File file = getFile();
-			long len = file.length();
-			if(len>=DATA_LEN){
-				//Il y a des données dans le fichier : lecture
-				boolean closeFileFlag = false;
-				if(rdf==null){
-					rdf = new RandomAccessFile(file,"r");
-					closeFileFlag = true;
-				}
-				long pos = len - DATA_LEN;
-				long mod = pos % DATA_LEN;
-				if(mod != 0){
-					logger.warning("Taille de fichier incoherence ("+len/DATA_LEN+"x"+DATA_LEN+", reste "+mod+"). retour a "+(len-mod));
-					pos -= mod;
-				}
-				rdf.seek(pos);
-				
-				last = new Entry();
-				last.timestamp = (long)rdf.readInt();
-				last.value = rdf.readFloat();
-				logger.fine("dernier enregistrement: "+last);
-				
-				if(closeFileFlag) rdf.close();
-			}
-			
-		}
+	static class MappedView{
+		final MappedByteBuffer map;
+		final int generation;
 		
-		return this.last;
+		MappedView(MappedByteBuffer map, int generation){
+			this.map = map;
+			this.generation = generation;
+		}
 	}
 	
-	
-	public void post(long timestamp, float value) throws IOException{
-		File file = getFile();
-		RandomAccessFile rdf = null;
+	/**
+	 * Segment fermé des données brutes (fichier non modifié), compressé ou non
+	 */
+	class Segment implements Comparable<Segment>{
+		File file;
+		/** segment compressé (cf CompressedRawFile) */
+		boolean compressed;
+		/** timestamp du premier enregistrement (millisecondes) */
+		long first;
+		/** timestamp du dernier enregistrement (millisecondes) */
+		long last;
+		/** projection mémoire (mode mappedRead) */
+		MappedByteBuffer map;
+		final ReentrantLock mapLock = new ReentrantLock();
 		
-		try{
-			rdf = new RandomAccessFile(file,"rw");
-			
-			//On vérifie que la longueur est cohérente
-			long len = rdf.length();
-			if(len>0){
-				int mod = (int)(len % DATA_LEN);
-				if(mod != 0){
-					logger.warning("Taille de fichier incoherence ("+len/DATA_LEN+"x"+DATA_LEN+", reste "+mod+"). retour a "+(len-mod));
-					len  = len - mod;
+		Segment(File file){
+			this.file = file;
+			this.compressed = file.getName().endsWith(COMPRESSED_EXT);
+		}
+		
+		/**
+		 * Lecture des timestamps de début et de fin
+		 * @return false si le segment est vide
+		 */
+		boolean load() throws IOException{
+			if(compressed){
+				long[] bounds = CompressedRawFile.bounds(file);
+				if(bounds==null) return false;
+				first = bounds[0];
+				last = bounds[1];
+				return true;
+			}
+			RDSCursor cursor = new RDSCursor(file, null, null);
+			try{
+				long nb = cursor.recordCount();
+				if(nb==0) return false;
+				first = cursor.readRecords(0, 1).timestamps[0];
+				last = cursor.readRecords(nb-1, 1).timestamps[0];
+				return true;
+			}
+			finally{
+				cursor.close();
+			}
+		}
+		
+		RawCursor openCursor(Long beginTimestamp, Long endTimestamp) throws IOException{
+			if(compressed) return new CompressedRawFile.Cursor(file, beginTimestamp, endTimestamp);
+			return openRecordCursor(beginTimestamp, endTimestamp);
+		}
+		
+		/**
+		 * Curseur sur un segment non compressé
+		 */
+		private RDSCursor openRecordCursor(Long beginTimestamp, Long endTimestamp) throws IOException{
+			if(mappedRead && file.length() <= Integer.MAX_VALUE){
+				mapLock.lock();
+				try{
+					if(map==null){
+						FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+						try{
+							long len = channel.size() - HEADER_LEN;
+							map = channel.map(MapMode.READ_ONLY, HEADER_LEN, len - len % DATA_LEN);
+						}
+						finally{
+							channel.close();
+						}
+					}
 				}
-				
-				if(timestamp < getLast(rdf).timestamp){
-					logger.warning("la nouvelle valeur anterieure a la derniere (prev:"+sdf.format(new Date((long)last.timestamp*1000))+" new:"+sdf.format(new Date((long)timestamp*1000))+")");
+				finally{
+					mapLock.unlock();
 				}
-				
-				//Positionnement en fin de fichier
-				rdf.seek(len);
+				return new RDSCursor(map.duplicate(), beginTimestamp, endTimestamp);
 			}
-			
-			//On écrit l'enregistrement
-			if(timestamp>Integer.MAX_VALUE){
-				logger.warning("timestamp tronqué : "+timestamp+"/"+(int)timestamp);
+			return new RDSCursor(file, beginTimestamp, endTimestamp);
+		}
+		
+		/**
+		 * Lecture des enregistrements sur une période
+		 */
+		RawColumns read(Long beginTimestamp, Long endTimestamp) throws IOException{
+			if(compressed) return CompressedRawFile.read(file, beginTimestamp, endTimestamp);
+			RDSCursor cursor = openRecordCursor(null, null);
+			try{
+				return cursor.readRange(beginTimestamp, endTimestamp);
+			}
+			finally{
+				cursor.close();
 			}
-			
-			if(last==null) last = new Entry();
-			last.timestamp = (int)timestamp;
-			last.value = value;
-			
-			logger.fine("write: "+value+"("+sdf.format(new Date(timestamp*1000))+")");
-			rdf.writeInt((int)last.timestamp);
-			rdf.writeFloat(last.value);
 		}
-		finally {
-			if(rdf != null) rdf.close();
+		
+		/**
+		 * Lecture des nb derniers enregistrements (ordre chronologique)
+		 */
+		RawColumns readLast(int nb) throws IOException{
+			if(compressed) return CompressedRawFile.readLast(file, nb);
+			RDSCursor cursor = openRecordCursor(null, null);
+			try{
+				long nbRecords = cursor.recordCount();
+				int n = (int)Math.min(nb, nbRecords);
+				return cursor.readRecords(nbRecords-n, n);
+			}
+			finally{
+				cursor.close();
+			}
 		}
 		
+		@Override
+		public int compareTo(Segment o) {
+			return Long.compare(first, o.first);
+		}
 	}
 	
-	public List<Entry> getLastPoints(int nb) throws IOException{
-		File file = getFile();
-		RandomAccessFile raf = null;
-		List<Entry> result = null;
+	/**
+	 * Curseur enchaînant les segments concernés puis le fichier actif
+	 * (curseur ouvert à la création, en même temps que la sélection des segments)
+	 */
+	class SegmentsCursor implements RawCursor{
+		List<Segment> segs;
+		RawCursor active;
+		int index = 0;
+		RawCursor current;
+		Long begin;
+		Long end;
+		boolean closed = false;
 		
-		try{
-			raf = new RandomAccessFile(file, "r");
-			long pos = raf.length() - ( nb * DATA_LEN );
-			if(pos<0){
-				nb = nb+(int)(pos/DATA_LEN);
-				pos = 0;
-			}
-			raf.seek(pos);
-			
-			result = new ArrayList<Entry>(nb);
-			Entry next = null;
-			for(int i=0;i<nb;i++){
-				next = new Entry();
-				next.timestamp = (long)raf.readInt();
-				next.value = raf.readFloat();
-				result.add(0,next);
+		SegmentsCursor(List<Segment> segs, RawCursor active, Long beginTimestamp, Long endTimestamp){
+			this.segs = segs;
+			this.active = active;
+			this.begin = beginTimestamp;
+			this.end = endTimestamp;
+		}
+		
+		@Override
+		public boolean next() throws IOException {
+			while(!closed){
+				if(current==null){
+					if(index < segs.size()) current = segs.get(index).openCursor(begin, end);
+					else if(index == segs.size()){
+						current = active;
+						active = null;
+					}
+					else{
+						close();
+						return false;
+					}
+					index++;
+				}
+				if(current.next()) return true;
+				current.close();
+				current = null;
 			}
+			return false;
 		}
-		finally{
-			if(raf!=null) raf.close();
+		
+		@Override
+		public long timestamp() {
+			return current.timestamp();
+		}
+		
+		@Override
+		public long timestampMillis() {
+			return current.timestampMillis();
+		}
+		
+		@Override
+		public float value() {
+			return current.value();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			try{
+				if(current!=null) current.close();
+			}
+			finally{
+				if(active!=null) active.close();
+			}
 		}
-		return result;
 	}
 	
 	/**
-	 * Parcours la liste des enregistrement sur une période
-	 * 
-	 * @param beginTimestamp
-	 * @param endTimestamp
-	 * @return
-	 * @throws IOException 
+	 * Fusion ordonnée d'un curseur et d'une suite triée de points.
+	 * A timestamp égal, les enregistrements du curseur sont restitués en premier.
+	 * Avec skipExisting, un point identique (timestamp et valeur) à un enregistrement du curseur n'est pas restitué :
+	 * chaque enregistrement n'écarte qu'un point (reprise d'une fusion interrompue, cf mergeLate).
 	 */
-	public Iterator<Entry> iterator(Long beginTimestamp, Long endTimestamp) throws IOException{
-		return new RDSIterator(getFile(),beginTimestamp,endTimestamp);
+	static class MergeCursor implements RawCursor{
+		RawCursor cursor;
+		boolean cursorValid;
+		boolean started = false;
+		RawColumns columns;
+		int index;
+		int end;
+		
+		final boolean skipExisting;
+		/** valeurs des enregistrements du curseur de timestamp 'cursorTimestamp' (dernier restitué) non encore appariées */
+		float[] cursorValues = new float[4];
+		int nbCursorValues = 0;
+		long cursorTimestamp;
+		
+		long timestamp;
+		float value;
+		
+		MergeCursor(RawCursor cursor, RawColumns columns, int off, int len, boolean skipExisting){
+			this.cursor = cursor;
+			this.columns = columns;
+			this.index = off;
+			this.end = off + len;
+			this.skipExisting = skipExisting;
+		}
+		
+		@Override
+		public boolean next() throws IOException {
+			if(!started){
+				cursorValid = cursor.next();
+				started = true;
+			}
+			while(index < end && (!cursorValid || columns.timestamps[index] < cursor.timestampMillis())){
+				timestamp = columns.timestamps[index];
+				value = columns.values[index];
+				index++;
+				if(!skipExisting || !matchCursorValue(timestamp, value)) return true;
+			}
+			if(cursorValid){
+				timestamp = cursor.timestampMillis();
+				value = cursor.value();
+				if(skipExisting) addCursorValue(timestamp, value);
+				cursorValid = cursor.next();
+				return true;
+			}
+			return false;
+		}
+		
+		private void addCursorValue(long timestamp, float value){
+			if(nbCursorValues==0 || timestamp!=cursorTimestamp){
+				cursorTimestamp = timestamp;
+				nbCursorValues = 0;
+			}
+			if(nbCursorValues==cursorValues.length) cursorValues = Arrays.copyOf(cursorValues, 2*nbCursorValues);
+			cursorValues[nbCursorValues++] = value;
+		}
+		
+		/**
+		 * Apparie le point à un enregistrement du curseur non encore apparié
+		 */
+		private boolean matchCursorValue(long timestamp, float value){
+			if(nbCursorValues==0 || timestamp!=cursorTimestamp) return false;
+			for(int i=0;i<nbCursorValues;i++){
+				if(Float.compare(cursorValues[i], value)==0){
+					cursorValues[i] = cursorValues[--nbCursorValues];
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		@Override
+		public long timestamp() {
+			return timestamp/1000;
+		}
+		
+		@Override
+		public long timestampMillis() {
+			return timestamp;
+		}
+		
+		@Override
+		public float value() {
+			return value;
+		}
+		
+		@Override
+		public void close() throws IOException {
+			cursor.close();
+		}
 	}
 	
 	/**
 	 * Représente une entrée dans la série
 	 */
-	public class Entry{
+	public static class Entry{
+		/** secondes */
 		long timestamp;
+		long timestampMillis;
 		float value;
+		
+		public Entry(){
+		}
+		
+		/**
+		 * @param timestamp (secondes)
+		 * @param value
+		 */
+		public Entry(long timestamp, float value){
+			set(timestamp*1000, value);
+		}
+		
+		static Entry fromMillis(long timestampMillis, float value){
+			Entry e = new Entry();
+			e.set(timestampMillis, value);
+			return e;
+		}
+		
+		void set(long timestampMillis, float value){
+			this.timestampMillis = timestampMillis;
+			this.timestamp = timestampMillis/1000;
+			this.value = value;
+		}
+		
 		public String toString(){
-			return RawData.sdf.format(new Date(timestamp*1000))+":"+value;
+			return RawData.sdf.format(new Date(timestampMillis))+":"+value;
 		}
 		public long getTimestamp() {
 			return timestamp;
 		}
+		public long getTimestampMillis() {
+			return timestampMillis;
+		}
 		public float getValue() {
 			return value;
 		}
@@ -202,95 +1943,37 @@ public class RawData {
 	/**
 	 * Classe pour la lecture séquentielle de la série
 	 */
-	public class RDSIterator implements Iterator<Entry>{
+	public static class RDSIterator implements Iterator<Entry>{
 
-		RandomAccessFile raf;
-		Long begin = null;
-		Long end = null;
-		Long length = null;
+		RawCursor cursor;
 		
 		Entry next = null;
 		boolean flagNext;	//Indique si la valeur suivante a été extraite (avant de la retourner)
 		
-		/**
-		 * 
-		 * @param file
-		 * @param begin
-		 * @param end
-		 * @throws FileNotFoundException
-		 */
-		protected RDSIterator(File file, Long beginTimestamp, Long endTimestamp) throws FileNotFoundException{
-			this.raf = new RandomAccessFile(file, "r");
-			this.begin = beginTimestamp;
-			this.end = endTimestamp;
-			
-			if(begin!=null && begin>0){
-				//Il y a un timestamp de début spécifié
-				//Recherche du point de départ dans le fichier
-				try {
-					long p1 = 0;			//position limite de gauche
-					long p2 = raf.length();	//position limite de droite
-					while(true){
-						if(p2-p1 <= DATA_LEN){
-							//On ne peut pas plus raffiner : le timestamp ne tombe pas exactement
-							//On prend le timestamp supérieur
-							raf.seek(p2);
-							break;
-						}
-						long middle = (p2-p1)/2;
-						long mpos = (middle/DATA_LEN)*DATA_LEN;
-						raf.seek(mpos);
-						int t = raf.readInt();
-						if(t==begin){
-							//On a trouvé le timestamp exact
-							//On ramène le curseur sur cette position
-							raf.seek(mpos);
-							break;
-						}
-						else if(t>begin){
-							//c'est à gauche
-							p2 = mpos;
-						}
-						else{
-							//c'est à droite
-							p1 = mpos;
-						}
-					}
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+		protected RDSIterator(RawCursor cursor){
+			this.cursor = cursor;
 		}
 		
-		
 		public boolean hasNext() {
-			if(raf==null || !raf.getChannel().isOpen()) return false;
-			
-			if(flagNext == true) return true;	//Déjà lue
+			if(flagNext == true) return next!=null;	//Déjà lue
 			
 			flagNext = true;
+			next = null;
 			try {
-				next = new Entry();
-				next.timestamp = (long)raf.readInt();
-				next.value = raf.readFloat();
-				if(this.end!=null && next.timestamp > this.end){
-					next = null;
-					close();
-					return false;
+				if(cursor.next()){
+					next = Entry.fromMillis(cursor.timestampMillis(), cursor.value());
+					return true;
 				}
-				return true;
 			}
 			catch (IOException e) {
-				//EOF ou autre erreur d'IO
-				if(! (e instanceof EOFException)) logger.log(Level.WARNING,e.getMessage(),e);
-				next = null;
+				logger.log(Level.WARNING,e.getMessage(),e);
 				try {
 					close();
 				} catch (IOException e1) {
 					logger.log(Level.WARNING,e.getMessage(),e);
 				}
-				return false;
-			} 
+			}
+			return false;
 		}
 
 		public Entry next() {
@@ -305,7 +1988,264 @@ public class RawData {
 		}
 		
 		public void close() throws IOException{
-			if(raf!=null && raf.getChannel().isOpen()) raf.close();
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * Curseur sur le fichier (lecture par blocs) ou sur sa projection mémoire (à partir de la fin de l'en tête).
+	 * Les bornes et la recherche dichotomique travaillent en millisecondes.
+	 */
+	static class RDSCursor implements RawCursor{
+		
+		/** taille du tampon de lecture en mode fichier */
+		static int READ_BUFFER_LEN = 8192 * DATA_LEN;
+		/** nombre maximum d'enregistrements par lecture de readRecords en mode fichier */
+		static int READ_BLOCK_RECORDS = 64 * 1024;
+		
+		/** canal de lecture (null en mode projection mémoire) */
+		FileChannel channel;
+		/** position de lecture du fichier correspondant à la fin du tampon */
+		long channelPos;
+		/** position de fin de lecture du fichier (cf limitRecords) */
+		long channelEnd = Long.MAX_VALUE;
+		/** tampon de lecture ou vue sur la projection mémoire */
+		ByteBuffer buf;
+		ByteBuffer timestampBuf;
+		
+		Long begin = null;
+		Long end = null;
+		boolean closed = false;
+		
+		/** timestamp de l'enregistrement courant (millisecondes) */
+		long timestamp;
+		float value;
+		
+		/**
+		 * Parcours du fichier
+		 * @param file
+		 * @param beginTimestamp
+		 * @param endTimestamp
+		 * @throws IOException
+		 */
+		protected RDSCursor(File file, Long beginTimestamp, Long endTimestamp) throws IOException{
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			this.channelPos = HEADER_LEN;
+			this.buf = ByteBuffer.allocate(READ_BUFFER_LEN);
+			this.buf.flip();
+			this.begin = beginTimestamp;
+			this.end = endTimestamp;
+			seekBegin();
+		}
+		
+		/**
+		 * Parcours de la projection mémoire du fichier
+		 * @param buf vue sur la projection (enregistrements, sans l'en tête), propre au curseur
+		 * @param beginTimestamp
+		 * @param endTimestamp
+		 */
+		protected RDSCursor(ByteBuffer buf, Long beginTimestamp, Long endTimestamp){
+			this.buf = buf;
+			this.begin = beginTimestamp;
+			this.end = endTimestamp;
+			try {
+				seekBegin();
+			} catch (IOException e) {
+				//pas d'IO en mode projection
+				logger.log(Level.WARNING,e.getMessage(),e);
+			}
+		}
+		
+		/**
+		 * Positionne le curseur sur le premier enregistrement dont le timestamp est supérieur ou égal à begin
+		 * (recherche dichotomique)
+		 * @throws IOException 
+		 */
+		private void seekBegin() throws IOException{
+			if(begin==null || begin<=0) return;
+			//Il y a un timestamp de début spécifié
+			//Recherche du point de départ dans le fichier
+			seek(searchRecord(begin));
+		}
+		
+		/**
+		 * Recherche dichotomique de l'indice du premier enregistrement dont le timestamp est supérieur ou égal
+		 * @param timestamp
+		 * @return indice de l'enregistrement (nb d'enregistrements si aucun)
+		 * @throws IOException
+		 */
+		long searchRecord(long timestamp) throws IOException{
+			long p1 = 0;					//premier enregistrement candidat
+			long p2 = recordCount();		//dernier enregistrement candidat + 1
+			while(p1 < p2){
+				long middle = (p1 + p2) >>> 1;
+				if(readTimestamp(middle) < timestamp){
+					//c'est à droite
+					p1 = middle + 1;
+				}
+				else{
+					//c'est à gauche (ou exact)
+					p2 = middle;
+				}
+			}
+			return p1;
+		}
+		
+		/**
+		 * Limite le parcours (mode fichier) aux nb premiers enregistrements : 
+		 * les enregistrements ajoutés ensuite au fichier sont ignorés
+		 */
+		void limitRecords(long nb){
+			channelEnd = HEADER_LEN + nb*DATA_LEN;
+		}
+		
+		/**
+		 * Nombre d'enregistrements complets
+		 */
+		long recordCount() throws IOException{
+			long len = (channel==null ? buf.limit() : channel.size() - HEADER_LEN);
+			return Math.max(0, len / DATA_LEN);
+		}
+		
+		/**
+		 * Lecture en bloc des enregistrements sur une période
+		 * @param beginTimestamp (inclus, null: début)
+		 * @param endTimestamp (inclus, null: fin)
+		 * @throws IOException
+		 */
+		RawColumns readRange(Long beginTimestamp, Long endTimestamp) throws IOException{
+			long first = (beginTimestamp==null ? 0 : searchRecord(beginTimestamp));
+			long last = (endTimestamp==null || endTimestamp==Long.MAX_VALUE ? recordCount() : searchRecord(endTimestamp+1));
+			long nb = last - first;
+			if(nb<=0) return new RawColumns(0);
+			if(nb>RawColumns.MAX_SIZE) throw new IOException("trop d'enregistrements sur la période : "+nb+" (max "+RawColumns.MAX_SIZE+")");
+			return readRecords(first, (int)nb);
+		}
+		
+		/**
+		 * Lecture en bloc d'une suite d'enregistrements.
+		 * En mode fichier, lecture par blocs de READ_BLOCK_RECORDS enregistrements au plus :
+		 * la taille du tampon ne dépend pas du nombre d'enregistrements lus
+		 * @param first indice du premier enregistrement
+		 * @param nb nombre d'enregistrements
+		 * @throws IOException
+		 */
+		RawColumns readRecords(long first, int nb) throws IOException{
+			RawColumns result = new RawColumns(nb);
+			long[] timestamps = result.timestamps;
+			float[] values = result.values;
+			if(channel==null){
+				int pos = (int)(first*DATA_LEN);
+				for(int i=0;i<nb;i++){
+					timestamps[i] = buf.getLong(pos);
+					values[i] = buf.getFloat(pos+8);
+					pos += DATA_LEN;
+				}
+			}
+			else{
+				ByteBuffer block = ByteBuffer.allocate(Math.min(nb, READ_BLOCK_RECORDS)*DATA_LEN);
+				long filePos = HEADER_LEN + first*DATA_LEN;
+				for(int i=0;i<nb;){
+					int n = Math.min(nb-i, READ_BLOCK_RECORDS);
+					block.clear();
+					block.limit(n*DATA_LEN);
+					while(block.hasRemaining()){
+						int r = channel.read(block, filePos + block.position());
+						if(r < 0) throw new EOFException();
+					}
+					int pos = 0;
+					for(int j=0;j<n;j++,i++){
+						timestamps[i] = block.getLong(pos);
+						values[i] = block.getFloat(pos+8);
+						pos += DATA_LEN;
+					}
+					filePos += n*DATA_LEN;
+				}
+			}
+			result.size = nb;
+			return result;
+		}
+		
+		/**
+		 * Timestamp de l'enregistrement d'indice donné
+		 */
+		private long readTimestamp(long index) throws IOException{
+			if(channel==null) return buf.getLong((int)(index*DATA_LEN));
+			if(timestampBuf==null) timestampBuf = ByteBuffer.allocate(8);
+			timestampBuf.clear();
+			long pos = HEADER_LEN + index*DATA_LEN;
+			while(timestampBuf.hasRemaining()){
+				if(channel.read(timestampBuf, pos + timestampBuf.position()) < 0) throw new EOFException();
+			}
+			return timestampBuf.getLong(0);
+		}
+		
+		/**
+		 * Positionne la lecture sur l'enregistrement d'indice donné
+		 */
+		private void seek(long index){
+			if(channel==null){
+				buf.position((int)(index*DATA_LEN));
+			}
+			else{
+				channelPos = HEADER_LEN + index*DATA_LEN;
+				buf.clear();
+				buf.flip();
+			}
+		}
+		
+		/**
+		 * Remplit le tampon de lecture (mode fichier)
+		 * @return false si plus aucun enregistrement complet n'est disponible
+		 */
+		private boolean fill() throws IOException{
+			if(channel==null) return false;
+			buf.compact();
+			if(channelEnd - channelPos < buf.remaining()) buf.limit(buf.position() + (int)Math.max(0, channelEnd - channelPos));
+			while(buf.position() < DATA_LEN && buf.hasRemaining()){
+				int n = channel.read(buf, channelPos);
+				if(n < 0) break;
+				channelPos += n;
+			}
+			buf.flip();
+			return buf.remaining() >= DATA_LEN;
+		}
+		
+		@Override
+		public boolean next() throws IOException{
+			if(closed) return false;
+			if(buf.remaining() < DATA_LEN && !fill()){
+				close();
+				return false;
+			}
+			timestamp = buf.getLong();
+			value = buf.getFloat();
+			if(this.end!=null && timestamp > this.end){
+				close();
+				return false;
+			}
+			return true;
+		}
+		
+		@Override
+		public long timestamp(){
+			return timestamp/1000;
+		}
+		
+		@Override
+		public long timestampMillis(){
+			return timestamp;
+		}
+		
+		@Override
+		public float value(){
+			return value;
+		}
+		
+		@Override
+		public void close() throws IOException{
+			closed = true;
+			if(channel!=null && channel.isOpen()) channel.close();
 		}
 	}
 }
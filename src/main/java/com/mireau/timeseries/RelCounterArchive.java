@@ -0,0 +1,408 @@
+package com.mireau.timeseries;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+/**
+ * Enregistrement de compteurs en valeur relative (ex: octets transmis depuis le dernier relevé) :
+ * chaque valeur brute est un incrément, le step conserve la somme et le nombre des valeurs reçues.
+ * Le débit (somme par seconde) est déduit de la somme et du step.
+ *
+ *      En-tête spécifique : (20 bytes)
+ *        stepTimestamp  / 8 bytes : timestamp du step en cours
+ *        stepSum double / 8 bytes : somme des valeurs du step en cours
+ *        stepNb   int   / 4 bytes : nb de valeurs brutes constituant le step en cours
+ *      Enregistrements: (9 bytes)
+ *        Defined  bool  / 1 byte (0:NULL 1:valeur)
+ *        Sum      float / 4 bytes
+ *        Nb       int   / 4 bytes
+ */
+public class RelCounterArchive extends Archive {
+
+	static int ENREG_LEN = 9;
+	static int CURRENT_STEP_DATA_LENGTH = 20;
+
+	/** somme des valeurs pour le step en cours */
+	double stepSum;
+	/** nombre de valeurs pour le step en cours */
+	int stepNb;
+	/** timestamp du debut de step en cours */
+	Long stepTimestamp;
+
+	public RelCounterArchive(File file, String id, Integer step) throws IOException, ArchiveInitException {
+		super(file, id, step);
+	}
+
+	/**
+	 * Retourne la taille d'un enregistrement dans le fichier
+	 */
+	protected int getRecordLen() {
+		return ENREG_LEN;
+	}
+
+	/**
+	 * Enregistrement des données sur le step en cours
+	 *
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	protected void writeCurrentStepData(RandomAccessFile raf) throws IOException, ArchiveInitException{
+		if(stepTimestamp==null) throw new ArchiveInitException("stepTimestamp non initialisé");
+		logger.fine("write current step vars : "+sdf.format(new Date((long)stepTimestamp*1000))+" nb="+stepNb+" sum="+stepSum);
+		raf.seek(CUR_STEP_RECORD_POS);
+		raf.writeLong(stepTimestamp);
+		raf.writeDouble(stepSum);
+		raf.writeInt(stepNb);
+	}
+
+	@Override
+	protected boolean hasCurrentStepData() {
+		return stepTimestamp!=null && stepTimestamp>0;
+	}
+
+	/**
+	 * reinitialisation des variables sur le step en cours
+	 */
+	@Override
+	protected void resetCurrentStepData() {
+		stepTimestamp = null;
+		stepSum = 0;
+		stepNb = 0;
+	}
+
+	/**
+	 * Le prochain step est démarré sans écriture d'enregistrement (stepNb=0)
+	 */
+	@Override
+	protected void restoreStepState(RandomAccessFile adf) {
+		resetCurrentStepData();
+		stepTimestamp = lastTimestamp;
+	}
+
+	/**
+	 * Lecture des données sur le step en cours
+	 */
+	@Override
+	protected void readCurrentStepData(RandomAccessFile adf) throws IOException{
+		adf.seek(CUR_STEP_RECORD_POS);
+
+		stepTimestamp = adf.readLong();
+		stepSum = adf.readDouble();
+		stepNb = adf.readInt();
+
+		logger.fine("step en cours: sum=" + stepSum + " nb=" + stepNb + " timestamp=" + stepTimestamp);
+	}
+
+	/**
+	 * Longueur des données du step en cours écrites dans le fichier archive
+	 */
+	protected int currentStepDataLength() {
+		return CURRENT_STEP_DATA_LENGTH;
+	}
+
+	/**
+	 * Longueur d'un enregistrement de l'archive
+	 *
+	 * @return
+	 */
+	@Override
+	protected int enregLen() {
+		return ENREG_LEN;
+	}
+
+	/**
+	 * Construit l'objet ArchivePoint correspondant aux valeurs enregistrées sur
+	 * le step en cours
+	 */
+	public ArchivePoint currentStepPoint() {
+		if (this.stepNb == 0)
+			return null;
+		return newPoint(this.stepTimestamp, (float) this.stepSum, this.stepNb, step);
+	}
+
+	/**
+	 * Point défini
+	 * @param duration durée couverte par le point (calcul du débit)
+	 */
+	private static RelCounterArchivePoint newPoint(long timestamp, float sum, int nb, long duration){
+		RelCounterArchivePoint point = new RelCounterArchivePoint();
+		point.timestamp = timestamp;
+		point.value = sum;
+		point.nb = nb;
+		point.rate = sum / duration;
+		return point;
+	}
+
+	/**
+	 * Enregistrement d'un point
+	 *
+	 * @param timestamp
+	 * @param value
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	@Override
+	public void post(long timestamp, float value) throws IOException, ArchiveInitException {
+		post(timestamp, value, null);
+	}
+
+	/**
+	 * Enregistrement d'un point Le curseur doit être positionné en fin de
+	 * fichier
+	 *
+	 * @param timestamp
+	 * @param value incrément du compteur
+	 * @param ramdomAccessFile
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	@Override
+	protected void post(long timestamp, float value, RandomAccessFile adf) throws IOException, ArchiveInitException{
+		postStep(timestamp, value, 1, adf);
+	}
+
+	/**
+	 * Ajoute des valeurs au step correspondant au timestamp : une valeur brute (nb=1)
+	 * ou un step terminé d'une archive plus fine (consolidation en cascade)
+	 *
+	 * @param timestamp
+	 * @param sum somme des valeurs
+	 * @param nb nombre de valeurs
+	 * @param adf
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	protected void postStep(long timestamp, double sum, int nb, RandomAccessFile adf) throws IOException, ArchiveInitException{
+		boolean keepFileOpened = adf!=null;
+		lockPost();
+
+		try{
+			if(stepTimestamp!=null && stepTimestamp>0 && timestamp < stepTimestamp){
+				logger.warning("Nouvelle valeur anterieure au step en cours (cur step:"+sdf.format(new Date(stepTimestamp*1000))+" new value:"+sdf.format(new Date(timestamp*1000))+")");
+			}
+
+			if(stepTimestamp==null || stepTimestamp==0){
+				//Calcul du timestamp d'origine de l'archive : arrondi au step immédiatement inférieur
+				stepTimestamp = getTimestampOrigine(timestamp);
+				this.startTimestamp = stepTimestamp;
+				logger.fine("write start timestamp");
+				//ecriture du timestamp dans l'en-tête
+				if(adf==null) adf = openFileForWriting(true);
+				adf.seek(8);	//on se positionne sur le champ timestamp de début
+				adf.writeLong(stepTimestamp);
+			}
+			else if(timestamp >= stepTimestamp+step){
+				/*
+				 * Changement de step -> écriture
+				 */
+				if(adf==null) adf = openFileForWriting(true);
+				this.writePoint(adf);
+				this.forward();
+
+				this.stepSum = 0;
+				this.stepNb = 0;
+
+				long nbSteps = (timestamp - lastTimestamp)/step;
+				this.stepTimestamp = this.lastTimestamp + nbSteps*step;
+				logger.fine("nouveau step : "+sdf.format(new Date(stepTimestamp*1000)));
+			}
+
+			this.stepSum += sum;
+			this.stepNb += nb;
+
+			logger.fine("add to current step : nb="+stepNb+" sum="+stepSum);
+
+			if(this.writeStartegy == WriteStrategy.ALL_POINTS){
+				//On écrit systématiquement le données du step en cours
+				//Plus sûr, mais moins performant
+				if(adf==null) adf = openFileForWriting(true);
+				writeCurrentStepData(adf);
+			}
+		}
+		finally{
+			//On ferme le fichier
+			releaseFile();
+			if(adf != null && !keepFileOpened) adf.close();
+			unlockPost();
+		}
+	}
+
+	/**
+	 * Transmet le step terminé aux archives consolidées, tel qu'il est enregistré (somme en float, nombre) :
+	 * mêmes valeurs que lors de la reconstruction (cf postColumn)
+	 */
+	private void forward() throws IOException, ArchiveInitException{
+		if (stepNb == 0)
+			return;
+		for (Archive target : targets) {
+			((RelCounterArchive) target).postStep(stepTimestamp, (float) stepSum, stepNb, null);
+		}
+	}
+
+	@Override
+	protected void postColumn(ArchiveColumns columns, int i, RandomAccessFile adf) throws IOException, ArchiveInitException {
+		if (!columns.isDefined(i))
+			return;
+		postStep(columns.getTimestamp(i), columns.values[i], columns.counts[i], adf);
+	}
+
+	/**
+	 * Enregistre les valeurs du step en cours dans le fichier
+	 *
+	 * @throws IOException
+	 */
+	private void writePoint(RandomAccessFile adf) throws IOException {
+		if (stepNb == 0)
+			return;
+
+		long len = adf.length();
+
+		if (len < HEADER1_LEN + CURRENT_STEP_DATA_LENGTH) {
+			/*
+			 * Premier enregistrement de l'archive
+			 */
+			adf.seek(8); // Timestamp de début de l'archive
+			adf.writeLong(stepTimestamp);
+			for (int i = 0; i < currentStepDataLength(); i++)
+				adf.write((byte) 0);
+			len = adf.length();
+		} else {
+			/*
+			 * Enregistrement placé à la fin
+			 */
+			adf.seek(len);
+		}
+
+		if (lastTimestamp != null && stepTimestamp == lastTimestamp) {
+			/*
+			 * On écrase la dernière valeur qui correspond au meme step. (C'est
+			 * autorise)
+			 */
+			logger.fine("override last value");
+			adf.seek(adf.getFilePointer() - ENREG_LEN);
+		} else if (lastTimestamp != null && stepTimestamp > lastTimestamp + step) {
+			// On remplit eventuellement les steps sans valeur
+			int stepsToSkip = (int) (stepTimestamp - lastTimestamp - step) / step;
+			logger.fine("skip " + stepsToSkip + " steps");
+			for (int i = 0; i < stepsToSkip; i++) {
+				adf.writeBoolean(false);
+				adf.writeFloat(0);
+				adf.writeInt(0);
+			}
+		}
+
+		// On ecrit la nouvelle valeur
+		logger.fine("flush step " + sdf.format(new Date(stepTimestamp * 1000)) + ": sum=" + stepSum + " nb=" + stepNb);
+		adf.writeBoolean(true);
+		adf.writeFloat((float) stepSum);
+		adf.writeInt(stepNb);
+
+		// Mise a jour du timestamp de dernier enregistrement
+		this.lastTimestamp = stepTimestamp;
+	}
+
+	/**
+	 * Lit le point dans le fichier, a la position du curseur
+	 *
+	 * @throws IOException
+	 */
+	protected ArchivePoint readPoint(RandomAccessFile raf) throws IOException {
+		RelCounterArchivePoint p = new RelCounterArchivePoint();
+		boolean defined = raf.readBoolean();
+		float sum = raf.readFloat();
+		int nb = raf.readInt();
+		if (defined) {
+			p.value = sum;
+			p.nb = nb;
+			p.rate = sum / step;
+		}
+		return p;
+	}
+
+	@Override
+	protected ArchivePoint readPoint(ByteBuffer buf, int pos) {
+		RelCounterArchivePoint p = new RelCounterArchivePoint();
+		if (buf.get(pos) != 0) {
+			p.value = buf.getFloat(pos+1);
+			p.nb = buf.getInt(pos+5);
+			p.rate = p.value / step;
+		}
+		return p;
+	}
+
+	@Override
+	protected ArchiveColumns newColumns(long start, int capacity) {
+		ArchiveColumns columns = new ArchiveColumns(start, step, capacity);
+		columns.counts = new int[capacity];
+		return columns;
+	}
+
+	@Override
+	protected void readColumns(ByteBuffer buf, int pos, ArchiveColumns columns, int from, int count) {
+		for (int i = from; i < from + count; i++) {
+			if (buf.get(pos) != 0) {
+				columns.defined.set(i);
+				columns.values[i] = buf.getFloat(pos+1);
+				columns.counts[i] = buf.getInt(pos+5);
+			}
+			pos += ENREG_LEN;
+		}
+	}
+
+	@Override
+	protected void setColumns(ArchivePoint point, ArchiveColumns columns, int i) {
+		RelCounterArchivePoint p = (RelCounterArchivePoint) point;
+		if (p.value != null) {
+			columns.defined.set(i);
+			columns.values[i] = p.value;
+			columns.counts[i] = p.nb;
+		}
+	}
+
+	@Override
+	protected ArchivePoint columnPoint(ArchiveColumns columns, int i) {
+		if (!columns.isDefined(i))
+			return newEmptyPoint(columns.getTimestamp(i));
+		return newPoint(columns.getTimestamp(i), columns.values[i], columns.counts[i], step);
+	}
+
+	/**
+	 * Somme des valeurs et des nombres de valeurs ; débit sur la durée du paquet
+	 */
+	@Override
+	protected ArchivePoint aggregate(ArchiveColumns columns, int from, int to) {
+		double sum = 0;
+		int nb = 0;
+		boolean defined = false;
+		for (int i = columns.defined.nextSetBit(from); i >= 0 && i < to; i = columns.defined.nextSetBit(i + 1)) {
+			sum += columns.values[i];
+			nb += columns.counts[i];
+			defined = true;
+		}
+		if (!defined)
+			return newEmptyPoint(columns.getTimestamp(from));
+		return newPoint(columns.getTimestamp(from), (float) sum, nb, (long) (to - from) * step);
+	}
+
+	@Override
+	protected ArchivePoint newEmptyPoint(Long timestamp) {
+		RelCounterArchivePoint p = new RelCounterArchivePoint();
+		p.timestamp = timestamp;
+		return p;
+	}
+
+	public double getStepSum() {
+		return stepSum;
+	}
+
+	public int getStepNb() {
+		return stepNb;
+	}
+
+	public Long getStepTimestamp() {
+		return stepTimestamp;
+	}
+}
@@ -0,0 +1,52 @@
+package com.mireau.timeseries;
+
+import java.text.DateFormat;
+import java.text.NumberFormat;
+import java.util.Date;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+
+/**
+ * Point d'une archive de compteur relatif : la valeur est la somme des valeurs brutes du step
+ */
+public class RelCounterArchivePoint extends ArchivePoint {
+
+	public RelCounterArchivePoint() {
+		super();
+	}
+
+	/** nombre de valeurs brutes */
+	int nb = 0;
+	/** débit moyen sur le step (somme par seconde) */
+	Float rate = null;
+
+
+	/**
+	 * @return json
+	 */
+	@Override
+	public JsonObject toJson(DateFormat dateFormat, NumberFormat numberFormat){
+		JsonObjectBuilder item = Json.createObjectBuilder();
+		item.add("t", dateFormat.format(new Date(this.timestamp*1000)));
+		if(this.value==null) item.add("v",JsonValue.NULL); else item.add("v",numberFormat.format(this.value));
+		item.add("nb", this.nb);
+		if(this.rate==null) item.add("rate",JsonValue.NULL); else item.add("rate",numberFormat.format(this.rate));
+		return item.build();
+	}
+
+	@Override
+	public String toCsvString(DateFormat dateFormat, NumberFormat numberFormat){
+		return  dateFormat.format(new Date(this.timestamp*1000))
+				+";"+(this.value==null ? "" : numberFormat.format(this.value))
+				+";"+this.nb
+				+";"+(this.rate==null ? "" : numberFormat.format(this.rate));
+	}
+
+
+
+	public int getNb(){ return nb; }
+	public Float getRate(){ return rate; }
+}
@@ -0,0 +1,106 @@
+package com.mireau.timeseries;
+
+import java.util.Arrays;
+
+/**
+ * Fenêtre de réordonnancement des valeurs d'une série.
+ * Les valeurs reçues sont conservées triées en mémoire tant qu'elles sont dans la fenêtre
+ * (timestamp > plus grand timestamp reçu - fenêtre), puis restituées dans l'ordre chronologique.
+ * Une valeur antérieure à la dernière valeur restituée est tardive : elle n'est pas conservée (cf RawData.postLate).
+ *
+ * Les valeurs arrivant le plus souvent dans l'ordre, l'insertion se fait par recherche dichotomique
+ * et décalage de la fin du tableau (peu d'éléments déplacés).
+ *
+ * Non thread-safe : les appels sont synchronisés par la série.
+ */
+class ReorderBuffer {
+
+	/** durée de la fenêtre (millisecondes) */
+	long windowMillis;
+
+	long[] timestamps = new long[64];
+	float[] values = new float[64];
+	int size = 0;
+
+	/** plus grand timestamp reçu */
+	long maxTimestamp = Long.MIN_VALUE;
+
+	/** timestamp de la dernière valeur restituée : les valeurs antérieures sont tardives */
+	long flushedTimestamp;
+
+	/**
+	 * @param windowMillis durée de la fenêtre (millisecondes)
+	 * @param flushedTimestamp timestamp de la dernière valeur déjà enregistrée (Long.MIN_VALUE si aucune)
+	 */
+	ReorderBuffer(long windowMillis, long flushedTimestamp){
+		this.windowMillis = windowMillis;
+		this.flushedTimestamp = flushedTimestamp;
+	}
+
+	/**
+	 * Ajoute une valeur dans la fenêtre
+	 * @param timestamp (millisecondes)
+	 * @param value
+	 * @return false si la valeur est tardive (non ajoutée)
+	 */
+	boolean add(long timestamp, float value){
+		if(timestamp < flushedTimestamp) return false;
+		if(size == timestamps.length){
+			timestamps = Arrays.copyOf(timestamps, size*2);
+			values = Arrays.copyOf(values, size*2);
+		}
+
+		//position d'insertion : après les valeurs de même timestamp (ordre d'arrivée conservé)
+		int pos = size;
+		if(size > 0 && timestamps[size-1] > timestamp){
+			int p1 = 0;
+			int p2 = size;
+			while(p1 < p2){
+				int middle = (p1 + p2) >>> 1;
+				if(timestamps[middle] <= timestamp) p1 = middle + 1;
+				else p2 = middle;
+			}
+			pos = p1;
+			System.arraycopy(timestamps, pos, timestamps, pos+1, size-pos);
+			System.arraycopy(values, pos, values, pos+1, size-pos);
+		}
+		timestamps[pos] = timestamp;
+		values[pos] = value;
+		size++;
+		if(timestamp > maxTimestamp) maxTimestamp = timestamp;
+		return true;
+	}
+
+	/**
+	 * Retire les valeurs sorties de la fenêtre (ou toutes les valeurs)
+	 * @param all true pour vider la fenêtre
+	 * @return valeurs triées (null si aucune)
+	 */
+	RawColumns drain(boolean all){
+		int n;
+		if(all){
+			n = size;
+		}
+		else{
+			long limit = maxTimestamp - windowMillis;
+			n = 0;
+			while(n < size && timestamps[n] <= limit) n++;
+		}
+		if(n==0) return null;
+
+		RawColumns result = new RawColumns(n);
+		System.arraycopy(timestamps, 0, result.timestamps, 0, n);
+		System.arraycopy(values, 0, result.values, 0, n);
+		result.size = n;
+
+		System.arraycopy(timestamps, n, timestamps, 0, size-n);
+		System.arraycopy(values, n, values, 0, size-n);
+		size -= n;
+		flushedTimestamp = result.timestamps[n-1];
+		return result;
+	}
+
+	int size(){
+		return size;
+	}
+}
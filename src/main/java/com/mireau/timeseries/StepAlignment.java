@@ -0,0 +1,102 @@
+package com.mireau.timeseries;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Calage des steps des archives, en heure locale :
+ * un step débute à un multiple du step compté depuis le début de l'heure (step <= 1 heure),
+ * du jour (step <= 1 jour) ou de la semaine (step d'une semaine).
+ *
+ * Calcul arithmétique sur le timestamp epoch (pas de Calendar ni de boucle) :
+ * tous les steps autorisés divisent la semaine, les débuts d'heure, de jour et de semaine
+ * sont donc tous alignés sur une origine unique (un début de semaine), et le calage
+ * se réduit à une division entière depuis cette origine.
+ *
+ * L'heure locale est obtenue par un décalage fixe : les changements d'heure ne sont pas pris en compte
+ * (les steps restent réguliers toute l'année).
+ */
+public final class StepAlignment {
+
+	static final int DAY = 86400;
+	static final int WEEK = 7 * DAY;
+
+	/** Le 1er janvier 1970 (jour epoch 0) est un jeudi */
+	private static final int EPOCH_DAY_OF_WEEK = Calendar.THURSDAY;
+
+	/** Calage utilisé par les archives ouvertes ensuite : fuseau par défaut (hors heure d'été), semaines débutant le lundi */
+	private static volatile StepAlignment defaultAlignment = new StepAlignment(TimeZone.getDefault().getRawOffset() / 1000, Calendar.MONDAY);
+
+	/** décalage de l'heure locale par rapport à UTC (secondes) */
+	final int zoneOffset;
+	/** premier jour de la semaine (Calendar.MONDAY...) */
+	final int weekStart;
+	/** timestamp (UTC) d'un début de semaine locale : origine commune à tous les steps */
+	final long origin;
+
+	/**
+	 * @param zoneOffset décalage de l'heure locale par rapport à UTC, en secondes (ex: 3600 pour UTC+1)
+	 * @param weekStart premier jour de la semaine : Calendar.SUNDAY à Calendar.SATURDAY
+	 */
+	public StepAlignment(int zoneOffset, int weekStart) {
+		if(weekStart < Calendar.SUNDAY || weekStart > Calendar.SATURDAY)
+			throw new IllegalArgumentException("jour de début de semaine incorrect: "+weekStart);
+		if(zoneOffset % 60 != 0 || Math.abs(zoneOffset) >= DAY)
+			throw new IllegalArgumentException("décalage horaire incorrect: "+zoneOffset);
+		this.zoneOffset = zoneOffset;
+		this.weekStart = weekStart;
+		//premier jour epoch qui tombe sur le jour de début de semaine, en heure locale
+		int firstDay = floorMod(weekStart - EPOCH_DAY_OF_WEEK, 7);
+		this.origin = (long)firstDay * DAY - zoneOffset;
+	}
+
+	public static StepAlignment getDefault() {
+		return defaultAlignment;
+	}
+
+	/**
+	 * Modifie le calage des archives ouvertes ensuite.
+	 * Une archive existante dont les steps ne sont pas calés ainsi conserve son calage (cf Archive.checkAlignment) 
+	 * et n'est pas chaînée aux archives calées différemment : à utiliser avant l'ouverture de la base.
+	 */
+	public static void setDefault(StepAlignment alignment) {
+		if(alignment==null) throw new IllegalArgumentException("alignment");
+		defaultAlignment = alignment;
+	}
+
+	/**
+	 * Début du step contenant le timestamp
+	 * @param t timestamp (secondes)
+	 * @param step durée du step (secondes, diviseur de la semaine)
+	 */
+	public long align(long t, int step) {
+		return align(origin, t, step);
+	}
+
+	/**
+	 * Début du step contenant le timestamp, pour une origine déjà calculée (cf Archive.stepOrigin)
+	 */
+	static long align(long origin, long t, int step) {
+		return origin + floorDiv(t - origin, step) * step;
+	}
+
+	public int getZoneOffset() {
+		return zoneOffset;
+	}
+
+	public int getWeekStart() {
+		return weekStart;
+	}
+
+	/** division entière arrondie vers -infini (timestamps antérieurs à l'origine) */
+	private static long floorDiv(long a, long b) {
+		long q = a / b;
+		if((a % b != 0) && ((a ^ b) < 0)) q--;
+		return q;
+	}
+
+	private static int floorMod(int a, int b) {
+		int m = a % b;
+		return (m < 0 ? m + b : m);
+	}
+}
@@ -6,9 +6,11 @@ import java.io.PrintStream;
 import java.text.DateFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
@@ -18,6 +20,8 @@ import javax.json.JsonObjectBuilder;
 import javax.json.JsonValue;
 import javax.json.stream.JsonGenerator;
 
+import com.mireau.timeseries.Archive.Downsampling;
+import com.mireau.timeseries.Archive.Type;
 import com.mireau.timeseries.RawData.Entry;
 
 /**
@@ -32,6 +36,9 @@ public class TimeSerie{
 	/** nom (identifiant) de la série */
 	private String id;
 	
+	/** identifiant encodé pour le journal d'écriture (cf WriteAheadLog.append) */
+	final byte[] walId;
+	
 	/** noeud */
 	Node node;
 	
@@ -53,8 +60,23 @@ public class TimeSerie{
 	/** RawDataSerie */
 	RawData rawDS;
 	
-	/** Liste des archives associées */
-	List<Archive> archives;
+	/** Liste des archives associées (liste remplacée sous postLock, jamais modifiée : parcours sans verrou) */
+	volatile List<Archive> archives;
+	
+	/** Journal d'écriture de la base (null si non activé) */
+	WriteAheadLog wal;
+	
+	/** Fenêtre de réordonnancement des valeurs (null si non activée ou pas encore utilisée) */
+	ReorderBuffer reorder;
+	
+	/** Verrou d'écriture : ordre des valeurs transmises aux données brutes et aux archives */
+	final ReentrantLock postLock = new ReentrantLock();
+	
+	/** Diffusion parallèle des valeurs aux données brutes et aux archives (null si non activée, accès sous postLock) */
+	FanOut fanOut;
+	
+	/** Lecture par projection mémoire des données brutes et des archives */
+	boolean mappedRead = false;
 	
 	/** Répertoire de stockage des fichiers de données */
 	private File directory;
@@ -67,6 +89,7 @@ public class TimeSerie{
 	
 	protected TimeSerie(String id, File dir) throws IOException, ArchiveInitException, TimeSerieException{
 		this.id = id;
+		this.walId = id.getBytes(WriteAheadLog.UTF8);
 		this.directory = dir;
 		
 		//Vérification du nom
@@ -87,11 +110,13 @@ public class TimeSerie{
 		 */
 		File rawFile = new File(dir,TimeSeriesDB.FILENAME_PREFIX+id+"."+TimeSeriesDB.RAW_TIMESERIE_FILE_EXT);
 		rawDS = new RawData(rawFile);
+		rawDS.setPartition(meta.getPartition());
+		rawDS.setCompression(meta.isCompression());
 		
 		/*
 		 * Archives
 		 */
-		archives = new ArrayList<Archive>();
+		List<Archive> list = new ArrayList<Archive>();
 		
 		//On parcours le répertoire
 		File[] files = directory.listFiles();
@@ -106,14 +131,45 @@ public class TimeSerie{
 					logger.warning("skip archive file : null");
 					continue;
 				}
-				archives.add(archive);
+				list.add(archive);
 			}
 		}
+		archives = Collections.unmodifiableList(list);
+		linkArchives();
 	}
 	
 	
 	
+	/**
+	 * Force l'écriture sur disque des données brutes et des steps en cours des archives.
+	 * La fenêtre de réordonnancement est vidée au préalable : les valeurs reçues ensuite 
+	 * avec un timestamp antérieur sont traitées comme tardives.
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	public void sync() throws IOException, ArchiveInitException{
+		flushReorderBuffer();
+		rawDS.sync();
+		for (Archive archive : archives) {
+			archive.sync();
+		}
+	}
+	
+	/**
+	 * Associe la série au journal d'écriture de la base.
+	 * Les archives passent en écriture sur changement de step : le journal assure la durabilité
+	 */
+	void setWriteAheadLog(WriteAheadLog wal){
+		this.wal = wal;
+		if(wal!=null){
+			for (Archive archive : archives) {
+				archive.setWriteStartegy(Archive.WriteStrategy.CHANGE_STEP);
+			}
+		}
+	}
+	
 	public void close() throws IOException, ArchiveInitException{
+		flushReorderBuffer();
 		rawDS.close();
 		for (Archive archive : archives) {
 			if(archive !=null) archive.close();
@@ -149,23 +205,230 @@ public class TimeSerie{
 		
 		Archive.newArchiveFile(step, this.getMeta().getType(), file);
 		archive = Archive.getArchive(file, this.id);
-		buildArchive(archive);
+		if(wal!=null) archive.setWriteStartegy(Archive.WriteStrategy.CHANGE_STEP);
+		archive.setMappedRead(mappedRead);
 		
-		archives.add(archive);
+		lockPost();
+		try{
+			List<Archive> list = new ArrayList<Archive>(archives);
+			list.add(archive);
+			archives = Collections.unmodifiableList(list);
+			//construction depuis sa source, puis reconstruction des archives qu'elle alimente
+			linkArchives();
+			buildArchive(archive);
+		}
+		finally{
+			postLock.unlock();
+		}
 		return archive;
 	}
 	
 	/**
-	 * Construit une archive a partir des données brutes 
+	 * Construit une archive a partir des données brutes, ou de l'archive plus fine qui l'alimente 
+	 * (consolidation en cascade), puis reconstruit les archives qu'elle alimente
 	 * @param step
 	 * @return ArchiveDataSerie
 	 * @throws ArchiveInitException 
 	 * @throws IOException 
 	 */
 	public void buildArchive(Archive archive) throws IOException, ArchiveInitException{
-		if(rawDS!=null){
-			Iterator<Entry> iter = rawDS.iterator(null,null);
-			archive.build(iter);
+		if(archive.source!=null){
+			archive.build(archive.source);
+		}
+		else if(rawDS!=null){
+			RawCursor cursor = rawDS.cursor(null,null);
+			try{
+				archive.build(cursor);
+			}
+			finally{
+				cursor.close();
+			}
+		}
+		for (Archive target : archive.targets) {
+			buildArchive(target);
+		}
+	}
+	
+	/**
+	 * Reconstruit l'ensemble des archives. 
+	 * Les archives alimentées par les valeurs brutes sont construites en un seul parcours des données brutes,
+	 * les archives consolidées sont ensuite construites à partir de leur source.
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	public void buildArchives() throws IOException, ArchiveInitException{
+		lockPost();
+		try{
+			List<Archive> roots = new ArrayList<Archive>();
+			for (Archive archive : archives) {
+				if(archive.source==null) roots.add(archive);
+			}
+			if(rawDS!=null && !roots.isEmpty()){
+				RawCursor cursor = rawDS.cursor(null,null);
+				try{
+					Archive.build(roots, cursor);
+				}
+				finally{
+					cursor.close();
+				}
+			}
+			for (Archive root : roots) {
+				for (Archive target : root.targets) {
+					buildArchive(target);
+				}
+			}
+		}
+		finally{
+			postLock.unlock();
+		}
+	}
+	
+	/**
+	 * Reconstruit les archives à partir du step contenant le timestamp (ex: intégration de valeurs tardives) :
+	 * les steps antérieurs sont conservés, seules les valeurs brutes suivantes sont relues 
+	 * (recherche dichotomique du début de parcours dans les données brutes).
+	 * @param timestamp timestamp (secondes) de la plus ancienne valeur brute modifiée
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	public void rebuildFrom(long timestamp) throws IOException, ArchiveInitException{
+		lockPost();
+		try{
+			rebuildArchivesFrom(timestamp);
+		}
+		finally{
+			postLock.unlock();
+		}
+	}
+	
+	/**
+	 * cf rebuildFrom (sous postLock)
+	 */
+	private void rebuildArchivesFrom(long timestamp) throws IOException, ArchiveInitException{
+		List<Archive> roots = new ArrayList<Archive>();
+		for (Archive archive : archives) {
+			if(archive.source==null) roots.add(archive);
+		}
+		if(rawDS!=null && !roots.isEmpty()){
+			//début de parcours : plus ancien des steps de reprise (null : reconstruction complète)
+			Long from = Long.MAX_VALUE;
+			for (Archive archive : roots) {
+				Long restart = archive.getRebuildStart(timestamp);
+				if(restart==null){
+					from = null;
+					break;
+				}
+				from = Math.min(from, restart);
+			}
+			RawCursor cursor = rawDS.cursor(from,null);
+			try{
+				Archive.rebuildFrom(roots, timestamp, cursor);
+			}
+			finally{
+				cursor.close();
+			}
+		}
+		for (Archive root : roots) {
+			for (Archive target : root.targets) {
+				rebuildFrom(target, timestamp);
+			}
+		}
+	}
+	
+	private void rebuildFrom(Archive archive, long timestamp) throws IOException, ArchiveInitException{
+		archive.rebuildFrom(archive.source, timestamp);
+		for (Archive target : archive.targets) {
+			rebuildFrom(target, timestamp);
+		}
+	}
+	
+	/**
+	 * Chaînage des archives pour la consolidation en cascade (cf setArchiveConsolidation) :
+	 * chaque archive est alimentée par la plus grossière des archives dont le step divise le sien,
+	 * à défaut par les valeurs brutes.
+	 * @return archives dont la source a changé
+	 */
+	private List<Archive> linkArchives(){
+		List<Archive> changed = new ArrayList<Archive>();
+		for (Archive archive : archives) {
+			Archive source = null;
+			if(meta.isConsolidation()){
+				for (Archive a : archives) {
+					if(a.canConsolidate(archive) && (source==null || a.step > source.step)) source = a;
+				}
+			}
+			if(source != archive.source) changed.add(archive);
+			archive.source = source;
+		}
+		for (Archive archive : archives) {
+			List<Archive> targets = new ArrayList<Archive>();
+			for (Archive a : archives) {
+				if(a.source==archive) targets.add(a);
+			}
+			archive.targets = targets;
+		}
+		return changed;
+	}
+	
+	/**
+	 * Active la consolidation en cascade des archives (méta-données à enregistrer par writeMetadata).
+	 * Seules les archives les plus fines reçoivent les valeurs brutes ; chaque step terminé est transmis agrégé
+	 * (somme, nombre, min, max) à l'archive dont le step est le plus petit multiple du sien.
+	 * Le step en cours d'une archive consolidée n'intègre pas le step en cours de sa source.
+	 * Les archives dont la source change sont reconstruites.
+	 * @param consolidation
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	public void setArchiveConsolidation(boolean consolidation) throws IOException, ArchiveInitException{
+		lockPost();
+		try{
+			meta.setConsolidation(consolidation);
+			for (Archive archive : linkArchives()) {
+				buildArchive(archive);
+			}
+		}
+		finally{
+			postLock.unlock();
+		}
+	}
+	
+	/**
+	 * Intègre les valeurs tardives aux données brutes puis reconstruit les archives 
+	 * à partir du step de la plus ancienne d'entre elles.
+	 * Les post ne sont suspendus que pendant la reconstruction des archives 
+	 * (l'intégration ne prend le verrou des données brutes que pour substituer les fichiers réécrits)
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	public void compact() throws IOException, ArchiveInitException{
+		if(!rawDS.hasLateValues()) return;
+		Long from = rawDS.mergeLate();
+		if(from==null) return;
+		lockPost();
+		try{
+			rebuildFrom(from/1000);
+		}
+		finally{
+			postLock.unlock();
+		}
+	}
+	
+	/**
+	 * Applique les durées de conservation définies dans les méta-données (données brutes et archives)
+	 * @param now timestamp de référence (secondes)
+	 * @throws IOException
+	 */
+	public void applyRetention(long now) throws IOException{
+		Long retention = meta.getRawRetention();
+		if(retention!=null){
+			rawDS.expireBefore(now - retention);
+		}
+		for (Archive archive : archives) {
+			retention = meta.getArchiveRetention(archive.getStep());
+			if(retention!=null){
+				archive.expireBefore(now - retention);
+			}
 		}
 	}
 	
@@ -177,15 +440,27 @@ public class TimeSerie{
 	 * @throws ArchiveInitException
 	 */
 	public void removeArchive(int step) throws IOException, ArchiveInitException{
-		Iterator<Archive> iter = archives.iterator();
-		while(iter.hasNext()) {
-			Archive a = iter.next();
-			if(a.step==step){
-				a.archiveFile.delete();
-				iter.remove();
-				break;
+		lockPost();
+		try{
+			List<Archive> list = new ArrayList<Archive>(archives);
+			Iterator<Archive> iter = list.iterator();
+			while(iter.hasNext()) {
+				Archive a = iter.next();
+				if(a.step==step){
+					a.archiveFile.delete();
+					iter.remove();
+					break;
+				}
+			}
+			archives = Collections.unmodifiableList(list);
+			//les archives alimentées par l'archive supprimée changent de source
+			for (Archive archive : linkArchives()) {
+				buildArchive(archive);
 			}
 		}
+		finally{
+			postLock.unlock();
+		}
 	}
 	
 	/**
@@ -194,20 +469,284 @@ public class TimeSerie{
 	 * @throws ArchiveInitException 
 	 */
 	public void post(Date date, float value) throws IOException, ArchiveInitException{
-		this.post(date.getTime()/1000,value);
+		this.postMillis(date.getTime(),value);
 	}
 	public void post(Date date, double value) throws IOException, ArchiveInitException{
-		this.post(date.getTime()/1000,value);
+		this.postMillis(date.getTime(),(float)value);
 	}
+	/**
+	 * @param timestamp (secondes)
+	 */
 	public void post(long timestamp, float value) throws IOException, ArchiveInitException{
-		rawDS.post(timestamp,value);
-		for (Archive archive : archives) {
-			archive.post(timestamp,value);
+		postMillis(timestamp*1000,value);
+	}
+	/**
+	 * Ajoute une valeur horodatée à la milliseconde.
+	 * Les données brutes conservent la milliseconde, les archives sont alimentées à la seconde.
+	 * @param timestamp (millisecondes)
+	 */
+	public void postMillis(long timestamp, float value) throws IOException, ArchiveInitException{
+		WriteAheadLog wal = this.wal;
+		if(wal!=null){
+			wal.beginPost();
+		}
+		try{
+			if(wal!=null) wal.append(walId,timestamp,value);
+			postLock.lock();
+			try{
+				if(fanOut!=null && meta.getReorderWindow()==null){
+					//étape en erreur : transmission de l'erreur après reconstruction des archives (cf drainFanOut)
+					if(fanOut.hasFailed()) drainFanOut();
+					fanOut.post(archives, timestamp, value);
+				}
+				else{
+					drainFanOut();
+					ReorderBuffer buffer = getReorderBuffer();
+					if(buffer==null){
+						rawDS.postMillis(timestamp,value);
+						for (Archive archive : archives) {
+							//les archives consolidées sont alimentées par leur source
+							if(archive.source==null) archive.post(timestamp/1000,value);
+						}
+					}
+					else{
+						add(buffer, timestamp, value);
+						write(buffer.drain(false));
+					}
+				}
+			}
+			finally{
+				postLock.unlock();
+			}
+		}
+		finally{
+			if(wal!=null) wal.endPost();
 		}
 	}
 	public void post(long timestamp, double value) throws IOException, ArchiveInitException{
 		post(timestamp,(float)value);
 	}
+	
+	/**
+	 * Ajoute une série de valeurs à la fin de la serie.
+	 * Les données brutes sont écrites en une fois, et chaque archive reçoit le lot complet.
+	 * Les timestamps doivent etre croissants et posterieurs a tout autre point de la serie
+	 * @param timestamps (secondes)
+	 * @param values
+	 * @param off indice du premier point
+	 * @param len nombre de points
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	public void post(long[] timestamps, float[] values, int off, int len) throws IOException, ArchiveInitException{
+		WriteAheadLog wal = this.wal;
+		if(wal!=null){
+			wal.beginPost();
+		}
+		try{
+			if(wal!=null) wal.append(walId,timestamps,1000,values,off,len);
+			lockPost();
+			try{
+				ReorderBuffer buffer = getReorderBuffer();
+				if(buffer==null){
+					rawDS.post(timestamps,values,off,len);
+					for (Archive archive : archives) {
+						if(archive.source==null) archive.post(timestamps,values,off,len);
+					}
+				}
+				else{
+					for(int i=off;i<off+len;i++){
+						add(buffer, timestamps[i]*1000, values[i]);
+					}
+					write(buffer.drain(false));
+				}
+			}
+			finally{
+				postLock.unlock();
+			}
+		}
+		finally{
+			if(wal!=null) wal.endPost();
+		}
+	}
+	
+	/**
+	 * Ajoute une série de valeurs horodatées à la milliseconde
+	 * @param timestamps (millisecondes)
+	 * @param values
+	 * @param off indice du premier point
+	 * @param len nombre de points
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	public void postMillis(long[] timestamps, float[] values, int off, int len) throws IOException, ArchiveInitException{
+		RawData.checkBounds(timestamps, values, off, len);
+		WriteAheadLog wal = this.wal;
+		if(wal!=null){
+			wal.beginPost();
+		}
+		try{
+			if(wal!=null) wal.append(walId,timestamps,1,values,off,len);
+			lockPost();
+			try{
+				ReorderBuffer buffer = getReorderBuffer();
+				if(buffer==null){
+					write(timestamps,values,off,len);
+				}
+				else{
+					for(int i=off;i<off+len;i++){
+						add(buffer, timestamps[i], values[i]);
+					}
+					write(buffer.drain(false));
+				}
+			}
+			finally{
+				postLock.unlock();
+			}
+		}
+		finally{
+			if(wal!=null) wal.endPost();
+		}
+	}
+	
+	/**
+	 * Ecriture ordonnée d'une série de valeurs dans les données brutes et les archives
+	 * @param timestamps (millisecondes)
+	 */
+	private void write(long[] timestamps, float[] values, int off, int len) throws IOException, ArchiveInitException{
+		rawDS.postMillis(timestamps,values,off,len);
+		if(!archives.isEmpty()){
+			//les archives sont alimentées à la seconde
+			long[] seconds = new long[off+len];
+			for(int i=off;i<off+len;i++){
+				seconds[i] = timestamps[i]/1000;
+			}
+			for (Archive archive : archives) {
+				if(archive.source==null) archive.post(seconds,values,off,len);
+			}
+		}
+	}
+	
+	private void write(RawColumns columns) throws IOException, ArchiveInitException{
+		if(columns!=null) write(columns.timestamps, columns.values, 0, columns.size);
+	}
+	
+	/**
+	 * Ajout d'une valeur dans la fenêtre de réordonnancement, ou dans le fichier des valeurs tardives
+	 */
+	private void add(ReorderBuffer buffer, long timestamp, float value) throws IOException{
+		if(!buffer.add(timestamp, value)){
+			logger.fine("valeur tardive "+id+" : "+timestamp);
+			rawDS.postLate(timestamp, value);
+		}
+	}
+	
+	/**
+	 * Fenêtre de réordonnancement, créée à la première utilisation à partir de la dernière valeur enregistrée
+	 * @return null si le réordonnancement n'est pas activé
+	 */
+	private ReorderBuffer getReorderBuffer() throws IOException{
+		Long window = meta.getReorderWindow();
+		if(window==null){
+			reorder = null;
+			return null;
+		}
+		if(reorder==null){
+			Entry last = rawDS.getLast();
+			reorder = new ReorderBuffer(window, (last==null ? Long.MIN_VALUE : last.timestampMillis));
+		}
+		reorder.windowMillis = window;
+		return reorder;
+	}
+	
+	/**
+	 * Prise du verrou d'écriture, après traitement des valeurs en cours de diffusion parallèle
+	 */
+	void lockPost() throws IOException, ArchiveInitException{
+		postLock.lock();
+		try{
+			drainFanOut();
+		}
+		catch(IOException | ArchiveInitException | RuntimeException e){
+			postLock.unlock();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Attend le traitement des valeurs en cours de diffusion parallèle (sous postLock).
+	 * Une étape en erreur a pu laisser diverger données brutes et archives : les archives sont reconstruites
+	 * depuis la plus ancienne valeur en erreur avant transmission de l'erreur
+	 * @throws PostException erreur d'écriture d'une étape
+	 */
+	private void drainFanOut() throws IOException, ArchiveInitException{
+		if(fanOut==null) return;
+		try{
+			fanOut.drain(archives);
+		}
+		catch(PostException e){
+			try{
+				rebuildArchivesFrom(e.getFirstTimestamp()/1000);
+			}
+			catch(IOException | ArchiveInitException | RuntimeException rebuildError){
+				e.addSuppressed(rebuildError);
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Active la diffusion parallèle des valeurs postées une à une (post(long, float)...) : l'ajout aux données brutes
+	 * et la mise à jour de chaque archive alimentée par les valeurs brutes sont des étapes indépendantes,
+	 * chacune servie dans l'ordre par une file bornée (cf FanOut). Le post rend la main dès le dépôt dans les files.
+	 * Les lectures peuvent ne pas refléter les dernières valeurs postées : sync() attend leur écriture.
+	 * Sans effet sur les séries de valeurs et avec la fenêtre de réordonnancement (écriture directe).
+	 * Une erreur d'écriture est transmise au post suivant (PostException), après reconstruction des archives
+	 * depuis la plus ancienne valeur en erreur.
+	 * @param capacity nombre maximum de valeurs en attente par étape (null: désactivé, après écriture des valeurs en attente)
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	public void setFanOut(Integer capacity) throws IOException, ArchiveInitException{
+		lockPost();
+		try{
+			fanOut = (capacity==null ? null : new FanOut(getId(), rawDS, capacity));
+		}
+		finally{
+			postLock.unlock();
+		}
+	}
+	
+	/**
+	 * Ecrit l'ensemble des valeurs de la fenêtre de réordonnancement
+	 */
+	private void flushReorderBuffer() throws IOException, ArchiveInitException{
+		lockPost();
+		try{
+			if(reorder!=null) write(reorder.drain(true));
+		}
+		finally{
+			postLock.unlock();
+		}
+	}
+	
+	/**
+	 * Active le réordonnancement des valeurs (méta-données à enregistrer par writeMetadata).
+	 * Les valeurs sont conservées en mémoire pendant la durée de la fenêtre (par rapport à la plus récente reçue)
+	 * puis écrites dans l'ordre chronologique. Les valeurs arrivant après l'écriture de valeurs plus récentes
+	 * sont conservées à part et intégrées par compact().
+	 * Sans journal d'écriture (cf TimeSeriesDB.enableWriteAheadLog), les valeurs de la fenêtre sont perdues sur arrêt anormal.
+	 * @param windowMillis millisecondes (null: désactivé)
+	 * @throws IOException
+	 * @throws ArchiveInitException
+	 */
+	public void setReorderWindow(Long windowMillis) throws IOException, ArchiveInitException{
+		if(windowMillis==null) flushReorderBuffer();
+		meta.setReorderWindow(windowMillis);
+	}
+	public void post(long[] timestamps, float[] values) throws IOException, ArchiveInitException{
+		post(timestamps,values,0,timestamps.length);
+	}
 	/**
 	 * Récupère la dernière valeur brute transmise
 	 * @return
@@ -217,6 +756,17 @@ public class TimeSerie{
 		return rawDS.getLast();
 	}
 	
+	/**
+	 * Lecture des données brutes sur une période, sous forme de colonnes (timestamps en millisecondes)
+	 * @param begin (secondes, inclus)
+	 * @param end (secondes, inclus)
+	 * @return
+	 * @throws IOException
+	 */
+	public RawColumns selectRaw(Long begin, Long end) throws IOException{
+		return rawDS.read(begin,end);
+	}
+	
 	public List<ArchivePoint> selectNb(int step, Long start, int nb) throws ArchiveInitException, IOException, InterruptedException{
 		Archive archive = this.getArchive(step);
 		
@@ -226,6 +776,228 @@ public class TimeSerie{
 		List<ArchivePoint> list = archive.getPoints(start,nb);
 		return list;
 	}
+
+	/**
+	 * Lecture des points d'archive d'une période, limitée à maxPoints points (réduction BUCKET)
+	 * @see #selectRange(long, long, int, Downsampling)
+	 */
+	public List<ArchivePoint> selectRange(long start, long end, int maxPoints) throws ArchiveInitException, IOException, InterruptedException{
+		return selectRange(start, end, maxPoints, Downsampling.BUCKET);
+	}
+
+	/**
+	 * Lecture des points d'archive d'une période (début et fin inclus), limitée à maxPoints points.
+	 * L'archive utilisée est la plus fine dont le nombre de steps sur la période ne dépasse pas maxPoints ;
+	 * à défaut, la plus grossière, avec réduction du nombre de points.
+	 * @param start (secondes)
+	 * @param end (secondes)
+	 * @param maxPoints
+	 * @param downsampling méthode de réduction
+	 */
+	public List<ArchivePoint> selectRange(long start, long end, int maxPoints, Downsampling downsampling) throws ArchiveInitException, IOException, InterruptedException{
+		Archive selected = null;
+		for(Archive archive : archives){
+			long nb = (end - start) / archive.getStep() + 1;
+			if(nb <= maxPoints){
+				//la plus fine des archives suffisantes
+				if(selected==null || selected.getStep() > archive.getStep() || (end - start) / selected.getStep() + 1 > maxPoints)
+					selected = archive;
+			}
+			else if(selected==null || ((end - start) / selected.getStep() + 1 > maxPoints && archive.getStep() > selected.getStep())){
+				//à défaut, la plus grossière
+				selected = archive;
+			}
+		}
+		if(selected==null)
+			throw new ArchiveInitException("Erreur : aucune archive");
+
+		return selected.getRange(start, end, maxPoints, downsampling);
+	}
+
+	/**
+	 * Lecture d'une période à une résolution donnée, depuis la source la moins coûteuse en volume lu :
+	 *  - l'archive dont le step divise la résolution, la plus grossière (regroupement des steps si besoin),
+	 *    ou à défaut l'archive plus grossière la plus fine ;
+	 *  - les données brutes si leur volume estimé est inférieur (données récentes), ou en l'absence d'archive.
+	 * Si l'archive ne couvre pas la fin de la période (données brutes plus récentes que son dernier step),
+	 * les points manquants sont calculés à partir des données brutes.
+	 * Les points sont calés comme les steps des archives (cf StepAlignment), quelle que soit la source.
+	 * @param start (secondes)
+	 * @param end (secondes, inclus)
+	 * @param resolution espacement souhaité des points (secondes)
+	 */
+	public List<ArchivePoint> select(long start, long end, int resolution) throws ArchiveInitException, IOException, InterruptedException{
+		if(resolution <= 0) throw new IllegalArgumentException("résolution incorrecte : "+resolution);
+		if(end < start) return new ArrayList<ArchivePoint>();
+
+		//archive la moins volumineuse à lire
+		Archive finer = null;
+		Archive coarser = null;
+		for(Archive archive : archives){
+			int step = archive.getStep();
+			if(step <= resolution && resolution % step == 0){
+				if(finer==null || step > finer.getStep()) finer = archive;
+			}
+			else if(step > resolution){
+				if(coarser==null || step < coarser.getStep()) coarser = archive;
+			}
+		}
+		Archive archive = (finer!=null ? finer : coarser);
+
+		long rawCost = rawDS.estimateReadSize(start, end);
+		if(archive==null || archive.getCoverageEnd()==null
+				|| rawCost < ((end - start) / archive.getStep() + 1) * archive.getRecordLen()){
+			logger.fine("select "+id+" : données brutes ("+rawCost+" octets)");
+			long origin = (archive!=null ? archive.stepOrigin : StepAlignment.getDefault().origin);
+			long rawStart = StepAlignment.align(origin, start, resolution);
+			//compteur absolu : valeur précédant la période, lue dans l'archive dont les steps se terminent au début du premier paquet
+			Float previous = null;
+			if(meta.getType()==Type.ABS_COUNTER && finer!=null && finer.getCoverageEnd()!=null){
+				List<ArchivePoint> before = finer.getPoints(rawStart - finer.getStep(), 1);
+				if(before!=null && !before.isEmpty()) previous = before.get(0).value;
+			}
+			return aggregateRaw(rawStart, end, resolution, previous);
+		}
+		logger.fine("select "+id+" : archive "+archive.getStep());
+
+		//résultat de l'archive, par paquets calés sur l'origine des steps de l'archive
+		int step = archive.getStep();
+		int bucketSize = (step < resolution ? resolution / step : 1);
+		int pointStep = step * bucketSize;
+		start = StepAlignment.align(archive.stepOrigin, start, pointStep);
+		long nb = (end - start) / step + 1;
+		List<ArchivePoint> points = archive.getBuckets(start, nb, bucketSize, Downsampling.BUCKET);
+		if(points==null) points = new ArrayList<ArchivePoint>();
+
+		//fin de période non couverte par l'archive : points calculés à partir des données brutes
+		long coverageEnd = archive.getCoverageEnd();
+		Entry last = rawDS.getLast();
+		if(coverageEnd <= end && last!=null && last.getTimestamp() >= coverageEnd){
+			//le paquet partiellement couvert est entièrement recalculé
+			while(!points.isEmpty() && points.get(points.size()-1).timestamp + pointStep > coverageEnd){
+				points.remove(points.size()-1);
+			}
+			long rawStart = start + ((Math.max(coverageEnd, start) - start) / pointStep) * pointStep;
+			//compteur absolu : dernière valeur fournie par l'archive
+			Float previous = null;
+			if(meta.getType()==Type.ABS_COUNTER){
+				for(int i=points.size()-1; i>=0 && previous==null; i--) previous = points.get(i).value;
+			}
+			logger.fine("select "+id+" : données brutes à partir de "+rawStart);
+			points.addAll(aggregateRaw(rawStart, end, pointStep, previous));
+		}
+		return points;
+	}
+
+	/**
+	 * Calcul des points d'une période à partir des données brutes, par paquets de 'step' secondes
+	 * (moyenne, min et max ; dernière valeur et différence avec le paquet précédent pour un compteur absolu ;
+	 * somme, nombre de valeurs et débit pour un compteur relatif ; résumé de la distribution pour les quantiles).
+	 * Les paquets sans valeur donnent des points vides, jusqu'au dernier paquet ayant des valeurs.
+	 * @param start début du premier paquet (calé par l'appelant)
+	 * @param previous compteur absolu : valeur précédant la période (différence du premier paquet), 
+	 *        null si inconnue (la première valeur de la période est alors prise comme référence)
+	 */
+	private List<ArchivePoint> aggregateRaw(long start, long end, int step, Float previous) throws IOException, ArchiveInitException{
+		Type type = meta.getType();
+		if(type==null) throw new ArchiveInitException("type non supporté : "+type);
+
+		List<ArchivePoint> points = new ArrayList<ArchivePoint>();
+		List<ArchivePoint> empty = new ArrayList<ArchivePoint>();
+		RawCursor cursor = rawDS.cursor(start, end);
+		try{
+			long bucket = start;
+			int nb = 0;
+			double sum = 0;
+			float min = 0;
+			float max = 0;
+			float value = 0;
+			QuantileSketch sketch = (type==Type.QUANTILE ? new QuantileSketch() : null);
+			boolean more = cursor.next();
+			while(more){
+				long t = cursor.timestamp();
+				if(t < bucket + step){
+					float v = cursor.value();
+					if(nb==0 || v < min) min = v;
+					if(nb==0 || v > max) max = v;
+					if(nb==0 && previous==null) previous = v;
+					sum += v;
+					value = v;
+					if(sketch!=null) sketch.add(v);
+					nb++;
+					more = cursor.next();
+					if(more) continue;
+				}
+
+				//fin du paquet
+				ArchivePoint point;
+				if(nb==0){
+					if(type==Type.AVERAGE) point = new AverageArchivePoint();
+					else if(type==Type.ABS_COUNTER) point = new AbsCounterArchivePoint();
+					else if(type==Type.REL_COUNTER) point = new RelCounterArchivePoint();
+					else point = new QuantileArchivePoint();
+					empty.add(point);
+				}
+				else if(type==Type.QUANTILE){
+					point = QuantileArchivePoint.of(bucket, sketch);
+					sketch = new QuantileSketch();
+				}
+				else if(type==Type.REL_COUNTER){
+					RelCounterArchivePoint p = new RelCounterArchivePoint();
+					p.value = (float)sum;
+					p.nb = nb;
+					p.rate = p.value / step;
+					point = p;
+				}
+				else if(type==Type.AVERAGE){
+					AverageArchivePoint p = new AverageArchivePoint();
+					p.value = (float)(sum / nb);
+					p.min = min;
+					p.max = max;
+					point = p;
+				}
+				else{
+					AbsCounterArchivePoint p = new AbsCounterArchivePoint();
+					p.value = value;
+					if(value >= previous){
+						p.diff = value - previous;
+					}
+					else{
+						//remise à zéro du compteur
+						p.diff = value;
+						p.overflow = true;
+					}
+					previous = value;
+					point = p;
+				}
+				point.timestamp = bucket;
+				if(nb > 0){
+					points.addAll(empty);
+					points.add(point);
+					empty.clear();
+				}
+				bucket += step;
+				nb = 0;
+				sum = 0;
+			}
+		}
+		finally{
+			cursor.close();
+		}
+		return points;
+	}
+
+	/**
+	 * Lecture d'une série de points d'archive sous forme de colonnes (cf selectNb)
+	 */
+	public ArchiveColumns selectColumns(int step, Long start, int nb) throws ArchiveInitException, IOException{
+		Archive archive = this.getArchive(step);
+
+		if(archive==null)
+			throw new ArchiveInitException("Erreur : aucune archive avec step="+step);
+
+		return archive.getColumns(start,nb);
+	}
 	
 	public void exportCSV(final List<ArchivePoint> points, PrintStream out, DateFormat dateFormat, NumberFormat numberFormat) throws ArchiveInitException, IOException{
 		for (ArchivePoint point : points) {
@@ -233,6 +1005,28 @@ public class TimeSerie{
 		}
 	}
 	
+	/**
+	 * Export CSV des données brutes sur une période (timestamp;valeur)
+	 * @param begin
+	 * @param end
+	 * @throws IOException
+	 */
+	public void exportRawCSV(Long begin, Long end, PrintStream out, DateFormat dateFormat, NumberFormat numberFormat) throws IOException{
+		RawCursor cursor = rawDS.cursor(begin,end);
+		Date date = new Date();
+		try{
+			while(cursor.next()){
+				date.setTime(cursor.timestampMillis());
+				out.print(dateFormat.format(date));
+				out.print(';');
+				out.println(numberFormat.format(cursor.value()));
+			}
+		}
+		finally{
+			cursor.close();
+		}
+	}
+	
 	public void toJson(final List<ArchivePoint> points, PrintStream out, DateFormat dateFormat, NumberFormat numberFormat) throws ArchiveInitException, IOException{
 		JsonGenerator g = Json.createGenerator(System.out);
 		g.writeStartArray();
@@ -250,6 +1044,40 @@ public class TimeSerie{
 		return archives;
 	}
 
+	/**
+	 * Fixe le découpage des données brutes en segments (méta-données à enregistrer par writeMetadata)
+	 * @param partition
+	 */
+	public void setRawPartition(RawData.Partition partition){
+		meta.setPartition(partition);
+		rawDS.setPartition(partition);
+	}
+	
+	/**
+	 * Active la compression des segments de données brutes (méta-données à enregistrer par writeMetadata).
+	 * Les segments déjà fermés sont compressés immédiatement.
+	 * @param compression
+	 * @throws IOException
+	 */
+	public void setRawCompression(boolean compression) throws IOException{
+		meta.setCompression(compression);
+		rawDS.setCompression(compression);
+		if(compression) rawDS.compressSegments();
+	}
+	
+	/**
+	 * Active la lecture par projection mémoire des données brutes et des archives
+	 * (requêtes fréquentes : pas d'ouverture de fichier ni d'appel système par enregistrement)
+	 * @param mappedRead
+	 */
+	public void setMappedRead(boolean mappedRead){
+		this.mappedRead = mappedRead;
+		rawDS.setMappedRead(mappedRead);
+		for (Archive archive : archives) {
+			archive.setMappedRead(mappedRead);
+		}
+	}
+	
 	public RawData getRawDS() {
 		return rawDS;
 	}
@@ -265,8 +1093,7 @@ public class TimeSerie{
 		else item.add("type", JsonValue.NULL);
 		if(this.getRawDS().getLast() != null) item.add("lastModified", this.getRawDS().getLast().getTimestamp());
 		else item.add("lastModified", JsonValue.NULL);
-		if(this.getRawDS().getFile() !=null) item.add("rawsize", this.getRawDS().getFile().length());
-		else item.add("rawsize", JsonValue.NULL);
+		item.add("rawsize", this.getRawDS().getSize());
 		return item.build();
 	}
 	
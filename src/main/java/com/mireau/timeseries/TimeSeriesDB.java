@@ -3,10 +3,26 @@ package com.mireau.timeseries;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -19,10 +35,28 @@ public class TimeSeriesDB {
 	public static String ARCHIVE_TIMESERIE_FILE_EXT = "ats";
 	public static String META_TIMESERIE_FILE_EXT = "mts";
 	public static String NODE_FILE_EXT = "node";
+	public static String WAL_FILE_EXT = "wal";
 	public static String FILENAME_PREFIX = "ts_";
 	
+	static Logger logger = Logger.getLogger(TimeSeriesDB.class.getName());
+	
 	File dbDirectory;
 	
+	/** Verrou des opérations d'administration (journal, pipeline, tâche de conservation, fermeture) */
+	final ReentrantLock stateLock = new ReentrantLock();
+	
+	/** Journal d'écriture (null si non activé) */
+	WriteAheadLog wal;
+	
+	/** Pipeline d'écriture (null si non activé) */
+	IngestPipeline ingest;
+	
+	/** Façade asynchrone (créée au premier appel de async()) */
+	AsyncTimeSeriesDB async;
+	
+	/** Tâche périodique d'application des durées de conservation */
+	ScheduledExecutorService retentionScheduler;
+	
 	/** table des timeseries */
 	ConcurrentMap<String, TimeSerie> timeseries;
 	
@@ -90,6 +124,307 @@ public class TimeSeriesDB {
 		});
 	}
 	
+	/**
+	 * Active le journal d'écriture (WAL) commun à toutes les séries.
+	 * Les points présents dans un journal existant (arrêt anormal) sont rejoués au préalable.
+	 * Les archives passent alors en écriture sur changement de step (WriteStrategy.CHANGE_STEP).
+	 * 
+	 * @param syncIntervalMillis délai maximum entre deux fsync du journal 
+	 *   (0 : chaque post attend la mise sur disque de ses points, fsync partagés entre post simultanés ;
+	 *    > 0 : perte possible des points postés depuis le dernier fsync sur arrêt brutal du système, cf WriteAheadLog)
+	 * @param syncBytes volume maximum écrit dans le journal entre deux fsync
+	 * @throws IOException
+	 * @throws TimeSerieException
+	 */
+	public void enableWriteAheadLog(long syncIntervalMillis, long syncBytes) throws IOException, TimeSerieException{
+		stateLock.lock();
+		try{
+			if(wal!=null) throw new TimeSerieException("journal deja active");
+			File walFile = new File(dbDirectory, FILENAME_PREFIX+"db."+WAL_FILE_EXT);
+			WriteAheadLog log = new WriteAheadLog(this, walFile, syncIntervalMillis, syncBytes);
+		
+			replay(log);
+		
+			log.open();
+			this.wal = log;
+			for (TimeSerie ts : timeseries.values()) {
+				ts.setWriteAheadLog(log);
+			}
+		
+			//Le journal rejoué est désormais intégré aux fichiers
+			checkpoint();
+		}
+		finally{
+			stateLock.unlock();
+		}
+	}
+	
+	/**
+	 * Rejoue le contenu du journal dans les séries.
+	 * Seuls les points postérieurs à la dernière valeur brute enregistrée sont ajoutés aux données brutes.
+	 * Les points antérieurs absents des données brutes et des valeurs tardives (valeurs tardives non écrites sur disque
+	 * avant l'arrêt) sont ajoutés aux valeurs tardives (cf replayLate).
+	 * Les archives des séries concernées sont reconstruites à partir du step en cours 
+	 * (non enregistré à chaque point, cf WriteStrategy.CHANGE_STEP) ou du premier point rejoué.
+	 */
+	private void replay(WriteAheadLog log) throws IOException, TimeSerieException{
+		Map<String, WriteAheadLog.Points> content = log.read();
+		for (Map.Entry<String, WriteAheadLog.Points> e : content.entrySet()) {
+			TimeSerie ts = getTimeSerie(e.getKey());
+			if(ts==null){
+				logger.warning("journal : serie inconnue "+e.getKey());
+				continue;
+			}
+			WriteAheadLog.Points points = e.getValue();
+			points.sort();	//ordre d'arrivée (fenêtre de réordonnancement)
+			RawData.Entry last = ts.rawDS.getLast();
+			int off = 0;
+			if(last!=null){
+				while(off<points.size && points.timestamps[off] <= last.timestampMillis) off++;
+				if(off>0) replayLate(ts, points, off);
+			}
+			logger.info("journal : serie "+ts.getId()+" "+(points.size-off)+"/"+points.size+" points rejoues");
+			ts.rawDS.postMillis(points.timestamps, points.values, off, points.size-off);
+			ts.rawDS.sync();
+			ts.rebuildFrom(off<points.size ? points.timestamps[off]/1000 : Long.MAX_VALUE);
+		}
+	}
+	
+	/**
+	 * Rejoue les 'nb' premiers points (triés) du journal, antérieurs à la dernière valeur brute : déjà écrits 
+	 * (données brutes ou valeurs tardives), ou valeurs tardives perdues, alors ajoutées au fichier des valeurs tardives
+	 * (intégrées par compact ou applyRetention)
+	 */
+	private void replayLate(TimeSerie ts, WriteAheadLog.Points points, int nb) throws IOException{
+		long first = points.timestamps[0];
+		long last = points.timestamps[nb-1];
+		RawColumns raw = ts.rawDS.readMillis(first, last);
+		RawColumns late = ts.rawDS.readLate(first, last);
+		int n = 0;
+		for(int i=0;i<nb;i++){
+			if(raw.contains(points.timestamps[i], points.values[i]) || late.contains(points.timestamps[i], points.values[i])) continue;
+			ts.rawDS.postLate(points.timestamps[i], points.values[i]);
+			n++;
+		}
+		if(n>0) logger.info("journal : serie "+ts.getId()+" "+n+" valeurs tardives rejouees");
+	}
+	
+	/**
+	 * Ecrit sur disque l'ensemble des séries puis vide le journal.
+	 * Les post sont suspendus pendant l'opération.
+	 * @throws IOException
+	 * @throws TimeSerieException
+	 */
+	public void checkpoint() throws IOException, TimeSerieException{
+		WriteAheadLog log = this.wal;
+		if(log==null) return;
+		log.checkpointLock.writeLock().lock();
+		try{
+			for (TimeSerie ts : timeseries.values()) {
+				ts.sync();
+			}
+			log.truncate();
+		}
+		finally{
+			log.checkpointLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Intègre les valeurs tardives et applique les durées de conservation de toutes les séries
+	 */
+	public void applyRetention(){
+		long now = System.currentTimeMillis()/1000;
+		for (TimeSerie ts : timeseries.values()) {
+			try {
+				//pas de verrou pris pour les séries sans valeurs tardives
+				if(ts.getRawDS().hasLateValues()) ts.compact();
+				ts.applyRetention(now);
+			} catch (IOException | ArchiveInitException e) {
+				logger.log(Level.WARNING, "retention "+ts.getId()+" : "+e.getMessage(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Suivi de la reconstruction des archives (cf rebuildArchives)
+	 */
+	public interface RebuildListener {
+		/**
+		 * Fin de reconstruction d'une série (appelé depuis les threads de reconstruction)
+		 * @param ts série reconstruite
+		 * @param done nombre de séries traitées
+		 * @param total nombre de séries à reconstruire
+		 * @param error erreur de reconstruction de la série (null si succès)
+		 */
+		void progress(TimeSerie ts, int done, int total, Exception error);
+	}
+	
+	/**
+	 * Reconstruit les archives de toutes les séries, une tâche par série sur un ForkJoinPool borné.
+	 * Chaque série ne parcourt qu'une fois ses données brutes (cf TimeSerie.buildArchives) :
+	 * le nombre de fichiers lus et écrits simultanément est donc borné par le parallélisme.
+	 * L'échec d'une série est journalisé et n'interrompt pas les autres.
+	 * @param parallelism nombre maximum de séries reconstruites simultanément
+	 * @param listener suivi de l'avancement (peut être null)
+	 * @return nombre de séries reconstruites sans erreur
+	 */
+	public int rebuildArchives(int parallelism, final RebuildListener listener){
+		final List<TimeSerie> series = new ArrayList<TimeSerie>(timeseries.values());
+		final int total = series.size();
+		final AtomicInteger done = new AtomicInteger();
+		final AtomicInteger succeeded = new AtomicInteger();
+		
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(total);
+		for (final TimeSerie ts : series) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					Exception error = null;
+					try {
+						ts.buildArchives();
+						succeeded.incrementAndGet();
+					} catch (IOException | ArchiveInitException | RuntimeException e) {
+						error = e;
+						logger.log(Level.WARNING, "reconstruction "+ts.getId()+" : "+e.getMessage(), e);
+					}
+					int n = done.incrementAndGet();
+					logger.info("reconstruction des archives : "+n+"/"+total+" ("+ts.getId()+")");
+					if(listener!=null) listener.progress(ts, n, total, error);
+					return null;
+				}
+			});
+		}
+		
+		long _t0 = System.currentTimeMillis();
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(parallelism, Math.max(1, total))));
+		try{
+			pool.invokeAll(tasks);
+		}
+		finally{
+			pool.shutdown();
+		}
+		logger.info("reconstruction des archives : "+succeeded.get()+"/"+total+" series en "+(System.currentTimeMillis()-_t0)+"ms");
+		return succeeded.get();
+	}
+	
+	/**
+	 * Reconstruit les archives de toutes les séries avec un parallélisme égal au nombre de processeurs
+	 * @return nombre de séries reconstruites sans erreur
+	 */
+	public int rebuildArchives(){
+		return rebuildArchives(Runtime.getRuntime().availableProcessors(), null);
+	}
+	
+	/**
+	 * Démarre l'application périodique (en tâche de fond) des durées de conservation
+	 * @param periodMillis
+	 */
+	public void startRetentionTask(long periodMillis){
+		stateLock.lock();
+		try{
+			if(retentionScheduler!=null) retentionScheduler.shutdown();
+			retentionScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "retention");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			retentionScheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					applyRetention();
+				}
+			}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+		}
+		finally{
+			stateLock.unlock();
+		}
+	}
+	
+	/**
+	 * Active le pipeline d'écriture : les valeurs déposées (cf IngestPipeline.post) sont écrites 
+	 * par un écrivain unique par série, parmi nbShards threads
+	 * @param nbShards nombre d'écrivains (ex: nombre de processeurs)
+	 * @return le pipeline
+	 */
+	public IngestPipeline enableIngestPipeline(int nbShards){
+		stateLock.lock();
+		try{
+			if(ingest==null) ingest = new IngestPipeline(nbShards);
+			return ingest;
+		}
+		finally{
+			stateLock.unlock();
+		}
+	}
+	
+	public IngestPipeline getIngestPipeline() {
+		return ingest;
+	}
+	
+	/**
+	 * Façade asynchrone de la base, sur l'exécuteur par défaut (threads virtuels si disponibles).
+	 * Pour un autre exécuteur : new AsyncTimeSeriesDB(db, executor)
+	 */
+	public AsyncTimeSeriesDB async(){
+		stateLock.lock();
+		try{
+			if(async==null) async = new AsyncTimeSeriesDB(this);
+			return async;
+		}
+		finally{
+			stateLock.unlock();
+		}
+	}
+	
+	/**
+	 * Ferme la base : fin des opérations asynchrones, écriture des valeurs en attente dans le pipeline, checkpoint, fermeture du journal et des séries
+	 * @throws IOException
+	 * @throws TimeSerieException
+	 */
+	public void close() throws IOException, TimeSerieException{
+		stateLock.lock();
+		try{
+			if(retentionScheduler!=null){
+				retentionScheduler.shutdown();
+				retentionScheduler = null;
+			}
+			try {
+				if(async!=null){
+					async.close();
+					async = null;
+				}
+				if(ingest!=null){
+					IngestPipeline pipeline = ingest;
+					ingest = null;
+					pipeline.close();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("fermeture interrompue", e);
+			}
+			checkpoint();
+			if(wal!=null){
+				wal.close();
+				wal = null;
+			}
+			for (TimeSerie ts : timeseries.values()) {
+				ts.setWriteAheadLog(null);
+				ts.close();
+			}
+		}
+		finally{
+			stateLock.unlock();
+		}
+	}
+	
+	public WriteAheadLog getWriteAheadLog() {
+		return wal;
+	}
+	
 	public TimeSerie getTimeSerie(String name){
 		TimeSerie ts = timeseries.get(name);
 		return ts;
@@ -100,6 +435,7 @@ public class TimeSeriesDB {
 		if(ts==null && createIfNotExists){
 			//Création de la nouvelle TimeSerie
 			ts = new TimeSerie(name, this.dbDirectory);
+			ts.setWriteAheadLog(wal);
 			timeseries.put(name,ts);
 		}
 		return ts;
@@ -107,29 +443,88 @@ public class TimeSeriesDB {
 	
 	
 	/**
-	 * Supprime la timeserie
+	 * Supprime la timeserie.
+	 * Les valeurs en attente (écritures asynchrones de la série, pipeline d'écriture, diffusion parallèle) sont 
+	 * d'abord écrites : aucune écriture ne reste en cours sur les fichiers supprimés
 	 * @throws TimeSerieException 
 	 */
 	public void deleteTimeSerie(String name) throws IOException, TimeSerieException{
 		TimeSerie ts = getTimeSerie(name,false);
 		
-		//Suppression de toutes les archives
-		Iterator<Archive> iter = ts.archives.iterator();
-		while(iter.hasNext()) {
-			Archive a = iter.next();
-			a.archiveFile.delete();
-			iter.remove();
+		AsyncTimeSeriesDB async = this.async;
+		IngestPipeline pipeline = this.ingest;
+		try {
+			CompletableFuture<Void> lastPost = (async==null ? null : async.lastPosts.get(name));
+			if(lastPost!=null){
+				try{
+					lastPost.get();
+				}
+				catch(ExecutionException e){
+					//erreur transmise par le CompletableFuture de l'écriture
+				}
+			}
+			if(pipeline!=null) pipeline.flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("suppression interrompue", e);
 		}
 		
-		//Supression des metadatas
-		ts.meta.metadataFile.delete();
-		
-		//Suppression de la timeserie
-		ts.rawDS.rawFile.delete();
+		//Diffusion parallèle terminée (lockPost), puis suppression des archives, des métadonnées et des données brutes
+		ts.lockPost();
+		try{
+			ts.fanOut = null;
+			for (Archive a : ts.archives) {
+				a.archiveFile.delete();
+			}
+			ts.archives = Collections.<Archive>emptyList();
+			
+			//Supression des metadatas
+			ts.meta.metadataFile.delete();
+			
+			//Suppression de la timeserie
+			ts.rawDS.delete();
+		}
+		finally{
+			ts.postLock.unlock();
+		}
 		
 		this.timeseries.remove(name);
 	}
 	
+	/**
+	 * Distribution agrégée de plusieurs séries de type QUANTILE : fusion, step par step, 
+	 * des résumés des archives de même step (sans lecture des valeurs brutes)
+	 * @param names noms des séries
+	 * @param step step des archives
+	 * @param start timestamp de début (secondes)
+	 * @param nb nombre de steps
+	 * @return un point par step ayant au moins une valeur, dans l'ordre chronologique
+	 * @throws IOException
+	 * @throws ArchiveInitException série ou archive inexistante, ou de type différent
+	 */
+	public List<QuantileArchivePoint> selectQuantiles(Collection<String> names, int step, long start, int nb) throws IOException, ArchiveInitException{
+		TreeMap<Long, QuantileSketch> merged = new TreeMap<Long, QuantileSketch>();
+		for (String name : names) {
+			TimeSerie ts = getTimeSerie(name);
+			Archive archive = (ts==null ? null : ts.getArchive(step));
+			if(!(archive instanceof QuantileArchive)) throw new ArchiveInitException("archive QUANTILE "+step+" inexistante : "+name);
+			ArchiveColumns columns = archive.getColumns(start, nb);
+			for(int i=columns.defined.nextSetBit(0); i>=0 && i<columns.size(); i=columns.defined.nextSetBit(i+1)){
+				QuantileSketch sketch = merged.get(columns.getTimestamp(i));
+				if(sketch==null){
+					sketch = new QuantileSketch();
+					merged.put(columns.getTimestamp(i), sketch);
+				}
+				sketch.merge(columns.sketches[i]);
+			}
+		}
+		List<QuantileArchivePoint> points = new ArrayList<QuantileArchivePoint>(merged.size());
+		for (Map.Entry<Long, QuantileSketch> e : merged.entrySet()) {
+			points.add(QuantileArchivePoint.of(e.getKey(), e.getValue()));
+		}
+		return points;
+	}
+	
 	public Collection<TimeSerie> getTimeSeries(){
 		return timeseries.values();
 	}
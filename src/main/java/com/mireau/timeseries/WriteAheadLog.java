@@ -0,0 +1,488 @@
+package com.mireau.timeseries;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Journal d'écriture (Write Ahead Log) commun à toutes les séries de la base.
+ * Chaque point posté est ajouté séquentiellement au journal avant d'être écrit dans les fichiers raw et archive.
+ * Le journal est forcé sur disque (fsync) par groupe (group commit) :
+ *  - syncIntervalMillis <= 0 (mode durable) : chaque post attend que ses enregistrements soient sur disque.
+ *    Un seul fsync est en cours à la fois ; il couvre tous les enregistrements écrits avant son début,
+ *    et libère tous les post en attente derrière lui (les post arrivés pendant un fsync partagent le suivant).
+ *  - syncIntervalMillis > 0 (mode différé) : le post rend la main dès l'écriture dans le journal (cache système),
+ *    le fsync est fait toutes les syncIntervalMillis ms ou tous les syncBytes octets.
+ *    Sur arrêt brutal du système (pas seulement de la JVM), les points postés depuis le dernier fsync sont perdus :
+ *    au plus syncIntervalMillis ms ou syncBytes octets de points acquittés.
+ * Au démarrage, les points présents dans le journal sont rejoués dans les données brutes et les archives.
+ * Le journal est vidé à chaque checkpoint (données brutes et step en cours des archives écrits sur disque).
+ *
+ * Format:
+ *   En tête:
+ *     aucun
+ *   Chaque enregistrement :
+ *     idLen     short / 2 bytes
+ *     id        bytes / idLen bytes (UTF-8)
+ *     timestamp long  / 8 bytes (millisecondes)
+ *     valeur    float / 4 bytes
+ *     crc       int   / 4 bytes (CRC32 des champs précédents)
+ */
+public class WriteAheadLog {
+
+	static Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+	static Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Taille du journal déclenchant un checkpoint */
+	static long DEFAULT_CHECKPOINT_BYTES = 64*1024*1024;
+	/** Taille maximum écrite en une fois pour une série de points (cf append) */
+	static int MAX_BATCH_BYTES = 1024*1024;
+
+	File walFile;
+	FileChannel channel;
+	ByteBuffer buffer = ByteBuffer.allocateDirect(64*1024);
+	/** Tampon d'un enregistrement (hors crc) pour le calcul du CRC (sous writeLock) */
+	ByteBuffer recordBuffer = ByteBuffer.allocate(2 + Short.MAX_VALUE + 8 + 4);
+	CRC32 crc = new CRC32();
+
+	/** Délai maximum entre deux fsync (0: fsync à chaque écriture) */
+	long syncIntervalMillis;
+	/** Volume maximum écrit entre deux fsync */
+	long syncBytes;
+	/** Taille du journal au delà de laquelle un checkpoint est déclenché */
+	long checkpointBytes = DEFAULT_CHECKPOINT_BYTES;
+
+	/** Position logique (octets écrits depuis l'ouverture, croissante même après troncature) : fin des enregistrements écrits */
+	volatile long writtenOffset = 0;
+	/** Position logique jusqu'à laquelle les enregistrements sont sur disque (sous syncLock) */
+	long syncedOffset = 0;
+	/** Un fsync est en cours (sous syncLock) */
+	boolean syncing = false;
+	/** Nombre de fsync faits par le group commit depuis l'ouverture (sous syncLock) */
+	long syncCount = 0;
+
+	/** Verrou d'écriture dans le journal */
+	ReentrantLock writeLock = new ReentrantLock();
+	/** Verrou du group commit : suivi de la position synchronisée, attente des post */
+	ReentrantLock syncLock = new ReentrantLock();
+	Condition synced = syncLock.newCondition();
+
+	/**
+	 * Verrou de checkpoint : partagé par les post (journal + application aux séries),
+	 * exclusif pour le checkpoint (écriture des séries puis troncature du journal)
+	 */
+	ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+
+	ScheduledExecutorService scheduler;
+
+	TimeSeriesDB db;
+
+	protected WriteAheadLog(TimeSeriesDB db, File walFile, long syncIntervalMillis, long syncBytes) throws IOException{
+		this.db = db;
+		this.walFile = walFile;
+		this.syncIntervalMillis = syncIntervalMillis;
+		this.syncBytes = syncBytes;
+	}
+
+	/**
+	 * Ouvre le journal en écriture et démarre la tâche de fsync périodique et de checkpoint
+	 * @throws IOException
+	 */
+	protected void open() throws IOException{
+		channel = FileChannel.open(walFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		channel.position(channel.size());
+
+		long period = (syncIntervalMillis > 0 ? syncIntervalMillis : 1000);
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "wal-sync");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sync();
+					if(size() > checkpointBytes) db.checkpoint();
+				} catch (Exception e) {
+					logger.log(Level.SEVERE, "wal sync: "+e.getMessage(), e);
+				}
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * A appeler avant l'ajout d'un point au journal et son application à la série
+	 */
+	protected void beginPost(){
+		checkpointLock.readLock().lock();
+	}
+
+	protected void endPost(){
+		checkpointLock.readLock().unlock();
+	}
+
+	/**
+	 * Ajoute un point au journal. En mode durable, rend la main une fois le point sur disque
+	 * @param idBytes identifiant de la série encodé en UTF-8 (cf TimeSerie.walId)
+	 * @param timestamp (millisecondes)
+	 * @throws IOException
+	 */
+	protected void append(byte[] idBytes, long timestamp, float value) throws IOException{
+		long offset;
+		writeLock.lock();
+		try{
+			ensureCapacity(recordLen(idBytes));
+			putRecord(idBytes, timestamp, value);
+			offset = write();
+		}
+		finally{
+			writeLock.unlock();
+		}
+		commit(offset);
+	}
+
+	/**
+	 * Ajoute une série de points au journal (une seule écriture)
+	 * @param scale multiplicateur des timestamps vers les millisecondes
+	 * @throws IOException
+	 */
+	protected void append(byte[] idBytes, long[] timestamps, long scale, float[] values, int off, int len) throws IOException{
+		RawData.checkBounds(timestamps, values, off, len);
+		if(len==0) return;
+		long offset;
+		writeLock.lock();
+		try{
+			//écriture par blocs d'au plus MAX_BATCH_BYTES octets : la taille du tampon ne dépend pas de celle du lot
+			int recordLen = recordLen(idBytes);
+			ensureCapacity((int)Math.max(recordLen, Math.min((long)recordLen*len, MAX_BATCH_BYTES)));
+			for(int i=off;i<off+len;i++){
+				if(buffer.remaining() < recordLen) write();
+				putRecord(idBytes, timestamps[i]*scale, values[i]);
+			}
+			offset = write();
+		}
+		finally{
+			writeLock.unlock();
+		}
+		commit(offset);
+	}
+
+	private int recordLen(byte[] idBytes){
+		return 2 + idBytes.length + 8 + 4 + 4;
+	}
+
+	private void ensureCapacity(int len){
+		if(buffer.capacity() < len) buffer = ByteBuffer.allocateDirect(len);
+	}
+
+	private void putRecord(byte[] idBytes, long timestamp, float value){
+		recordBuffer.clear();
+		recordBuffer.putShort((short)idBytes.length).put(idBytes).putLong(timestamp).putFloat(value);
+		crc.reset();
+		crc.update(recordBuffer.array(), 0, recordBuffer.position());
+		recordBuffer.flip();
+		buffer.put(recordBuffer);
+		buffer.putInt((int)crc.getValue());
+	}
+
+	/**
+	 * Ecrit le contenu du tampon dans le journal (sans fsync, sous writeLock)
+	 * @return position logique de fin des enregistrements écrits
+	 */
+	private long write() throws IOException{
+		buffer.flip();
+		int len = buffer.remaining();
+		while(buffer.hasRemaining()){
+			channel.write(buffer);
+		}
+		buffer.clear();
+		writtenOffset += len;
+		return writtenOffset;
+	}
+
+	/**
+	 * Fin d'un ajout : en mode durable, attente de la mise sur disque des enregistrements écrits ;
+	 * en mode différé, fsync seulement au delà de syncBytes octets non synchronisés
+	 * @param offset position logique de fin des enregistrements ajoutés
+	 */
+	private void commit(long offset) throws IOException{
+		if(syncIntervalMillis <= 0){
+			syncTo(offset);
+		}
+		else if(offset - syncedOffset() >= syncBytes){
+			syncTo(offset);
+		}
+	}
+
+	private long syncedOffset(){
+		syncLock.lock();
+		try{
+			return syncedOffset;
+		}
+		finally{
+			syncLock.unlock();
+		}
+	}
+
+	/**
+	 * Group commit : attend que les enregistrements jusqu'à la position soient sur disque.
+	 * Si aucun fsync n'est en cours, l'appelant le fait (leader) pour tous les enregistrements écrits jusque là,
+	 * sinon il attend la fin du fsync en cours, puis recommence si celui-ci ne le couvrait pas.
+	 * @param offset position logique
+	 * @throws IOException erreur du fsync fait par l'appelant
+	 */
+	private void syncTo(long offset) throws IOException{
+		boolean interrupted = false;
+		syncLock.lock();
+		try{
+			while(syncedOffset < offset){
+				if(syncing){
+					try{
+						synced.await();
+					}
+					catch(InterruptedException e){
+						interrupted = true;
+					}
+					continue;
+				}
+				//leader : fsync hors verrou, les post suivants continuent d'écrire dans le journal
+				syncing = true;
+				long target = writtenOffset;
+				boolean done = false;
+				syncLock.unlock();
+				try{
+					FileChannel channel = this.channel;
+					if(channel!=null) channel.force(false);
+					done = true;
+				}
+				finally{
+					syncLock.lock();
+					syncing = false;
+					if(done){
+						syncCount++;
+						if(target > syncedOffset) syncedOffset = target;
+					}
+					synced.signalAll();
+				}
+			}
+		}
+		finally{
+			syncLock.unlock();
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Force l'écriture sur disque des enregistrements du journal
+	 * @throws IOException
+	 */
+	public void sync() throws IOException{
+		syncTo(writtenOffset);
+	}
+
+	/**
+	 * @return nombre de fsync faits par le group commit depuis l'ouverture
+	 */
+	public long getSyncCount(){
+		syncLock.lock();
+		try{
+			return syncCount;
+		}
+		finally{
+			syncLock.unlock();
+		}
+	}
+
+	public long size() throws IOException{
+		return channel==null ? walFile.length() : channel.size();
+	}
+
+	/**
+	 * Vide le journal. Les séries doivent avoir été écrites sur disque au préalable (cf TimeSeriesDB.checkpoint)
+	 * @throws IOException
+	 */
+	protected void truncate() throws IOException{
+		writeLock.lock();
+		try{
+			channel.truncate(0);
+			channel.position(0);
+			channel.force(true);
+			//les enregistrements supprimés sont intégrés aux séries
+			syncLock.lock();
+			try{
+				if(writtenOffset > syncedOffset) syncedOffset = writtenOffset;
+			}
+			finally{
+				syncLock.unlock();
+			}
+		}
+		finally{
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Lit le contenu du journal, regroupé par série.
+	 * La lecture s'arrête au premier enregistrement incomplet ou corrompu (écriture interrompue)
+	 * @return points par identifiant de série
+	 * @throws IOException
+	 */
+	protected Map<String, Points> read() throws IOException{
+		Map<String, Points> result = new LinkedHashMap<String, Points>();
+		if(!walFile.exists()) return result;
+
+		DataInputStream in = null;
+		long nb = 0;
+		try{
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(walFile)));
+			ByteBuffer record = ByteBuffer.allocate(2 + Short.MAX_VALUE + 8 + 4);
+			while(true){
+				int idLen = in.readShort();
+				if(idLen < 0){
+					logger.warning("journal corrompu après "+nb+" enregistrements");
+					break;
+				}
+				byte[] idBytes = new byte[idLen];
+				in.readFully(idBytes);
+				long timestamp = in.readLong();
+				float value = in.readFloat();
+				int recordCrc = in.readInt();
+
+				record.clear();
+				record.putShort((short)idLen).put(idBytes).putLong(timestamp).putFloat(value);
+				crc.reset();
+				crc.update(record.array(), 0, record.position());
+				if((int)crc.getValue() != recordCrc){
+					logger.warning("journal corrompu après "+nb+" enregistrements");
+					break;
+				}
+
+				String id = new String(idBytes, UTF8);
+				Points points = result.get(id);
+				if(points==null){
+					points = new Points();
+					result.put(id, points);
+				}
+				points.add(timestamp, value);
+				nb++;
+			}
+		}
+		catch(EOFException e){
+			//fin du journal (éventuellement enregistrement incomplet)
+		}
+		finally{
+			if(in!=null) in.close();
+		}
+		logger.info("journal "+walFile.getName()+" : "+nb+" enregistrements");
+		return result;
+	}
+
+	/**
+	 * Ferme le journal
+	 * @throws IOException
+	 */
+	protected void close() throws IOException{
+		if(scheduler!=null){
+			scheduler.shutdown();
+			scheduler = null;
+		}
+		writeLock.lock();
+		try{
+			if(channel!=null){
+				channel.force(false);
+				channel.close();
+				channel = null;
+			}
+		}
+		finally{
+			writeLock.unlock();
+		}
+	}
+
+	public long getSyncIntervalMillis() {
+		return syncIntervalMillis;
+	}
+
+	public long getSyncBytes() {
+		return syncBytes;
+	}
+
+	public long getCheckpointBytes() {
+		return checkpointBytes;
+	}
+
+	public void setCheckpointBytes(long checkpointBytes) {
+		this.checkpointBytes = checkpointBytes;
+	}
+
+	/**
+	 * Points d'une série lus dans le journal
+	 */
+	static class Points{
+		long[] timestamps = new long[16];
+		float[] values = new float[16];
+		int size = 0;
+
+		void add(long timestamp, float value){
+			if(size == timestamps.length){
+				timestamps = Arrays.copyOf(timestamps, size*2);
+				values = Arrays.copyOf(values, size*2);
+			}
+			timestamps[size] = timestamp;
+			values[size] = value;
+			size++;
+		}
+
+		/**
+		 * Tri chronologique stable (permutation d'indices, cf RawColumns.sort) : les points du journal sont 
+		 * dans l'ordre d'arrivée, souvent déjà triés (rien à faire) ou presque (tri par fusion quasi linéaire)
+		 */
+		void sort(){
+			int i = 1;
+			while(i<size && timestamps[i-1] <= timestamps[i]) i++;
+			if(i>=size) return;
+			Integer[] index = new Integer[size];
+			for(i=0;i<size;i++) index[i] = i;
+			final long[] t = timestamps;
+			Arrays.sort(index, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer i1, Integer i2) {
+					return Long.compare(t[i1], t[i2]);
+				}
+			});
+			long[] sortedTimestamps = new long[timestamps.length];
+			float[] sortedValues = new float[values.length];
+			for(i=0;i<size;i++){
+				sortedTimestamps[i] = timestamps[index[i]];
+				sortedValues[i] = values[index[i]];
+			}
+			timestamps = sortedTimestamps;
+			values = sortedValues;
+		}
+	}
+}
@@ -1,12 +1,28 @@
 package com.mireau.timeseries;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.LogManager;
 import java.util.logging.Logger;
 
@@ -133,7 +149,7 @@ public class DataSerieTest {
 		
 		//La taille du fichier raw doit correspondre à la taille d'un enregistrement
 		int nb = 1;
-		Assert.assertEquals(rawFile.length(), RawData.DATA_LEN * nb);
+		Assert.assertEquals(rawFile.length(), RawData.HEADER_LEN + RawData.DATA_LEN * nb);
 		
 		//on est censé n'avoir aucun enregistrement dans l'archive de 5mn
 		long expectedLen = Archive.HEADER1_LEN;
@@ -146,7 +162,7 @@ public class DataSerieTest {
 		cal.add(Calendar.MINUTE, 1);	//00:11		T5+1
 		nb++;
 		ts.post(cal.getTime(), 2);
-		Assert.assertEquals(rawFile.length(), RawData.DATA_LEN * nb);
+		Assert.assertEquals(rawFile.length(), RawData.HEADER_LEN + RawData.DATA_LEN * nb);
 		
 		//on est censé n'avoir aucun enregistrement dans l'archive de 5mn
 		Assert.assertEquals(expectedLen,archive5File.length());
@@ -157,7 +173,7 @@ public class DataSerieTest {
 		cal.add(Calendar.MINUTE, 5);	//00:16		T5+6
 		nb++;
 		ts.post(cal.getTime(), 3);
-		Assert.assertEquals(rawFile.length(), RawData.DATA_LEN * nb);
+		Assert.assertEquals(rawFile.length(), RawData.HEADER_LEN + RawData.DATA_LEN * nb);
 		
 		//on est censé avoir 1 enregistrement dans l'archive de 5mn, 
 		assertNbInArchiveFile(1,archive5,archive5File);	
@@ -168,7 +184,7 @@ public class DataSerieTest {
 		cal.add(Calendar.MINUTE, 10);	//00:26 	T5+16
 		nb++;
 		ts.post(cal.getTime(), 4);
-		Assert.assertEquals(rawFile.length(), RawData.DATA_LEN * nb);
+		Assert.assertEquals(rawFile.length(), RawData.HEADER_LEN + RawData.DATA_LEN * nb);
 		
 		//on est censé avoir 2 enregistrement dans l'archive de 5mn
 		assertNbInArchiveFile(2,archive5,archive5File);
@@ -179,7 +195,7 @@ public class DataSerieTest {
 		cal.add(Calendar.MINUTE, 5);	//00:31		T5+21
 		nb++;
 		ts.post(cal.getTime(), 5);
-		Assert.assertEquals(rawFile.length(), RawData.DATA_LEN * nb);
+		Assert.assertEquals(rawFile.length(), RawData.HEADER_LEN + RawData.DATA_LEN * nb);
 		
 		//on est censé avoir 4 enregistrement dans l'archive de 5mn
 		assertNbInArchiveFile(4,archive5,archive5File);
@@ -266,7 +282,7 @@ public class DataSerieTest {
 		
 		//La taille du fichier raw doit correspondre à la taille d'un enregistrement
 		int nb = 1;
-		Assert.assertEquals(rawFile.length(), RawData.DATA_LEN * nb);
+		Assert.assertEquals(rawFile.length(), RawData.HEADER_LEN + RawData.DATA_LEN * nb);
 		
 		//on est censé n'avoir aucun enregistrement dans l'archive de 5mn
 		long expectedLen = Archive.HEADER1_LEN;
@@ -279,7 +295,7 @@ public class DataSerieTest {
 		cal.add(Calendar.MINUTE, 1);	//00:11		T5+1
 		nb++;
 		ts.post(cal.getTime(), 5);
-		Assert.assertEquals(rawFile.length(), RawData.DATA_LEN * nb);
+		Assert.assertEquals(rawFile.length(), RawData.HEADER_LEN + RawData.DATA_LEN * nb);
 		
 		//on est censé n'avoir aucun enregistrement dans l'archive de 5mn
 		Assert.assertEquals(expectedLen,archive5File.length());
@@ -290,7 +306,7 @@ public class DataSerieTest {
 		cal.add(Calendar.MINUTE, 5);	//00:16		T5+6
 		nb++;
 		ts.post(cal.getTime(), 11);
-		Assert.assertEquals(rawFile.length(), RawData.DATA_LEN * nb);
+		Assert.assertEquals(rawFile.length(), RawData.HEADER_LEN + RawData.DATA_LEN * nb);
 		
 		//on est censé avoir 1 enregistrement dans l'archive de 5mn, 
 		assertNbInArchiveFile(1,archive5,archive5File);	
@@ -328,7 +344,7 @@ public class DataSerieTest {
 		cal.add(Calendar.MINUTE, 9);	//00:26 	T5+16
 		nb++;
 		ts.post(cal.getTime(), 2);
-		Assert.assertEquals(rawFile.length(), RawData.DATA_LEN * nb);
+		Assert.assertEquals(rawFile.length(), RawData.HEADER_LEN + RawData.DATA_LEN * nb);
 		
 		//on est censé avoir 2 enregistrement dans l'archive de 5mn
 		assertNbInArchiveFile(2,archive5,archive5File);
@@ -341,7 +357,7 @@ public class DataSerieTest {
 		cal.add(Calendar.MINUTE, 5);	//00:31		T5+21
 		nb++;
 		ts.post(cal.getTime(), 16);
-		Assert.assertEquals(rawFile.length(), RawData.DATA_LEN * nb);
+		Assert.assertEquals(rawFile.length(), RawData.HEADER_LEN + RawData.DATA_LEN * nb);
 		
 		//on est censé avoir 4 enregistrement dans l'archive de 5mn
 		assertNbInArchiveFile(4,archive5,archive5File);
@@ -371,6 +387,1979 @@ public class DataSerieTest {
 	}
 	
 	
+	/**
+	 * Canal d'écriture des données brutes : maintenu ouvert entre deux post, 
+	 * tampon écrit par flush, libéré par close, rouvert en fin de fichier
+	 * @throws IOException
+	 */
+	@Test
+	public void t03_test() throws IOException {
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 31);
+		
+		File appendFile = new File(DIR+"/ts_test-append.rts");
+		appendFile.delete();
+		RawData raw = new RawData(appendFile);
+		long len0 = raw.getFile().length();
+		long t = cal.getTimeInMillis()/1000;
+		raw.setAppendBufferSize(3);
+		raw.post(t, 1);
+		raw.post(t+60, 2);
+		FileChannel channel = raw.appendChannel;
+		Assert.assertNotNull(channel);
+		Assert.assertEquals(len0, appendFile.length());	//en attente dans le tampon
+		raw.flush();
+		Assert.assertEquals(len0 + 2*RawData.DATA_LEN, appendFile.length());
+		raw.post(t+120, 3);
+		Assert.assertSame(channel, raw.appendChannel);
+		raw.close();
+		Assert.assertNull(raw.appendChannel);
+		Assert.assertFalse(channel.isOpen());
+		Assert.assertEquals(len0 + 3*RawData.DATA_LEN, appendFile.length());
+		
+		raw = new RawData(appendFile);
+		Assert.assertEquals(3, raw.getLast().value, 0.0000001);
+		raw.post(t+180, 4);
+		raw.close();
+		Assert.assertEquals(len0 + 4*RawData.DATA_LEN, appendFile.length());
+		Iterator<Entry> iter = raw.iterator(null, null);
+		for(int i=0;i<4;i++){
+			Entry e = iter.next();
+			Assert.assertEquals(t+i*60, e.timestamp);
+			Assert.assertEquals(i+1, e.value, 0.0000001);
+		}
+		Assert.assertFalse(iter.hasNext());
+		raw.close();
+	}
+	
+	
+	/**
+	 * Test d'enregistrement par lot
+	 * @throws IOException
+	 * @throws TimeSerieException 
+	 */
+	@Test
+	public void t04_test() throws IOException, TimeSerieException {
+		final String name = "test-batch";
+		
+		TimeSerie ts = new TimeSerie(name,DIR);
+		ts.getMeta().setType(Type.AVERAGE);
+		File rawFile = new File(DIR+"/ts_"+name+".rts");
+		
+		Archive archive5 = ts.createArchive(5*60);
+		File archive5File = new File(DIR+"/ts_"+name+"_"+(5*60)+".ats");
+		
+		//Mêmes points que t01 : 00:10, 00:11, 00:16, 00:26, 00:31
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 10, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		long[] timestamps = { t0, t0+60, t0+6*60, t0+16*60, t0+21*60 };
+		float[] values = { 1, 2, 3, 4, 5 };
+		
+		ts.post(timestamps, values);
+		Assert.assertEquals(RawData.HEADER_LEN + RawData.DATA_LEN * timestamps.length, rawFile.length());
+		assertNbInArchiveFile(4,archive5,archive5File);
+		
+		//Le step en cours est écrit en fin de lot
+		AverageArchivePoint point = (AverageArchivePoint)archive5.currentStepPoint();
+		Assert.assertEquals(5,point.getValue(),0.0001);
+		
+		Entry e = ts.getLast();
+		Assert.assertEquals(5,e.value,0.0000001);
+		Assert.assertEquals(t0+21*60,e.timestamp);
+		
+		ts.close();
+		
+		//Lot écrit par blocs (journal et données brutes) : taille des tampons indépendante de celle du lot
+		int batchRecords = RawData.BATCH_WRITE_RECORDS;
+		int batchBytes = WriteAheadLog.MAX_BATCH_BYTES;
+		RawData.BATCH_WRITE_RECORDS = 2;
+		WriteAheadLog.MAX_BATCH_BYTES = 50;
+		try{
+			File dir = new File(DIR+"/batch-blocks");
+			dir.mkdirs();
+			for(File f : dir.listFiles()) f.delete();
+			TimeSeriesDB db = new TimeSeriesDB(dir);
+			db.enableWriteAheadLog(1000, 1024);
+			ts = db.getTimeSerie("test-batch-blocks", true);
+			ts.getMeta().setType(Type.AVERAGE);
+			ts.post(timestamps, values);
+			Assert.assertEquals(timestamps.length, db.getWriteAheadLog().read().get("test-batch-blocks").size);
+			RawColumns raw = ts.getRawDS().read(null, null);
+			Assert.assertEquals(timestamps.length, raw.size());
+			for(int i=0;i<timestamps.length;i++){
+				Assert.assertEquals(timestamps[i]*1000, raw.getTimestamps()[i]);
+				Assert.assertEquals(values[i], raw.getValues()[i], 0);
+			}
+			db.close();
+		}
+		finally{
+			RawData.BATCH_WRITE_RECORDS = batchRecords;
+			WriteAheadLog.MAX_BATCH_BYTES = batchBytes;
+		}
+	}
+	
+	
+	/**
+	 * Test du journal d'écriture : rejeu après arrêt anormal
+	 * @throws IOException
+	 * @throws TimeSerieException 
+	 */
+	@Test
+	public void t05_test() throws IOException, TimeSerieException {
+		final String name = "test-wal";
+		File dir = new File(DIR+"/wal");
+		dir.mkdirs();
+		for(File f : dir.listFiles()) f.delete();
+		
+		TimeSeriesDB db = new TimeSeriesDB(dir);
+		db.enableWriteAheadLog(1000, 1024);
+		TimeSerie ts = db.getTimeSerie(name, true);
+		ts.getMeta().setType(Type.AVERAGE);
+		Archive archive5 = ts.createArchive(5*60);
+		Assert.assertEquals(Archive.WriteStrategy.CHANGE_STEP, archive5.getWriteStartegy());
+		
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 10, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		long[] timestamps = { t0, t0+60, t0+6*60, t0+16*60, t0+21*60 };
+		float[] values = { 1, 2, 3, 4, 5 };
+		for(int i=0;i<timestamps.length;i++){
+			ts.post(timestamps[i], values[i]);
+		}
+		
+		/*
+		 * Arrêt anormal : le journal n'est pas vidé, les derniers points bruts sont perdus
+		 */
+		db.wal.close();
+		ts.rawDS.close();
+		File rawFile = new File(dir,"ts_"+name+".rts");
+		RandomAccessFile raf = new RandomAccessFile(rawFile, "rw");
+		raf.setLength(RawData.HEADER_LEN + 2*RawData.DATA_LEN);
+		raf.close();
+		
+		/*
+		 * Redémarrage : rejeu du journal
+		 */
+		db = new TimeSeriesDB(dir);
+		db.enableWriteAheadLog(1000, 1024);
+		Assert.assertEquals(0, db.getWriteAheadLog().size());
+		
+		ts = db.getTimeSerie(name);
+		Assert.assertEquals(RawData.HEADER_LEN + RawData.DATA_LEN * timestamps.length, rawFile.length());
+		Entry e = ts.getLast();
+		Assert.assertEquals(5,e.value,0.0000001);
+		
+		archive5 = ts.getArchive(5*60);
+		assertNbInArchiveFile(4,archive5,new File(dir,"ts_"+name+"_"+(5*60)+".ats"));
+		Assert.assertEquals(5,archive5.currentStepPoint().getValue(),0.0001);
+		
+		db.close();
+	}
+	
+	/**
+	 * Journal d'écriture en mode durable : post simultanés (group commit), 
+	 * chaque post rend la main avec ses points sur disque, les post simultanés partagent un fsync ;
+	 * relecture (CRC) de tous les points
+	 */
+	@Test
+	public void t06_test() throws Exception {
+		File dir = new File(DIR+"/wal-group");
+		dir.mkdirs();
+		for(File f : dir.listFiles()) f.delete();
+		
+		final TimeSeriesDB db = new TimeSeriesDB(dir);
+		db.enableWriteAheadLog(0, 0);
+		final int nbThreads = 8;
+		final int nbPoints = 100;
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int n=0;n<nbThreads;n++){
+			final TimeSerie ts = db.getTimeSerie("test-wal-group-"+n, true);
+			ts.getMeta().setType(Type.AVERAGE);
+			Thread thread = new Thread(){
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for(int i=0;i<nbPoints;i++){
+							ts.post(1449446400L+i*60, i);
+						}
+					} catch (Throwable e) {
+						failure.set(e);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		WriteAheadLog wal = db.getWriteAheadLog();
+		long syncs = wal.getSyncCount();
+		start.countDown();
+		for(Thread thread : threads) thread.join();
+		Assert.assertNull(failure.get());
+		
+		Assert.assertEquals(wal.writtenOffset, wal.syncedOffset);
+		//group commit : moins de fsync que de post
+		syncs = wal.getSyncCount() - syncs;
+		Assert.assertTrue(syncs > 0);
+		Assert.assertTrue("fsync: "+syncs, syncs < nbThreads*nbPoints);
+		Map<String, WriteAheadLog.Points> content = wal.read();
+		Assert.assertEquals(nbThreads, content.size());
+		for(WriteAheadLog.Points points : content.values()){
+			Assert.assertEquals(nbPoints, points.size);
+		}
+		db.close();
+	}
+	
+	
+	/**
+	 * Test de lecture des données brutes par projection mémoire
+	 * @throws IOException
+	 * @throws TimeSerieException 
+	 */
+	@Test
+	public void t07_test() throws IOException, TimeSerieException {
+		final String name = "test-mapped";
+		
+		TimeSerie ts = new TimeSerie(name,DIR);
+		ts.getMeta().setType(Type.AVERAGE);
+		long t0 = 1449443400;
+		for(int i=0;i<100;i++){
+			ts.post(t0+i*60, i);
+		}
+		
+		RawData raw = ts.getRawDS();
+		for(boolean mapped : new boolean[]{false,true}){
+			raw.setMappedRead(mapped);
+			
+			//Recherche du premier point (exact, puis timestamp intermédiaire)
+			Iterator<Entry> iter = raw.iterator(t0+37*60, t0+40*60);
+			int nb = 0;
+			while(iter.hasNext()){
+				Entry e = iter.next();
+				Assert.assertEquals(37+nb, e.value, 0.0001);
+				nb++;
+			}
+			Assert.assertEquals(4, nb);
+			Assert.assertFalse(iter.hasNext());
+			
+			iter = raw.iterator(t0+80*60+1, null);
+			Assert.assertEquals(81, iter.next().value, 0.0001);
+			
+			//Curseur primitif
+			RawCursor cursor = raw.cursor(t0+98*60, null);
+			Assert.assertTrue(cursor.next());
+			Assert.assertEquals(t0+98*60, cursor.timestamp());
+			Assert.assertEquals(98, cursor.value(), 0.0001);
+			Assert.assertTrue(cursor.next());
+			Assert.assertFalse(cursor.next());
+			cursor.close();
+			
+			//Parcours complet dans l'ordre, bornes incluses, périodes vides
+			List<Float> all = cursorValues(raw.cursor(null, null));
+			Assert.assertEquals(100, all.size());
+			for(int i=0;i<all.size();i++){
+				Assert.assertEquals(i, all.get(i), 0.0001);
+			}
+			Assert.assertEquals(Arrays.asList(10f, 11f, 12f), cursorValues(raw.cursor(t0+10*60, t0+12*60)));
+			Assert.assertEquals(Arrays.asList(11f), cursorValues(raw.cursor(t0+10*60+1, t0+12*60-1)));
+			Assert.assertEquals(Arrays.asList(0f), cursorValues(raw.cursor(null, t0)));
+			Assert.assertEquals(Arrays.asList(99f), cursorValues(raw.cursor(t0+99*60, t0+200*60)));
+			Assert.assertTrue(cursorValues(raw.cursor(null, t0-1)).isEmpty());
+			Assert.assertTrue(cursorValues(raw.cursor(t0+99*60+1, null)).isEmpty());
+			Assert.assertTrue(cursorValues(raw.cursor(t0+50*60, t0+40*60)).isEmpty());
+			
+			//Lecture en colonnes
+			RawColumns columns = raw.read(t0+10*60-1, t0+20*60);
+			Assert.assertEquals(11, columns.size());
+			Assert.assertEquals((t0+10*60)*1000, columns.getTimestamps()[0]);
+			Assert.assertEquals(20, columns.getValues()[10], 0.0001);
+			Assert.assertEquals(100, raw.read(null, null).size());
+			Assert.assertEquals(0, raw.read(t0+200*60, null).size());
+			
+			List<Entry> last = raw.getLastPoints(3);
+			Assert.assertEquals(3, last.size());
+			Assert.assertEquals(99, last.get(0).value, 0.0001);
+			Assert.assertEquals(97, last.get(2).value, 0.0001);
+			Assert.assertEquals(100, raw.getLastPoints(1000).size());
+			
+			//Lecture en colonnes : timestamps croissants, bornes incluses, période vide
+			columns = raw.read(null, null);
+			for(int i=1;i<columns.size();i++){
+				Assert.assertTrue(columns.getTimestamps()[i] > columns.getTimestamps()[i-1]);
+			}
+			Assert.assertEquals(3, raw.read(t0+10*60, t0+12*60).size());
+			Assert.assertEquals(1, raw.read(t0+10*60+1, t0+12*60-1).size());
+			Assert.assertEquals(0, raw.read(t0+50*60, t0+40*60).size());
+			
+			//Lecture par blocs de quelques enregistrements (mode fichier) : mêmes valeurs que le curseur
+			int blockRecords = RawData.RDSCursor.READ_BLOCK_RECORDS;
+			RawData.RDSCursor.READ_BLOCK_RECORDS = 7;
+			try{
+				columns = raw.read(t0+3*60, null);
+				List<Float> values = cursorValues(raw.cursor(t0+3*60, null));
+				Assert.assertEquals(values.size(), columns.size());
+				for(int i=0;i<columns.size();i++){
+					Assert.assertEquals(values.get(i), columns.getValues()[i], 0.0001);
+				}
+				Assert.assertEquals(100, raw.getLastPoints(100).size());
+			}
+			finally{
+				RawData.RDSCursor.READ_BLOCK_RECORDS = blockRecords;
+			}
+			
+			//Derniers points : du plus récent au plus ancien
+			last = raw.getLastPoints(100);
+			for(int i=0;i<last.size();i++){
+				Assert.assertEquals(99-i, last.get(i).value, 0.0001);
+			}
+			Assert.assertTrue(raw.getLastPoints(0).isEmpty());
+			
+			//Bornes en millisecondes
+			columns = raw.readMillis((t0+10*60)*1000+1, (t0+12*60)*1000);
+			Assert.assertEquals(2, columns.size());
+			Assert.assertEquals(11, columns.getValues()[0], 0.0001);
+			Assert.assertEquals(12, columns.getValues()[1], 0.0001);
+		}
+		
+		//La projection suit l'agrandissement du fichier
+		ts.post(t0+100*60, 100);
+		Assert.assertEquals(100, raw.getLastPoints(1).get(0).value, 0.0001);
+		
+		//Fichier inchangé : projection réutilisée
+		RawData.MappedView view = raw.readMap;
+		Assert.assertEquals(101, cursorValues(raw.cursor(null, null)).size());
+		Assert.assertEquals(101, raw.read(null, null).size());
+		Assert.assertSame(view, raw.readMap);
+		
+		//Valeurs en attente dans le tampon d'écriture : écrites avant lecture
+		raw.setAppendBufferSize(10);
+		ts.post(t0+101*60, 101);
+		Assert.assertEquals(102, cursorValues(raw.cursor(null, null)).size());
+		Assert.assertEquals(102, raw.read(null, null).size());
+		Assert.assertEquals(101, raw.getLastPoints(1).get(0).value, 0.0001);
+		
+		ts.close();
+	}
+	
+	/**
+	 * Test du découpage des données brutes en segments journaliers
+	 * @throws IOException
+	 * @throws TimeSerieException 
+	 */
+	@Test
+	public void t08_test() throws IOException, TimeSerieException, InterruptedException {
+		final String name = "test-segments";
+		
+		TimeSerie ts = new TimeSerie(name,DIR);
+		ts.getMeta().setType(Type.AVERAGE);
+		ts.setRawPartition(RawData.Partition.DAY);
+		ts.getMeta().writeMetadata();
+		
+		//3 jours, un point par heure
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 30, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		for(int i=0;i<24;i++){
+			ts.post(t0+i*3600, i);
+		}
+		long[] timestamps = new long[48];
+		float[] values = new float[48];
+		for(int i=0;i<48;i++){
+			timestamps[i] = t0+(24+i)*3600;
+			values[i] = 24+i;
+		}
+		ts.post(timestamps, values);
+		ts.close();
+		
+		//Réouverture : index des segments
+		ts = new TimeSerie(name,DIR);
+		RawData raw = ts.getRawDS();
+		Assert.assertEquals(RawData.Partition.DAY, raw.getPartition());
+		Assert.assertEquals(2, raw.getSegments().size());
+		Assert.assertEquals(RawData.HEADER_LEN + RawData.DATA_LEN * 24, raw.getFile().length());
+		Assert.assertEquals(RawData.HEADER_LEN*3 + RawData.DATA_LEN * 72, raw.getSize());
+		Assert.assertEquals(71, ts.getLast().value, 0.0001);
+		
+		//Lecture à cheval sur deux segments
+		RawColumns columns = raw.read(t0+20*3600, t0+30*3600);
+		Assert.assertEquals(11, columns.size());
+		Assert.assertEquals(20, columns.getValues()[0], 0.0001);
+		Assert.assertEquals(30, columns.getValues()[10], 0.0001);
+		
+		RawCursor cursor = raw.cursor(null, null);
+		int nb = 0;
+		while(cursor.next()){
+			Assert.assertEquals(nb, cursor.value(), 0.0001);
+			nb++;
+		}
+		cursor.close();
+		Assert.assertEquals(72, nb);
+		
+		List<Entry> last = raw.getLastPoints(30);
+		Assert.assertEquals(30, last.size());
+		Assert.assertEquals(42, last.get(29).value, 0.0001);
+		
+		//Archive construite sur l'ensemble des segments
+		Archive archive = ts.createArchive(3600);
+		Assert.assertEquals(72, archive.getPoints(t0, 100).size());
+		
+		//Limites des segments dans le fuseau fixe du calage (UTC+1), quel que soit le fuseau de la machine
+		StepAlignment alignment = StepAlignment.getDefault();
+		TimeZone zone = TimeZone.getDefault();
+		StepAlignment.setDefault(new StepAlignment(3600, Calendar.MONDAY));
+		TimeZone.setDefault(TimeZone.getTimeZone("Europe/Paris"));
+		try{
+			//2016-07-01 12:00 UTC (heure d'été à Paris) -> 2016-07-02 00:00 UTC+1
+			Assert.assertEquals(1467414000000L, raw.nextSegmentStart(1467374400000L));
+			//veille du changement d'heure : 2016-03-26 23:30 UTC+1 -> 2016-03-27 00:00 UTC+1
+			Assert.assertEquals(1459033200000L, raw.nextSegmentStart(1459031400000L));
+			raw.partition = RawData.Partition.MONTH;
+			//2016-03-15 -> 2016-04-01 00:00 UTC+1
+			Assert.assertEquals(1459465200000L, raw.nextSegmentStart(1458043200000L));
+		}
+		finally{
+			raw.partition = RawData.Partition.DAY;
+			StepAlignment.setDefault(alignment);
+			TimeZone.setDefault(zone);
+		}
+		
+		//Suppression du premier segment
+		Assert.assertEquals(1, raw.dropSegmentsBefore(t0+24*3600));
+		Assert.assertEquals(48, raw.read(null, null).size());
+		
+		//Lectures pendant la fermeture de nouveaux segments : ni valeur sautée ni doublon
+		final TimeSerie writer = ts;
+		final long t1 = t0+72*3600;
+		final Exception[] error = new Exception[1];
+		Thread thread = new Thread(){
+			@Override
+			public void run(){
+				try{
+					for(int i=0;i<5*24;i++){
+						writer.post(t1+i*3600, 72+i);
+					}
+				}
+				catch(Exception e){
+					error[0] = e;
+				}
+			}
+		};
+		thread.start();
+		while(thread.isAlive()){
+			columns = raw.read(null, null);
+			for(int i=0;i<columns.size();i++){
+				Assert.assertEquals(24+i, columns.getValues()[i], 0.0001);
+			}
+			last = raw.getLastPoints(30);
+			for(int i=1;i<last.size();i++){
+				Assert.assertEquals(last.get(0).value-i, last.get(i).value, 0.0001);
+			}
+			cursor = raw.cursor(null, null);
+			nb = 0;
+			while(cursor.next()){
+				Assert.assertEquals(24+nb, cursor.value(), 0.0001);
+				nb++;
+			}
+			cursor.close();
+		}
+		thread.join();
+		Assert.assertNull(error[0]);
+		Assert.assertEquals(168, raw.read(null, null).size());
+		Assert.assertEquals(6, raw.getSegments().size());
+		
+		ts.close();
+	}
+	
+	/**
+	 * Valeurs fournies par le curseur (timestamps strictement croissants), puis fermeture du curseur
+	 */
+	List<Float> cursorValues(RawCursor cursor) throws IOException{
+		List<Float> values = new ArrayList<Float>();
+		long previous = Long.MIN_VALUE;
+		while(cursor.next()){
+			Assert.assertTrue(cursor.timestamp() > previous);
+			previous = cursor.timestamp();
+			values.add(cursor.value());
+		}
+		Assert.assertFalse(cursor.next());
+		cursor.close();
+		return values;
+	}
+	
+	/**
+	 * Test des durées de conservation
+	 * @throws IOException
+	 * @throws TimeSerieException 
+	 */
+	@Test
+	public void t09_test() throws IOException, TimeSerieException, InterruptedException {
+		final String name = "test-retention";
+		
+		TimeSerie ts = new TimeSerie(name,DIR);
+		ts.getMeta().setType(Type.AVERAGE);
+		ts.getMeta().setRawRetention(30*60L);
+		ts.getMeta().setArchiveRetention(5*60, 60*60L);
+		ts.getMeta().writeMetadata();
+		Archive archive5 = ts.createArchive(5*60);
+		File archive5File = new File(DIR+"/ts_"+name+"_"+(5*60)+".ats");
+		
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		for(int i=0;i<240;i++){
+			ts.post(t0+i*60, i);
+		}
+		assertNbInArchiveFile(47,archive5,archive5File);
+		
+		long now = t0+239*60;
+		ts.applyRetention(now);
+		
+		//Données brutes : 30 dernières minutes
+		RawColumns columns = ts.getRawDS().read(null, null);
+		Assert.assertEquals(31, columns.size());
+		Assert.assertEquals((now-30*60)*1000, columns.getTimestamps()[0]);
+		
+		//Archive : 1 heure (le step à cheval sur la limite est conservé)
+		long start = t0+175*60;
+		assertNbInArchiveFile(12,archive5,archive5File);
+		Assert.assertEquals(start, archive5.getStartTimestamp().getTime()/1000);
+		List<ArchivePoint> points = archive5.getPoints(start, 2);
+		Assert.assertEquals(177, points.get(0).getValue(), 0.0001);
+		Assert.assertEquals(182, points.get(1).getValue(), 0.0001);
+		
+		//Les points suivants sont toujours enregistrés
+		ts.post(now+60, 240);
+		Assert.assertEquals(32, ts.getRawDS().read(null, null).size());
+		Assert.assertEquals(240, ts.getLast().value, 0.0001);
+		ts.close();
+		
+		//Réouverture
+		ts = new TimeSerie(name,DIR);
+		Assert.assertEquals(60*60L, (long)ts.getMeta().getArchiveRetention(5*60));
+		Assert.assertEquals(start, ts.getArchive(5*60).getStartTimestamp().getTime()/1000);
+		
+		//Rétentions concurrentes pendant l'écriture : pas de perte ni de fichier temporaire résiduel
+		final TimeSerie ts2 = ts;
+		final long now2 = now+60*60;
+		Thread[] threads = new Thread[2];
+		for(int k=0;k<threads.length;k++){
+			threads[k] = new Thread(){
+				@Override
+				public void run(){
+					try{
+						ts2.applyRetention(now2);
+					}
+					catch(IOException e){
+						throw new RuntimeException(e);
+					}
+				}
+			};
+		}
+		for(Thread t : threads) t.start();
+		for(int i=1;i<60;i++){
+			ts.post(now+60+i*60, 240+i);
+		}
+		for(Thread t : threads) t.join();
+		ts.applyRetention(now2);
+		columns = ts.getRawDS().read(null, null);
+		Assert.assertEquals(31, columns.size());
+		Assert.assertEquals((now2-30*60)*1000, columns.getTimestamps()[0]);
+		Assert.assertEquals(now2*1000, columns.getTimestamps()[30]);
+		Assert.assertEquals(299, ts.getLast().value, 0.0001);
+		for(File f : new File(DIR).listFiles()){
+			Assert.assertFalse(f.getName(), f.getName().startsWith("ts_"+name) && f.getName().endsWith(".tmp"));
+		}
+		ts.close();
+	}
+	
+	
+	/**
+	 * Test des segments compressés
+	 * @throws IOException
+	 * @throws TimeSerieException 
+	 */
+	@Test
+	public void t10_test() throws IOException, TimeSerieException {
+		final String name = "test-compression";
+		
+		TimeSerie ts = new TimeSerie(name,DIR);
+		ts.getMeta().setType(Type.AVERAGE);
+		ts.setRawPartition(RawData.Partition.DAY);
+		ts.setRawCompression(true);
+		ts.getMeta().writeMetadata();
+		
+		//3 jours, un point par minute (avec quelques irrégularités)
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		int nb = 3*24*60;
+		long[] timestamps = new long[nb];
+		float[] values = new float[nb];
+		for(int i=0;i<nb;i++){
+			timestamps[i] = t0+i*60+(i%7==0 ? 3 : 0);
+			values[i] = (i%10==0 ? 20.5f : 20.5f+(i%13)*0.1f);
+		}
+		ts.post(timestamps, values);
+		ts.close();
+		
+		//Réouverture : segments compressés
+		ts = new TimeSerie(name,DIR);
+		RawData raw = ts.getRawDS();
+		Assert.assertTrue(raw.isCompression());
+		Assert.assertEquals(2, raw.getSegments().size());
+		for (RawData.Segment segment : raw.getSegments()) {
+			Assert.assertTrue(segment.compressed);
+			Assert.assertTrue(segment.file.length() < RawData.DATA_LEN * 24*60 * 3/4);
+		}
+		Assert.assertEquals(values[nb-1], ts.getLast().value, 0.0001);
+		
+		RawColumns columns = raw.read(null, null);
+		Assert.assertEquals(nb, columns.size());
+		for(int i=0;i<nb;i++){
+			Assert.assertEquals(timestamps[i]*1000, columns.getTimestamps()[i]);
+			Assert.assertEquals(values[i], columns.getValues()[i], 0);
+		}
+		
+		//Lecture à cheval sur deux segments
+		columns = raw.read(timestamps[1000], timestamps[2000]);
+		Assert.assertEquals(1001, columns.size());
+		Assert.assertEquals(timestamps[1000]*1000, columns.getTimestamps()[0]);
+		
+		RawCursor cursor = raw.cursor(timestamps[1500], timestamps[1510]);
+		int n = 0;
+		while(cursor.next()){
+			Assert.assertEquals(values[1500+n], cursor.value(), 0);
+			n++;
+		}
+		cursor.close();
+		Assert.assertEquals(11, n);
+		
+		List<Entry> last = raw.getLastPoints(2000);
+		Assert.assertEquals(2000, last.size());
+		Assert.assertEquals(timestamps[nb-2000], last.get(1999).timestamp);
+		
+		ts.close();
+	}
+	
+	
+	/**
+	 * Test de la conversion d'un fichier au format version 1 et des timestamps en millisecondes
+	 * @throws IOException
+	 * @throws TimeSerieException 
+	 */
+	@Test
+	public void t11_test() throws IOException, TimeSerieException, InterruptedException {
+		final String name = "test-millis";
+		
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		
+		//Fichier version 1 : timestamps en secondes sur 4 bytes, sans en tête
+		File rawFile = new File(DIR+"/ts_"+name+".rts");
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(rawFile));
+		for(int i=0;i<10;i++){
+			out.writeInt((int)(t0+i*60));
+			out.writeFloat(i);
+		}
+		out.close();
+		
+		TimeSerie ts = new TimeSerie(name,DIR);
+		ts.getMeta().setType(Type.AVERAGE);
+		ts.getMeta().writeMetadata();
+		Assert.assertEquals(t0+9*60, ts.getLast().timestamp);
+		Assert.assertEquals(RawData.HEADER_LEN + RawData.DATA_LEN * 10, rawFile.length());
+		
+		//Valeurs à la milliseconde, plusieurs par seconde
+		long m0 = (t0+10*60)*1000;
+		for(int i=0;i<10;i++){
+			ts.postMillis(m0+i*250, 10+i);
+		}
+		Assert.assertEquals(m0+9*250, ts.getLast().getTimestampMillis());
+		
+		RawColumns columns = ts.getRawDS().readMillis(m0+250, m0+1000);
+		Assert.assertEquals(4, columns.size());
+		Assert.assertEquals(m0+250, columns.getTimestamps()[0]);
+		Assert.assertEquals(14, columns.getValues()[3], 0.0001);
+		
+		//Lecture à la seconde : bornes incluant toute la seconde
+		Assert.assertEquals(4, ts.getRawDS().read(t0+10*60, t0+10*60).size());
+		Assert.assertEquals(20, ts.getRawDS().read(null, null).size());
+		
+		//Archive construite à la seconde
+		Archive archive = ts.createArchive(5*60);
+		List<ArchivePoint> points = archive.getPoints(t0, 3);
+		Assert.assertEquals(2, points.get(0).getValue(), 0.0001);
+		Assert.assertEquals(14.5, points.get(2).getValue(), 0.0001);
+		ts.close();
+	}
+	
+	
+	/**
+	 * Test de la fenêtre de réordonnancement et des valeurs tardives
+	 * @throws IOException
+	 * @throws TimeSerieException 
+	 */
+	@Test
+	public void t12_test() throws IOException, TimeSerieException, InterruptedException {
+		final String name = "test-reorder";
+		
+		TimeSerie ts = new TimeSerie(name,DIR);
+		ts.getMeta().setType(Type.AVERAGE);
+		ts.setReorderWindow(5*60*1000L);
+		ts.getMeta().writeMetadata();
+		Archive archive5 = ts.createArchive(5*60);
+		RawData raw = ts.getRawDS();
+		
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		
+		//Valeurs désordonnées, dans la fenêtre : une valeur par minute, permutées deux à deux
+		for(int i=0;i<60;i+=2){
+			ts.post(t0+(i+1)*60, i+1);
+			ts.post(t0+i*60, i);
+		}
+		//Seules les valeurs sorties de la fenêtre sont écrites
+		Assert.assertEquals(55, raw.read(null, null).size());
+		
+		ts.sync();
+		RawColumns columns = raw.read(null, null);
+		Assert.assertEquals(60, columns.size());
+		for(int i=0;i<60;i++){
+			Assert.assertEquals(i, columns.getValues()[i], 0);
+		}
+		
+		//Valeur tardive : fichier des valeurs tardives, intégrée par compact()
+		ts.post(t0+5*60+30, 100);
+		Assert.assertEquals(60, raw.read(null, null).size());
+		Assert.assertTrue(raw.getLateFile().exists());
+		
+		ts.compact();
+		Assert.assertFalse(raw.getLateFile().exists());
+		columns = raw.read(t0+5*60, t0+6*60);
+		Assert.assertEquals(3, columns.size());
+		Assert.assertEquals(100, columns.getValues()[1], 0);
+		
+		//Archive reconstruite : step 00:05 = moyenne de 5,6,7,8,9 et 100
+		List<ArchivePoint> points = archive5.getPoints(t0+5*60, 1);
+		Assert.assertEquals((5+6+7+8+9+100)/6f, points.get(0).getValue(), 0.0001);
+		Assert.assertFalse(raw.hasLateValues());
+		
+		//Intégration par blocs de 2 valeurs, avec un fichier laissé par une intégration interrompue
+		int lateRecords = RawData.LATE_MERGE_RECORDS;
+		RawData.LATE_MERGE_RECORDS = 2;
+		try{
+			ts.post(t0+40*60+30, 103);
+			raw.close();	//canal des valeurs tardives fermé avant renommage
+			Assert.assertTrue(raw.getLateFile().renameTo(raw.getMergingLateFile()));
+			ts.post(t0+20*60+30, 102);
+			ts.post(t0+30*60+30, 101);
+			ts.post(t0+10*60+30, 104);
+			ts.post(t0+50*60+30, 105);
+			Assert.assertTrue(raw.hasLateValues());
+			ts.compact();
+		}
+		finally{
+			RawData.LATE_MERGE_RECORDS = lateRecords;
+		}
+		Assert.assertFalse(raw.getLateFile().exists());
+		Assert.assertFalse(raw.getMergingLateFile().exists());
+		Assert.assertFalse(raw.hasLateValues());
+		columns = raw.read(null, null);
+		Assert.assertEquals(66, columns.size());
+		for(int i=1;i<columns.size();i++){
+			Assert.assertTrue(columns.getTimestamps()[i] > columns.getTimestamps()[i-1]);
+		}
+		Assert.assertEquals(101, raw.read(t0+30*60+30, t0+30*60+30).getValues()[0], 0);
+		points = archive5.getPoints(t0+10*60, 1);
+		Assert.assertEquals((10+11+12+13+14+104)/6f, points.get(0).getValue(), 0.0001);
+		
+		//Aucune valeur tardive : rien à faire
+		ts.compact();
+		Assert.assertEquals(66, raw.read(null, null).size());
+		
+		ts.close();
+		
+		//Réouverture
+		ts = new TimeSerie(name,DIR);
+		Assert.assertEquals(5*60*1000L, (long)ts.getMeta().getReorderWindow());
+		Assert.assertEquals(66, ts.getRawDS().read(null, null).size());
+		
+		//Reprise d'une intégration interrompue après écriture des fichiers cibles : valeurs non dupliquées
+		raw = ts.getRawDS();
+		ts.post(t0+15*60+30, 106);
+		ts.post(t0+15*60+45, 107);
+		raw.close();
+		File copy = new File(DIR, "late-copy");
+		java.nio.file.Files.copy(raw.getLateFile().toPath(), copy.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+		ts.compact();
+		Assert.assertEquals(68, raw.read(null, null).size());
+		Assert.assertTrue(copy.renameTo(raw.getMergingLateFile()));
+		ts.compact();
+		Assert.assertFalse(raw.hasLateValues());
+		Assert.assertEquals(68, raw.read(null, null).size());
+		points = ts.getArchive(5*60).getPoints(t0+15*60, 1);
+		Assert.assertEquals((15+16+17+18+19+106+107)/7f, points.get(0).getValue(), 0.0001);
+		ts.close();
+		
+		//Rejeu du journal : valeur tardive perdue à l'arrêt ajoutée aux valeurs tardives, valeurs déjà écrites non dupliquées
+		File dir = new File(DIR+"/wal-late");
+		dir.mkdirs();
+		for(File f : dir.listFiles()) f.delete();
+		TimeSeriesDB db = new TimeSeriesDB(dir);
+		db.enableWriteAheadLog(1000, 1024);
+		ts = db.getTimeSerie("test-wal-late", true);
+		ts.getMeta().setType(Type.AVERAGE);
+		ts.setReorderWindow(60*1000L);
+		for(int i=0;i<10;i++){
+			ts.post(t0+i*60, i);
+		}
+		ts.sync();
+		ts.post(t0+3*60+30, 100);
+		ts.post(t0+5*60+30, 101);
+		
+		//Arrêt anormal : seule la première valeur tardive est sur disque
+		db.wal.close();
+		ts.rawDS.close();
+		RandomAccessFile raf = new RandomAccessFile(ts.rawDS.getLateFile(), "rw");
+		raf.setLength(RawData.HEADER_LEN + RawData.DATA_LEN);
+		raf.close();
+		
+		db = new TimeSeriesDB(dir);
+		db.enableWriteAheadLog(1000, 1024);
+		ts = db.getTimeSerie("test-wal-late");
+		Assert.assertEquals(10, ts.getRawDS().read(null, null).size());
+		columns = ts.getRawDS().readLate(Long.MIN_VALUE, Long.MAX_VALUE);
+		Assert.assertEquals(2, columns.size());
+		Assert.assertTrue(columns.contains((t0+3*60+30)*1000, 100));
+		Assert.assertTrue(columns.contains((t0+5*60+30)*1000, 101));
+		ts.compact();
+		Assert.assertEquals(12, ts.getRawDS().read(null, null).size());
+		db.close();
+	}
+	
+	
+	/**
+	 * Test de la lecture des archives par projection mémoire
+	 * @throws IOException
+	 * @throws TimeSerieException 
+	 */
+	@Test
+	public void t13_test() throws IOException, TimeSerieException, InterruptedException {
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		
+		for(Type type : new Type[]{Type.AVERAGE, Type.ABS_COUNTER}){
+			final String name = "test-mapped-archive-"+type.toString().toLowerCase();
+			TimeSerie ts = new TimeSerie(name,DIR);
+			ts.getMeta().setType(type);
+			Archive archive = ts.createArchive(5*60);
+			for(int i=0;i<120;i++){
+				ts.post(t0+i*60, i*2);
+			}
+			List<ArchivePoint> expected = archive.getPoints(t0, 30);
+			
+			ts.setMappedRead(true);
+			Assert.assertTrue(archive.isMappedRead());
+			List<ArchivePoint> points = archive.getPoints(t0, 30);
+			Assert.assertEquals(expected.size(), points.size());
+			for(int i=0;i<expected.size();i++){
+				Assert.assertEquals(expected.get(i).toString(), points.get(i).toString());
+			}
+			
+			//Le fichier grossit : nouvelle projection
+			for(int i=120;i<180;i++){
+				ts.post(t0+i*60, i*2);
+			}
+			points = archive.getPoints(t0, 40);
+			ts.setMappedRead(false);
+			expected = archive.getPoints(t0, 40);
+			Assert.assertEquals(36, points.size());
+			for(int i=0;i<expected.size();i++){
+				Assert.assertEquals(expected.get(i).toString(), points.get(i).toString());
+			}
+			ts.close();
+		}
+	}
+
+	
+	/**
+	 * Lectures d'archive pendant les écritures : pas d'attente de l'écrivain, état cohérent
+	 */
+	@Test
+	public void t14_test() throws Exception {
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		final long t0 = cal.getTimeInMillis()/1000;
+		
+		final TimeSerie ts = new TimeSerie("test-concurrent-read",DIR);
+		ts.getMeta().setType(Type.AVERAGE);
+		final Archive archive = ts.createArchive(5*60);
+		for(int i=0;i<60;i++){
+			ts.post(t0+i*60, i);
+		}
+		
+		//Ecriture en cours (postLock détenu par un autre thread) : la lecture n'attend pas
+		final CountDownLatch locked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Thread writer = new Thread(){
+			public void run(){
+				archive.lockPost();
+				try{
+					locked.countDown();
+					release.await();
+				}
+				catch(InterruptedException e){
+				}
+				finally{
+					archive.unlockPost();
+				}
+			}
+		};
+		writer.start();
+		locked.await();
+		try{
+			List<ArchivePoint> points = archive.getPoints(t0, 20, 100);
+			Assert.assertEquals(12, points.size());
+		}
+		finally{
+			release.countDown();
+			writer.join();
+		}
+		
+		//Lectures concurrentes des écritures
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final AtomicBoolean stop = new AtomicBoolean(false);
+		Thread reader = new Thread(){
+			public void run(){
+				try{
+					int previous = 0;
+					while(!stop.get()){
+						List<ArchivePoint> points = archive.getPoints(t0, 1000);
+						Assert.assertTrue(points.size() >= previous);
+						for(int i=0;i<points.size();i++){
+							Assert.assertEquals(t0+i*5*60, points.get(i).timestamp);
+						}
+						previous = points.size();
+					}
+				}
+				catch(Throwable e){
+					error.set(e);
+				}
+			}
+		};
+		reader.start();
+		for(int i=60;i<3000;i++){
+			ts.post(t0+i*60, i);
+		}
+		stop.set(true);
+		reader.join();
+		if(error.get()!=null) throw new AssertionError(error.get());
+		Assert.assertEquals(600, archive.getPoints(t0, 1000).size());
+		
+		//Le point du step courant est fourni en copie : sa modification n'affecte pas l'état publié
+		ArchivePoint current = archive.getPoints(t0+599*5*60, 1).get(0);
+		current.timestamp = 0;
+		current.value = -1f;
+		ArchivePoint again = archive.getPoints(t0+599*5*60, 1).get(0);
+		Assert.assertNotSame(current, again);
+		Assert.assertEquals(t0+599*5*60, again.timestamp);
+		Assert.assertEquals(2997, again.getValue(), 0.0001);
+		ts.close();
+	}
+	
+	/**
+	 * Lecture en colonnes : mêmes valeurs que getPoints, en lecture fichier et en projection mémoire
+	 */
+	@Test
+	public void t15_test() throws IOException, TimeSerieException, InterruptedException {
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		
+		for(Type type : new Type[]{Type.AVERAGE, Type.ABS_COUNTER}){
+			TimeSerie ts = new TimeSerie("test-columns-"+type.toString().toLowerCase(),DIR);
+			ts.getMeta().setType(type);
+			Archive archive = ts.createArchive(5*60);
+			for(int i=0;i<120;i++){
+				//trou de 30 minutes
+				if(i>=40 && i<70) continue;
+				ts.post(t0+i*60, i*2);
+			}
+			
+			for(boolean mapped : new boolean[]{false, true}){
+				ts.setMappedRead(mapped);
+				//début avant l'archive, fin au delà du step en cours
+				long start = t0 - 3*5*60;
+				List<ArchivePoint> points = archive.getPoints(start, 40);
+				ArchiveColumns columns = archive.getColumns(start, 40);
+				Assert.assertEquals(points.size(), columns.size());
+				Assert.assertEquals(start, columns.getStart());
+				for(int i=0;i<points.size();i++){
+					ArchivePoint p = points.get(i);
+					Assert.assertEquals(p.timestamp, columns.getTimestamp(i));
+					Assert.assertEquals(p.value!=null, columns.isDefined(i));
+					if(p.value!=null) Assert.assertEquals(p.value, columns.getValues()[i], 0);
+					if(type==Type.AVERAGE && p.value!=null){
+						Assert.assertEquals(((AverageArchivePoint)p).min, columns.getMin()[i], 0);
+						Assert.assertEquals(((AverageArchivePoint)p).max, columns.getMax()[i], 0);
+					}
+					if(type==Type.ABS_COUNTER){
+						AbsCounterArchivePoint cp = (AbsCounterArchivePoint)p;
+						Assert.assertEquals(cp.diff!=null, columns.isDiffDefined(i));
+						if(cp.diff!=null) Assert.assertEquals(cp.diff, columns.getDiff()[i], 0);
+					}
+				}
+			}
+			ts.close();
+		}
+	}
+	
+	/**
+	 * Lecture d'une période limitée en nombre de points : choix de l'archive et réduction
+	 */
+	@Test
+	public void t16_test() throws IOException, TimeSerieException, InterruptedException {
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		long end = t0 + 2*86400 - 1;
+		
+		TimeSerie ts = new TimeSerie("test-downsampling",DIR);
+		ts.getMeta().setType(Type.AVERAGE);
+		ts.createArchive(5*60);
+		Archive hourly = ts.createArchive(3600);
+		for(int i=0;i<2*24*60;i++){
+			ts.post(t0+i*60, i%120);
+		}
+		
+		//archive 5 min suffisante
+		List<ArchivePoint> points = ts.selectRange(t0, end, 600);
+		Assert.assertEquals(576, points.size());
+		Assert.assertEquals(t0+300, points.get(1).timestamp);
+		
+		//archive horaire
+		List<ArchivePoint> hours = ts.selectRange(t0, end, 100);
+		Assert.assertEquals(48, hours.size());
+		Assert.assertEquals(t0+3600, hours.get(1).timestamp);
+		
+		//réduction par paquets de 3 heures
+		points = ts.selectRange(t0, end, 20);
+		Assert.assertEquals(16, points.size());
+		for(int i=0;i<points.size();i++){
+			AverageArchivePoint p = (AverageArchivePoint)points.get(i);
+			Assert.assertEquals(t0+i*3*3600, p.timestamp);
+			float sum = 0;
+			for(int j=0;j<3;j++) sum += hours.get(i*3+j).value;
+			Assert.assertEquals(sum/3, p.value, 0.01);
+			Assert.assertEquals(0, p.min, 0);
+			Assert.assertEquals(119, p.max, 0);
+		}
+		
+		//LTTB : points réels, premier et dernier conservés
+		points = hourly.getRange(t0, end, 20, Archive.Downsampling.LTTB);
+		Assert.assertEquals(16, points.size());
+		Assert.assertEquals(hours.get(0).toString(), points.get(0).toString());
+		Assert.assertEquals(hours.get(47).toString(), points.get(15).toString());
+		for(ArchivePoint p : points){
+			Assert.assertEquals(hours.get((int)(p.timestamp-t0)/3600).toString(), p.toString());
+		}
+		ts.close();
+	}
+	
+	/**
+	 * Planificateur de requête : choix de la source et complément par les données brutes
+	 */
+	@Test
+	public void t17_test() throws IOException, TimeSerieException, InterruptedException {
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		long end = t0 + 86400 - 1;
+		
+		TimeSerie ts = new TimeSerie("test-planner",DIR);
+		ts.getMeta().setType(Type.AVERAGE);
+		Archive fine = ts.createArchive(5*60);
+		Archive hourly = ts.createArchive(3600);
+		for(int i=0;i<24*60;i++){
+			ts.post(t0+i*60, i%60);
+		}
+		
+		//archive de même step
+		List<ArchivePoint> points = ts.select(t0, end, 3600);
+		List<ArchivePoint> expected = hourly.getPoints(t0, 24);
+		Assert.assertEquals(expected.size(), points.size());
+		for(int i=0;i<expected.size();i++){
+			Assert.assertEquals(expected.get(i).toString(), points.get(i).toString());
+		}
+		
+		//regroupement des steps de l'archive 5 min
+		points = ts.select(t0, end, 900);
+		expected = fine.getPoints(t0, 288);
+		Assert.assertEquals(96, points.size());
+		for(int i=0;i<points.size();i++){
+			AverageArchivePoint p = (AverageArchivePoint)points.get(i);
+			Assert.assertEquals(t0+i*900, p.timestamp);
+			float sum = 0;
+			for(int j=0;j<3;j++) sum += expected.get(i*3+j).value;
+			Assert.assertEquals(sum/3, p.value, 0.01);
+		}
+		
+		//données brutes postérieures au dernier step de l'archive (archive en retard)
+		for(int i=24*60;i<26*60;i++){
+			ts.rawDS.post(t0+i*60, 100);
+		}
+		points = ts.select(t0, t0 + 26*3600 - 1, 3600);
+		Assert.assertEquals(26, points.size());
+		Assert.assertEquals(29.5, points.get(0).value, 0.01);
+		Assert.assertEquals(t0+24*3600, points.get(24).timestamp);
+		Assert.assertEquals(100, points.get(24).value, 0);
+		Assert.assertEquals(100, points.get(25).value, 0);
+		ts.close();
+		
+		//sans archive : données brutes
+		ts = new TimeSerie("test-planner-raw",DIR);
+		ts.getMeta().setType(Type.AVERAGE);
+		for(int i=0;i<60;i++){
+			if(i>=20 && i<40) continue;
+			ts.post(t0+i*60, i);
+		}
+		points = ts.select(t0, t0+3599, 600);
+		Assert.assertEquals(6, points.size());
+		Assert.assertEquals(4.5, points.get(0).value, 0.01);
+		Assert.assertEquals(19, ((AverageArchivePoint)points.get(1)).max, 0);
+		Assert.assertNull(points.get(2).value);
+		Assert.assertNull(points.get(3).value);
+		Assert.assertEquals(t0+5*600, points.get(5).timestamp);
+		
+		//début de période quelconque : points calés comme les steps des archives (multiple de 10 minutes, heure fixe du calage)
+		points = ts.select(t0+1234, t0+3599, 600);
+		Calendar fixed = new GregorianCalendar(new java.util.SimpleTimeZone(StepAlignment.getDefault().getZoneOffset()*1000, "test"));
+		fixed.setTimeInMillis((t0+1234)*1000);
+		fixed.set(Calendar.MILLISECOND, 0);
+		fixed.set(Calendar.SECOND, 0);
+		fixed.set(Calendar.MINUTE, fixed.get(Calendar.MINUTE) / 10 * 10);
+		Assert.assertEquals(fixed.getTimeInMillis()/1000, points.get(0).timestamp);
+		Assert.assertEquals(t0+1200, points.get(0).timestamp);
+		ts.close();
+		
+		//compteur absolu (+1 par minute) : la différence d'un paquet part de la dernière valeur du paquet précédent
+		ts = new TimeSerie("test-planner-counter",DIR);
+		ts.getMeta().setType(Type.ABS_COUNTER);
+		for(int i=0;i<2*60;i++){
+			ts.post(t0+i*60, i);
+		}
+		points = ts.select(t0, t0+2*3600-1, 600);
+		Assert.assertEquals(12, points.size());
+		Assert.assertEquals(9, ((AbsCounterArchivePoint)points.get(0)).diff, 0);
+		for(int i=1;i<points.size();i++){
+			Assert.assertEquals(10, ((AbsCounterArchivePoint)points.get(i)).diff, 0);
+		}
+		//fin de période calculée à partir des données brutes : suite de la dernière valeur de l'archive
+		ts.createArchive(3600);
+		for(int i=2*60;i<3*60;i++){
+			ts.rawDS.post(t0+i*60, i);
+		}
+		points = ts.select(t0, t0+3*3600-1, 3600);
+		Assert.assertEquals(3, points.size());
+		Assert.assertEquals(119, points.get(1).value, 0);
+		Assert.assertEquals(60, ((AbsCounterArchivePoint)points.get(2)).diff, 0);
+		ts.close();
+	}
+	
+	/**
+	 * Consolidation en cascade : mêmes steps terminés qu'avec une alimentation par les valeurs brutes
+	 */
+	@Test
+	public void t18_test() throws IOException, TimeSerieException, InterruptedException {
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		
+		for(Type type : new Type[]{Type.AVERAGE, Type.ABS_COUNTER}){
+			String suffix = type.toString().toLowerCase();
+			TimeSerie reference = new TimeSerie("test-consolidation-ref-"+suffix,DIR);
+			reference.getMeta().setType(type);
+			reference.createArchive(5*60);
+			reference.createArchive(3600);
+			
+			TimeSerie ts = new TimeSerie("test-consolidation-"+suffix,DIR);
+			ts.getMeta().setType(type);
+			ts.setArchiveConsolidation(true);
+			Archive fine = ts.createArchive(5*60);
+			Archive hourly = ts.createArchive(3600);
+			Assert.assertSame(fine, hourly.source);
+			Assert.assertNull(fine.source);
+			
+			float counter = 0;
+			for(int i=0;i<12*60;i++){
+				counter += i%7;
+				float value = (type==Type.AVERAGE ? i%50 : counter);
+				ts.post(t0+i*60, value);
+				reference.post(t0+i*60, value);
+			}
+			
+			//steps terminés identiques
+			List<ArchivePoint> expected = reference.getArchive(3600).getPoints(t0, 11);
+			List<ArchivePoint> points = hourly.getPoints(t0, 11);
+			Assert.assertEquals(11, points.size());
+			for(int i=0;i<11;i++){
+				Assert.assertEquals(expected.get(i).toString(), points.get(i).toString());
+			}
+			
+			//archive intermédiaire : l'archive horaire est reconstruite depuis l'archive 15 min
+			Archive quarter = ts.createArchive(15*60);
+			Assert.assertSame(fine, quarter.source);
+			Assert.assertSame(quarter, hourly.source);
+			points = hourly.getPoints(t0, 11);
+			for(int i=0;i<11;i++){
+				Assert.assertEquals(expected.get(i).value, points.get(i).value, 0.01);
+			}
+			ts.close();
+			reference.close();
+		}
+	}	
+	
+	/**
+	 * Consolidation en cascade : l'archive grossière alimentée au fil de l'eau est identique 
+	 * à l'archive alimentée par les valeurs brutes et à sa reconstruction depuis l'archive plus fine 
+	 * (nombre de valeurs variable par step, overflows du compteur)
+	 */
+	@Test
+	public void t19_test() throws IOException, TimeSerieException, InterruptedException {
+		File dir = new File(DIR+"/cascade");
+		dir.mkdirs();
+		for(File f : dir.listFiles()) f.delete();
+		
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		
+		TimeSeriesDB db = new TimeSeriesDB(dir);
+		for(Type type : new Type[]{Type.AVERAGE, Type.ABS_COUNTER, Type.REL_COUNTER}){
+			TimeSerie ts = db.getTimeSerie("test-cascade-"+type, true);
+			TimeSerie ref = db.getTimeSerie("test-cascade-ref-"+type, true);
+			for(TimeSerie serie : new TimeSerie[]{ts, ref}){
+				serie.getMeta().setType(type);
+				serie.setArchiveConsolidation(serie==ts);
+				serie.createArchive(60);
+				serie.createArchive(3600);
+			}
+			Archive coarse = ts.getArchive(3600);
+			Assert.assertNotNull(coarse.source);
+			Assert.assertNull(ref.getArchive(3600).source);
+			
+			int k = 0;
+			for(int i=0;i<6*60;i++){
+				//1 à 4 valeurs par minute
+				for(int j=0;j<=i%4;j++){
+					float v = (type==Type.ABS_COUNTER ? (k*37)%1000 : (k*13)%50);
+					ts.post(t0+i*60+j*10, v);
+					ref.post(t0+i*60+j*10, v);
+					k++;
+				}
+			}
+			//steps terminés (le step en cours de l'archive consolidée n'intègre pas celui de sa source)
+			List<String> live = new ArrayList<String>();
+			for(ArchivePoint p : coarse.getPoints(t0, 5)) live.add(p.toString());
+			List<String> raw = new ArrayList<String>();
+			for(ArchivePoint p : ref.getArchive(3600).getPoints(t0, 5)) raw.add(p.toString());
+			Assert.assertEquals(type.toString(), raw, live);
+			
+			ts.buildArchive(coarse);
+			List<String> rebuilt = new ArrayList<String>();
+			for(ArchivePoint p : coarse.getPoints(t0, 5)) rebuilt.add(p.toString());
+			Assert.assertEquals(type.toString(), live, rebuilt);
+			ts.close();
+			ref.close();
+		}
+	}
+	
+	/**
+	 * Archive AVERAGE au format version 0 (enregistrements sans nombre de valeurs) : conversion à l'ouverture
+	 */
+	@Test
+	public void t20_test() throws IOException, TimeSerieException, InterruptedException {
+		File file = new File(DIR+"/ts_test-average-v0_300.ats");
+		long t0 = 1449446400L;
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try{
+			out.writeInt(300);
+			out.writeInt(1);
+			out.writeLong(t0);
+			//step en cours
+			out.writeLong(t0+3*300);
+			out.writeDouble(10);
+			out.writeInt(2);
+			out.writeFloat(4);
+			out.writeFloat(6);
+			//enregistrements
+			out.writeBoolean(true); out.writeFloat(1.5f); out.writeFloat(1); out.writeFloat(2);
+			out.writeBoolean(false); out.writeFloat(0); out.writeFloat(0); out.writeFloat(0);
+			out.writeBoolean(true); out.writeFloat(3); out.writeFloat(3); out.writeFloat(3);
+		}
+		finally{
+			out.close();
+		}
+		
+		Archive archive = Archive.getArchive(file, "test-average-v0");
+		assertNbInArchiveFile(3, archive, file);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{
+			raf.seek(4);
+			Assert.assertEquals(1 | (AverageArchive.VERSION << 16), raf.readInt());
+		}
+		finally{
+			raf.close();
+		}
+		Assert.assertFalse(new File(file.getPath()+".tmp").exists());
+		
+		List<ArchivePoint> points = archive.getPoints(t0, 4);
+		Assert.assertEquals(4, points.size());
+		Assert.assertEquals(1.5, points.get(0).value, 0);
+		Assert.assertEquals(1, ((AverageArchivePoint)points.get(0)).getNb());
+		Assert.assertNull(points.get(1).value);
+		Assert.assertEquals(3, points.get(2).value, 0);
+		Assert.assertEquals(5, points.get(3).value, 0);
+		Assert.assertEquals(2, ((AverageArchivePoint)points.get(3)).getNb());
+		
+		//nouveaux steps : nombre de valeurs enregistré
+		archive.post(t0+3*300+10, 8);
+		archive.post(t0+4*300, 1);
+		Assert.assertEquals(3, ((AverageArchivePoint)archive.getPoints(t0+3*300, 1).get(0)).getNb());
+		assertNbInArchiveFile(4, archive, file);
+	}
+	
+	/**
+	 * Reconstruction parallèle des archives de plusieurs séries (un seul parcours des données brutes par série)
+	 */
+	@Test
+	public void t21_test() throws IOException, TimeSerieException, InterruptedException {
+		File dir = new File(DIR+"/rebuild");
+		dir.mkdirs();
+		for(File f : dir.listFiles()) f.delete();
+		
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		
+		TimeSeriesDB db = new TimeSeriesDB(dir);
+		int nbSeries = 4;
+		List<List<String>> expected = new ArrayList<List<String>>();
+		for(int s=0;s<nbSeries;s++){
+			TimeSerie ts = db.getTimeSerie("test-rebuild-"+s, true);
+			ts.getMeta().setType(Type.AVERAGE);
+			ts.setArchiveConsolidation(s>=2);
+			ts.createArchive(60);
+			ts.createArchive(5*60);
+			ts.createArchive(3600);
+			for(int i=0;i<6*60;i++){
+				ts.post(t0+i*60+s, (i*(s+1))%50);
+			}
+			List<String> points = new ArrayList<String>();
+			for(Archive archive : ts.archives){
+				for(ArchivePoint p : archive.getPoints(t0, 400)) points.add(p.toString());
+			}
+			expected.add(points);
+		}
+		
+		final AtomicInteger calls = new AtomicInteger();
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		int rebuilt = db.rebuildArchives(2, new TimeSeriesDB.RebuildListener() {
+			@Override
+			public void progress(TimeSerie ts, int done, int total, Exception error) {
+				calls.incrementAndGet();
+				if(error!=null) failure.set(error);
+			}
+		});
+		Assert.assertEquals(nbSeries, rebuilt);
+		Assert.assertEquals(nbSeries, calls.get());
+		Assert.assertNull(failure.get());
+		
+		for(int s=0;s<nbSeries;s++){
+			TimeSerie ts = db.getTimeSerie("test-rebuild-"+s);
+			List<String> points = new ArrayList<String>();
+			for(Archive archive : ts.archives){
+				Assert.assertTrue(archive.buildCount > 0);
+				for(ArchivePoint p : archive.getPoints(t0, 400)) points.add(p.toString());
+			}
+			Assert.assertEquals(expected.get(s), points);
+			ts.close();
+		}
+	}
+	
+	/**
+	 * Reconstruction partielle (valeur tardive dans une période sans valeur) : résultat identique à une reconstruction complète,
+	 * avec ou sans consolidation en cascade ; une seconde reconstruction complète (compteur : points précédents effacés) 
+	 * donne le même résultat
+	 */
+	@Test
+	public void t22_test() throws IOException, TimeSerieException, InterruptedException {
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		
+		for(int c=0;c<4;c++){
+			Type type = (c<2 ? Type.AVERAGE : Type.ABS_COUNTER);
+			boolean consolidation = (c%2==1);
+			TimeSerie ts = new TimeSerie("test-rebuild-from-"+type.toString().toLowerCase()+(consolidation ? "-cascade" : ""),DIR);
+			ts.getMeta().setType(type);
+			ts.setReorderWindow(5*60*1000L);
+			ts.setArchiveConsolidation(consolidation);
+			Archive fine = ts.createArchive(5*60);
+			ts.createArchive(3600);
+			for(int i=0;i<6*60;i++){
+				//trou de 30 minutes
+				if(i>=100 && i<130) continue;
+				ts.post(t0+i*60, (type==Type.AVERAGE ? i%50 : i*3));
+			}
+			
+			//valeur tardive dans le trou
+			ts.post(t0+115*60+30, 100*3+5);
+			ts.compact();
+			Assert.assertTrue(fine.buildFrom > fine.startTimestamp);
+			//compteur : reprise après le dernier step défini (lissage du diff sur les steps sans valeur)
+			Assert.assertEquals(type==Type.AVERAGE ? t0+115*60 : t0+100*60, fine.buildFrom);
+			List<String> expected = new ArrayList<String>();
+			for(Archive archive : ts.archives){
+				for(ArchivePoint p : archive.getPoints(t0, 100)) expected.add(p.toString());
+				expected.add(String.valueOf(archive.currentStepPoint()));
+			}
+			
+			ts.buildArchives();
+			Assert.assertEquals(Long.MIN_VALUE, fine.buildFrom);
+			List<String> points = new ArrayList<String>();
+			for(Archive archive : ts.archives){
+				for(ArchivePoint p : archive.getPoints(t0, 100)) points.add(p.toString());
+				points.add(String.valueOf(archive.currentStepPoint()));
+			}
+			Assert.assertEquals(expected, points);
+			
+			ts.buildArchives();
+			points.clear();
+			for(Archive archive : ts.archives){
+				for(ArchivePoint p : archive.getPoints(t0, 100)) points.add(p.toString());
+				points.add(String.valueOf(archive.currentStepPoint()));
+			}
+			Assert.assertEquals(expected, points);
+			ts.close();
+		}
+	}
+	
+	/**
+	 * Compteur relatif : somme, nombre de valeurs et débit par step
+	 */
+	@Test
+	public void t23_test() throws IOException, TimeSerieException, InterruptedException {
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		
+		TimeSerie ts = new TimeSerie("test-rel-counter",DIR);
+		ts.getMeta().setType(Type.REL_COUNTER);
+		ts.getMeta().writeMetadata();
+		ts.setArchiveConsolidation(true);
+		Archive fine = ts.createArchive(5*60);
+		Archive hourly = ts.createArchive(3600);
+		Assert.assertEquals(Type.REL_COUNTER, fine.getType());
+		Assert.assertSame(fine, hourly.source);
+		for(int i=0;i<3*60;i++){
+			//trou de 10 minutes
+			if(i>=60 && i<70) continue;
+			ts.post(t0+i*60, 10);
+		}
+		
+		List<ArchivePoint> points = fine.getPoints(t0, 36);
+		Assert.assertEquals(36, points.size());
+		RelCounterArchivePoint p = (RelCounterArchivePoint)points.get(0);
+		Assert.assertEquals(50, p.getValue(), 0);
+		Assert.assertEquals(5, p.getNb());
+		Assert.assertEquals(50f/300, p.getRate(), 0.0001);
+		Assert.assertNull(points.get(12).getValue());
+		Assert.assertNull(points.get(13).getValue());
+		
+		ArchiveColumns columns = fine.getColumns(t0, 35);
+		Assert.assertEquals(5, columns.getCounts()[1]);
+		Assert.assertFalse(columns.isDefined(12));
+		
+		//consolidation : la deuxième heure n'a que 50 valeurs
+		points = hourly.getPoints(t0, 2);
+		Assert.assertEquals(600, points.get(0).getValue(), 0);
+		Assert.assertEquals(500, points.get(1).getValue(), 0);
+		Assert.assertEquals(50, ((RelCounterArchivePoint)points.get(1)).getNb());
+		
+		//regroupement par paquets de 15 minutes
+		points = ts.select(t0, t0+3599, 900);
+		Assert.assertEquals(4, points.size());
+		Assert.assertEquals(150, points.get(0).getValue(), 0);
+		Assert.assertEquals(150f/900, ((RelCounterArchivePoint)points.get(0)).getRate(), 0.0001);
+		ts.close();
+		
+		//Réouverture
+		ts = new TimeSerie("test-rel-counter",DIR);
+		fine = ts.getArchive(5*60);
+		Assert.assertTrue(fine instanceof RelCounterArchive);
+		Assert.assertEquals(50, ((RelCounterArchive)fine).getStepSum(), 0);
+		Assert.assertEquals(50, fine.getPoints(t0, 1).get(0).getValue(), 0);
+		ts.close();
+	}
+	
+	/**
+	 * Archive de quantiles : estimation des quantiles, consolidation et fusion de plusieurs séries
+	 */
+	@Test
+	public void t24_test() throws IOException, TimeSerieException, InterruptedException {
+		//fusion identique à l'ajout direct, y compris au delà de la dynamique conservée
+		QuantileSketch direct = new QuantileSketch();
+		QuantileSketch low = new QuantileSketch();
+		QuantileSketch high = new QuantileSketch();
+		for(int i=0;i<=10000;i++){
+			direct.add(i);
+			if(i%3==0) low.add(i); else high.add(i);
+		}
+		high.merge(low);
+		Assert.assertEquals(direct.getCount(), high.getCount());
+		Assert.assertArrayEquals(direct.counts, high.counts);
+		Assert.assertEquals(9900, direct.quantile(0.99), 9900*QuantileSketch.RELATIVE_ACCURACY);
+		Assert.assertEquals(0, direct.quantile(0), 0);
+		Assert.assertEquals(10000, direct.quantile(1), 0);
+		
+		File dir = new File(DIR+"/quantile");
+		dir.mkdirs();
+		for(File f : dir.listFiles()) f.delete();
+		
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		
+		TimeSeriesDB db = new TimeSeriesDB(dir);
+		for(int s=0;s<2;s++){
+			TimeSerie ts = db.getTimeSerie("test-quantile-"+s, true);
+			ts.getMeta().setType(Type.QUANTILE);
+			ts.setArchiveConsolidation(true);
+			ts.createArchive(5*60);
+			ts.createArchive(3600);
+			//une valeur par seconde : 1..100 (série 0), 101..200 (série 1)
+			for(int i=0;i<2*3600;i++){
+				ts.post(t0+i, (i%100) + 1 + s*100);
+			}
+		}
+		
+		TimeSerie ts = db.getTimeSerie("test-quantile-0");
+		List<ArchivePoint> points = ts.getArchive(5*60).getPoints(t0, 2);
+		QuantileArchivePoint p = (QuantileArchivePoint)points.get(0);
+		Assert.assertEquals(300, p.getCount());
+		Assert.assertEquals(50, p.getValue(), 50*QuantileSketch.RELATIVE_ACCURACY);
+		Assert.assertEquals(99, p.getQuantile(0.99), 99*QuantileSketch.RELATIVE_ACCURACY);
+		
+		//archive horaire alimentée par les résumés de l'archive 5 min
+		p = (QuantileArchivePoint)ts.getArchive(3600).getPoints(t0, 1).get(0);
+		Assert.assertEquals(3600, p.getCount());
+		Assert.assertEquals(95, p.getQuantile(0.95), 95*QuantileSketch.RELATIVE_ACCURACY);
+		
+		//fusion des deux séries
+		List<QuantileArchivePoint> merged = db.selectQuantiles(Arrays.asList("test-quantile-0", "test-quantile-1"), 3600, t0, 1);
+		Assert.assertEquals(1, merged.size());
+		Assert.assertEquals(7200, merged.get(0).getCount());
+		Assert.assertEquals(100, merged.get(0).getValue(), 100*QuantileSketch.RELATIVE_ACCURACY);
+		Assert.assertEquals(198, merged.get(0).getQuantile(0.99), 198*QuantileSketch.RELATIVE_ACCURACY);
+		
+		//réouverture
+		for (TimeSerie serie : db.getTimeSeries()) serie.close();
+		db = new TimeSeriesDB(dir);
+		p = (QuantileArchivePoint)db.getTimeSerie("test-quantile-1").getArchive(5*60).getPoints(t0, 1).get(0);
+		Assert.assertEquals(150, p.getValue(), 150*QuantileSketch.RELATIVE_ACCURACY);
+		for (TimeSerie serie : db.getTimeSeries()) serie.close();
+	}
+	
+	/**
+	 * Calage arithmétique des steps : comparaison avec un calage par calendrier
+	 * (heure, jour, semaine) pour différents fuseaux et débuts de semaine
+	 */
+	@Test
+	public void t25_test() {
+		java.util.Random random = new java.util.Random(21);
+		int[] offsets = { 0, 3600, -5*3600, 20700 };
+		int[] weekStarts = { Calendar.MONDAY, Calendar.SUNDAY, Calendar.SATURDAY };
+		for (int offset : offsets) {
+			for (int weekStart : weekStarts) {
+				StepAlignment alignment = new StepAlignment(offset, weekStart);
+				Calendar cal = new GregorianCalendar(new java.util.SimpleTimeZone(offset*1000, "test"));
+				cal.setFirstDayOfWeek(weekStart);
+				for (int i = 0; i < 200; i++) {
+					//timestamps de 1950 à 2040
+					long t = (long)(random.nextDouble() * 90 * 365 * 86400L) - 20 * 365 * 86400L;
+					for (int step : Archive.ALLOWED_STEPS) {
+						cal.setTimeInMillis(t*1000);
+						cal.set(Calendar.SECOND, 0);
+						cal.set(Calendar.MINUTE, 0);
+						if(step>3600) cal.set(Calendar.HOUR_OF_DAY, 0);
+						if(step>86400){
+							while(cal.get(Calendar.DAY_OF_WEEK)!=weekStart) cal.add(Calendar.DAY_OF_MONTH, -1);
+						}
+						long expected = cal.getTimeInMillis()/1000;
+						while(expected + step <= t) expected += step;
+						Assert.assertEquals("t="+t+" step="+step+" offset="+offset+" weekStart="+weekStart, expected, alignment.align(t, step));
+					}
+				}
+			}
+		}
+		
+		//calage par défaut : semaines débutant le lundi
+		StepAlignment alignment = StepAlignment.getDefault();
+		Calendar cal = new GregorianCalendar(new java.util.SimpleTimeZone(alignment.getZoneOffset()*1000, "test"));
+		cal.setTimeInMillis(alignment.align(System.currentTimeMillis()/1000, 7*86400)*1000);
+		Assert.assertEquals(Calendar.MONDAY, cal.get(Calendar.DAY_OF_WEEK));
+		Assert.assertEquals(0, cal.get(Calendar.HOUR_OF_DAY));
+		Assert.assertEquals(0, cal.get(Calendar.MINUTE));
+		
+		//heure d'été non prise en compte : décalage fixe (UTC+1 pour Paris), les jours débutent à minuit en hiver
+		//et à 01:00 heure locale en été
+		alignment = new StepAlignment(3600, Calendar.MONDAY);
+		Calendar paris = new GregorianCalendar(java.util.TimeZone.getTimeZone("Europe/Paris"));
+		paris.clear();
+		paris.set(2016, Calendar.JANUARY, 15, 0, 0, 0);
+		long midnight = paris.getTimeInMillis()/1000;
+		Assert.assertEquals(midnight, alignment.align(midnight+12*3600, 86400));
+		paris.set(2016, Calendar.JULY, 15, 0, 0, 0);
+		midnight = paris.getTimeInMillis()/1000;
+		Assert.assertEquals(midnight+3600, alignment.align(midnight+12*3600, 86400));
+		Assert.assertEquals(midnight+3600-86400, alignment.align(midnight+1800, 86400));
+		//steps d'une heure et moins : non décalés (changement d'heure d'une heure entière)
+		Assert.assertEquals(midnight, alignment.align(midnight+59, 3600));
+	}
+	
+	/**
+	 * Archives existantes créées avec un autre calage : à la réouverture, elles conservent leurs steps 
+	 * (y compris après reconstruction) et ne sont pas chaînées à une archive calée différemment
+	 */
+	@Test
+	public void t26_test() throws IOException, TimeSerieException, InterruptedException {
+		File dir = new File(DIR+"/legacy-alignment");
+		dir.mkdirs();
+		for(File f : dir.listFiles()) f.delete();
+		
+		StepAlignment current = StepAlignment.getDefault();
+		long t0 = current.align(1449446400L, 86400);
+		
+		//fichiers créés avec des heures décalées d'une demi-heure
+		StepAlignment.setDefault(new StepAlignment(current.getZoneOffset() + 1800, current.getWeekStart()));
+		try{
+			TimeSeriesDB db = new TimeSeriesDB(dir);
+			TimeSerie ts = db.getTimeSerie("test-legacy", true);
+			ts.getMeta().setType(Type.AVERAGE);
+			ts.setArchiveConsolidation(true);
+			ts.createArchive(5*60);
+			ts.createArchive(3600);
+			for(int i=0;i<3*60;i++){
+				ts.post(t0+i*60, i%60);
+			}
+			Assert.assertEquals(t0-1800, ts.getArchive(3600).getStartTimestamp().getTime()/1000);
+			ts.getMeta().writeMetadata();
+			ts.close();
+		}
+		finally{
+			StepAlignment.setDefault(current);
+		}
+		
+		TimeSeriesDB db = new TimeSeriesDB(dir);
+		TimeSerie ts = db.getTimeSerie("test-legacy");
+		Archive hourly = ts.getArchive(3600);
+		Assert.assertEquals(t0-1800, hourly.stepOrigin);
+		Assert.assertEquals(current.origin, ts.getArchive(5*60).stepOrigin);
+		Assert.assertEquals(300, (int)hourly.source.getStep());
+		for(int i=3*60;i<5*60;i++){
+			ts.post(t0+i*60, i%60);
+		}
+		List<String> points = new ArrayList<String>();
+		for(ArchivePoint p : hourly.getPoints(t0-1800, 10)) points.add(p.toString());
+		Assert.assertEquals(6, points.size());
+		Assert.assertEquals(t0+3*3600+1800, hourly.getPoints(t0+3*3600+1800, 1).get(0).timestamp);
+		
+		//reconstruction : mêmes steps
+		ts.buildArchive(hourly);
+		List<String> rebuilt = new ArrayList<String>();
+		for(ArchivePoint p : hourly.getPoints(t0-1800, 10)) rebuilt.add(p.toString());
+		Assert.assertEquals(points, rebuilt);
+		
+		//nouvelle archive (calage courant) : alimentée par l'archive 5 min, pas par l'archive horaire décalée
+		Archive daily = ts.createArchive(86400);
+		Assert.assertEquals(current.origin, daily.stepOrigin);
+		Assert.assertEquals(300, (int)daily.source.getStep());
+		Assert.assertEquals(t0, daily.getStartTimestamp().getTime()/1000);
+		ts.close();
+	}
+	
+	/**
+	 * Pipeline d'écriture : plusieurs producteurs, un écrivain par série ; résultat identique à l'écriture directe.
+	 * Création d'archive pendant l'écriture (liste des archives remplacée)
+	 */
+	@Test
+	public void t27_test() throws IOException, TimeSerieException, InterruptedException {
+		File dir = new File(DIR+"/ingest");
+		File refDir = new File(DIR+"/ingest-ref");
+		for(File d : new File[]{dir, refDir}){
+			d.mkdirs();
+			for(File f : d.listFiles()) f.delete();
+		}
+		
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		final long t0 = cal.getTimeInMillis()/1000;
+		final int nbSeries = 8;
+		final int nbPoints = 6*60;
+		
+		final TimeSeriesDB db = new TimeSeriesDB(dir);
+		TimeSeriesDB ref = new TimeSeriesDB(refDir);
+		for(int s=0;s<nbSeries;s++){
+			for(TimeSeriesDB d : new TimeSeriesDB[]{db, ref}){
+				TimeSerie ts = d.getTimeSerie("test-ingest-"+s, true);
+				ts.getMeta().setType(s%2==0 ? Type.AVERAGE : Type.ABS_COUNTER);
+				ts.createArchive(60);
+				ts.createArchive(5*60);
+				if(d==ref || s!=0) ts.createArchive(3600);
+			}
+			for(int i=0;i<nbPoints;i++){
+				ref.getTimeSerie("test-ingest-"+s).post(t0+i*60+s, (s%2==0 ? (i*(s+1))%50 : i*s));
+			}
+		}
+		
+		final IngestPipeline pipeline = db.enableIngestPipeline(3);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		final CountDownLatch started = new CountDownLatch(1);
+		List<Thread> producers = new ArrayList<Thread>();
+		for(int p=0;p<4;p++){
+			final int producer = p;
+			Thread thread = new Thread(){
+				@Override
+				public void run() {
+					try {
+						for(int i=0;i<nbPoints;i++){
+							for(int s=producer;s<nbSeries;s+=4){
+								pipeline.post(db.getTimeSerie("test-ingest-"+s), t0+i*60+s, (s%2==0 ? (i*(s+1))%50 : i*s));
+							}
+							if(i==nbPoints/2) started.countDown();
+						}
+					} catch (Exception e) {
+						failure.set(e);
+					}
+				}
+			};
+			producers.add(thread);
+			thread.start();
+		}
+		started.await();
+		db.getTimeSerie("test-ingest-0").createArchive(3600);
+		for(Thread thread : producers) thread.join();
+		pipeline.flush();
+		Assert.assertNull(failure.get());
+		Assert.assertEquals(0, pipeline.getErrorCount());
+		
+		//Erreur d'écriture (fichier des données brutes inaccessible) transmise une fois par flush, avec la série et la période du lot
+		new File(dir, "ts_test-ingest-err.rts").mkdir();
+		TimeSerie errTs = db.getTimeSerie("test-ingest-err", true);
+		errTs.getMeta().setType(Type.AVERAGE);
+		pipeline.post(errTs, t0, 1);
+		try{
+			pipeline.flush();
+			Assert.fail("erreur d'écriture non transmise");
+		}
+		catch(PostException e){
+			Assert.assertEquals("test-ingest-err", e.getSerieId());
+			Assert.assertEquals(t0*1000, e.getFirstTimestamp());
+			Assert.assertEquals(t0*1000, e.getLastTimestamp());
+			Assert.assertEquals(1, e.getCount());
+		}
+		pipeline.flush();
+		Assert.assertEquals(1, pipeline.getErrorCount());
+		
+		for(int s=0;s<nbSeries;s++){
+			TimeSerie ts = db.getTimeSerie("test-ingest-"+s);
+			TimeSerie refTs = ref.getTimeSerie("test-ingest-"+s);
+			Assert.assertEquals(nbPoints, ts.selectRaw(null, null).size());
+			for(int step : new int[]{60, 5*60, 3600}){
+				Assert.assertEquals(refTs.getArchive(step).getPoints(t0, 400).toString(), ts.getArchive(step).getPoints(t0, 400).toString());
+			}
+		}
+		db.close();
+		for (TimeSerie serie : ref.getTimeSeries()) serie.close();
+		
+		//Pipeline fermé : dépôt refusé
+		try{
+			pipeline.post(db.getTimeSerie("test-ingest-0"), t0+nbPoints*60, 0);
+			Assert.fail("dépôt accepté après fermeture");
+		}
+		catch(IllegalStateException e){
+			//attendu
+		}
+	}
+	
+	/**
+	 * Façade asynchrone : écritures concurrentes sur plusieurs séries, lecture, erreur transmise par le future
+	 */
+	@Test
+	public void t28_test() throws Exception {
+		File dir = new File(DIR+"/async");
+		dir.mkdirs();
+		for(File f : dir.listFiles()) f.delete();
+		
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		
+		TimeSeriesDB db = new TimeSeriesDB(dir);
+		int nbSeries = 16;
+		long[] timestamps = new long[120];
+		float[] values = new float[120];
+		for(int i=0;i<timestamps.length;i++){
+			timestamps[i] = t0+i*60;
+			values[i] = i%30;
+		}
+		List<CompletableFuture<Void>> posts = new ArrayList<CompletableFuture<Void>>();
+		for(int s=0;s<nbSeries;s++){
+			TimeSerie ts = db.getTimeSerie("test-async-"+s, true);
+			ts.getMeta().setType(Type.AVERAGE);
+			ts.createArchive(5*60);
+			posts.add(db.async().post("test-async-"+s, timestamps, values));
+		}
+		CompletableFuture.allOf(posts.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+		
+		List<ArchivePoint> expected = db.getTimeSerie("test-async-0").selectNb(5*60, t0, 24);
+		Assert.assertEquals(24, expected.size());
+		for(int s=0;s<nbSeries;s++){
+			List<ArchivePoint> points = db.async().selectNb("test-async-"+s, 5*60, t0, 24).get();
+			Assert.assertEquals(expected.toString(), points.toString());
+		}
+		
+		//valeurs postées une à une : écrites dans l'ordre des appels
+		TimeSerie ordered = db.getTimeSerie("test-async-ordre", true);
+		ordered.getMeta().setType(Type.AVERAGE);
+		posts.clear();
+		for(int i=0;i<2000;i++){
+			posts.add(db.async().post("test-async-ordre", t0+i, i));
+		}
+		CompletableFuture.allOf(posts.toArray(new CompletableFuture<?>[0])).get(1, TimeUnit.MINUTES);
+		RawColumns raw = ordered.selectRaw(null, null);
+		Assert.assertEquals(2000, raw.size);
+		for(int i=0;i<raw.size;i++){
+			Assert.assertEquals((t0+i)*1000, raw.timestamps[i]);
+		}
+		
+		try{
+			db.async().post("inconnue", t0, 1).get();
+			Assert.fail();
+		}
+		catch(ExecutionException e){
+			Assert.assertTrue(e.getCause() instanceof TimeSerieException);
+		}
+		db.close();
+	}
+	
+	/**
+	 * Diffusion parallèle des valeurs aux données brutes et aux archives : résultat identique à l'écriture directe
+	 */
+	@Test
+	public void t29_test() throws IOException, TimeSerieException, InterruptedException {
+		File dir = new File(DIR+"/fanout");
+		dir.mkdirs();
+		for(File f : dir.listFiles()) f.delete();
+		
+		Calendar cal = GregorianCalendar.getInstance();
+		cal.set(2015, 11, 07, 00, 00, 00);
+		long t0 = cal.getTimeInMillis()/1000;
+		
+		TimeSeriesDB db = new TimeSeriesDB(dir);
+		for(Type type : new Type[]{Type.AVERAGE, Type.ABS_COUNTER}){
+			TimeSerie ts = db.getTimeSerie("test-fanout-"+type, true);
+			TimeSerie ref = db.getTimeSerie("test-fanout-ref-"+type, true);
+			for(TimeSerie serie : new TimeSerie[]{ts, ref}){
+				serie.getMeta().setType(type);
+				serie.setArchiveConsolidation(type==Type.ABS_COUNTER);
+				for(int step : new int[]{60, 5*60, 900, 3600, 86400}) serie.createArchive(step);
+			}
+			ts.setFanOut(8);
+			for(int i=0;i<6*60;i++){
+				float v = (type==Type.AVERAGE ? i%50 : i*3);
+				ts.post(t0+i*60, v);
+				ref.post(t0+i*60, v);
+				if(i==4*60) ts.setFanOut(null);
+				if(i==5*60) ts.setFanOut(2);
+			}
+			ts.sync();
+			
+			Assert.assertEquals(ref.selectRaw(null, null).size(), ts.selectRaw(null, null).size());
+			for(Archive archive : ref.archives){
+				Assert.assertEquals(archive.getPoints(t0, 400).toString(), ts.getArchive(archive.step).getPoints(t0, 400).toString());
+			}
+			ts.close();
+			ref.close();
+		}
+		
+		//étape d'archive en erreur : erreur transmise avec le timestamp en erreur, archives reconstruites
+		TimeSerie ts = db.getTimeSerie("test-fanout-err", true);
+		TimeSerie ref = db.getTimeSerie("test-fanout-err-ref", true);
+		for(TimeSerie serie : new TimeSerie[]{ts, ref}){
+			serie.getMeta().setType(Type.AVERAGE);
+			serie.createArchive(300);
+		}
+		ts.setFanOut(8);
+		final Archive archive = ts.getArchive(300);
+		final long failedTs = t0+10*60;
+		ts.fanOut.archiveStages.put(archive, ts.fanOut.new Stage() {
+			@Override
+			void write(long timestamp, float value) throws IOException, ArchiveInitException {
+				if(timestamp==failedTs*1000) throw new IOException("erreur de test");
+				archive.post(timestamp/1000, value);
+			}
+		});
+		for(int i=0;i<=10;i++){
+			ts.post(t0+i*60, i);
+			ref.post(t0+i*60, i);
+		}
+		try{
+			ts.sync();
+			Assert.fail("erreur d'écriture non transmise");
+		}
+		catch(PostException e){
+			Assert.assertEquals("test-fanout-err", e.getSerieId());
+			Assert.assertEquals(failedTs*1000, e.getFirstTimestamp());
+			Assert.assertEquals(failedTs*1000, e.getLastTimestamp());
+			Assert.assertEquals(1, e.getCount());
+		}
+		for(int i=11;i<30;i++){
+			ts.post(t0+i*60, i);
+			ref.post(t0+i*60, i);
+		}
+		ts.sync();
+		Assert.assertEquals(ref.getArchive(300).getPoints(t0, 10).toString(), ts.getArchive(300).getPoints(t0, 10).toString());
+		ts.close();
+		ref.close();
+		
+		//Suppression d'une série dont des valeurs sont en cours de diffusion : écrites avant suppression des fichiers
+		ts = db.getTimeSerie("test-fanout-del", true);
+		ts.getMeta().setType(Type.AVERAGE);
+		ts.getMeta().writeMetadata();
+		Archive deleted = ts.createArchive(300);
+		ts.setFanOut(64);
+		for(int i=0;i<1000;i++){
+			ts.post(t0+i*60, i);
+		}
+		db.deleteTimeSerie("test-fanout-del");
+		Assert.assertNull(ts.fanOut);
+		Assert.assertNull(db.getTimeSerie("test-fanout-del"));
+		Thread.sleep(100);
+		Assert.assertFalse(deleted.archiveFile.exists());
+		Assert.assertFalse(new File(dir, "ts_test-fanout-del.rts").exists());
+	}
+	
+	
+	
+	
 	void assertNbInArchiveFile(int nb, Archive archive, File archiveFile){
 		Assert.assertEquals(
 				nb * archive.enregLen() + archive.currentStepDataLength() + Archive.HEADER1_LEN,